@@ -0,0 +1,82 @@
+/*
+ * Copyright 2004-2011 H2 Group. Multiple-Licensed under the H2 License,
+ * Version 1.0, and under the Eclipse Public License, Version 1.0
+ * (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package com.codefollower.lealone.command;
+
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+
+import com.codefollower.lealone.expression.ParameterInterface;
+import com.codefollower.lealone.message.DbException;
+import com.codefollower.lealone.value.Value;
+
+/**
+ * Helper methods to execute a command once for each parameter set of a batch.
+ */
+public class BatchUpdates {
+
+    private BatchUpdates() {
+        // utility class
+    }
+
+    /**
+     * Execute the command once for each parameter set. If an execution
+     * fails, its update count is set to Statement.EXECUTE_FAILED and the
+     * remaining parameter sets are still executed. After all parameter sets
+     * were executed, the exceptions are thrown as one chain (see
+     * {@link #addError(DbException, RuntimeException)}).
+     *
+     * @param command the command
+     * @param batchParameters the parameter values of each execution
+     * @param updateCounts receives the update count of each execution
+     */
+    public static void execute(CommandInterface command, ArrayList<Value[]> batchParameters, int[] updateCounts) {
+        DbException error = null;
+        for (int i = 0, size = batchParameters.size(); i < size; i++) {
+            try {
+                setParameters(command, batchParameters.get(i));
+                updateCounts[i] = command.executeUpdate();
+            } catch (RuntimeException e) {
+                updateCounts[i] = Statement.EXECUTE_FAILED;
+                error = addError(error, e);
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    /**
+     * Add an exception to the chain of exceptions of a batch. Like in
+     * JdbcStatement.executeBatch, the latest exception comes first and the
+     * earlier ones follow via getNextException.
+     *
+     * @param errors the exceptions so far, or null
+     * @param e the new exception
+     * @return the new head of the chain
+     */
+    public static DbException addError(DbException errors, RuntimeException e) {
+        SQLException s = DbException.convert(e).getSQLException();
+        if (errors != null) {
+            s.setNextException(errors.getSQLException());
+        }
+        return DbException.convert(s);
+    }
+
+    /**
+     * Set the parameter values of the command.
+     *
+     * @param command the command
+     * @param set the values
+     */
+    public static void setParameters(CommandInterface command, Value[] set) {
+        ArrayList<? extends ParameterInterface> parameters = command.getParameters();
+        for (int i = 0; i < set.length; i++) {
+            parameters.get(i).setValue(set[i], false);
+        }
+    }
+}
@@ -10,6 +10,7 @@ import java.util.ArrayList;
 
 import com.codefollower.lealone.expression.ParameterInterface;
 import com.codefollower.lealone.result.ResultInterface;
+import com.codefollower.lealone.value.Value;
 
 /**
  * Represents a SQL statement.
@@ -485,6 +486,19 @@ public interface CommandInterface {
      */
     int executeUpdate();
 
+    /**
+     * Execute the statement once for each parameter set. If an execution
+     * fails, its update count is Statement.EXECUTE_FAILED and the remaining
+     * parameter sets are still executed. After all parameter sets were
+     * executed, the exceptions are thrown as one chain: the latest exception
+     * comes first and the earlier ones follow via getNextException (see
+     * BatchUpdates.addError).
+     *
+     * @param batchParameters the parameter values of each execution
+     * @param updateCounts receives the update count of each execution
+     */
+    void executeBatchUpdate(ArrayList<Value[]> batchParameters, int[] updateCounts);
+
     /**
      * Close the statement.
      */
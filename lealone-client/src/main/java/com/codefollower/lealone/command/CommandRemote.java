@@ -9,10 +9,12 @@ package com.codefollower.lealone.command;
 import java.io.IOException;
 import java.util.ArrayList;
 
+import com.codefollower.lealone.constant.Constants;
 import com.codefollower.lealone.constant.SysProperties;
 import com.codefollower.lealone.engine.SessionRemote;
 import com.codefollower.lealone.expression.ParameterInterface;
 import com.codefollower.lealone.expression.ParameterRemote;
+import com.codefollower.lealone.jdbc.JdbcSQLException;
 import com.codefollower.lealone.message.DbException;
 import com.codefollower.lealone.message.Trace;
 import com.codefollower.lealone.result.ResultInterface;
@@ -200,6 +202,56 @@ public class CommandRemote implements CommandInterface {
         }
     }
 
+    public void executeBatchUpdate(ArrayList<Value[]> batchParameters, int[] updateCounts) {
+        //旧版本的服务器不认识COMMAND_EXECUTE_BATCH_UPDATE，只能逐个执行
+        if (session.getClientVersion() < Constants.TCP_PROTOCOL_VERSION_13) {
+            BatchUpdates.execute(this, batchParameters, updateCounts);
+            return;
+        }
+        synchronized (session) {
+            int size = batchParameters.size();
+            boolean autoCommit = false;
+            JdbcSQLException error = null;
+            for (int i = 0, count = 0; i < transferList.size(); i++) {
+                prepareIfRequired();
+                Transfer transfer = transferList.get(i);
+                try {
+                    session.traceOperation("COMMAND_EXECUTE_BATCH_UPDATE", id);
+                    transfer.writeInt(SessionRemote.COMMAND_EXECUTE_BATCH_UPDATE).writeInt(id).writeInt(size);
+                    for (Value[] set : batchParameters) {
+                        transfer.writeInt(set.length);
+                        for (Value v : set) {
+                            transfer.writeValue(v);
+                        }
+                    }
+                    session.done(transfer);
+                    for (int j = 0; j < size; j++) {
+                        updateCounts[j] = transfer.readInt();
+                    }
+                    error = null;
+                    JdbcSQLException last = null;
+                    for (int j = 0, errorCount = transfer.readInt(); j < errorCount; j++) {
+                        JdbcSQLException e = session.readSQLException(transfer);
+                        if (last == null)
+                            error = e;
+                        else
+                            last.setNextException(e);
+                        last = e;
+                    }
+                    autoCommit = transfer.readBoolean();
+                } catch (IOException e) {
+                    session.removeServer(e, i--, ++count);
+                }
+            }
+            session.setAutoCommitFromServer(autoCommit);
+            session.autoCommitIfCluster();
+            session.readSessionState();
+            if (error != null) {
+                throw DbException.convert(error);
+            }
+        }
+    }
+
     private void checkParameters() {
         for (ParameterInterface p : parameters) {
             p.checkSet();
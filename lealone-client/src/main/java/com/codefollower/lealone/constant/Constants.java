@@ -85,6 +85,12 @@ public class Constants {
      */
     public static final int TCP_PROTOCOL_VERSION_12 = 12;
 
+    /**
+     * The TCP protocol version number 13.
+     * Adds SessionRemote.COMMAND_EXECUTE_BATCH_UPDATE.
+     */
+    public static final int TCP_PROTOCOL_VERSION_13 = 13;
+
     /**
      * The major version of this database.
      */
@@ -108,6 +108,22 @@ public class SysProperties {
      */
     public static final String BIND_ADDRESS = getProperty("bind.address", null);
 
+    /**
+     * System property <code>bulk.load.buffer.size</code> (default: 67108864).<br />
+     * The number of bytes of cells that LOAD DATA sorts in memory before
+     * writing them to HFiles. Each full buffer produces one HFile per region
+     * and column family.
+     */
+    public static final int BULK_LOAD_BUFFER_SIZE = getProperty("bulk.load.buffer.size", 64 * 1024 * 1024);
+
+    /**
+     * System property <code>bulk.load.dir</code> (default: null).<br />
+     * The directory in the HBase file system where LOAD DATA writes its
+     * HFiles before they are imported. If not set, a directory under the
+     * home directory of the current user is used.
+     */
+    public static final String BULK_LOAD_DIR = getProperty("bulk.load.dir", null);
+
     /**
      * System property <code>check</code> (default: true).<br />
      * Assertions in the database engine.
@@ -149,6 +165,15 @@ public class SysProperties {
      */
     public static final boolean CONSOLE_STREAM = getProperty("console.stream", true);
 
+    /**
+     * System property <code>coprocessor.query</code> (default: false).<br />
+     * Run the per region part of an aggregate query in the region server
+     * coprocessor endpoint HBaseQueryEndpoint instead of sending it to the
+     * lealone tcp server. The endpoint must be configured in
+     * hbase.coprocessor.region.classes.
+     */
+    public static final boolean COPROCESSOR_QUERY = getProperty("coprocessor.query", false);
+
     /**
      * System property <code>datasource.trace.level</code> (default: 1).<br />
      * The trace level of the data source implementation. Default is 1 for
@@ -175,6 +200,21 @@ public class SysProperties {
      */
     public static final int DELAY_WRONG_PASSWORD_MAX = getProperty("delay.wrong.password.max", 4000);
 
+    /**
+     * System property <code>join.build.max.rows</code> (default: 100000).<br />
+     * The maximum number of rows of an HBase table that is read once and kept
+     * in memory when it is the inner table of a join. Larger tables are still
+     * queried once per outer row.
+     */
+    public static final int JOIN_BUILD_MAX_ROWS = getProperty("join.build.max.rows", 100000);
+
+    /**
+     * System property <code>join.lookup.batch.size</code> (default: 1000).<br />
+     * The maximum number of row keys looked up together when an HBase table
+     * is joined on its row key.
+     */
+    public static final int JOIN_LOOKUP_BATCH_SIZE = getProperty("join.lookup.batch.size", 1000);
+
     /**
      * System property <code>lob.close.between.reads</code> (default: false).<br />
      * Close LOB files between read operations.
@@ -269,6 +309,67 @@ public class SysProperties {
      */
     public static final int OBJECT_CACHE_SIZE = MathUtils.nextPowerOf2(getProperty("object.cache.size", 1024));
 
+    /**
+     * System property <code>parallel.executor.class</code> (default: null).<br />
+     * The name of a java.util.concurrent.ExecutorService implementation with a
+     * public no-argument constructor, used to run the per-region parts of
+     * distributed commands. If not set, a thread pool configured by the
+     * parallel.executor.* properties is used.
+     */
+    public static final String PARALLEL_EXECUTOR_CLASS = getProperty("parallel.executor.class", null);
+
+    /**
+     * System property <code>parallel.executor.keep.alive</code> (default: 5000).<br />
+     * The time in milliseconds an idle thread of the distributed command
+     * thread pool is kept alive.
+     */
+    public static final int PARALLEL_EXECUTOR_KEEP_ALIVE = getProperty("parallel.executor.keep.alive", 5000);
+
+    /**
+     * System property <code>parallel.executor.max.tasks.per.session</code>
+     * (default: 0).<br />
+     * The maximum number of per-region tasks of one session that run at the
+     * same time. Further tasks wait until a task of the same session is done.
+     * If set to 0, there is no limit.
+     */
+    public static final int PARALLEL_EXECUTOR_MAX_TASKS_PER_SESSION = getProperty(
+            "parallel.executor.max.tasks.per.session", 0);
+
+    /**
+     * System property <code>parallel.executor.queue.size</code> (default: 10000).<br />
+     * The maximum number of per-region tasks waiting for a thread of the
+     * distributed command thread pool. Tasks are rejected when the queue is full.
+     */
+    public static final int PARALLEL_EXECUTOR_QUEUE_SIZE = getProperty("parallel.executor.queue.size", 10000);
+
+    /**
+     * System property <code>parallel.executor.threads</code> (default: 20).<br />
+     * The number of threads of the distributed command thread pool.
+     */
+    public static final int PARALLEL_EXECUTOR_THREADS = getProperty("parallel.executor.threads", 20);
+
+    /**
+     * System property <code>parallel.query.degree</code> (default: 8).<br />
+     * The maximum number of regions that a distributed query without ORDER BY
+     * fetches rows from at the same time. If set to 1, the regions are read
+     * one after another.
+     */
+    public static final int PARALLEL_QUERY_DEGREE = getProperty("parallel.query.degree", 8);
+
+    /**
+     * System property <code>parallel.query.buffer.rows</code> (default: 256).<br />
+     * The maximum number of prefetched rows buffered per region when a
+     * distributed query fetches rows from several regions at the same time.
+     */
+    public static final int PARALLEL_QUERY_BUFFER_ROWS = getProperty("parallel.query.buffer.rows", 256);
+
+    /**
+     * System property <code>parallel.query.open.timeout</code> (default: 300000).<br />
+     * The time in milliseconds to wait for the first region of a parallel
+     * distributed query to return its result.
+     */
+    public static final int PARALLEL_QUERY_OPEN_TIMEOUT = getProperty("parallel.query.open.timeout", 300000);
+
     /**
      * System property <code>pg.client.encoding</code> (default: UTF-8).<br />
      * Default client encoding for PG server. It is used if the client does not
@@ -282,12 +383,92 @@ public class SysProperties {
      */
     public static final String PREFIX_TEMP_FILE = getProperty("prefix.temp.file", Constants.PROJECT_NAME_PREFIX + "temp");
 
+    /**
+     * System property <code>region.location.retries</code> (default: 3).<br />
+     * The number of times a statement routed to a single region is retried
+     * when the region is no longer served by the cached server, for example
+     * after the region was moved or split.
+     */
+    public static final int REGION_LOCATION_RETRIES = getProperty("region.location.retries", 3);
+
+    /**
+     * System property <code>result.fetch.adaptive</code> (default: true).<br />
+     * Adjust the fetch size of a remote result after each batch, based on
+     * the row width and the time the batch took. Only results that use the
+     * default fetch size are adjusted.
+     */
+    public static final boolean RESULT_FETCH_ADAPTIVE = getProperty("result.fetch.adaptive", true);
+
+    /**
+     * System property <code>result.fetch.max.rows</code> (default: 10000).<br />
+     * The maximum fetch size of an adaptive result.
+     */
+    public static final int RESULT_FETCH_MAX_ROWS = getProperty("result.fetch.max.rows", 10000);
+
+    /**
+     * System property <code>result.fetch.target.bytes</code>
+     * (default: 1048576).<br />
+     * The approximate number of bytes an adaptive result fetches in one
+     * batch.
+     */
+    public static final int RESULT_FETCH_TARGET_BYTES = getProperty("result.fetch.target.bytes", 1024 * 1024);
+
+    /**
+     * System property <code>result.fetch.target.time</code> (default: 200).<br />
+     * The time in milliseconds one batch of an adaptive result should take.
+     */
+    public static final int RESULT_FETCH_TARGET_TIME = getProperty("result.fetch.target.time", 200);
+
     /**
      * System property <code>run.finalize</code> (default: true).<br />
      * Run finalizers to detect unclosed connections.
      */
     public static boolean runFinalize = getProperty("run.finalize", true);
 
+    /**
+     * System property <code>scanner.batch.max.bytes</code>
+     * (default: 2097152).<br />
+     * The approximate maximum number of bytes a region scanner returns in one
+     * batch. The number of rows per batch is derived from the observed row
+     * width.
+     */
+    public static final int SCANNER_BATCH_MAX_BYTES = getProperty("scanner.batch.max.bytes", 2 * 1024 * 1024);
+
+    /**
+     * System property <code>scanner.batch.max.rows</code> (default: 10000).<br />
+     * The maximum number of rows a region scanner returns in one batch.
+     */
+    public static final int SCANNER_BATCH_MAX_ROWS = getProperty("scanner.batch.max.rows", 10000);
+
+    /**
+     * System property <code>scanner.prefetch</code> (default: true).<br />
+     * Fetch the next batch of a region scanner in the background while the
+     * current batch is processed.
+     */
+    public static final boolean SCANNER_PREFETCH = getProperty("scanner.prefetch", true);
+
+    /**
+     * System property <code>scanner.prefetch.threads</code> (default: 16).<br />
+     * The number of threads that fetch the next batch of region scanners in
+     * the background. When all of them are busy, the next batch is fetched
+     * when it is needed.
+     */
+    public static final int SCANNER_PREFETCH_THREADS = getProperty("scanner.prefetch.threads", 16);
+
+    /**
+     * System property <code>sequence.lease.max.size</code> (default: 65536).<br />
+     * The maximum number of sequence values a region server leases from the
+     * master at once.
+     */
+    public static final int SEQUENCE_LEASE_MAX_SIZE = getProperty("sequence.lease.max.size", 64 * 1024);
+
+    /**
+     * System property <code>sequence.lease.target.time</code> (default: 1000).<br />
+     * The time in milliseconds a leased range of sequence values should last.
+     * The lease size is doubled or halved to stay near this time.
+     */
+    public static final int SEQUENCE_LEASE_TARGET_TIME = getProperty("sequence.lease.target.time", 1000);
+
     /**
      * System property <code>server.cached.objects</code> (default: 64).<br />
      * TCP Server: number of cached objects per session.
@@ -301,6 +482,28 @@ public class SysProperties {
      */
     public static final int SERVER_RESULT_SET_FETCH_SIZE = getProperty("server.resultset.fetch.size", 100);
 
+    /**
+     * System property <code>session.pool.check.idle</code> (default: 5000).<br />
+     * A pooled remote session that was idle for more than this many
+     * milliseconds is checked before it is reused.
+     */
+    public static final int SESSION_POOL_CHECK_IDLE = getProperty("session.pool.check.idle", 5000);
+
+    /**
+     * System property <code>session.pool.idle.timeout</code> (default: 60000).<br />
+     * A pooled remote session that was idle for more than this many
+     * milliseconds is closed.
+     */
+    public static final int SESSION_POOL_IDLE_TIMEOUT = getProperty("session.pool.idle.timeout", 60000);
+
+    /**
+     * System property <code>session.pool.max.per.host</code> (default: 32).<br />
+     * The maximum number of idle remote sessions kept in the pool for the
+     * same server and user. Leasing a session never waits; sessions released
+     * while the pool is full are closed.
+     */
+    public static final int SESSION_POOL_MAX_PER_HOST = getProperty("session.pool.max.per.host", 32);
+
     /**
      * System property <code>socket.connect.retry</code> (default: 16).<br />
      * The number of times to retry opening a socket. Windows sometimes fails
@@ -370,6 +573,13 @@ public class SysProperties {
      */
     public static final boolean USE_THREAD_CONTEXT_CLASS_LOADER = Utils.getProperty("use.thread.context.classloader", false);
 
+    /**
+     * System property <code>write.buffer.size</code> (default: 1000).<br />
+     * The number of rows an INSERT, UPDATE or DELETE statement buffers per
+     * session before the puts and deletes are written to the regions.
+     */
+    public static final int WRITE_BUFFER_SIZE = getProperty("write.buffer.size", 1000);
+
     /**
      * System property <code>serialize.java.object</code> (default: true).<br />
      * <b>If true</b>, values of type OTHER will be stored in serialized form
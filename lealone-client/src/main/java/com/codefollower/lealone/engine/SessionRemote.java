@@ -60,6 +60,7 @@ public class SessionRemote extends SessionWithState implements DataHandler {
     public static final int SESSION_SET_AUTOCOMMIT = 15;
     public static final int SESSION_UNDO_LOG_POS = 16;
     public static final int LOB_READ = 17;
+    public static final int COMMAND_EXECUTE_BATCH_UPDATE = 18;
 
     public static final int STATUS_ERROR = 0;
     public static final int STATUS_OK = 1;
@@ -99,7 +100,7 @@ public class SessionRemote extends SessionWithState implements DataHandler {
         trans.setSSL(ci.isSSL());
         trans.init();
         trans.writeInt(Constants.TCP_PROTOCOL_VERSION_6);
-        trans.writeInt(Constants.TCP_PROTOCOL_VERSION_12);
+        trans.writeInt(Constants.TCP_PROTOCOL_VERSION_13);
         trans.writeString(db);
         trans.writeString(ci.getOriginalURL());
         trans.writeString(ci.getUserName());
@@ -125,6 +126,15 @@ public class SessionRemote extends SessionWithState implements DataHandler {
         return trans;
     }
 
+    /**
+     * 与服务器协商后的协议版本，服务器是旧版本时比客户端支持的最高版本低
+     *
+     * @return the protocol version
+     */
+    public int getClientVersion() {
+        return clientVersion;
+    }
+
     public int getUndoLogPos() {
         if (clientVersion < Constants.TCP_PROTOCOL_VERSION_10) {
             return 1;
@@ -568,13 +578,8 @@ public class SessionRemote extends SessionWithState implements DataHandler {
         transfer.flush();
         int status = transfer.readInt();
         if (status == STATUS_ERROR) {
-            String sqlstate = transfer.readString();
-            String message = transfer.readString();
-            String sql = transfer.readString();
-            int errorCode = transfer.readInt();
-            String stackTrace = transfer.readString();
-            JdbcSQLException s = new JdbcSQLException(message, sql, sqlstate, errorCode, null, stackTrace);
-            if (errorCode == ErrorCode.CONNECTION_BROKEN_1) {
+            JdbcSQLException s = readSQLException(transfer);
+            if (s.getErrorCode() == ErrorCode.CONNECTION_BROKEN_1) {
                 // allow re-connect
                 IOException e = new IOException(s.toString());
                 e.initCause(s);
@@ -592,6 +597,21 @@ public class SessionRemote extends SessionWithState implements DataHandler {
         }
     }
 
+    /**
+     * Read an exception that was sent by the server.
+     *
+     * @param transfer the transfer object
+     * @return the exception
+     */
+    public JdbcSQLException readSQLException(Transfer transfer) throws IOException {
+        String sqlstate = transfer.readString();
+        String message = transfer.readString();
+        String sql = transfer.readString();
+        int errorCode = transfer.readInt();
+        String stackTrace = transfer.readString();
+        return new JdbcSQLException(message, sql, sqlstate, errorCode, null, stackTrace);
+    }
+
     /**
      * Returns true if the connection was opened in cluster mode.
      *
@@ -19,7 +19,6 @@ import java.sql.Ref;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
-import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.HashMap;
@@ -161,6 +160,18 @@ public class JdbcPreparedStatement extends JdbcStatement implements PreparedStat
         return updateCount;
     }
 
+    private void executeBatchInternal(ArrayList<Value[]> batch, int[] result) throws SQLException {
+        closeOldResultSet();
+        synchronized (session) {
+            try {
+                setExecutingStatement(command);
+                command.executeBatchUpdate(batch, result);
+            } finally {
+                setExecutingStatement(null);
+            }
+        }
+    }
+
     /**
      * Executes an arbitrary statement. If another result set exists for this
      * statement, this will be closed (even if this statement fails). If auto
@@ -1090,36 +1101,17 @@ public class JdbcPreparedStatement extends JdbcStatement implements PreparedStat
             }
             int size = batchParameters.size();
             int[] result = new int[size];
-            boolean error = false;
-            SQLException next = null;
             checkClosedForWrite();
             try {
-                for (int i = 0; i < size; i++) {
-                    Value[] set = batchParameters.get(i);
-                    ArrayList<? extends ParameterInterface> parameters = command.getParameters();
-                    for (int j = 0; j < set.length; j++) {
-                        Value value = set[j];
-                        ParameterInterface param = parameters.get(j);
-                        param.setValue(value, false);
-                    }
-                    try {
-                        result[i] = executeUpdateInternal();
-                    } catch (Exception re) {
-                        SQLException e = logAndConvert(re);
-                        if (next == null) {
-                            next = e;
-                        } else {
-                            e.setNextException(next);
-                            next = e;
-                        }
-                        result[i] = Statement.EXECUTE_FAILED;
-                        error = true;
-                    }
-                }
+                // the whole batch is sent at once, so that a remote server
+                // needs only one round trip and can group the rows by region
+                ArrayList<Value[]> batch = batchParameters;
                 batchParameters = null;
-                if (error) {
-                    JdbcBatchUpdateException e = new JdbcBatchUpdateException(next, result);
-                    throw e;
+                try {
+                    executeBatchInternal(batch, result);
+                } catch (Exception re) {
+                    SQLException e = logAndConvert(re);
+                    throw new JdbcBatchUpdateException(e, result);
                 }
                 return result;
             } finally {
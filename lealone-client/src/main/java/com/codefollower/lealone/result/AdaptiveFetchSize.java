@@ -0,0 +1,101 @@
+/*
+ * Copyright 2011 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.codefollower.lealone.result;
+
+import com.codefollower.lealone.constant.SysProperties;
+import com.codefollower.lealone.value.Value;
+
+/**
+ * 根据每批记录的宽度和读取一批记录所花的时间调整fetchSize。
+ *
+ * <ul>
+ * <li>一批记录的字节数大约是targetBytes(默认lealone.result.fetch.target.bytes)，窄记录的批次更大，宽记录的批次更小</li>
+ * <li>读取一批记录所花的时间超过targetTime(默认lealone.result.fetch.target.time)毫秒时按比例减小批次</li>
+ * <li>每次最多翻倍，最少1条，最多maxRows(默认lealone.result.fetch.max.rows)条</li>
+ * </ul>
+ */
+public class AdaptiveFetchSize {
+    private final int maxRows;
+    private final int targetBytes;
+    private final int targetTime;
+
+    private int fetchSize;
+    private double avgRowBytes; //已读记录的平均字节数，0表示还不知道
+
+    public AdaptiveFetchSize(int fetchSize) {
+        this(fetchSize, SysProperties.RESULT_FETCH_MAX_ROWS, SysProperties.RESULT_FETCH_TARGET_BYTES,
+                SysProperties.RESULT_FETCH_TARGET_TIME);
+    }
+
+    /**
+     *
+     * @param fetchSize 第一批的fetchSize
+     * @param maxRows 每批最多的记录数
+     * @param targetBytes 每批记录的目标字节数
+     * @param targetTime 读取每批记录的目标毫秒数
+     */
+    public AdaptiveFetchSize(int fetchSize, int maxRows, int targetBytes, int targetTime) {
+        this.maxRows = Math.max(1, maxRows);
+        this.targetBytes = targetBytes;
+        this.targetTime = targetTime;
+        this.fetchSize = Math.max(1, Math.min(fetchSize, this.maxRows));
+    }
+
+    public int getFetchSize() {
+        return fetchSize;
+    }
+
+    /**
+     * 读完一批记录后调用，返回下一批的fetchSize
+     *
+     * @param rows 这一批的记录数
+     * @param bytes 这一批记录的(估算)字节数
+     * @param time 读取这一批记录所花的毫秒数，不知道时为-1
+     * @return the new fetch size
+     */
+    public int update(int rows, long bytes, long time) {
+        if (rows <= 0)
+            return fetchSize;
+        double rowBytes = Math.max(1, (double) bytes / rows);
+        //平滑一下，避免个别很宽或很窄的批次让批大小来回跳
+        avgRowBytes = avgRowBytes == 0 ? rowBytes : (avgRowBytes * 3 + rowBytes) / 4;
+
+        long size = Math.min((long) fetchSize * 2, maxRows);
+        size = Math.min(size, (long) (targetBytes / avgRowBytes));
+        if (time > targetTime)
+            size = Math.min(size, (long) rows * targetTime / time);
+        fetchSize = (int) Math.max(1, size);
+        return fetchSize;
+    }
+
+    /**
+     * 估算一行记录的字节数
+     *
+     * @param row the row
+     * @return the estimated number of bytes
+     */
+    public static int getMemory(Value[] row) {
+        int memory = 0;
+        for (Value v : row)
+            if (v != null)
+                memory += v.getMemory();
+        return memory;
+    }
+}
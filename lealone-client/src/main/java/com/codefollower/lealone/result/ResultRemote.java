@@ -30,6 +30,11 @@ public abstract class ResultRemote implements ResultInterface {
     protected ArrayList<Value[]> result;
     protected final Trace trace;
 
+    /**
+     * 使用默认fetchSize的结果在每读完一批记录后调整fetchSize，为null时不调整
+     */
+    private AdaptiveFetchSize adaptiveFetchSize;
+
     public ResultRemote(SessionRemote session, Transfer transfer, int id, int columnCount, int rowCount, int fetchSize)
             throws IOException {
         this.session = session;
@@ -44,6 +49,8 @@ public abstract class ResultRemote implements ResultInterface {
         rowId = -1;
         result = New.arrayList();
         this.fetchSize = fetchSize;
+        if (SysProperties.RESULT_FETCH_ADAPTIVE && fetchSize == SysProperties.SERVER_RESULT_SET_FETCH_SIZE)
+            adaptiveFetchSize = new AdaptiveFetchSize(fetchSize);
         fetchRows(false);
     }
 
@@ -183,6 +190,22 @@ public abstract class ResultRemote implements ResultInterface {
 
     public void setFetchSize(int fetchSize) {
         this.fetchSize = fetchSize;
+        adaptiveFetchSize = null; //显式指定的fetchSize不再调整
+    }
+
+    /**
+     * 读完一批记录后根据这批记录的宽度和所花的时间调整下一批的fetchSize
+     *
+     * @param startTime 开始读取这批记录的时间，第一批记录包含了执行查询的时间，此时为0
+     */
+    protected void adjustFetchSize(long startTime) {
+        if (adaptiveFetchSize == null || result.isEmpty())
+            return;
+        long bytes = 0;
+        for (int i = 0, size = result.size(); i < size; i++)
+            bytes += AdaptiveFetchSize.getMemory(result.get(i));
+        long time = startTime > 0 ? System.currentTimeMillis() - startTime : -1;
+        fetchSize = adaptiveFetchSize.update(result.size(), bytes, time);
     }
 
     public boolean needToClose() {
@@ -58,6 +58,7 @@ public class ResultRemoteCursor extends ResultRemote {
             try {
                 rowOffset += result.size();
                 result.clear();
+                long startTime = sendFetch ? System.currentTimeMillis() : 0;
                 if (sendFetch) {
                     sendFetch();
                 }
@@ -76,6 +77,7 @@ public class ResultRemoteCursor extends ResultRemote {
                     result.add(values);
                 }
 
+                adjustFetchSize(startTime);
                 if (isEnd)
                     sendClose();
             } catch (IOException e) {
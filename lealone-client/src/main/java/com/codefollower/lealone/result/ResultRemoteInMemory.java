@@ -48,6 +48,7 @@ public class ResultRemoteInMemory extends ResultRemote {
             try {
                 rowOffset += result.size();
                 result.clear();
+                long startTime = sendFetch ? System.currentTimeMillis() : 0;
                 int fetch = Math.min(fetchSize, rowCount - rowOffset);
                 if (sendFetch) {
                     sendFetch();
@@ -65,6 +66,7 @@ public class ResultRemoteInMemory extends ResultRemote {
                     }
                     result.add(values);
                 }
+                adjustFetchSize(startTime);
                 if (rowOffset + result.size() >= rowCount) {
                     sendClose();
                 }
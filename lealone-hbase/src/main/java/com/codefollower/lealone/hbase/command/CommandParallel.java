@@ -19,16 +19,17 @@
  */
 package com.codefollower.lealone.hbase.command;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
-import java.util.concurrent.SynchronousQueue;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
 
-import org.apache.hadoop.hbase.util.Threads;
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.util.Bytes;
 
+import com.codefollower.lealone.command.BatchUpdates;
 import com.codefollower.lealone.command.Command;
 import com.codefollower.lealone.command.CommandInterface;
 import com.codefollower.lealone.command.Prepared;
@@ -36,51 +37,52 @@ import com.codefollower.lealone.command.dml.Select;
 import com.codefollower.lealone.constant.SysProperties;
 import com.codefollower.lealone.expression.ParameterInterface;
 import com.codefollower.lealone.hbase.command.merge.HBaseMergedResult;
+import com.codefollower.lealone.hbase.engine.HBaseQueryEndpoint;
+import com.codefollower.lealone.hbase.engine.HBaseQueryProtocol;
 import com.codefollower.lealone.hbase.engine.HBaseSession;
+import com.codefollower.lealone.hbase.result.HBaseParallelResult;
 import com.codefollower.lealone.hbase.result.HBaseSerializedResult;
+import com.codefollower.lealone.hbase.result.HBaseSortedResult;
 import com.codefollower.lealone.hbase.util.HBaseRegionInfo;
-import com.codefollower.lealone.hbase.util.HBaseUtils;
+import com.codefollower.lealone.message.DbException;
 import com.codefollower.lealone.result.ResultInterface;
 import com.codefollower.lealone.util.New;
+import com.codefollower.lealone.value.Value;
+import com.codefollower.lealone.value.ValueNull;
 
 public class CommandParallel implements CommandInterface {
-    private static ThreadPoolExecutor pool;
+    private final FanOutExecutor executor = FanOutExecutor.getInstance();
     private final HBaseSession originalSession;
     private final Prepared originalPrepared;
     private final String sql;
     private final List<CommandInterface> commands; //保证不会为null且size>=2
+    private final List<CommandInterface> localCommands; //远程命令由CommandProxy负责关闭，这里只关闭本地命令
+    private final List<HBaseRegionInfo> regions;
 
     public CommandParallel(HBaseSession originalSession, CommandProxy commandProxy, //
-            byte[] tableName, List<byte[]> startKeys, String sql, Prepared originalPrepared) {
-        if (startKeys == null)
-            throw new RuntimeException("startKeys is null");
-        else if (startKeys.size() < 2)
-            throw new RuntimeException("startKeys.size() < 2");
+            List<HBaseRegionInfo> regions, String sql, Prepared originalPrepared) {
+        if (regions == null)
+            throw new RuntimeException("regions is null");
+        else if (regions.size() < 2)
+            throw new RuntimeException("regions.size() < 2");
 
         this.originalSession = originalSession;
         this.originalPrepared = originalPrepared;
         this.sql = sql;
-        this.commands = new ArrayList<CommandInterface>(startKeys.size());
+        this.regions = regions;
+        this.commands = new ArrayList<CommandInterface>(regions.size());
+        this.localCommands = New.arrayList();
 
         try {
-            if (pool == null) {
-                synchronized (CommandParallel.class) {
-                    if (pool == null) {
-                        //TODO 可配置的线程池参数
-                        pool = new ThreadPoolExecutor(1, 20, 5, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
-                                Threads.newDaemonThreadFactory(CommandParallel.class.getSimpleName()));
-                        pool.allowCoreThreadTimeOut(true);
-                    }
-                }
-            }
-            for (byte[] startKey : startKeys) {
-                HBaseRegionInfo hri = HBaseUtils.getHBaseRegionInfo(tableName, startKey);
+            for (HBaseRegionInfo hri : regions) {
                 if (CommandProxy.isLocal(originalSession, hri)) {
                     HBaseSession newSession = createHBaseSession();
                     Command c = newSession.prepareLocal(planSQL());
                     HBasePrepared hp = (HBasePrepared) c.getPrepared();
                     hp.setRegionName(hri.getRegionName());
-                    commands.add(new CommandWrapper(c, newSession)); //newSession在Command关闭的时候自动关闭
+                    CommandInterface local = new CommandWrapper(c, newSession); //newSession在Command关闭的时候自动关闭
+                    commands.add(local);
+                    localCommands.add(local);
                 } else {
                     commands.add(commandProxy.getCommandInterface(hri.getRegionServerURL(),
                             CommandProxy.createSQL(hri.getRegionName(), planSQL())));
@@ -98,14 +100,18 @@ public class CommandParallel implements CommandInterface {
         //必须使用新Session，否则在并发执行Command类的executeUpdate或executeQuery时因为使用session对象来同步所以会造成死锁
         HBaseSession newSession = (HBaseSession) originalSession.getDatabase().createSession(originalSession.getUser());
         newSession.setRegionServer(originalSession.getRegionServer());
+        newSession.setAllowInternalAggregates(true);
         return newSession;
     }
 
     private String planSQL() {
-        if (originalPrepared.isQuery() && ((Select) originalPrepared).isGroupQuery())
-            return ((Select) originalPrepared).getPlanSQL(true);
-        else
-            return sql;
+        if (originalPrepared.isQuery()) {
+            Select select = (Select) originalPrepared;
+            //带ORDER BY时需要把排序用到的隐藏列也发给各Region，并且把OFFSET合并到LIMIT中
+            if (select.isGroupQuery() || select.getSortOrder() != null)
+                return select.getPlanSQL(true);
+        }
+        return sql;
     }
 
     @Override
@@ -128,21 +134,94 @@ public class CommandParallel implements CommandInterface {
         return originalPrepared.getParameters();
     }
 
+    /**
+     * 各Region上的命令可能是重用的，每次执行前都要把最新的参数值传给它们
+     */
+    private void setParameters() {
+        ArrayList<? extends ParameterInterface> originalParams = originalPrepared.getParameters();
+        if (originalParams == null || originalParams.isEmpty())
+            return;
+        for (CommandInterface c : commands) {
+            ArrayList<? extends ParameterInterface> params = c.getParameters();
+            if (params == null || params == originalParams)
+                continue;
+            for (int i = 0, size = params.size(); i < size; i++) {
+                params.get(i).setValue(originalParams.get(i).getParamValue(), true);
+            }
+        }
+    }
+
     @Override
     public ResultInterface executeQuery(final int maxRows, final boolean scrollable) {
+        setParameters();
         Select originalSelect = (Select) originalPrepared;
         //originalSelect.isGroupQuery()如果是false，那么按org.apache.hadoop.hbase.client.ClientScanner的功能来实现。
         //只要Select语句中出现聚合函数、groupBy、Having三者之一都被认为是GroupQuery，
         //对于GroupQuery需要把Select语句同时发给相关的RegionServer，得到结果后再合并。
-        if (!originalSelect.isGroupQuery())
+        if (!originalSelect.isGroupQuery()) {
+            //带ORDER BY时每个Region返回的结果已排好序，并且最多只有(limit + offset)条记录，此时做k路归并
+            if (originalSelect.getSortOrder() != null)
+                return executeSortedQuery(originalSelect, maxRows, scrollable);
+            //没有ORDER BY时调用者不关心记录的顺序，可以并行抓取多个Region的记录，按到达的先后顺序返回
+            if (!scrollable && SysProperties.PARALLEL_QUERY_DEGREE > 1)
+                return new HBaseParallelResult(executor, originalSession.getId(), commands, maxRows,
+                        SysProperties.PARALLEL_QUERY_DEGREE, SysProperties.PARALLEL_QUERY_BUFFER_ROWS);
             return new HBaseSerializedResult(commands, maxRows, scrollable);
+        }
+
+        //各列都是能直接合并的聚合函数时，一次哈希合并各Region返回的部分聚合结果就得到最终结果，
+        //不用再把getPlanSQL(true)解析成新的Select合并两遍
+        int[] offsets = originalSelect.getPartialOffsets();
+        if (offsets != null) {
+            //各Region上的分组只是一部分，不能按maxRows截断
+            List<ResultInterface> results;
+            if (SysProperties.COPROCESSOR_QUERY && originalSession.getOriginalProperties() != null)
+                results = executeQueryInCoprocessor();
+            else
+                results = executeQueryParallel(0, false);
+            ResultInterface partialResult = new HBaseSerializedResult(results);
+            try {
+                return originalSelect.mergePartial(partialResult, offsets, maxRows);
+            } finally {
+                partialResult.close();
+            }
+        }
 
+        List<ResultInterface> results = executeQueryParallel(maxRows, scrollable);
+        String newSQL = originalSelect.getPlanSQL(true);
+        Select newSelect = (Select) createHBaseSession().prepare(newSQL, true);
+
+        return new HBaseMergedResult(results, newSelect, originalSelect);
+    }
+
+    private ResultInterface executeSortedQuery(Select select, int maxRows, boolean scrollable) {
+        int offset = 0;
+        int limit = -1;
+        if (select.getOffset() != null) {
+            Value v = select.getOffset().getValue(originalSession);
+            if (v != ValueNull.INSTANCE && v.getInt() > 0)
+                offset = v.getInt();
+        }
+        if (select.getLimit() != null) {
+            Value v = select.getLimit().getValue(originalSession);
+            if (v != ValueNull.INSTANCE)
+                limit = v.getInt();
+        }
+        if (maxRows > 0 && (limit < 0 || maxRows < limit))
+            limit = maxRows;
+
+        //每个Region最多只需要返回(limit + offset)条记录
+        List<ResultInterface> results = executeQueryParallel(limit < 0 ? 0 : limit + offset, scrollable);
+        return new HBaseSortedResult(results, select.getSortOrder(), offset, limit, select.getColumnCount());
+    }
+
+    private List<ResultInterface> executeQueryParallel(final int maxRows, final boolean scrollable) {
         int size = commands.size();
         List<Future<ResultInterface>> futures = New.arrayList(size);
         List<ResultInterface> results = New.arrayList(size);
         for (int i = 0; i < size; i++) {
             final CommandInterface c = commands.get(i);
-            futures.add(pool.submit(new Callable<ResultInterface>() {
+            futures.add(executor.submit(originalSession.getId(), new Callable<ResultInterface>() {
                 public ResultInterface call() throws Exception {
                     return c.executeQuery(maxRows, scrollable);
                 }
@@ -155,21 +234,57 @@ public class CommandParallel implements CommandInterface {
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
+        return results;
+    }
 
-        String newSQL = originalSelect.getPlanSQL(true);
-        Select newSelect = (Select) createHBaseSession().prepare(newSQL, true);
-
-        return new HBaseMergedResult(results, newSelect, originalSelect);
+    /**
+     * 在各Region所在的RegionServer中通过HBaseQueryEndpoint执行查询，不经过Lealone的TCP Server
+     */
+    private List<ResultInterface> executeQueryInCoprocessor() {
+        String planSQL = planSQL();
+        int size = regions.size();
+        List<Future<ResultInterface>> futures = New.arrayList(size);
+        List<ResultInterface> results = New.arrayList(size);
+        for (int i = 0; i < size; i++) {
+            HBaseRegionInfo hri = regions.get(i);
+            final byte[] request = HBaseQueryEndpoint.createRequest(hri.getRegionName(), originalSession, planSQL,
+                    originalPrepared.getParameters());
+            //HTable由originalSession缓存，在当前线程中创建代理，执行线程只调用代理
+            final HBaseQueryProtocol p;
+            try {
+                HTable htable = originalSession.getLookupTable(Bytes.toString(hri.getHRegionInfo().getTableName()));
+                p = HBaseQueryEndpoint.getProxy(htable, hri.getHRegionInfo());
+            } catch (IOException e) {
+                throw DbException.convert(e);
+            }
+            futures.add(executor.submit(originalSession.getId(), new Callable<ResultInterface>() {
+                public ResultInterface call() throws Exception {
+                    return HBaseQueryEndpoint.executeQuery(p, request);
+                }
+            }));
+        }
+        try {
+            for (int i = 0; i < size; i++) {
+                results.add(futures.get(i).get());
+            }
+        } catch (ExecutionException e) {
+            //保留Region上的错误码
+            throw DbException.convert(e.getCause());
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+        return results;
     }
 
     @Override
     public int executeUpdate() {
+        setParameters();
         int updateCount = 0;
         int size = commands.size();
         List<Future<Integer>> futures = New.arrayList(size);
         for (int i = 0; i < size; i++) {
             final CommandInterface c = commands.get(i);
-            futures.add(pool.submit(new Callable<Integer>() {
+            futures.add(executor.submit(originalSession.getId(), new Callable<Integer>() {
                 public Integer call() throws Exception {
                     return c.executeUpdate();
                 }
@@ -185,9 +300,14 @@ public class CommandParallel implements CommandInterface {
         return updateCount;
     }
 
+    @Override
+    public void executeBatchUpdate(ArrayList<Value[]> batchParameters, int[] updateCounts) {
+        BatchUpdates.execute(this, batchParameters, updateCounts);
+    }
+
     @Override
     public void close() {
-        for (CommandInterface c : commands)
+        for (CommandInterface c : localCommands)
             c.close();
     }
 
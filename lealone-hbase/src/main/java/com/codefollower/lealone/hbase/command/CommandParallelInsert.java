@@ -0,0 +1,210 @@
+/*
+ * Copyright 2011 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.codefollower.lealone.hbase.command;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import com.codefollower.lealone.command.BatchUpdates;
+import com.codefollower.lealone.command.Command;
+import com.codefollower.lealone.command.CommandInterface;
+import com.codefollower.lealone.expression.ParameterInterface;
+import com.codefollower.lealone.hbase.command.dml.HBaseInsert;
+import com.codefollower.lealone.hbase.engine.HBaseSession;
+import com.codefollower.lealone.hbase.util.HBaseRegionInfo;
+import com.codefollower.lealone.message.DbException;
+import com.codefollower.lealone.result.ResultInterface;
+import com.codefollower.lealone.util.New;
+import com.codefollower.lealone.value.Value;
+
+/**
+ * 多行INSERT的记录落在多个Region上时，按Region分组，每组生成一条只包含该Region记录的INSERT。
+ * 远程Region上的INSERT并行执行，本机Region上的INSERT在当前线程中执行。
+ */
+class CommandParallelInsert implements CommandInterface {
+    private final FanOutExecutor executor = FanOutExecutor.getInstance();
+    private final HBaseSession originalSession;
+    private final HBaseInsert originalInsert;
+    private final List<CommandInterface> localCommands = New.arrayList();
+    private final List<CommandInterface> remoteCommands = New.arrayList(); //由CommandProxy负责关闭
+
+    /**
+     * 
+     * @param rowRegions VALUES中每条记录所在的Region
+     */
+    CommandParallelInsert(HBaseSession originalSession, CommandProxy commandProxy, HBaseInsert originalInsert,
+            List<HBaseRegionInfo> rowRegions) throws Exception {
+        this.originalSession = originalSession;
+        this.originalInsert = originalInsert;
+
+        LinkedHashMap<String, List<Integer>> groups = new LinkedHashMap<String, List<Integer>>();
+        Map<String, HBaseRegionInfo> regions = New.hashMap();
+        for (int i = 0, size = rowRegions.size(); i < size; i++) {
+            HBaseRegionInfo hri = rowRegions.get(i);
+            List<Integer> rows = groups.get(hri.getRegionName());
+            if (rows == null) {
+                rows = New.arrayList();
+                groups.put(hri.getRegionName(), rows);
+                regions.put(hri.getRegionName(), hri);
+            }
+            rows.add(i);
+        }
+
+        for (Map.Entry<String, List<Integer>> e : groups.entrySet()) {
+            HBaseRegionInfo hri = regions.get(e.getKey());
+            String sql = originalInsert.getPlanSQL(e.getValue());
+            if (CommandProxy.isLocal(originalSession, hri)) {
+                Command c = originalSession.prepareLocal(sql);
+                ((HBasePrepared) c.getPrepared()).setRegionName(hri.getRegionName());
+                localCommands.add(c);
+            } else {
+                remoteCommands.add(commandProxy.getCommandInterface(hri.getRegionServerURL(),
+                        CommandProxy.createSQL(hri.getRegionName(), sql)));
+            }
+        }
+    }
+
+    private void setParameters() {
+        ArrayList<? extends ParameterInterface> originalParams = originalInsert.getParameters();
+        if (originalParams == null || originalParams.isEmpty())
+            return;
+        setParameters(localCommands, originalParams);
+        setParameters(remoteCommands, originalParams);
+    }
+
+    private static void setParameters(List<CommandInterface> commands, ArrayList<? extends ParameterInterface> originalParams) {
+        for (CommandInterface c : commands) {
+            //子语句只包含部分记录，所以参数个数可能比原来的少
+            ArrayList<? extends ParameterInterface> params = c.getParameters();
+            for (int i = 0, size = params.size(); i < size; i++) {
+                params.get(i).setValue(originalParams.get(i).getParamValue(), true);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return originalInsert.getSQL();
+    }
+
+    @Override
+    public int getCommandType() {
+        return originalInsert.getType();
+    }
+
+    @Override
+    public boolean isQuery() {
+        return false;
+    }
+
+    @Override
+    public ArrayList<? extends ParameterInterface> getParameters() {
+        return originalInsert.getParameters();
+    }
+
+    @Override
+    public ResultInterface executeQuery(int maxRows, boolean scrollable) {
+        throw DbException.getUnsupportedException("executeQuery");
+    }
+
+    @Override
+    public int executeUpdate() {
+        setParameters();
+        int size = remoteCommands.size();
+        List<Future<Integer>> futures = New.arrayList(size);
+        for (int i = 0; i < size; i++) {
+            final CommandInterface c = remoteCommands.get(i);
+            futures.add(executor.submit(originalSession.getId(), new Callable<Integer>() {
+                public Integer call() throws Exception {
+                    return c.executeUpdate();
+                }
+            }));
+        }
+
+        //本机的记录在当前线程中执行，每个Region用一次put(List<Put>)写入
+        int updateCount = 0;
+        RuntimeException error = null;
+        boolean buffered = originalSession.startWriteBuffer();
+        try {
+            for (CommandInterface c : localCommands)
+                updateCount += c.executeUpdate();
+            if (buffered) {
+                buffered = false;
+                originalSession.flushWriteBuffer();
+            }
+        } catch (RuntimeException e) {
+            error = e;
+            if (buffered)
+                originalSession.flushWriteBuffer();
+        }
+
+        //等所有远程的INSERT都结束后再抛出第一个异常
+        for (int i = 0; i < size; i++) {
+            try {
+                updateCount += futures.get(i).get();
+            } catch (Exception e) {
+                if (error == null)
+                    error = DbException.convert(e instanceof ExecutionException ? e.getCause() : e);
+            }
+        }
+        if (error != null)
+            throw error;
+        return updateCount;
+    }
+
+    @Override
+    public void executeBatchUpdate(ArrayList<Value[]> batchParameters, int[] updateCounts) {
+        BatchUpdates.execute(this, batchParameters, updateCounts);
+    }
+
+    @Override
+    public void close() {
+        for (CommandInterface c : localCommands)
+            c.close();
+    }
+
+    @Override
+    public void cancel() {
+        for (CommandInterface c : localCommands)
+            c.cancel();
+        for (CommandInterface c : remoteCommands)
+            c.cancel();
+    }
+
+    @Override
+    public ResultInterface getMetaData() {
+        return null;
+    }
+
+    @Override
+    public int getFetchSize() {
+        return 0;
+    }
+
+    @Override
+    public void setFetchSize(int fetchSize) {
+        //INSERT不返回结果集
+    }
+}
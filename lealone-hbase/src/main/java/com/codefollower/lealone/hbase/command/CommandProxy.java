@@ -20,14 +20,21 @@
 package com.codefollower.lealone.hbase.command;
 
 import java.io.IOException;
+import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.Future;
 
 import org.apache.hadoop.hbase.HConstants;
 import org.apache.hadoop.hbase.ServerName;
 import org.apache.hadoop.hbase.util.Bytes;
 
+import com.codefollower.lealone.command.BatchUpdates;
 import com.codefollower.lealone.command.Command;
 import com.codefollower.lealone.command.CommandInterface;
 import com.codefollower.lealone.command.Parser;
@@ -37,20 +44,27 @@ import com.codefollower.lealone.command.dml.Delete;
 import com.codefollower.lealone.command.dml.Insert;
 import com.codefollower.lealone.command.dml.Select;
 import com.codefollower.lealone.command.dml.Update;
-import com.codefollower.lealone.engine.ConnectionInfo;
+import com.codefollower.lealone.constant.SysProperties;
 import com.codefollower.lealone.engine.Session;
 import com.codefollower.lealone.engine.SessionInterface;
-import com.codefollower.lealone.engine.SessionRemote;
 import com.codefollower.lealone.expression.ParameterInterface;
+import com.codefollower.lealone.hbase.command.dml.HBaseInsert;
 import com.codefollower.lealone.hbase.engine.HBaseSession;
+import com.codefollower.lealone.hbase.engine.SessionRemotePool;
 import com.codefollower.lealone.hbase.util.HBaseRegionInfo;
 import com.codefollower.lealone.hbase.util.HBaseUtils;
+import com.codefollower.lealone.hbase.util.RegionLocationCache;
+import com.codefollower.lealone.hbase.util.RegionLocationCache.TableRegions;
 import com.codefollower.lealone.hbase.zookeeper.ZooKeeperAdmin;
+import com.codefollower.lealone.message.DbException;
+import com.codefollower.lealone.message.TraceSystem;
 import com.codefollower.lealone.result.ResultInterface;
+import com.codefollower.lealone.util.New;
 import com.codefollower.lealone.util.StringUtils;
 import com.codefollower.lealone.value.Value;
 
 public class CommandProxy extends Command {
+    private final FanOutExecutor executor = FanOutExecutor.getInstance();
     private final HBaseSession originalSession;
     private final Prepared originalPrepared;
     private final ArrayList<? extends ParameterInterface> originalParams;
@@ -65,6 +79,26 @@ public class CommandProxy extends Command {
 
     private CommandInterface proxyCommand;
 
+    /**
+     * 路由信息(表名和各Region的起止key)，第一次解析rowKey时从RegionLocationCache获得，
+     * 之后参数化的SQL每次执行时只需要用新的rowKey在这里查找目标Region，不用再访问HBase，
+     * Region有变动或者执行出错时重新获取
+     */
+    private TableRegions routingPlan;
+
+    /**
+     * 已经在其他RegionServer或Master上prepare过的命令，key是目标URL加上转发的SQL，
+     * 同一个目标的命令可以重复执行，只有在CommandProxy关闭或者执行出错时才关闭
+     */
+    private final HashMap<String, CommandInterface> remoteCommands = New.hashMap();
+
+    /**
+     * 远程命令所在的Session，每个目标URL只从SessionRemotePool借一个，由到这个目标的所有远程命令共用
+     * (SessionRemote是线程安全的，同一个目标上的命令按顺序执行)，
+     * 这样分发到很多Region的命令最多只占用每个RegionServer一个Session，关闭远程命令后再归还
+     */
+    private final HashMap<String, SessionInterface> remoteSessions = New.hashMap();
+
     public CommandProxy(Session originalSession, String sql, Command originalCommand) {
         super(originalSession, sql);
         this.originalSession = (HBaseSession) originalSession;
@@ -86,6 +120,9 @@ public class CommandProxy extends Command {
 
     private void parseRowKey() {
         Command originalCommand = originalPrepared.getCommand();
+        //远程命令缓存在remoteCommands中可以重用，只有上一次创建的CommandParallel要先关闭(它只会关闭本地命令)
+        if (isFanOut(proxyCommand))
+            proxyCommand.close();
         try {
             //1. DDL类型的SQL全转向Master处理
             if (originalPrepared instanceof DefineCommand) {
@@ -122,13 +159,36 @@ public class CommandProxy extends Command {
     private void parseHBasePrepared(Command originalCommand) throws Exception {
         HBasePrepared hp = (HBasePrepared) originalPrepared;
 
+        if (routingPlan == null || routingPlan.isInvalidated())
+            routingPlan = RegionLocationCache.getTableRegions(Bytes.toBytes(hp.getTableName()));
+
         if (originalPrepared instanceof Insert) {
-            String tableName = hp.getTableName();
-            String rowKey = hp.getRowKey();
+            //多行INSERT的记录可能落在不同的Region上，此时按Region分组执行
+            HBaseInsert insert = (HBaseInsert) originalPrepared;
+            int rows = insert.getValuesRowCount();
+            if (rows > 1 && insert.hasRowKeyColumn()) {
+                List<HBaseRegionInfo> rowRegions = New.arrayList(rows);
+                boolean oneRegion = true;
+                for (int i = 0; i < rows; i++) {
+                    byte[] rowKey = insert.getRowKey(i);
+                    if (rowKey == null)
+                        throw new RuntimeException("rowKey is null");
+                    HBaseRegionInfo hri = routingPlan.getRegionInfo(rowKey);
+                    if (!rowRegions.isEmpty() && !hri.getRegionName().equals(rowRegions.get(0).getRegionName()))
+                        oneRegion = false;
+                    rowRegions.add(hri);
+                }
+                if (!oneRegion) {
+                    proxyCommand = new CommandParallelInsert(originalSession, this, insert, rowRegions);
+                    return;
+                }
+            }
+
+            byte[] rowKey = hp.getRowKey();
             if (rowKey == null)
                 throw new RuntimeException("rowKey is null");
 
-            HBaseRegionInfo hri = HBaseUtils.getHBaseRegionInfo(tableName, rowKey);
+            HBaseRegionInfo hri = routingPlan.getRegionInfo(rowKey);
             if (isLocal(originalSession, hri)) {
                 hp.setRegionName(hri.getRegionName());
                 proxyCommand = originalCommand;
@@ -137,28 +197,21 @@ public class CommandProxy extends Command {
             }
         } else if (originalPrepared instanceof Delete || originalPrepared instanceof Update //
                 || originalPrepared instanceof Select) {
-            byte[] start = null;
+            //rowKey(静态表是主键)能确定唯一一条记录时只需访问一个Region，否则按rowKey的范围找出相关的Region
+            byte[] start = hp.getRowKey();
             byte[] end = null;
-            Value startValue = hp.getStartRowKeyValue();
-            Value endValue = hp.getEndRowKeyValue();
-            if (startValue != null)
-                start = HBaseUtils.toBytes(startValue);
-            if (endValue != null)
-                end = HBaseUtils.toBytes(endValue);
-
-            if (start == null)
-                start = HConstants.EMPTY_START_ROW;
-            if (end == null)
-                end = HConstants.EMPTY_END_ROW;
-
-            byte[] tableName = Bytes.toBytes(hp.getTableName());
-            boolean oneRegion = false;
+            boolean oneRegion = start != null;
             List<byte[]> startKeys = null;
-            if (startValue != null && endValue != null && startValue == endValue)
-                oneRegion = true;
 
             if (!oneRegion) {
-                startKeys = HBaseUtils.getStartKeysInRange(tableName, start, end);
+                start = hp.getStartRowKey();
+                end = hp.getStopRowKey();
+                if (start == null)
+                    start = HConstants.EMPTY_START_ROW;
+                if (end == null)
+                    end = HConstants.EMPTY_END_ROW;
+
+                startKeys = routingPlan.getStartKeysInRange(start, end);
                 if (startKeys == null || startKeys.isEmpty()) {
                     proxyCommand = originalCommand; //TODO 找不到任何Region时说明此时Delete或Update都无效果
                     return;
@@ -169,7 +222,7 @@ public class CommandProxy extends Command {
             }
 
             if (oneRegion) {
-                HBaseRegionInfo hri = HBaseUtils.getHBaseRegionInfo(tableName, start);
+                HBaseRegionInfo hri = routingPlan.getRegionInfo(start);
                 if (CommandProxy.isLocal(originalSession, hri)) {
                     hp.setRegionName(hri.getRegionName());
                     proxyCommand = originalCommand;
@@ -177,7 +230,10 @@ public class CommandProxy extends Command {
                     proxyCommand = getCommandInterface(hri.getRegionServerURL(), createSQL(hri.getRegionName(), sql));
                 }
             } else {
-                proxyCommand = new CommandParallel(originalSession, this, tableName, startKeys, sql, originalPrepared);
+                List<HBaseRegionInfo> regions = New.arrayList(startKeys.size());
+                for (byte[] startKey : startKeys)
+                    regions.add(routingPlan.getRegionInfo(startKey));
+                proxyCommand = new CommandParallel(originalSession, this, regions, sql, originalPrepared);
             }
         } else {
             proxyCommand = originalCommand;
@@ -199,22 +255,39 @@ public class CommandProxy extends Command {
         //TcpServerThread在处理COMMAND_EXECUTE_QUERY和COMMAND_EXECUTE_UPDATE时，
         //如果存在参数，则在setParameters方法中调用Command.getParameters()为每个Parameter赋值，
         //所以如果是参数化的SQL，则需要解析rowKey。
-        if (isParameterized) {
-            parseRowKey();
-            //此时是一条新的proxyCommand，所以要设置fetchSize
-            proxyCommand.setFetchSize(super.getFetchSize());
+        //从Session的查询缓存中重用时proxyCommand已在close时清空，此时也要按缓存的路由信息重新确定目标Region。
+        for (int retries = 0;; retries++) {
+            if (isParameterized || proxyCommand == null) {
+                parseRowKey();
+                //此时可能是一条新的proxyCommand，所以要设置fetchSize
+                proxyCommand.setFetchSize(super.getFetchSize());
+            }
+            setProxyCommandParameters();
+            try {
+                return proxyCommand.executeQuery(maxrows, scrollable);
+            } catch (RuntimeException e) {
+                if (!retry(e, retries, true))
+                    throw e;
+            }
         }
-        setProxyCommandParameters();
-        return proxyCommand.executeQuery(maxrows, scrollable);
     }
 
     @Override
     public int executeUpdate() {
-        if (isParameterized) {
-            parseRowKey();
+        int updateCount;
+        for (int retries = 0;; retries++) {
+            if (isParameterized || proxyCommand == null) {
+                parseRowKey();
+            }
+            setProxyCommandParameters();
+            try {
+                updateCount = proxyCommand.executeUpdate();
+                break;
+            } catch (RuntimeException e) {
+                if (!retry(e, retries, false))
+                    throw e;
+            }
         }
-        setProxyCommandParameters();
-        int updateCount = proxyCommand.executeUpdate();
         if (!originalSession.getDatabase().isMaster() && originalPrepared instanceof DefineCommand) {
             originalSession.getDatabase().refreshMetaTable();
 
@@ -227,6 +300,149 @@ public class CommandProxy extends Command {
         return updateCount;
     }
 
+    @Override
+    public void executeBatchUpdate(ArrayList<Value[]> batchParameters, int[] updateCounts) {
+        //只有单行的参数化INSERT才按rowKey所在的Region分组，其他命令逐个执行
+        if (!isParameterized || !(originalPrepared instanceof HBaseInsert)
+                || ((HBaseInsert) originalPrepared).getValuesRowCount() != 1
+                || !((HBaseInsert) originalPrepared).hasRowKeyColumn()) {
+            super.executeBatchUpdate(batchParameters, updateCounts);
+            return;
+        }
+        try {
+            executeBatchInsert((HBaseInsert) originalPrepared, batchParameters, updateCounts);
+        } catch (RuntimeException e) {
+            //部分分组可能已经执行成功，所以不重新执行，只丢弃路由信息
+            if (RegionLocationCache.isRegionNotServing(e) && routingPlan != null)
+                RegionLocationCache.invalidate(routingPlan.getTableName());
+            invalidate();
+            throw e;
+        }
+    }
+
+    /**
+     * 按rowKey所在的Region把批量INSERT的参数分组，每个远程Region只需要一次网络往返，各组并行执行；
+     * 本机Region上的记录在当前线程中执行，每个Region只调用一次put(List<Put>)。
+     */
+    private void executeBatchInsert(HBaseInsert insert, ArrayList<Value[]> batchParameters, int[] updateCounts) {
+        Command originalCommand = originalPrepared.getCommand();
+        LinkedHashMap<String, BatchGroup> groups = new LinkedHashMap<String, BatchGroup>();
+        List<BatchGroup> localGroups = New.arrayList();
+        List<BatchGroup> remoteGroups = New.arrayList();
+        List<Future<?>> futures = New.arrayList();
+        try {
+            if (routingPlan == null || routingPlan.isInvalidated())
+                routingPlan = RegionLocationCache.getTableRegions(Bytes.toBytes(insert.getTableName()));
+            for (int i = 0, size = batchParameters.size(); i < size; i++) {
+                BatchUpdates.setParameters(originalCommand, batchParameters.get(i));
+                byte[] rowKey = insert.getRowKey();
+                if (rowKey == null)
+                    throw new RuntimeException("rowKey is null");
+                HBaseRegionInfo hri = routingPlan.getRegionInfo(rowKey);
+                BatchGroup g = groups.get(hri.getRegionName());
+                if (g == null) {
+                    g = new BatchGroup(hri);
+                    groups.put(hri.getRegionName(), g);
+                }
+                g.add(i, batchParameters.get(i));
+            }
+
+            for (BatchGroup g : groups.values()) {
+                if (isLocal(originalSession, g.region)) {
+                    localGroups.add(g);
+                } else {
+                    final BatchGroup group = g;
+                    remoteGroups.add(g);
+                    final CommandInterface c = getCommandInterface(g.region.getRegionServerURL(),
+                            createSQL(g.region.getRegionName(), sql));
+                    futures.add(executor.submit(originalSession.getId(), new Runnable() {
+                        public void run() {
+                            group.execute(c);
+                        }
+                    }));
+                }
+            }
+        } catch (Exception e) {
+            throw DbException.convert(e);
+        }
+
+        boolean buffered = originalSession.startWriteBuffer();
+        try {
+            for (BatchGroup g : localGroups) {
+                insert.setRegionName(g.region.getRegionName());
+                g.execute(originalCommand);
+            }
+        } finally {
+            if (buffered) {
+                try {
+                    originalSession.flushWriteBuffer();
+                } catch (RuntimeException e) {
+                    for (BatchGroup g : localGroups)
+                        g.fail(e);
+                }
+            }
+        }
+
+        for (int i = 0, size = futures.size(); i < size; i++) {
+            try {
+                futures.get(i).get();
+            } catch (Exception e) {
+                //BatchGroup.execute不会抛出异常，除非任务被线程池拒绝
+                remoteGroups.get(i).fail(DbException.convert(e));
+            }
+        }
+
+        //各分组的异常串成一个，刷新写缓冲失败时多个分组是同一个异常，只加一次
+        DbException error = null;
+        IdentityHashMap<RuntimeException, Boolean> errors = new IdentityHashMap<RuntimeException, Boolean>();
+        for (BatchGroup g : groups.values()) {
+            for (int i = 0, size = g.indexes.size(); i < size; i++)
+                updateCounts[g.indexes.get(i)] = g.updateCounts[i];
+            if (g.error != null && errors.put(g.error, Boolean.TRUE) == null)
+                error = BatchUpdates.addError(error, g.error);
+        }
+        if (error != null)
+            throw error;
+    }
+
+    /**
+     * 批量INSERT中rowKey落在同一个Region上的那些参数
+     */
+    private static class BatchGroup {
+        final HBaseRegionInfo region;
+        final List<Integer> indexes = New.arrayList();
+        final ArrayList<Value[]> batchParameters = New.arrayList();
+        int[] updateCounts;
+        RuntimeException error;
+
+        BatchGroup(HBaseRegionInfo region) {
+            this.region = region;
+        }
+
+        void add(int index, Value[] set) {
+            indexes.add(index);
+            batchParameters.add(set);
+        }
+
+        void execute(CommandInterface c) {
+            updateCounts = new int[batchParameters.size()];
+            Arrays.fill(updateCounts, Statement.EXECUTE_FAILED);
+            try {
+                c.executeBatchUpdate(batchParameters, updateCounts);
+            } catch (RuntimeException e) {
+                error = e;
+            }
+        }
+
+        void fail(RuntimeException e) {
+            if (updateCounts == null)
+                updateCounts = new int[batchParameters.size()];
+            Arrays.fill(updateCounts, Statement.EXECUTE_FAILED);
+            if (error == null)
+                error = e;
+        }
+    }
+
     @Override
     public int getCommandType() {
         return originalPrepared.getType();
@@ -263,36 +479,112 @@ public class CommandProxy extends Command {
     }
 
     @Override
-    public boolean isCacheable() { //TODO 解决重用问题
-        return false; //originalPrepared.isCacheable();
+    public boolean isCacheable() {
+        //路由信息和远程命令都可以重用，Region发生变动时执行会出错，此时在invalidate中丢弃它们
+        return originalPrepared.isCacheable();
     }
 
     @Override
     public void close() {
-        proxyCommand.close();
+        if (proxyCommand != null) {
+            proxyCommand.close();
+            proxyCommand = null;
+        }
+        closeRemoteCommands();
         super.close();
     }
 
     @Override
     public void cancel() {
-        proxyCommand.cancel();
+        if (proxyCommand != null)
+            proxyCommand.cancel();
         super.cancel();
     }
 
     @Override
     public int getFetchSize() {
+        if (proxyCommand == null)
+            return super.getFetchSize();
         return proxyCommand.getFetchSize();
     }
 
     @Override
     public void setFetchSize(int fetchSize) {
-        proxyCommand.setFetchSize(fetchSize);
+        if (proxyCommand != null)
+            proxyCommand.setFetchSize(fetchSize);
         super.setFetchSize(fetchSize);
     }
 
+    /**
+     * 执行出错后调用，如果是因为Region已迁移或分裂，并且可以安全地重新执行，那么返回true
+     */
+    private boolean retry(RuntimeException e, int retries, boolean isQuery) {
+        boolean notServing = RegionLocationCache.isRegionNotServing(e);
+        if (notServing && routingPlan != null)
+            RegionLocationCache.invalidate(routingPlan.getTableName());
+        //CommandParallel执行更新时可能已有部分Region执行成功，不能整体重新执行
+        boolean retry = notServing && retries < SysProperties.REGION_LOCATION_RETRIES
+                && (isQuery || !isFanOut(proxyCommand));
+        invalidate();
+        return retry;
+    }
+
+    /**
+     * Region可能已经分裂或者迁移，丢弃路由信息和已经prepare过的远程命令，下次执行时重新确定目标Region
+     */
+    private void invalidate() {
+        routingPlan = null;
+        if (isFanOut(proxyCommand))
+            proxyCommand.close();
+        proxyCommand = isParameterized ? originalPrepared.getCommand() : null;
+        closeRemoteCommands();
+    }
+
+    /**
+     * 是否是把命令分发到多个Region执行的CommandParallel或CommandParallelInsert
+     */
+    private static boolean isFanOut(CommandInterface c) {
+        return c instanceof CommandParallel || c instanceof CommandParallelInsert;
+    }
+
+    private void closeRemoteCommands() {
+        for (CommandInterface c : remoteCommands.values()) {
+            try {
+                c.close();
+            } catch (Exception e) {
+                TraceSystem.traceThrowable(e);
+            }
+        }
+        remoteCommands.clear();
+        for (SessionInterface si : remoteSessions.values())
+            SessionRemotePool.release(si);
+        remoteSessions.clear();
+    }
+
+    /**
+     * 返回可以在url上执行sql的命令，同一个目标只prepare一次，之后重用
+     */
     CommandInterface getCommandInterface(String url, String sql) throws Exception {
-        //TODO 如何重用SessionInterface
-        SessionInterface si = getSessionInterface(originalSession.getOriginalProperties(), url);
+        String key = url + "\n" + sql;
+        CommandInterface c = remoteCommands.get(key);
+        if (c == null) {
+            c = prepareRemoteCommand(url, sql);
+            remoteCommands.put(key, c);
+        }
+        return c;
+    }
+
+    private CommandInterface prepareRemoteCommand(String url, String sql) throws Exception {
+        SessionInterface si = remoteSessions.get(url);
+        if (si != null && si.isClosed()) {
+            SessionRemotePool.release(si);
+            remoteSessions.remove(url);
+            si = null;
+        }
+        if (si == null) {
+            si = getSessionInterface(originalSession.getOriginalProperties(), url);
+            remoteSessions.put(url, si);
+        }
         CommandInterface commandInterface = si.prepareCommand(sql, -1); //此时fetchSize还未知
 
         //传递最初的参数值到新的CommandInterface
@@ -306,14 +598,11 @@ public class CommandProxy extends Command {
         return commandInterface;
     }
 
+    /**
+     * 从SessionRemotePool中借出一个到url的Session，用完后必须调用SessionRemotePool.release归还
+     */
     public static SessionInterface getSessionInterface(Properties info, String url) throws Exception {
-
-        Properties prop = new Properties();
-        for (String key : info.stringPropertyNames())
-            prop.setProperty(key, info.getProperty(key));
-        ConnectionInfo ci = new ConnectionInfo(url, prop);
-
-        return new SessionRemote(ci).connectEmbeddedOrServer(false);
+        return SessionRemotePool.getSessionInterface(info, url);
     }
 
     public static String createSQL(String regionName, String sql) {
@@ -338,5 +627,4 @@ public class CommandProxy extends Command {
             return true;
         return false;
     }
-
 }
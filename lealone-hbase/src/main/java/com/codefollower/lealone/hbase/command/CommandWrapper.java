@@ -26,6 +26,7 @@ import com.codefollower.lealone.command.CommandInterface;
 import com.codefollower.lealone.engine.Session;
 import com.codefollower.lealone.expression.ParameterInterface;
 import com.codefollower.lealone.result.ResultInterface;
+import com.codefollower.lealone.value.Value;
 
 class CommandWrapper implements CommandInterface {
     private Command c;
@@ -61,6 +62,11 @@ class CommandWrapper implements CommandInterface {
         return c.executeUpdate();
     }
 
+    @Override
+    public void executeBatchUpdate(ArrayList<Value[]> batchParameters, int[] updateCounts) {
+        c.executeBatchUpdate(batchParameters, updateCounts);
+    }
+
     @Override
     public void close() {
         session.close();
@@ -0,0 +1,227 @@
+/*
+ * Copyright 2011 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.codefollower.lealone.hbase.command;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.hadoop.hbase.util.Threads;
+
+import com.codefollower.lealone.constant.SysProperties;
+import com.codefollower.lealone.message.TraceSystem;
+import com.codefollower.lealone.util.Utils;
+
+/**
+ * 把一条分布式命令拆分到多个Region上并发执行时使用的执行器。
+ *
+ * 线程池的大小、队列长度等参数通过SysProperties配置，也可以通过lealone.parallel.executor.class指定一个
+ * 自定义的ExecutorService实现。
+ * 当lealone.parallel.executor.max.tasks.per.session大于0时，每个Session同时执行的任务数不会超过这个值，
+ * 多出来的任务先在Session自己的队列中等待，避免一个涉及大量Region的查询占满所有线程。
+ */
+public class FanOutExecutor implements FanOutExecutorMBean {
+    private static volatile FanOutExecutor instance; //双重检查锁定，必须是volatile的
+
+    private final ExecutorService executor;
+    private final int maxTasksPerSession;
+    private final HashMap<Integer, SessionTasks> sessions = new HashMap<Integer, SessionTasks>();
+
+    private final AtomicInteger queuedTaskCount = new AtomicInteger();
+    private final AtomicInteger activeTaskCount = new AtomicInteger();
+    private final AtomicLong completedTaskCount = new AtomicLong();
+    private final AtomicLong rejectedTaskCount = new AtomicLong();
+
+    public static FanOutExecutor getInstance() {
+        if (instance == null) {
+            synchronized (FanOutExecutor.class) {
+                if (instance == null) {
+                    FanOutExecutor e = new FanOutExecutor(createExecutorService(),
+                            SysProperties.PARALLEL_EXECUTOR_MAX_TASKS_PER_SESSION);
+                    e.registerMBean();
+                    instance = e;
+                }
+            }
+        }
+        return instance;
+    }
+
+    private static ExecutorService createExecutorService() {
+        String className = SysProperties.PARALLEL_EXECUTOR_CLASS;
+        if (className != null) {
+            try {
+                return (ExecutorService) Utils.loadUserClass(className).newInstance();
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        //corePoolSize与maximumPoolSize相同，否则在队列满之前ThreadPoolExecutor不会创建新线程
+        int threads = Math.max(1, SysProperties.PARALLEL_EXECUTOR_THREADS);
+        int queueSize = Math.max(1, SysProperties.PARALLEL_EXECUTOR_QUEUE_SIZE);
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, SysProperties.PARALLEL_EXECUTOR_KEEP_ALIVE,
+                TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(queueSize),
+                Threads.newDaemonThreadFactory(FanOutExecutor.class.getSimpleName()));
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    public FanOutExecutor(ExecutorService executor, int maxTasksPerSession) {
+        this.executor = executor;
+        this.maxTasksPerSession = maxTasksPerSession;
+    }
+
+    private void registerMBean() {
+        try {
+            MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName("com.codefollower.lealone:type=" + FanOutExecutor.class.getSimpleName());
+            if (!mbeanServer.isRegistered(name))
+                mbeanServer.registerMBean(this, name);
+        } catch (Exception e) {
+            //JMX不可用时不影响执行器的使用
+            TraceSystem.traceThrowable(e);
+        }
+    }
+
+    public <T> Future<T> submit(int sessionId, Callable<T> callable) {
+        Task<T> task = new Task<T>(sessionId, callable);
+        queuedTaskCount.incrementAndGet();
+        if (maxTasksPerSession > 0) {
+            synchronized (sessions) {
+                SessionTasks st = sessions.get(sessionId);
+                if (st == null) {
+                    st = new SessionTasks();
+                    sessions.put(sessionId, st);
+                }
+                if (st.running >= maxTasksPerSession) {
+                    st.waiting.add(task);
+                    return task;
+                }
+                st.running++;
+            }
+        }
+        execute(task);
+        return task;
+    }
+
+    public Future<?> submit(int sessionId, Runnable runnable) {
+        return submit(sessionId, Executors.callable(runnable));
+    }
+
+    private void execute(Task<?> task) {
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            rejectedTaskCount.incrementAndGet();
+            queuedTaskCount.decrementAndGet();
+            task.reject(e);
+            taskDone(task);
+        }
+    }
+
+    private void taskDone(Task<?> task) {
+        if (maxTasksPerSession <= 0)
+            return;
+        Task<?> next;
+        synchronized (sessions) {
+            SessionTasks st = sessions.get(task.sessionId);
+            if (st == null)
+                return;
+            next = st.waiting.poll();
+            if (next == null) {
+                st.running--;
+                if (st.running <= 0)
+                    sessions.remove(task.sessionId);
+            }
+        }
+        if (next != null)
+            execute(next);
+    }
+
+    @Override
+    public int getQueuedTaskCount() {
+        return queuedTaskCount.get();
+    }
+
+    @Override
+    public int getActiveTaskCount() {
+        return activeTaskCount.get();
+    }
+
+    @Override
+    public long getCompletedTaskCount() {
+        return completedTaskCount.get();
+    }
+
+    @Override
+    public long getRejectedTaskCount() {
+        return rejectedTaskCount.get();
+    }
+
+    @Override
+    public int getMaxTasksPerSession() {
+        return maxTasksPerSession;
+    }
+
+    private static class SessionTasks {
+        private final LinkedList<Task<?>> waiting = new LinkedList<Task<?>>();
+        private int running;
+    }
+
+    private class Task<T> extends FutureTask<T> {
+        private final int sessionId;
+
+        Task(int sessionId, Callable<T> callable) {
+            super(callable);
+            this.sessionId = sessionId;
+        }
+
+        @Override
+        public void run() {
+            queuedTaskCount.decrementAndGet();
+            activeTaskCount.incrementAndGet();
+            try {
+                super.run();
+            } finally {
+                activeTaskCount.decrementAndGet();
+                completedTaskCount.incrementAndGet();
+                taskDone(this);
+            }
+        }
+
+        void reject(RejectedExecutionException e) {
+            setException(e);
+        }
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2011 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.codefollower.lealone.hbase.command;
+
+/**
+ * 分布式命令并发执行器的运行状态，通过JMX导出。
+ */
+public interface FanOutExecutorMBean {
+
+    /**
+     * 已提交但还未开始执行的任务数(包括因为Session公平性限制而在等待的任务)
+     *
+     * @return the queue depth
+     */
+    int getQueuedTaskCount();
+
+    /**
+     * 正在执行的任务数
+     *
+     * @return the number of active tasks
+     */
+    int getActiveTaskCount();
+
+    /**
+     * 已执行完的任务数
+     *
+     * @return the number of completed tasks
+     */
+    long getCompletedTaskCount();
+
+    /**
+     * 因为线程池已满被拒绝的任务数
+     *
+     * @return the number of rejected tasks
+     */
+    long getRejectedTaskCount();
+
+    /**
+     * 每个Session最多同时执行的任务数，小于等于0时没有限制
+     *
+     * @return the limit
+     */
+    int getMaxTasksPerSession();
+}
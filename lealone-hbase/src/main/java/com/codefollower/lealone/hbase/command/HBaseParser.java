@@ -45,6 +45,7 @@ import com.codefollower.lealone.hbase.command.dml.HBaseInsert;
 import com.codefollower.lealone.hbase.command.dml.HBaseSelect;
 import com.codefollower.lealone.hbase.command.dml.HBaseUpdate;
 import com.codefollower.lealone.hbase.command.dml.InTheRegion;
+import com.codefollower.lealone.hbase.command.dml.LoadData;
 import com.codefollower.lealone.hbase.dbobject.table.HBaseTable;
 import com.codefollower.lealone.hbase.engine.HBaseDatabase;
 import com.codefollower.lealone.message.DbException;
@@ -62,16 +63,45 @@ public class HBaseParser extends Parser {
             if (readIf("IN") && readIf("THE") && readIf("REGION")) {
                 return parseInTheRegion();
             }
+        } else if (first == 'L' || first == 'l') {
+            if (readIf("LOAD")) {
+                read("DATA");
+                return parseLoadData();
+            }
         }
         return null;
     }
 
     private Prepared parseInTheRegion() {
         String regionName = readString();
+        //其他节点转发过来的SQL是getPlanSQL(true)生成的
+        allowInternalAggregates = true;
         Prepared p = parsePrepared();
         return new InTheRegion(session, regionName, p);
     }
 
+    private LoadData parseLoadData() {
+        LoadData command = new LoadData(session);
+        currentPrepared = command;
+        boolean fromFile = readIf("INFILE");
+        if (fromFile) {
+            command.setFileName(readString());
+            if (readIf("OPTIONS"))
+                command.setOptions(readString());
+        }
+        read("INTO");
+        read("TABLE");
+        Table table = readTableOrView();
+        if (!(table instanceof HBaseTable))
+            throw DbException.getUnsupportedException("LOAD DATA into " + table.getSQL());
+        command.setTable((HBaseTable) table);
+        if (readIf("("))
+            command.setColumns(parseColumnList(table));
+        if (!fromFile)
+            command.setQuery(parseSelect());
+        return command;
+    }
+
     @Override
     protected Prepared parseCreate() {
         if (readIf("HBASE")) {
@@ -165,7 +195,11 @@ public class HBaseParser extends Parser {
         if (readIf("NEXT")) {
             readIf("VALUE");
             readIf("MARGIN");
-            return new AlterSequenceNextValueMargin(session, sequence.getSchema(), sequence);
+            AlterSequenceNextValueMargin command = new AlterSequenceNextValueMargin(session, sequence.getSchema(),
+                    sequence);
+            if (currentTokenType != END)
+                command.setCount(readExpression());
+            return command;
         }
         AlterSequence command = new AlterSequence(session, sequence.getSchema());
         command.setSequence(sequence);
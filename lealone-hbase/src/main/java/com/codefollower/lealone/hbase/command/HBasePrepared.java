@@ -19,16 +19,29 @@
  */
 package com.codefollower.lealone.hbase.command;
 
-import com.codefollower.lealone.value.Value;
-
 public interface HBasePrepared {
     public String getTableName();
 
-    public String getRowKey();
+    /**
+     * 能确定只访问一条记录时返回它的rowKey
+     *
+     * @return the row key, or null
+     */
+    public byte[] getRowKey();
 
-    public Value getStartRowKeyValue();
+    /**
+     * 要访问的rowKey范围的起始key(包含)
+     *
+     * @return the start row key, or null if there is no lower bound
+     */
+    public byte[] getStartRowKey();
 
-    public Value getEndRowKeyValue();
+    /**
+     * 要访问的rowKey范围的结束key(不包含)
+     *
+     * @return the stop row key, or null if there is no upper bound
+     */
+    public byte[] getStopRowKey();
 
     public String getRegionName();
 
@@ -23,6 +23,7 @@ import com.codefollower.lealone.command.ddl.AlterSequence;
 import com.codefollower.lealone.dbobject.Schema;
 import com.codefollower.lealone.dbobject.Sequence;
 import com.codefollower.lealone.engine.Session;
+import com.codefollower.lealone.expression.Expression;
 import com.codefollower.lealone.hbase.dbobject.HBaseSequence;
 import com.codefollower.lealone.result.ResultInterface;
 import com.codefollower.lealone.value.Value;
@@ -30,20 +31,34 @@ import com.codefollower.lealone.value.ValueLong;
 
 public class AlterSequenceNextValueMargin extends AlterSequence {
     private HBaseSequence sequence;
+    private Expression count;
 
     public AlterSequenceNextValueMargin(Session session, Schema schema, Sequence sequence) {
         super(session, schema);
         this.sequence = (HBaseSequence) sequence;
     }
 
+    /**
+     * 要分配的值的个数，没有指定时使用CACHE的大小
+     *
+     * @param count the number of values
+     */
+    public void setCount(Expression count) {
+        this.count = count;
+    }
+
+    private long getCount() {
+        return count == null ? 0 : count.optimize(session).getValue(session).getLong();
+    }
+
     @Override
     public int update() {
-        sequence.alterNextValueMargin(session);
+        sequence.alterNextValueMargin(session, getCount());
         return 0;
     }
 
     public ResultInterface query(int maxrows) {
-        return new ResultInterfaceImpl(sequence.alterNextValueMargin(session));
+        return new ResultInterfaceImpl(sequence.alterNextValueMargin(session, getCount()));
     }
 
     private static class ResultInterfaceImpl implements ResultInterface {
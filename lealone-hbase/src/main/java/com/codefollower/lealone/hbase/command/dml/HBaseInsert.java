@@ -20,6 +20,7 @@
 package com.codefollower.lealone.hbase.command.dml;
 
 import java.util.ArrayList;
+import java.util.List;
 
 import org.apache.hadoop.hbase.client.Put;
 import org.apache.hadoop.hbase.util.Bytes;
@@ -34,6 +35,7 @@ import com.codefollower.lealone.hbase.command.CommandProxy;
 import com.codefollower.lealone.hbase.command.HBasePrepared;
 import com.codefollower.lealone.hbase.dbobject.table.HBaseTable;
 import com.codefollower.lealone.hbase.engine.HBaseSession;
+import com.codefollower.lealone.hbase.engine.SessionRemotePool;
 import com.codefollower.lealone.hbase.result.HBaseRow;
 import com.codefollower.lealone.hbase.util.HBaseUtils;
 import com.codefollower.lealone.message.DbException;
@@ -41,11 +43,12 @@ import com.codefollower.lealone.result.Row;
 import com.codefollower.lealone.util.New;
 import com.codefollower.lealone.util.StatementBuilder;
 import com.codefollower.lealone.value.Value;
-import com.codefollower.lealone.value.ValueString;
+import com.codefollower.lealone.value.ValueNull;
 import com.codefollower.lealone.value.ValueUuid;
 
 //TODO
 //可Insert多条记录，但是因为不支持事务，所以有可能出现部分Insert成功、部分Insert失败。
+//多条记录的rowKey落在不同Region时，由CommandProxy按Region分组，每组生成一条只包含该Region记录的INSERT。
 public class HBaseInsert extends Insert implements HBasePrepared {
     private final HBaseSession session;
     private String regionName;
@@ -69,17 +72,29 @@ public class HBaseInsert extends Insert implements HBasePrepared {
 
             alterColumns = New.arrayList();
         }
-        int updateCount = super.update();
+        //先按Region缓冲Put，语句结束时每个Region只写一次
+        boolean buffered = session.startWriteBuffer();
+        int updateCount;
+        try {
+            updateCount = super.update();
+        } finally {
+            if (buffered)
+                session.flushWriteBuffer();
+        }
         try {
             if (table.isColumnsModified()) {
                 table.setColumnsModified(false);
                 SessionInterface si = CommandProxy
                         .getSessionInterface(session.getOriginalProperties(), HBaseUtils.getMasterURL());
-                for (Column c : alterColumns) {
-                    CommandInterface ci = si.prepareCommand(alterTable + c.getCreateSQL(true), 1);
-                    ci.executeUpdate();
+                try {
+                    for (Column c : alterColumns) {
+                        CommandInterface ci = si.prepareCommand(alterTable + c.getCreateSQL(true), 1);
+                        ci.executeUpdate();
+                        ci.close();
+                    }
+                } finally {
+                    SessionRemotePool.release(si);
                 }
-                si.close();
             }
         } catch (Exception e) {
             throw new RuntimeException(e);
@@ -90,10 +105,13 @@ public class HBaseInsert extends Insert implements HBasePrepared {
     @Override
     protected Row createRow(int columnLen, Expression[] expr, int rowId) {
         HBaseRow row = (HBaseRow) table.getTemplateRow();
-        row.setRowKey(ValueString.get(getRowKey()));
+        byte[] rowKey = getRowKey(expr); //每条记录有自己的rowKey
+        if (rowKey == null)
+            throw new RuntimeException("rowKey is null");
+        row.setRowKey(((HBaseTable) table).getRowKeyValue(rowKey));
         row.setRegionName(regionNameAsBytes);
 
-        Put put = new Put(Bytes.toBytes(getRowKey()));
+        Put put = new Put(rowKey);
         row.setPut(put);
         Column c;
         Value v;
@@ -138,27 +156,122 @@ public class HBaseInsert extends Insert implements HBasePrepared {
     }
 
     @Override
-    public String getRowKey() {
+    public byte[] getRowKey() {
+        return getRowKey(list.get(0));
+    }
+
+    /**
+     * 返回VALUES中第rowIndex条记录的rowKey，没有rowKey列的静态表每次都返回一个新的随机rowKey
+     */
+    public byte[] getRowKey(int rowIndex) {
+        return getRowKey(list.get(rowIndex));
+    }
+
+    private byte[] getRowKey(Expression[] expr) {
+        HBaseTable table = (HBaseTable) this.table;
         int index = 0;
         for (Column c : columns) {
             if (c.isRowKeyColumn()) {
-                return list.get(0)[index].getValue(session).getString();
+                return table.getRowKey(expr[index].getValue(session));
             }
             index++;
         }
+        if (table.isPrimaryKeyRowKey()) {
+            Value[] values = getPrimaryKeyValues(table, expr);
+            if (values != null)
+                return table.getRowKey(values);
+        }
         if (table.isStatic())
-            return ValueUuid.getNewRandom().getString();
+            return HBaseUtils.toBytes(ValueUuid.getNewRandom().getString());
         return null;
     }
 
+    /**
+     * 按主键列的顺序取出主键列的值，有主键列没有给出值(或者是DEFAULT)时返回null
+     */
+    private Value[] getPrimaryKeyValues(HBaseTable table, Expression[] expr) {
+        Column[] pkColumns = table.getPrimaryKeyColumns();
+        Value[] values = new Value[pkColumns.length];
+        for (int i = 0; i < pkColumns.length; i++) {
+            int index = getColumnIndex(pkColumns[i]);
+            if (index < 0 || expr[index] == null)
+                return null;
+            Value v = expr[index].getValue(session);
+            if (v == ValueNull.INSTANCE)
+                return null;
+            values[i] = pkColumns[i].convert(v);
+        }
+        return values;
+    }
+
+    /**
+     * 是否有rowKey列(或者给出了所有主键列的值)，没有时rowKey是随机生成的，无法事先确定记录放在哪个Region
+     */
+    public boolean hasRowKeyColumn() {
+        for (Column c : columns)
+            if (c.isRowKeyColumn())
+                return true;
+        HBaseTable table = (HBaseTable) this.table;
+        if (!table.isPrimaryKeyRowKey())
+            return false;
+        for (Column c : table.getPrimaryKeyColumns())
+            if (getColumnIndex(c) < 0)
+                return false;
+        return true;
+    }
+
+    private int getColumnIndex(Column c) {
+        for (int i = 0; i < columns.length; i++)
+            if (columns[i] == c)
+                return i;
+        return -1;
+    }
+
+    /**
+     * INSERT ... VALUES中的记录数，INSERT ... SELECT时为0
+     */
+    public int getValuesRowCount() {
+        return list.size();
+    }
+
+    /**
+     * 生成只包含VALUES中指定记录的INSERT语句，参数仍用原来的下标(?1, ?2...)，所以可以直接使用原来的参数值
+     */
+    public String getPlanSQL(List<Integer> rowIndexes) {
+        StatementBuilder buff = new StatementBuilder("INSERT INTO ");
+        buff.append(table.getSQL()).append('(');
+        for (Column c : columns) {
+            buff.appendExceptFirst(", ");
+            buff.append(c.getSQL());
+        }
+        buff.append(")\nVALUES ");
+        int row = 0;
+        for (int i : rowIndexes) {
+            if (row++ > 0)
+                buff.append(",\n");
+            buff.append('(');
+            buff.resetCount();
+            for (Expression e : list.get(i)) {
+                buff.appendExceptFirst(", ");
+                if (e == null)
+                    buff.append("DEFAULT");
+                else
+                    buff.append(e.getSQL());
+            }
+            buff.append(')');
+        }
+        return buff.toString();
+    }
+
     @Override
-    public Value getStartRowKeyValue() {
-        return ValueString.get(getRowKey());
+    public byte[] getStartRowKey() {
+        return getRowKey();
     }
 
     @Override
-    public Value getEndRowKeyValue() {
-        return ValueString.get(getRowKey());
+    public byte[] getStopRowKey() {
+        byte[] rowKey = getRowKey();
+        return rowKey == null ? null : HBaseTable.getStopRowKey(rowKey);
     }
 
     @Override
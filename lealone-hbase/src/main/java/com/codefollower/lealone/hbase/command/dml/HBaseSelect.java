@@ -19,20 +19,55 @@
  */
 package com.codefollower.lealone.hbase.command.dml;
 
+import java.util.IdentityHashMap;
+
 import com.codefollower.lealone.command.dml.Select;
+import com.codefollower.lealone.dbobject.table.TableFilter;
 import com.codefollower.lealone.dbobject.table.TableView;
 import com.codefollower.lealone.engine.Session;
 import com.codefollower.lealone.hbase.command.HBasePrepared;
-import com.codefollower.lealone.result.SearchRow;
-import com.codefollower.lealone.value.Value;
+import com.codefollower.lealone.hbase.dbobject.index.HBaseTableCursor;
+import com.codefollower.lealone.hbase.dbobject.table.HBaseTable;
+import com.codefollower.lealone.hbase.engine.HBaseSession;
+import com.codefollower.lealone.hbase.result.HBaseJoinTable;
+import com.codefollower.lealone.hbase.result.HBaseKeyLookup;
+import com.codefollower.lealone.result.LocalResult;
+import com.codefollower.lealone.result.ResultTarget;
 
 public class HBaseSelect extends Select implements HBasePrepared {
     private String regionName;
 
+    /**
+     * 本次查询中已经读过的join内表，值为null表示内表太大，不能放在内存中
+     */
+    private final IdentityHashMap<TableFilter, HBaseJoinTable> joinTables = new IdentityHashMap<TableFilter, HBaseJoinTable>();
+
+    /**
+     * 读内表的条件中没有参数并且已经发现太大的join内表，每次执行都重新读一遍代价太高，所以执行完后不清除。
+     * 值是发现时数据库的元数据修改id，重新prepare、表结构或统计信息(ANALYZE)变了之后要重新读一次
+     */
+    private final IdentityHashMap<TableFilter, Long> tooBigJoinTables = new IdentityHashMap<TableFilter, Long>();
+
+    /**
+     * 按rowKey join的内表，值为null表示不能批量查找
+     */
+    private final IdentityHashMap<TableFilter, HBaseKeyLookup> keyLookups = new IdentityHashMap<TableFilter, HBaseKeyLookup>();
+
+    /**
+     * 正在扫描的外表
+     */
+    private HBaseTableCursor topCursor;
+
     public HBaseSelect(Session session) {
         super(session);
     }
 
+    @Override
+    public void prepare() {
+        tooBigJoinTables.clear();
+        super.prepare();
+    }
+
     @Override
     public boolean isDistributedSQL() {
         if (topTableFilter.getTable().isDistributed())
@@ -49,29 +84,104 @@ public class HBaseSelect extends Select implements HBasePrepared {
     }
 
     @Override
-    public String getRowKey() {
-        Value rowKey = getStartRowKeyValue();
-        if (rowKey != null)
-            rowKey.getString();
-        return null;
+    public byte[] getRowKey() {
+        HBaseTable table = getTopTable();
+        if (table == null)
+            return null;
+        return table.getRowKey(topTableFilter.getStartSearchRow(), topTableFilter.getEndSearchRow());
     }
 
     @Override
-    public Value getStartRowKeyValue() {
-        SearchRow start = topTableFilter.getStartSearchRow();
-        if (start != null)
-            return start.getRowKey();
-        return null;
+    public byte[] getStartRowKey() {
+        HBaseTable table = getTopTable();
+        if (table == null)
+            return null;
+        return table.getStartRowKey(topTableFilter.getStartSearchRow());
     }
 
     @Override
-    public Value getEndRowKeyValue() {
-        SearchRow end = topTableFilter.getEndSearchRow();
-        if (end != null)
-            return end.getRowKey();
+    public byte[] getStopRowKey() {
+        HBaseTable table = getTopTable();
+        if (table == null)
+            return null;
+        return table.getStopRowKey(topTableFilter.getEndSearchRow());
+    }
+
+    /**
+     * 视图的查询条件不能直接转成rowKey的范围
+     */
+    private HBaseTable getTopTable() {
+        if (topTableFilter.getTable() instanceof HBaseTable)
+            return (HBaseTable) topTableFilter.getTable();
         return null;
     }
 
+    @Override
+    protected LocalResult queryWithoutCache(int maxRows, ResultTarget target) {
+        HBaseSession s = (HBaseSession) session;
+        int openScanners = s.getOpenScannerCount();
+        try {
+            return super.queryWithoutCache(maxRows, target);
+        } finally {
+            //有LIMIT时可能没读到最后，扫描器不会自己关闭
+            s.closeScanners(openScanners);
+            //内表的数据可能已经变了，下次查询时要重新读
+            joinTables.clear();
+            for (HBaseKeyLookup lookup : keyLookups.values()) {
+                if (lookup != null)
+                    lookup.close();
+            }
+            keyLookups.clear();
+            topCursor = null;
+        }
+    }
+
+    public void setTopCursor(HBaseTableCursor topCursor) {
+        this.topCursor = topCursor;
+    }
+
+    public HBaseTableCursor getTopCursor() {
+        return topCursor;
+    }
+
+    /**
+     * 
+     * @param filter join的内表
+     * @return 如果不是按rowKey等于外表的列来join，返回null
+     */
+    public HBaseKeyLookup getKeyLookup(TableFilter filter) {
+        if (keyLookups.containsKey(filter))
+            return keyLookups.get(filter);
+        HBaseKeyLookup lookup = HBaseKeyLookup.create(filter);
+        keyLookups.put(filter, lookup);
+        return lookup;
+    }
+
+    /**
+     * 
+     * @param filter join的内表
+     * @return 内表太大时返回null，此时每条外表记录都要执行一次子查询
+     */
+    public HBaseJoinTable getJoinTable(TableFilter filter) {
+        if (joinTables.containsKey(filter))
+            return joinTables.get(filter);
+        long metaId = session.getDatabase().getModificationMetaId();
+        Long tooBig = tooBigJoinTables.get(filter);
+        if (tooBig != null) {
+            if (tooBig.longValue() == metaId)
+                return null;
+            tooBigJoinTables.remove(filter);
+        }
+        HBaseJoinTable t = HBaseJoinTable.create(filter);
+        if (t.isTooBig()) {
+            if (!t.hasParameters())
+                tooBigJoinTables.put(filter, metaId);
+            t = null;
+        }
+        joinTables.put(filter, t);
+        return t;
+    }
+
     @Override
     public String getRegionName() {
         return regionName;
@@ -22,8 +22,8 @@ package com.codefollower.lealone.hbase.command.dml;
 import com.codefollower.lealone.command.dml.Update;
 import com.codefollower.lealone.engine.Session;
 import com.codefollower.lealone.hbase.command.HBasePrepared;
-import com.codefollower.lealone.result.SearchRow;
-import com.codefollower.lealone.value.Value;
+import com.codefollower.lealone.hbase.dbobject.table.HBaseTable;
+import com.codefollower.lealone.hbase.engine.HBaseSession;
 
 //TODO
 //可Update多条记录，但是因为不支持事务，所以有可能出现部分Update成功、部分Update失败。
@@ -41,16 +41,23 @@ public class HBaseUpdate extends Update implements HBasePrepared {
     }
 
     @Override
-    public boolean isDistributedSQL() {
-        return true;
+    public int update() {
+        //先按Region缓冲Put，语句结束时或者缓冲的记录数太多时才批量写入
+        HBaseSession s = (HBaseSession) session;
+        boolean buffered = s.startWriteBuffer();
+        int openScanners = s.getOpenScannerCount();
+        try {
+            return super.update();
+        } finally {
+            s.closeScanners(openScanners);
+            if (buffered)
+                s.flushWriteBuffer();
+        }
     }
 
     @Override
-    public String getRowKey() {
-        Value rowKey = getStartRowKeyValue();
-        if (rowKey != null)
-            rowKey.getString();
-        return null;
+    public boolean isDistributedSQL() {
+        return true;
     }
 
     @Override
@@ -59,19 +66,22 @@ public class HBaseUpdate extends Update implements HBasePrepared {
     }
 
     @Override
-    public Value getStartRowKeyValue() {
-        SearchRow start = tableFilter.getStartSearchRow();
-        if (start != null)
-            return start.getRowKey();
-        return null;
+    public byte[] getRowKey() {
+        return getTable().getRowKey(tableFilter.getStartSearchRow(), tableFilter.getEndSearchRow());
     }
 
     @Override
-    public Value getEndRowKeyValue() {
-        SearchRow end = tableFilter.getEndSearchRow();
-        if (end != null)
-            return end.getRowKey();
-        return null;
+    public byte[] getStartRowKey() {
+        return getTable().getStartRowKey(tableFilter.getStartSearchRow());
+    }
+
+    @Override
+    public byte[] getStopRowKey() {
+        return getTable().getStopRowKey(tableFilter.getEndSearchRow());
+    }
+
+    private HBaseTable getTable() {
+        return (HBaseTable) tableFilter.getTable();
     }
 
     @Override
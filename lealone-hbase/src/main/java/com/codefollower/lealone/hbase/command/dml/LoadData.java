@@ -0,0 +1,294 @@
+/*
+ * Copyright 2011 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.codefollower.lealone.hbase.command.dml;
+
+import java.io.IOException;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+
+import com.codefollower.lealone.command.CommandInterface;
+import com.codefollower.lealone.command.Prepared;
+import com.codefollower.lealone.command.dml.Query;
+import com.codefollower.lealone.constant.ErrorCode;
+import com.codefollower.lealone.dbobject.Right;
+import com.codefollower.lealone.dbobject.index.Index;
+import com.codefollower.lealone.dbobject.table.Column;
+import com.codefollower.lealone.engine.Csv;
+import com.codefollower.lealone.engine.Session;
+import com.codefollower.lealone.hbase.dbobject.index.HBaseSecondaryIndex;
+import com.codefollower.lealone.hbase.dbobject.table.HBaseTable;
+import com.codefollower.lealone.hbase.engine.HBaseSession;
+import com.codefollower.lealone.hbase.result.HBaseSubqueryResult;
+import com.codefollower.lealone.hbase.util.BulkLoadWriter;
+import com.codefollower.lealone.hbase.util.HBaseUtils;
+import com.codefollower.lealone.message.DbException;
+import com.codefollower.lealone.result.ResultInterface;
+import com.codefollower.lealone.result.Row;
+import com.codefollower.lealone.util.New;
+import com.codefollower.lealone.value.Value;
+import com.codefollower.lealone.value.ValueNull;
+import com.codefollower.lealone.value.ValueString;
+import com.codefollower.lealone.value.ValueUuid;
+
+/**
+ * 批量导入记录，直接生成HFile再交给RegionServer导入，不经过WAL和MemStore。
+ *
+ * <pre>
+ * LOAD DATA INFILE 'fileName' [OPTIONS 'csvOptions'] INTO TABLE t [(columns)]
+ * LOAD DATA INTO TABLE t [(columns)] select
+ * </pre>
+ *
+ * <ul>
+ * <li>CSV文件和查询结果的列按位置对应到指定的列(没有指定时是表的所有列)</li>
+ * <li>rowKey的算法与INSERT相同：rowKey列，或者静态表的主键，或者随机生成</li>
+ * <li>二级索引的记录同时生成，与基表记录一起写到索引列族的HFile中</li>
+ * <li>每个Region的导入是原子的，但整个语句不是，中途失败时已经导入的Region不会回滚，
+ *     与多条记录的INSERT一样</li>
+ * </ul>
+ */
+public class LoadData extends Prepared {
+    private final HBaseSession session;
+    private HBaseTable table;
+    private Column[] columns;
+    private String fileName;
+    private String options;
+    private Query query;
+
+    public LoadData(Session session) {
+        super(session);
+        this.session = (HBaseSession) session;
+    }
+
+    public void setTable(HBaseTable table) {
+        this.table = table;
+    }
+
+    public void setColumns(Column[] columns) {
+        this.columns = columns;
+    }
+
+    public void setFileName(String fileName) {
+        this.fileName = fileName;
+    }
+
+    public void setOptions(String options) {
+        this.options = options;
+    }
+
+    public void setQuery(Query query) {
+        this.query = query;
+    }
+
+    @Override
+    public boolean isDistributedSQL() {
+        return false; //由当前节点生成HFile，导入时再分发到各RegionServer
+    }
+
+    @Override
+    public boolean isTransactional() {
+        return false;
+    }
+
+    @Override
+    public ResultInterface queryMeta() {
+        return null;
+    }
+
+    @Override
+    public int getType() {
+        return CommandInterface.INSERT;
+    }
+
+    @Override
+    public void prepare() {
+        if (columns == null)
+            columns = table.getColumns();
+        if (query != null) {
+            query.prepare();
+            if (query.getColumnCount() != columns.length)
+                throw DbException.get(ErrorCode.COLUMN_COUNT_DOES_NOT_MATCH);
+        }
+    }
+
+    @Override
+    public int update() {
+        session.getUser().checkRight(table, Right.INSERT);
+        if (fileName != null)
+            session.getUser().checkAdmin(); //读的是服务器上的文件
+
+        ArrayList<HBaseSecondaryIndex> indexes = New.arrayList();
+        for (Index index : table.getIndexes())
+            if (index instanceof HBaseSecondaryIndex)
+                indexes.add((HBaseSecondaryIndex) index);
+
+        BulkLoadWriter writer = null;
+        try {
+            writer = new BulkLoadWriter(table.getName());
+            int count;
+            if (fileName != null)
+                count = loadFile(writer, indexes);
+            else
+                count = loadQuery(writer, indexes);
+
+            //索引记录和基表记录在同一个Region中，每个Region的所有列族是一起原子地导入的
+            writer.load();
+            return count;
+        } catch (IOException e) {
+            throw DbException.convert(e);
+        } finally {
+            if (writer != null)
+                writer.close();
+        }
+    }
+
+    private int loadFile(BulkLoadWriter writer, ArrayList<HBaseSecondaryIndex> indexes) throws IOException {
+        Csv csv = new Csv();
+        String charset = null;
+        if (options != null)
+            charset = csv.setOptions(options);
+        ResultSet rs = null;
+        int count = 0;
+        try {
+            rs = csv.read(fileName, null, charset);
+            int columnCount = Math.min(rs.getMetaData().getColumnCount(), columns.length);
+            Value[] values = new Value[columns.length];
+            while (rs.next()) {
+                for (int i = 0; i < columnCount; i++) {
+                    String s = rs.getString(i + 1);
+                    values[i] = s == null ? ValueNull.INSTANCE : ValueString.get(s);
+                }
+                addRow(writer, indexes, values, count++);
+            }
+        } catch (SQLException e) {
+            throw DbException.convert(e);
+        } finally {
+            if (rs != null) {
+                try {
+                    rs.close();
+                } catch (SQLException e) {
+                    //ignore
+                }
+            }
+        }
+        return count;
+    }
+
+    private int loadQuery(BulkLoadWriter writer, ArrayList<HBaseSecondaryIndex> indexes) throws IOException {
+        HBaseSubqueryResult result = new HBaseSubqueryResult(session, query, 0);
+        int count = 0;
+        try {
+            while (result.next())
+                addRow(writer, indexes, result.currentRow(), count++);
+        } finally {
+            result.close();
+        }
+        return count;
+    }
+
+    private void addRow(BulkLoadWriter writer, ArrayList<HBaseSecondaryIndex> indexes, Value[] values,
+            int rowNumber) throws IOException {
+        checkCanceled();
+        Row row = table.getTemplateRow();
+        for (int i = 0; i < columns.length; i++) {
+            Value v = values[i];
+            if (v == null)
+                continue;
+            try {
+                row.setValue(columns[i].getColumnId(), columns[i].convert(v));
+            } catch (DbException e) {
+                throw setRow(e, rowNumber, v.getSQL());
+            }
+        }
+
+        //与Insert一样补上默认值和序列值，并检查NOT NULL约束
+        try {
+            table.validateConvertUpdateSequence(session, row);
+        } catch (DbException e) {
+            throw setRow(e, rowNumber, getSQL(values));
+        }
+
+        byte[] rowKey = getRowKey(row, values);
+        if (rowKey == null)
+            throw setRow(DbException.get(ErrorCode.NULL_NOT_ALLOWED, table.getRowKeyName()), rowNumber, getSQL(values));
+
+        for (int i = 0; i < columns.length; i++) {
+            Column c = columns[i];
+            if ((!table.isStatic() && c.isRowKeyColumn()) || values[i] == null)
+                continue;
+            writer.add(rowKey, c.getColumnFamilyNameAsBytes(), c.getNameAsBytes(),
+                    HBaseUtils.toBytes(row.getValue(c.getColumnId())));
+        }
+        //没有指定的列只写入有默认值或序列值的
+        for (Column c : table.getColumns()) {
+            if (c.isRowKeyColumn() || isLoadedColumn(c))
+                continue;
+            Value v = row.getValue(c.getColumnId());
+            if (v != null && v != ValueNull.INSTANCE)
+                writer.add(rowKey, c.getColumnFamilyNameAsBytes(), c.getNameAsBytes(), HBaseUtils.toBytes(v));
+        }
+
+        if (!indexes.isEmpty()) {
+            byte[] regionStartKey = writer.getRegionStartKey(rowKey);
+            for (HBaseSecondaryIndex index : indexes)
+                writer.add(index.getKey(regionStartKey, row, rowKey), HBaseSecondaryIndex.INDEX_FAMILY,
+                        HBaseSecondaryIndex.ROW_KEY, rowKey);
+        }
+    }
+
+    private boolean isLoadedColumn(Column c) {
+        for (Column column : columns)
+            if (column == c)
+                return true;
+        return false;
+    }
+
+    private byte[] getRowKey(Row row, Value[] values) {
+        for (int i = 0; i < columns.length; i++) {
+            if (columns[i].isRowKeyColumn()) {
+                if (values[i] == null || values[i] == ValueNull.INSTANCE)
+                    return null;
+                return table.getRowKey(values[i]);
+            }
+        }
+        if (table.isPrimaryKeyRowKey()) {
+            Column[] pkColumns = table.getPrimaryKeyColumns();
+            Value[] pkValues = new Value[pkColumns.length];
+            for (int i = 0; i < pkColumns.length; i++) {
+                Value v = row.getValue(pkColumns[i].getColumnId());
+                if (v == null || v == ValueNull.INSTANCE) {
+                    pkValues = null;
+                    break;
+                }
+                pkValues[i] = v;
+            }
+            if (pkValues != null)
+                return table.getRowKey(pkValues);
+        }
+        if (table.isStatic())
+            return HBaseUtils.toBytes(ValueUuid.getNewRandom().getString());
+        return null;
+    }
+
+    @Override
+    public String getPlanSQL() {
+        return getSQL();
+    }
+}
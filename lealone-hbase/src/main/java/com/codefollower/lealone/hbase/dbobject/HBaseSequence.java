@@ -19,7 +19,17 @@
  */
 package com.codefollower.lealone.hbase.dbobject;
 
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.hbase.util.Threads;
+
 import com.codefollower.lealone.command.CommandInterface;
+import com.codefollower.lealone.constant.SysProperties;
 import com.codefollower.lealone.dbobject.Schema;
 import com.codefollower.lealone.dbobject.Sequence;
 import com.codefollower.lealone.engine.Session;
@@ -27,35 +37,151 @@ import com.codefollower.lealone.engine.SessionInterface;
 import com.codefollower.lealone.hbase.command.CommandProxy;
 import com.codefollower.lealone.hbase.engine.HBaseDatabase;
 import com.codefollower.lealone.hbase.engine.HBaseSession;
+import com.codefollower.lealone.hbase.engine.SessionRemotePool;
 import com.codefollower.lealone.hbase.util.HBaseUtils;
 import com.codefollower.lealone.result.ResultInterface;
 
+/**
+ * HBase中的序列。
+ *
+ * <ul>
+ * <li>序列的值由Master分配，RegionServer每次向Master租用一段值(ALTER SEQUENCE ... NEXT VALUE MARGIN n)，
+ *     Master先把这段值的上限写入元数据再返回，所以Master或RegionServer崩溃后已经租出去的值不会再被分配</li>
+ * <li>RegionServer从当前租用的这段值中分配时不用加锁，只是一次AtomicLong.getAndAdd</li>
+ * <li>当前这段值用掉一半时在后台线程中租用下一段，所以大多数情况下不用等待Master</li>
+ * <li>每段值的个数根据消耗的速度调整，使一段值大约能用lealone.sequence.lease.target.time毫秒，
+ *     最少是CACHE的大小，最多是lealone.sequence.lease.max.size</li>
+ * </ul>
+ */
 public class HBaseSequence extends Sequence {
+    private static ExecutorService leaseExecutor;
+
+    private volatile Lease lease;
+    private Future<Lease> nextLease; //后台正在租用的下一段值
+    private long leaseSize;
 
     public HBaseSequence(Schema schema, int id, String name, boolean belongsToTable) {
         super(schema, id, name, belongsToTable);
     }
 
+    private static synchronized ExecutorService getLeaseExecutor() {
+        if (leaseExecutor == null)
+            leaseExecutor = Executors.newCachedThreadPool(Threads.newDaemonThreadFactory(HBaseSequence.class
+                    .getSimpleName()));
+        return leaseExecutor;
+    }
+
     @Override
-    public synchronized void flush(Session session) {
+    public long getNext(Session session) {
         HBaseSession s = (HBaseSession) session;
-        if (s.getRegionServer() != null) {
-            SessionInterface si = null;
+        if (s.getRegionServer() == null)
+            return super.getNext(session);
+
+        while (true) {
+            Lease l = lease;
+            if (l != null) {
+                long v = l.next.getAndAdd(increment);
+                if (l.contains(v)) {
+                    //只有一个线程会拿到这个值
+                    if (v == l.prefetchValue)
+                        prefetch(s, l);
+                    return v;
+                }
+            }
+            switchLease(s, l);
+        }
+    }
+
+    @Override
+    public long getCurrentValue() {
+        Lease l = lease;
+        if (l == null)
+            return super.getCurrentValue();
+        long v = l.next.get();
+        return (l.contains(v) ? v : l.end) - increment;
+    }
+
+    /**
+     * 当前这段值用掉一半时在后台租用下一段
+     */
+    private synchronized void prefetch(HBaseSession session, Lease l) {
+        if (nextLease != null || lease != l)
+            return;
+        //用掉一半所花的时间乘2就是整段值大约能用的时间
+        adjustLeaseSize(l, (System.currentTimeMillis() - l.createTime) * 2);
+        final Properties info = session.getOriginalProperties();
+        final long size = leaseSize;
+        nextLease = getLeaseExecutor().submit(new Callable<Lease>() {
+            @Override
+            public Lease call() throws Exception {
+                return requestLease(info, size);
+            }
+        });
+    }
+
+    /**
+     * 当前这段值用完了，换成下一段，已经被其他线程换掉时什么都不做
+     */
+    private synchronized void switchLease(HBaseSession session, Lease old) {
+        if (lease != old)
+            return;
+        Lease l = null;
+        if (nextLease != null) {
+            Future<Lease> f = nextLease;
+            nextLease = null;
             try {
-                si = CommandProxy.getSessionInterface(s.getOriginalProperties(), HBaseUtils.getMasterURL());
-                CommandInterface ci = si.prepareCommand("ALTER SEQUENCE " + getSQL() + " NEXT VALUE MARGIN", 1);
-                //ci.executeUpdate();
-                ResultInterface ri = ci.executeQuery(-1, false);
-                ri.next();
-                valueWithMargin = ri.currentRow()[0].getLong();
-                value = valueWithMargin - increment * cacheSize;
+                l = f.get();
             } catch (Exception e) {
-                throw new RuntimeException(e);
-            } finally {
-                if (si != null)
-                    si.close();
+                //租用失败时同步再租一次，之前那段值(如果Master已经分配了)就浪费掉了，但不会重复
+                l = null;
             }
-        } else if (s.getMaster() != null) {
+        }
+        if (l == null) {
+            if (old == null)
+                leaseSize = cacheSize;
+            else
+                adjustLeaseSize(old, System.currentTimeMillis() - old.createTime);
+            l = requestLease(session.getOriginalProperties(), leaseSize);
+        }
+        lease = l;
+    }
+
+    private void adjustLeaseSize(Lease l, long time) {
+        long target = SysProperties.SEQUENCE_LEASE_TARGET_TIME;
+        if (time < target / 2)
+            leaseSize = Math.min(l.size * 2, Math.max(SysProperties.SEQUENCE_LEASE_MAX_SIZE, cacheSize));
+        else if (time > target * 2)
+            leaseSize = Math.max(l.size / 2, cacheSize);
+        else
+            leaseSize = l.size;
+    }
+
+    /**
+     * 通过SessionRemotePool中的连接向Master租用size个值
+     */
+    private Lease requestLease(Properties info, long size) {
+        SessionInterface si = null;
+        try {
+            si = CommandProxy.getSessionInterface(info, HBaseUtils.getMasterURL());
+            CommandInterface ci = si.prepareCommand("ALTER SEQUENCE " + getSQL() + " NEXT VALUE MARGIN " + size, 1);
+            ResultInterface ri = ci.executeQuery(-1, false);
+            ri.next();
+            long end = ri.currentRow()[0].getLong();
+            ri.close();
+            ci.close();
+            return new Lease(end - increment * size, end, increment, size);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        } finally {
+            SessionRemotePool.release(si);
+        }
+    }
+
+    @Override
+    public synchronized void flush(Session session) {
+        HBaseSession s = (HBaseSession) session;
+        //RegionServer上的值都来自Master租用的值，不需要保存
+        if (s != null && s.getMaster() != null) {
             HBaseDatabase db = (HBaseDatabase) session.getDatabase();
             boolean oldNeedToAddRedoRecord = db.isNeedToAddRedoRecord();
             try {
@@ -67,14 +193,45 @@ public class HBaseSequence extends Sequence {
         }
     }
 
-    public synchronized long alterNextValueMargin(Session session) {
-        long value = this.value;
-        long valueWithMargin = increment * cacheSize;
-        value = value + valueWithMargin;
+    /**
+     * 在Master上分配count个值，先保存分配之后的值再返回
+     *
+     * @param session the session
+     * @param count 值的个数，小于1时使用CACHE的大小
+     * @return 分配的这段值的上限(不包含)
+     */
+    public synchronized long alterNextValueMargin(Session session, long count) {
+        if (count < 1)
+            count = cacheSize;
+        long value = this.value + increment * count;
         setStartValue(value);
 
         flush(session);
 
         return value;
     }
+
+    /**
+     * 从Master租用的一段值，从start开始到end(不包含)
+     */
+    private static class Lease {
+        final long end;
+        final long prefetchValue;
+        final long size;
+        final AtomicLong next;
+        final boolean ascending;
+        final long createTime = System.currentTimeMillis();
+
+        Lease(long start, long end, long increment, long size) {
+            this.end = end;
+            this.size = size;
+            this.prefetchValue = start + increment * (size / 2);
+            this.next = new AtomicLong(start);
+            this.ascending = increment > 0;
+        }
+
+        boolean contains(long v) {
+            return ascending ? v < end : v > end;
+        }
+    }
 }
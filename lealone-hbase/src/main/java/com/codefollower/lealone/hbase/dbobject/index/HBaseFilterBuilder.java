@@ -0,0 +1,337 @@
+/*
+ * Copyright 2011 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.codefollower.lealone.hbase.dbobject.index;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.filter.BinaryComparator;
+import org.apache.hadoop.hbase.filter.BinaryPrefixComparator;
+import org.apache.hadoop.hbase.filter.CompareFilter.CompareOp;
+import org.apache.hadoop.hbase.filter.Filter;
+import org.apache.hadoop.hbase.filter.FilterList;
+import org.apache.hadoop.hbase.filter.PrefixFilter;
+import org.apache.hadoop.hbase.filter.SingleColumnValueFilter;
+import org.apache.hadoop.hbase.filter.WritableByteArrayComparable;
+
+import com.codefollower.lealone.command.dml.Select;
+import com.codefollower.lealone.dbobject.table.Column;
+import com.codefollower.lealone.dbobject.table.TableFilter;
+import com.codefollower.lealone.engine.Session;
+import com.codefollower.lealone.expression.CompareLike;
+import com.codefollower.lealone.expression.Comparison;
+import com.codefollower.lealone.expression.ConditionAndOr;
+import com.codefollower.lealone.expression.ConditionIn;
+import com.codefollower.lealone.expression.ConditionInConstantSet;
+import com.codefollower.lealone.expression.Expression;
+import com.codefollower.lealone.expression.ExpressionColumn;
+import com.codefollower.lealone.expression.ExpressionVisitor;
+import com.codefollower.lealone.hbase.util.HBaseUtils;
+import com.codefollower.lealone.message.DbException;
+import com.codefollower.lealone.util.New;
+import com.codefollower.lealone.value.CompareMode;
+import com.codefollower.lealone.value.Value;
+import com.codefollower.lealone.value.ValueNull;
+
+/**
+ * 把WHERE条件中非rowKey列上的比较(=、<>、<、<=、>、>=)、IN、LIKE前缀、IS NULL、IS NOT NULL
+ * 转换成HBase的Filter，在RegionServer端就过滤掉不满足条件的记录，不用把它们转成Value[]。
+ *
+ * 生成的Filter只保证不会过滤掉满足条件的记录(比如NULL值也可能以"NULL"的形式存放)，
+ * 所以Select仍然会对每条记录计算完整的条件，不能转换的条件也由Select计算。
+ */
+public class HBaseFilterBuilder {
+    private static final byte[] NULL_BYTES = HBaseUtils.toBytes("NULL");
+
+    private final TableFilter filter;
+    private final Session session;
+    private final byte[] defaultColumnFamilyName;
+    private final boolean binaryStringCompare;
+
+    private HBaseFilterBuilder(TableFilter filter, byte[] defaultColumnFamilyName) {
+        this.filter = filter;
+        this.session = filter.getSession();
+        this.defaultColumnFamilyName = defaultColumnFamilyName;
+        //有collation时字符串不能按字节比较
+        this.binaryStringCompare = session.getDatabase().getCompareMode().getName().equals(CompareMode.OFF);
+    }
+
+    /**
+     *
+     * @param filter 要扫描的表
+     * @param defaultColumnFamilyName 没有指定列族的列所在的列族
+     * @return 没有可以下推的条件时返回null
+     */
+    public static Filter createFilter(TableFilter filter, byte[] defaultColumnFamilyName) {
+        Select select = filter.getSelect();
+        if (select == null)
+            return null;
+        HBaseFilterBuilder builder = new HBaseFilterBuilder(filter, defaultColumnFamilyName);
+        ArrayList<Filter> filters = New.arrayList();
+        builder.addFilters(select.getCondition(), filters);
+        builder.addFilters(filter.getFilterCondition(), filters);
+
+        if (filters.isEmpty())
+            return null;
+        if (filters.size() == 1)
+            return filters.get(0);
+        return new FilterList(FilterList.Operator.MUST_PASS_ALL, filters);
+    }
+
+    private void addFilters(Expression condition, List<Filter> filters) {
+        if (condition == null)
+            return;
+        //AND的每个分支单独下推，不能下推的分支直接忽略
+        if (condition instanceof ConditionAndOr && ((ConditionAndOr) condition).getAndOrType() == ConditionAndOr.AND) {
+            addFilters(((ConditionAndOr) condition).getExpression(true), filters);
+            addFilters(((ConditionAndOr) condition).getExpression(false), filters);
+            return;
+        }
+        Filter f = toFilter(condition);
+        if (f != null)
+            filters.add(f);
+    }
+
+    private Filter toFilter(Expression e) {
+        try {
+            if (e instanceof ConditionAndOr)
+                return toFilter((ConditionAndOr) e);
+            else if (e instanceof Comparison)
+                return toFilter((Comparison) e);
+            else if (e instanceof ConditionIn)
+                return toFilter(((ConditionIn) e).getLeft(), ((ConditionIn) e).getValueList());
+            else if (e instanceof ConditionInConstantSet)
+                return toFilter(((ConditionInConstantSet) e).getLeft(), ((ConditionInConstantSet) e).getValueList());
+            else if (e instanceof CompareLike)
+                return toFilter((CompareLike) e);
+        } catch (DbException ex) {
+            //常量转换成列的类型时出错，交给Select去计算
+        }
+        return null;
+    }
+
+    private Filter toFilter(ConditionAndOr c) {
+        Filter left = toFilter(c.getExpression(true));
+        Filter right = toFilter(c.getExpression(false));
+        if (c.getAndOrType() == ConditionAndOr.OR) {
+            //OR的任何一个分支不能下推时整个OR都不能下推
+            if (left == null || right == null)
+                return null;
+            return new FilterList(FilterList.Operator.MUST_PASS_ONE, left, right);
+        }
+        if (left == null)
+            return right;
+        if (right == null)
+            return left;
+        return new FilterList(FilterList.Operator.MUST_PASS_ALL, left, right);
+    }
+
+    private Filter toFilter(Comparison c) {
+        int compareType = c.getCompareType();
+        Expression left = c.getExpression(true);
+        Expression right = c.getExpression(false);
+        if (right == null) {
+            Column column = getColumn(left);
+            if (column == null)
+                return null;
+            if (compareType == Comparison.IS_NULL) {
+                //列不存在或者值是"NULL"
+                return createFilter(column, CompareOp.EQUAL, new BinaryComparator(NULL_BYTES), false);
+            } else if (compareType == Comparison.IS_NOT_NULL) {
+                //只要求列存在
+                return createFilter(column, CompareOp.GREATER_OR_EQUAL, new BinaryComparator(
+                        HConstants.EMPTY_BYTE_ARRAY), true);
+            }
+            return null;
+        }
+
+        CompareOp op;
+        switch (compareType) {
+        case Comparison.EQUAL:
+            op = CompareOp.EQUAL;
+            break;
+        case Comparison.NOT_EQUAL:
+            op = CompareOp.NOT_EQUAL;
+            break;
+        case Comparison.BIGGER_EQUAL:
+            op = CompareOp.GREATER_OR_EQUAL;
+            break;
+        case Comparison.BIGGER:
+            op = CompareOp.GREATER;
+            break;
+        case Comparison.SMALLER_EQUAL:
+            op = CompareOp.LESS_OR_EQUAL;
+            break;
+        case Comparison.SMALLER:
+            op = CompareOp.LESS;
+            break;
+        default:
+            return null;
+        }
+
+        Column column = getColumn(left);
+        Expression valueExpression = right;
+        if (column == null) {
+            //常量在左边，比如5 < A相当于A > 5
+            column = getColumn(right);
+            valueExpression = left;
+            op = reverse(op);
+        }
+        if (column == null)
+            return null;
+
+        Value v = getValue(column, valueExpression);
+        if (v == null)
+            return null;
+        if (op == CompareOp.EQUAL || op == CompareOp.NOT_EQUAL) {
+            if (!isBinaryEquals(column.getType()))
+                return null;
+        } else if (!isBinaryOrdered(column.getType(), v)) {
+            return null;
+        }
+        return createFilter(column, op, new BinaryComparator(HBaseUtils.toBytes(v)), true);
+    }
+
+    private static CompareOp reverse(CompareOp op) {
+        switch (op) {
+        case GREATER_OR_EQUAL:
+            return CompareOp.LESS_OR_EQUAL;
+        case GREATER:
+            return CompareOp.LESS;
+        case LESS_OR_EQUAL:
+            return CompareOp.GREATER_OR_EQUAL;
+        case LESS:
+            return CompareOp.GREATER;
+        default:
+            return op;
+        }
+    }
+
+    private Filter toFilter(Expression left, ArrayList<Expression> valueList) {
+        Column column = getColumn(left);
+        if (column == null || !isBinaryEquals(column.getType()))
+            return null;
+        ArrayList<Filter> filters = New.arrayList(valueList.size());
+        for (Expression e : valueList) {
+            Value v = getValue(column, e);
+            if (v == null)
+                return null;
+            filters.add(createFilter(column, CompareOp.EQUAL, new BinaryComparator(HBaseUtils.toBytes(v)), true));
+        }
+        return new FilterList(FilterList.Operator.MUST_PASS_ONE, filters);
+    }
+
+    private Filter toFilter(CompareLike like) {
+        Expression left = like.getLeft();
+        if (!(left instanceof ExpressionColumn) || ((ExpressionColumn) left).getTableFilter() != filter)
+            return null;
+        Column column = ((ExpressionColumn) left).getColumn();
+        if (column.getType() != Value.STRING)
+            return null;
+        String prefix = like.getPrefix(session);
+        if (prefix == null)
+            return null;
+        if (column.isRowKeyColumn())
+            return new PrefixFilter(HBaseUtils.toBytes(prefix));
+        return createFilter(column, CompareOp.EQUAL, new BinaryPrefixComparator(HBaseUtils.toBytes(prefix)), true);
+    }
+
+    /**
+     *
+     * @return 如果不是当前表的非rowKey列，返回null
+     */
+    private Column getColumn(Expression e) {
+        if (!(e instanceof ExpressionColumn))
+            return null;
+        ExpressionColumn ec = (ExpressionColumn) e;
+        if (ec.getTableFilter() != filter)
+            return null;
+        Column column = ec.getColumn();
+        //rowKey上的条件已经转换成了扫描的startKey和endKey
+        if (column.isRowKeyColumn() || column.isTypeUnknown())
+            return null;
+        return column;
+    }
+
+    /**
+     *
+     * @return 如果值在打开扫描器之前不能确定，或者比较时不是按列的类型比较的，返回null
+     */
+    private Value getValue(Column column, Expression e) {
+        if (!e.isEverything(ExpressionVisitor.INDEPENDENT_VISITOR))
+            return null;
+        Value v = e.getValue(session);
+        if (v == ValueNull.INSTANCE)
+            return null;
+        //比如INT列与1.5比较时是按DECIMAL比较的，把1.5转成INT就不对了
+        if (Value.getHigherOrder(column.getType(), v.getType()) != column.getType())
+            return null;
+        return v.convertTo(column.getType());
+    }
+
+    /**
+     * 值相等当且仅当HBaseUtils.toBytes得到的字节相等
+     */
+    private boolean isBinaryEquals(int type) {
+        switch (type) {
+        case Value.BOOLEAN:
+        case Value.BYTE:
+        case Value.SHORT:
+        case Value.INT:
+        case Value.LONG:
+        case Value.DATE:
+        case Value.TIME:
+        case Value.UUID:
+        case Value.BYTES:
+            return true;
+        case Value.STRING:
+            return binaryStringCompare;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * 数字的编码有符号位，只有字符串的字节顺序与值的顺序一致，
+     * 并且只有常量中没有代理字符及之后的字符时UTF-8的字节顺序才与String.compareTo一致
+     */
+    private boolean isBinaryOrdered(int type, Value v) {
+        if (type != Value.STRING || !binaryStringCompare)
+            return false;
+        String s = v.getString();
+        for (int i = 0, length = s.length(); i < length; i++) {
+            if (s.charAt(i) >= Character.MIN_SURROGATE)
+                return false;
+        }
+        return true;
+    }
+
+    private Filter createFilter(Column column, CompareOp op, WritableByteArrayComparable comparator,
+            boolean filterIfMissing) {
+        byte[] family = column.getColumnFamilyName() != null ? column.getColumnFamilyNameAsBytes()
+                : defaultColumnFamilyName;
+        SingleColumnValueFilter f = new SingleColumnValueFilter(family, column.getNameAsBytes(), op, comparator);
+        f.setFilterIfMissing(filterIfMissing);
+        //只看最新版本，避免旧版本的值让记录通过
+        f.setLatestVersionOnly(true);
+        return f;
+    }
+}
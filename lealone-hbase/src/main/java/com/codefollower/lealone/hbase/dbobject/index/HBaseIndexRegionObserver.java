@@ -0,0 +1,96 @@
+/*
+ * Copyright 2011 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.codefollower.lealone.hbase.dbobject.index;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Delete;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.coprocessor.BaseRegionObserver;
+import org.apache.hadoop.hbase.coprocessor.ObserverContext;
+import org.apache.hadoop.hbase.coprocessor.RegionCoprocessorEnvironment;
+import org.apache.hadoop.hbase.regionserver.HRegion;
+import org.apache.hadoop.hbase.regionserver.RegionScanner;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import com.codefollower.lealone.util.New;
+
+/**
+ * 有二级索引的表在分裂后调整索引记录的前缀。
+ *
+ * 索引记录的rowKey以所在Region的startKey开头，分裂前的Region与左边的Region有相同的startKey，
+ * 而HBaseIndexSplitPolicy保证分裂点大于原Region所有的索引记录，所以分裂后索引记录都在左边的Region中。
+ * 这里把指向右边Region中基表记录的那些索引记录换成右边Region的前缀，写到右边的Region中。
+ * 调整完之前右边的Region可能已经开始服务了，这期间按索引查询时会漏掉这部分记录。
+ *
+ * 由HBaseTable.addIndexColumnFamily加到有二级索引的表上。
+ */
+public class HBaseIndexRegionObserver extends BaseRegionObserver {
+
+    @Override
+    public void postSplit(ObserverContext<RegionCoprocessorEnvironment> e, HRegion l, HRegion r) throws IOException {
+        byte[] startKey = l.getStartKey();
+        byte[] splitKey = r.getStartKey();
+        //所有索引的索引记录都在[startKey + 0, startKey + 1)这个范围内
+        Scan scan = new Scan(Bytes.add(startKey, new byte[1]), Bytes.add(startKey, new byte[] { 1 }));
+        scan.addFamily(HBaseSecondaryIndex.INDEX_FAMILY);
+        RegionScanner scanner = l.getScanner(scan);
+        try {
+            List<KeyValue> kvs = New.arrayList();
+            boolean more;
+            do {
+                kvs.clear();
+                more = scanner.next(kvs);
+                if (!kvs.isEmpty())
+                    move(kvs, startKey, splitKey, l, r);
+            } while (more);
+        } finally {
+            scanner.close();
+        }
+    }
+
+    /**
+     * 基表记录在右边Region中时，保持时间戳不变把索引记录写到右边的Region，再从左边的Region中删除
+     */
+    private static void move(List<KeyValue> kvs, byte[] startKey, byte[] splitKey, HRegion l, HRegion r)
+            throws IOException {
+        byte[] row = kvs.get(0).getRow();
+        byte[] rowKey = null;
+        for (KeyValue kv : kvs) {
+            if (Bytes.equals(kv.getQualifier(), HBaseSecondaryIndex.ROW_KEY))
+                rowKey = kv.getValue();
+        }
+        if (rowKey == null || Bytes.compareTo(rowKey, splitKey) < 0)
+            return;
+
+        //去掉原来的startKey，换成分裂点
+        Put put = new Put(Bytes.add(splitKey, Bytes.tail(row, row.length - startKey.length)));
+        for (KeyValue kv : kvs)
+            put.add(kv.getFamily(), kv.getQualifier(), kv.getTimestamp(), kv.getValue());
+        r.put(put);
+
+        Delete delete = new Delete(row);
+        delete.deleteFamily(HBaseSecondaryIndex.INDEX_FAMILY);
+        l.delete(delete, null, true);
+    }
+}
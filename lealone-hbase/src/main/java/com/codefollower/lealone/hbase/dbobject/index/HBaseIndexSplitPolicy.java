@@ -0,0 +1,64 @@
+/*
+ * Copyright 2011 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.codefollower.lealone.hbase.dbobject.index;
+
+import org.apache.hadoop.hbase.HRegionInfo;
+import org.apache.hadoop.hbase.regionserver.IncreasingToUpperBoundRegionSplitPolicy;
+import org.apache.hadoop.hbase.regionserver.Store;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * 有二级索引的表选择分裂点的策略。
+ *
+ * 什么时候分裂与HBase默认的策略相同，但分裂点不能落在原Region的索引记录中间，
+ * 分裂后的两个Region也要都能放下以自己的startKey开头的索引记录(见HBaseSecondaryIndex.canSplitAt)。
+ * 索引列族最大时它的中间key是一条索引记录，所以改用基表记录的列族中最大的那个的中间key，
+ * 还是不合适时这次就不分裂。
+ *
+ * 由HBaseTable.addIndexColumnFamily加到有二级索引的表上。
+ */
+public class HBaseIndexSplitPolicy extends IncreasingToUpperBoundRegionSplitPolicy {
+
+    @Override
+    protected byte[] getSplitPoint() {
+        byte[] splitPoint = super.getSplitPoint();
+        if (splitPoint != null && canSplitAt(splitPoint))
+            return splitPoint;
+
+        splitPoint = null;
+        long largestStoreSize = 0;
+        for (Store s : region.getStores().values()) {
+            if (Bytes.equals(s.getFamily().getName(), HBaseSecondaryIndex.INDEX_FAMILY))
+                continue;
+            byte[] p = s.getSplitPoint();
+            long size = s.getSize();
+            if (p != null && largestStoreSize < size) {
+                splitPoint = p;
+                largestStoreSize = size;
+            }
+        }
+        return splitPoint != null && canSplitAt(splitPoint) ? splitPoint : null;
+    }
+
+    private boolean canSplitAt(byte[] splitPoint) {
+        HRegionInfo info = region.getRegionInfo();
+        return HBaseSecondaryIndex.canSplitAt(info.getStartKey(), splitPoint, info.getEndKey());
+    }
+}
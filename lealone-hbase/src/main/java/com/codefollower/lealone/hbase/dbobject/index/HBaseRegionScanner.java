@@ -0,0 +1,171 @@
+/*
+ * Copyright 2011 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.codefollower.lealone.hbase.dbobject.index;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.regionserver.HRegionServer;
+import org.apache.hadoop.hbase.util.Threads;
+
+import com.codefollower.lealone.constant.SysProperties;
+import com.codefollower.lealone.result.AdaptiveFetchSize;
+
+/**
+ * 按批读取RegionServer上的一个扫描器。
+ *
+ * <ul>
+ * <li>拿到一批记录后马上在后台线程中读取下一批，调用者处理当前这批记录时RegionServer不用等待</li>
+ * <li>每批的记录数从fetchSize开始逐步翻倍，
+ *     但不超过lealone.scanner.batch.max.rows，并且估算的字节数不超过lealone.scanner.batch.max.bytes，
+ *     读取一批记录的时间超过lealone.result.fetch.target.time毫秒时按比例减小</li>
+ * <li>后台线程最多lealone.scanner.prefetch.threads个，都在忙时不预读，等需要时再读</li>
+ * <li>LIMIT提前结束或者出错时没有读到最后，由语句结束时的HBaseSession.closeScanners关闭</li>
+ * </ul>
+ */
+public class HBaseRegionScanner implements Closeable {
+    private static ExecutorService prefetchExecutor;
+
+    private final HRegionServer regionServer;
+    private final long scannerId;
+
+    private final AdaptiveFetchSize batchSize;
+    private Future<Result[]> prefetch;
+    private volatile long prefetchTime; //后台读取那一批记录所花的毫秒数
+    private boolean closed;
+
+    public HBaseRegionScanner(HRegionServer regionServer, long scannerId, int fetchSize) {
+        this.regionServer = regionServer;
+        this.scannerId = scannerId;
+        this.batchSize = new AdaptiveFetchSize(fetchSize, SysProperties.SCANNER_BATCH_MAX_ROWS,
+                SysProperties.SCANNER_BATCH_MAX_BYTES, SysProperties.RESULT_FETCH_TARGET_TIME);
+    }
+
+    private static synchronized ExecutorService getPrefetchExecutor() {
+        if (prefetchExecutor == null) {
+            int threads = Math.max(1, SysProperties.SCANNER_PREFETCH_THREADS);
+            //不排队，线程都在忙时马上拒绝
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                    new SynchronousQueue<Runnable>(), Threads.newDaemonThreadFactory(HBaseRegionScanner.class
+                            .getSimpleName()));
+            pool.allowCoreThreadTimeOut(true);
+            prefetchExecutor = pool;
+        }
+        return prefetchExecutor;
+    }
+
+    /**
+     *
+     * @return 下一批记录，没有更多记录时返回null或空数组，此时扫描器已关闭
+     */
+    public Result[] next() {
+        if (closed)
+            return null;
+        Result[] result;
+        long time;
+        try {
+            if (prefetch != null) {
+                Future<Result[]> f = prefetch;
+                prefetch = null;
+                result = f.get();
+                time = prefetchTime;
+            } else {
+                long start = System.currentTimeMillis();
+                result = regionServer.next(scannerId, batchSize.getFetchSize());
+                time = System.currentTimeMillis() - start;
+            }
+        } catch (ExecutionException e) {
+            close();
+            throw new RuntimeException(e.getCause());
+        } catch (InterruptedException e) {
+            close();
+            throw new RuntimeException(e);
+        } catch (IOException e) {
+            close();
+            throw new RuntimeException(e);
+        }
+
+        if (result == null || result.length == 0) {
+            close();
+            return result;
+        }
+
+        adjustBatchSize(result, time);
+        if (SysProperties.SCANNER_PREFETCH) {
+            final int rows = batchSize.getFetchSize();
+            try {
+                prefetch = getPrefetchExecutor().submit(new Callable<Result[]>() {
+                    @Override
+                    public Result[] call() throws Exception {
+                        long start = System.currentTimeMillis();
+                        Result[] r = regionServer.next(scannerId, rows);
+                        prefetchTime = System.currentTimeMillis() - start;
+                        return r;
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                prefetch = null;
+            }
+        }
+        return result;
+    }
+
+    private void adjustBatchSize(Result[] result, long time) {
+        long bytes = 0;
+        for (Result r : result) {
+            KeyValue[] kvs = r.raw();
+            if (kvs != null)
+                for (KeyValue kv : kvs)
+                    bytes += kv.getLength();
+        }
+        batchSize.update(result.length, bytes, time);
+    }
+
+    @Override
+    public void close() {
+        if (closed)
+            return;
+        closed = true;
+        if (prefetch != null) {
+            //等后台读取结束后再关闭扫描器
+            try {
+                prefetch.get();
+            } catch (Exception e) {
+                //ignore
+            }
+            prefetch = null;
+        }
+        try {
+            regionServer.close(scannerId);
+        } catch (IOException e) {
+            //ignore
+        }
+    }
+}
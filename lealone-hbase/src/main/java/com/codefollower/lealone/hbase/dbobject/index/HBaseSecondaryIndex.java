@@ -0,0 +1,436 @@
+/*
+ * Copyright 2011 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.codefollower.lealone.hbase.dbobject.index;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.client.Delete;
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.filter.KeyOnlyFilter;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import com.codefollower.lealone.constant.SysProperties;
+import com.codefollower.lealone.dbobject.index.BaseIndex;
+import com.codefollower.lealone.dbobject.index.Cursor;
+import com.codefollower.lealone.dbobject.index.IndexType;
+import com.codefollower.lealone.dbobject.table.Column;
+import com.codefollower.lealone.dbobject.table.IndexColumn;
+import com.codefollower.lealone.dbobject.table.Table;
+import com.codefollower.lealone.dbobject.table.TableFilter;
+import com.codefollower.lealone.engine.Database;
+import com.codefollower.lealone.engine.Session;
+import com.codefollower.lealone.hbase.dbobject.table.HBaseTable;
+import com.codefollower.lealone.hbase.engine.HBaseDatabase;
+import com.codefollower.lealone.hbase.engine.HBaseSession;
+import com.codefollower.lealone.hbase.result.HBaseRow;
+import com.codefollower.lealone.hbase.util.HBaseKeyCodec;
+import com.codefollower.lealone.hbase.util.HBaseUtils;
+import com.codefollower.lealone.message.DbException;
+import com.codefollower.lealone.result.Row;
+import com.codefollower.lealone.result.SearchRow;
+import com.codefollower.lealone.result.SortOrder;
+import com.codefollower.lealone.util.New;
+import com.codefollower.lealone.value.Value;
+import com.codefollower.lealone.value.ValueNull;
+
+/**
+ * HBase表的二级索引。
+ *
+ * <ul>
+ * <li>索引记录和基表记录放在同一个HBase表中，索引记录只有INDEX_FAMILY这一个列族，
+ *     rowKey是所在Region的startKey、一个0字节、4个字节的索引id、索引列的值(用HBaseKeyCodec编码)加上基表记录的rowKey，
+ *     值是基表记录的rowKey。这样索引记录总是和它指向的基表记录在同一个Region中</li>
+ * <li>在基表上增删改记录时，索引记录和基表记录放在同一批写操作中，由HBaseSession用HRegion.mutateRowsWithLocks原子地写入</li>
+ * <li>查询在每个Region上分别执行，只范围扫描本Region中这个索引满足条件的那一段，再到本Region中Get基表记录</li>
+ * <li>Region分裂后由HBaseIndexRegionObserver把索引记录改成新Region的前缀，
+ *     HBaseIndexSplitPolicy保证分裂点不会落在索引记录中间</li>
+ * <li>索引记录可能是过时的(比如基表记录已被覆盖)，Select会对Get到的记录再计算一次完整的条件</li>
+ * </ul>
+ */
+public class HBaseSecondaryIndex extends BaseIndex {
+    public static final byte[] INDEX_FAMILY = Bytes.toBytes("_INDEX_");
+    public static final byte[] ROW_KEY = Bytes.toBytes("ROW_KEY");
+
+    /**
+     * 每条索引记录还要到基表中Get一次，所以代价比直接扫描基表高
+     */
+    private static final int LOOKUP_COST_FACTOR = 3;
+
+    public HBaseSecondaryIndex(Table table, int id, String indexName, IndexColumn[] columns, IndexType indexType) {
+        initBaseIndex(table, id, indexName, columns, indexType);
+    }
+
+    /**
+     * 主键(也就是rowKey)上的索引、包含rowKey列或者有不能保持顺序编码的列时，不能建二级索引
+     *
+     * @param database the database
+     * @param cols the index columns
+     * @param indexType the index type
+     * @return true if a secondary index can be created
+     */
+    public static boolean isSupported(Database database, IndexColumn[] cols, IndexType indexType) {
+        if (indexType.isPrimaryKey())
+            return false;
+        for (IndexColumn c : cols) {
+            Column column = c.column;
+            if (column.isRowKeyColumn() || (c.sortType & SortOrder.DESCENDING) != 0)
+                return false;
+            if (!HBaseKeyCodec.isSupportedColumn(database, column))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * 一个Region中这个索引的所有索引记录的rowKey前缀
+     *
+     * @param regionStartKey Region的startKey
+     * @return the prefix
+     */
+    public byte[] getPrefix(byte[] regionStartKey) {
+        return getPrefix(regionStartKey, getId());
+    }
+
+    /**
+     * 比这个索引的所有索引记录都大的最小的key，用作扫描整个索引的stopRow
+     *
+     * @param regionStartKey Region的startKey
+     * @return the stop row
+     */
+    public byte[] getStopPrefix(byte[] regionStartKey) {
+        return getPrefix(regionStartKey, getId() + 1);
+    }
+
+    private static byte[] getPrefix(byte[] regionStartKey, int indexId) {
+        return Bytes.add(regionStartKey, new byte[1], Bytes.toBytes(indexId));
+    }
+
+    /**
+     * Region的索引记录都在[startKey + 0, startKey + 1)这个范围内，
+     * 分裂点不能落在这个范围内，分裂后的两个Region也要都能放下自己的索引记录
+     *
+     * @param startKey 原Region的startKey
+     * @param splitKey 分裂点
+     * @param endKey 原Region的endKey，空数组表示没有上限
+     * @return true if the region can be split at splitKey
+     */
+    public static boolean canSplitAt(byte[] startKey, byte[] splitKey, byte[] endKey) {
+        if (Bytes.compareTo(splitKey, Bytes.add(startKey, new byte[] { 1 })) < 0)
+            return false;
+        return endKey.length == 0 || Bytes.compareTo(Bytes.add(splitKey, new byte[] { 1 }), endKey) <= 0;
+    }
+
+    /**
+     * 建索引之前基表中可能已经有记录了，在Master上按Region扫描一遍基表补上这些记录的索引
+     *
+     * @param session the session
+     */
+    public void build(HBaseSession session) {
+        HBaseTable t = (HBaseTable) table;
+        HTable htable = null;
+        try {
+            htable = new HTable(HBaseUtils.getConfiguration(), t.getName());
+            htable.setAutoFlush(false);
+            List<Column> list = Arrays.asList(columns);
+            int columnCount = t.getColumns().length;
+            byte[][] startKeys = htable.getStartKeys();
+            for (int i = 0; i < startKeys.length; i++) {
+                byte[] stopKey = i + 1 < startKeys.length ? startKeys[i + 1] : HConstants.EMPTY_END_ROW;
+                //不能只读索引列，索引列都是NULL的记录也要建索引
+                Scan scan = new Scan(startKeys[i], stopKey);
+                for (byte[] family : t.getDataColumnFamilies())
+                    scan.addFamily(family);
+                scan.setCaching(SysProperties.SERVER_RESULT_SET_FETCH_SIZE);
+                ResultScanner scanner = htable.getScanner(scan);
+                try {
+                    for (Result r : scanner) {
+                        Row row = HBaseTableCursor.toRow(t, null, r, list, columnCount);
+                        htable.put(createPut(startKeys[i], row, r.getRow()));
+                    }
+                } finally {
+                    scanner.close();
+                }
+            }
+            htable.flushCommits();
+        } catch (IOException e) {
+            throw DbException.convert(e);
+        } finally {
+            if (htable != null) {
+                try {
+                    htable.close();
+                } catch (IOException e) {
+                    //ignore
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close(Session session) {
+    }
+
+    @Override
+    public void add(Session session, Row row) {
+        HBaseSession s = (HBaseSession) session;
+        byte[] regionName = ((HBaseRow) row).getRegionName();
+        byte[] rowKey = ((HBaseTable) table).getRowKey(row.getRowKey());
+        Put put = createPut(getRegionStartKey(s, regionName), row, rowKey);
+        if (s.bufferPut(regionName, put))
+            return;
+        try {
+            s.getRegionServer().put(regionName, put);
+        } catch (IOException e) {
+            throw DbException.convert(e);
+        }
+    }
+
+    private Put createPut(byte[] regionStartKey, SearchRow row, byte[] rowKey) {
+        Put put = new Put(getKey(regionStartKey, row, rowKey));
+        put.add(INDEX_FAMILY, ROW_KEY, rowKey);
+        return put;
+    }
+
+    @Override
+    public void remove(Session session, Row row) {
+        if (((HBaseRow) row).isForUpdate()) //由HBaseTable.updateRows调用removeIfChanged
+            return;
+        byte[] rowKey = ((HBaseTable) table).getRowKey(row.getRowKey());
+        delete((HBaseSession) session, ((HBaseRow) row).getRegionName(), row, rowKey);
+    }
+
+    /**
+     * 更新记录时，只有索引列的值变了才删除旧的索引记录，新的索引记录由add写入
+     *
+     * @param session the session
+     * @param oldRow 更新前的记录
+     * @param newRow 更新后的记录
+     */
+    public void removeIfChanged(Session session, Row oldRow, Row newRow) {
+        byte[] rowKey = ((HBaseTable) table).getRowKey(oldRow.getRowKey());
+        if (!Arrays.equals(getKey(HConstants.EMPTY_START_ROW, oldRow, rowKey),
+                getKey(HConstants.EMPTY_START_ROW, newRow, rowKey)))
+            delete((HBaseSession) session, ((HBaseRow) oldRow).getRegionName(), oldRow, rowKey);
+    }
+
+    private void delete(HBaseSession session, byte[] regionName, SearchRow row, byte[] rowKey) {
+        //只删除索引列族，不能碰到rowKey恰好相同的基表记录
+        Delete delete = new Delete(getKey(getRegionStartKey(session, regionName), row, rowKey));
+        delete.deleteFamily(INDEX_FAMILY);
+        if (session.bufferDelete(regionName, delete))
+            return;
+        try {
+            session.getRegionServer().delete(regionName, delete);
+        } catch (IOException e) {
+            throw DbException.convert(e);
+        }
+    }
+
+    private static byte[] getRegionStartKey(HBaseSession session, byte[] regionName) {
+        try {
+            return session.getRegionServer().getRegionInfo(regionName).getStartKey();
+        } catch (IOException e) {
+            throw DbException.convert(e);
+        }
+    }
+
+    /**
+     * 索引记录的rowKey：前缀、索引列的值编码后加上基表记录的rowKey
+     *
+     * @param regionStartKey 基表记录所在Region的startKey
+     * @param row the base table row
+     * @param rowKey the row key of the base table row
+     * @return the index key
+     */
+    public byte[] getKey(byte[] regionStartKey, SearchRow row, byte[] rowKey) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] prefix = getPrefix(regionStartKey);
+        out.write(prefix, 0, prefix.length);
+        for (Column c : columns) {
+            Value v = row.getValue(c.getColumnId());
+            if (v != null && v != ValueNull.INSTANCE)
+                v = v.convertTo(c.getType());
+            HBaseKeyCodec.encode(out, v);
+        }
+        out.write(rowKey, 0, rowKey.length);
+        return out.toByteArray();
+    }
+
+    @Override
+    public Cursor find(TableFilter filter, SearchRow first, SearchRow last) {
+        boolean isTop = filter.getSelect() == null || filter.getSelect().getTopTableFilter() == filter;
+        HBaseTable t = (HBaseTable) table;
+        //join的内表和按rowKey(静态表是主键)查找一条记录时还是按原来的方式
+        if (!isTop || t.getRowKey(first, last) != null)
+            return new HBaseTableCursor(filter, first, last);
+
+        //等值条件的列依次拼接起来，遇到第一个不是等值条件的列就停止
+        ByteArrayOutputStream start = new ByteArrayOutputStream();
+        ByteArrayOutputStream end = new ByteArrayOutputStream();
+        for (Column c : columns) {
+            byte[] s = encodeBound(first, c);
+            byte[] e = encodeBound(last, c);
+            if (s != null)
+                start.write(s, 0, s.length);
+            if (e != null)
+                end.write(e, 0, e.length);
+            if (s == null || e == null || !Arrays.equals(s, e))
+                break;
+        }
+        if (start.size() == 0 && end.size() == 0)
+            return new HBaseTableCursor(filter, first, last);
+
+        byte[] stopKey = end.size() == 0 ? new byte[0] : HBaseKeyCodec.nextPrefix(end.toByteArray());
+        return new HBaseSecondaryIndexCursor(this, filter, start.toByteArray(), stopKey, t.getStartRowKey(first),
+                t.getStopRowKey(last));
+    }
+
+    /**
+     * 条件中的值类型比列的类型高时(比如INT列与1.5比较)不能转换成列的类型，此时当成没有这个条件
+     */
+    private static byte[] encodeBound(SearchRow row, Column c) {
+        if (row == null)
+            return null;
+        Value v = row.getValue(c.getColumnId());
+        if (v == null)
+            return null;
+        if (v != ValueNull.INSTANCE) {
+            if (Value.getHigherOrder(c.getType(), v.getType()) != c.getType())
+                return null;
+            try {
+                v = v.convertTo(c.getType());
+            } catch (DbException e) {
+                return null;
+            }
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        HBaseKeyCodec.encode(out, v);
+        return out.toByteArray();
+    }
+
+    @Override
+    public Cursor find(Session session, SearchRow first, SearchRow last) {
+        throw DbException.getUnsupportedException("find(Session, SearchRow, SearchRow)");
+    }
+
+    /**
+     * 每个Region只扫描自己的索引记录，与scanIndex一样都是按Region并行执行的
+     */
+    @Override
+    public double getCost(Session session, int[] masks) {
+        return getCostRangeIndex(masks, table.getRowCountApproximation()) * LOOKUP_COST_FACTOR;
+    }
+
+    /**
+     * 删除索引时在Master上删除各Region中这个索引的所有索引记录，删除表时整个HBase表都删除了，不需要再逐条删除
+     */
+    @Override
+    public void remove(Session session) {
+        HBaseTable t = (HBaseTable) table;
+        if (((HBaseDatabase) database).isFromZookeeper() || ((HBaseSession) session).getMaster() == null
+                || t.isRemoving())
+            return;
+        HTable htable = null;
+        try {
+            htable = new HTable(HBaseUtils.getConfiguration(), t.getName());
+            for (byte[] startKey : htable.getStartKeys()) {
+                Scan scan = new Scan(getPrefix(startKey), getStopPrefix(startKey));
+                scan.addFamily(INDEX_FAMILY);
+                scan.setFilter(new KeyOnlyFilter());
+                scan.setCaching(SysProperties.SERVER_RESULT_SET_FETCH_SIZE);
+                ResultScanner scanner = htable.getScanner(scan);
+                try {
+                    List<Delete> deletes = New.arrayList();
+                    for (Result r : scanner) {
+                        Delete delete = new Delete(r.getRow());
+                        delete.deleteFamily(INDEX_FAMILY);
+                        deletes.add(delete);
+                        if (deletes.size() >= SysProperties.SERVER_RESULT_SET_FETCH_SIZE) {
+                            htable.delete(deletes);
+                            deletes.clear();
+                        }
+                    }
+                    if (!deletes.isEmpty())
+                        htable.delete(deletes);
+                } finally {
+                    scanner.close();
+                }
+            }
+        } catch (IOException e) {
+            throw DbException.convert(e);
+        } finally {
+            if (htable != null) {
+                try {
+                    htable.close();
+                } catch (IOException e) {
+                    //ignore
+                }
+            }
+        }
+    }
+
+    /**
+     * HBase表不支持TRUNCATE，基表记录没有删除，索引记录也要保留
+     */
+    @Override
+    public void truncate(Session session) {
+    }
+
+    @Override
+    public boolean canGetFirstOrLast() {
+        return false;
+    }
+
+    @Override
+    public Cursor findFirstOrLast(Session session, boolean first) {
+        throw DbException.getUnsupportedException("findFirstOrLast");
+    }
+
+    @Override
+    public boolean needRebuild() {
+        return false;
+    }
+
+    @Override
+    public long getRowCount(Session session) {
+        return 0;
+    }
+
+    @Override
+    public long getRowCountApproximation() {
+        return 0;
+    }
+
+    @Override
+    public void checkRename() {
+    }
+
+    @Override
+    public long getDiskSpaceUsed() {
+        return 0;
+    }
+}
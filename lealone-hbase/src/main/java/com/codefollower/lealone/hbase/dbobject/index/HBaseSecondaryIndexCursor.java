@@ -0,0 +1,200 @@
+/*
+ * Copyright 2011 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.codefollower.lealone.hbase.dbobject.index;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.hadoop.hbase.HRegionInfo;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.regionserver.HRegionServer;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import com.codefollower.lealone.constant.SysProperties;
+import com.codefollower.lealone.dbobject.index.Cursor;
+import com.codefollower.lealone.dbobject.table.Column;
+import com.codefollower.lealone.dbobject.table.TableFilter;
+import com.codefollower.lealone.hbase.command.HBasePrepared;
+import com.codefollower.lealone.hbase.dbobject.table.HBaseTable;
+import com.codefollower.lealone.hbase.engine.HBaseSession;
+import com.codefollower.lealone.result.Row;
+import com.codefollower.lealone.result.SearchRow;
+import com.codefollower.lealone.util.New;
+
+/**
+ * 按二级索引查找当前Region中的记录。
+ *
+ * 在当前Region中范围扫描这个索引的索引记录，每次取一批，只保留基表rowKey满足rowKey条件的，
+ * 然后在当前Region中按rowKey逐个Get基表记录，基表记录已不存在的索引记录直接跳过。
+ * 没有读到最后时由语句结束时的HBaseSession.closeScanners关闭扫描器。
+ */
+public class HBaseSecondaryIndexCursor implements Cursor {
+    private final HRegionServer regionServer;
+    private byte[] regionName = null;
+    private final HBaseTable table;
+    private final List<Column> columns;
+    private final int columnCount;
+    private final byte[] defaultColumnFamilyName;
+
+    private final byte[] startRowKey; //包含
+    private final byte[] stopRowKey; //不包含，为null时表示没有上限
+    private final byte[] regionEndKey; //不包含，空数组表示没有上限
+
+    private final HBaseRegionScanner scanner;
+
+    private List<Row> rows;
+    private int index = -1;
+
+    /**
+     *
+     * @param index the index
+     * @param filter the table filter
+     * @param startKey 索引列的值编码后的下限(包含)，不含前缀
+     * @param stopKey 索引列的值编码后的上限(不包含)，不含前缀，空数组表示没有上限
+     * @param start 基表rowKey的下限(包含)，为null时表示没有下限
+     * @param stop 基表rowKey的上限(不包含)，为null时表示没有上限
+     */
+    public HBaseSecondaryIndexCursor(HBaseSecondaryIndex index, TableFilter filter, byte[] startKey, byte[] stopKey,
+            byte[] start, byte[] stop) {
+        HBaseSession session = (HBaseSession) filter.getSession();
+        regionServer = session.getRegionServer();
+        HBasePrepared hp = (HBasePrepared) filter.getPrepared();
+        if (hp != null)
+            regionName = Bytes.toBytes(hp.getRegionName());
+        if (regionName == null)
+            throw new RuntimeException("regionName is null");
+
+        int fetchSize = filter.getPrepared().getCommand().getFetchSize();
+        if (fetchSize < 1)
+            fetchSize = SysProperties.SERVER_RESULT_SET_FETCH_SIZE;
+
+        table = (HBaseTable) filter.getTable();
+        columnCount = table.getColumns().length;
+        defaultColumnFamilyName = Bytes.toBytes(table.getDefaultColumnFamilyName());
+        if (filter.getSelect() != null)
+            columns = filter.getSelect().getColumns(filter);
+        else
+            columns = Arrays.asList(table.getColumns());
+
+        try {
+            HRegionInfo info = regionServer.getRegionInfo(regionName);
+            if (start == null || Bytes.compareTo(start, info.getStartKey()) < 0)
+                start = info.getStartKey();
+            startRowKey = start;
+            stopRowKey = stop;
+            regionEndKey = info.getEndKey();
+
+            byte[] prefix = index.getPrefix(info.getStartKey());
+            Scan scan = new Scan(Bytes.add(prefix, startKey), stopKey.length == 0 ? index.getStopPrefix(info
+                    .getStartKey()) : Bytes.add(prefix, stopKey));
+            scan.addColumn(HBaseSecondaryIndex.INDEX_FAMILY, HBaseSecondaryIndex.ROW_KEY);
+            long scannerId = regionServer.openScanner(regionName, scan);
+            scanner = new HBaseRegionScanner(regionServer, scannerId, fetchSize);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        session.addOpenScanner(scanner);
+    }
+
+    /**
+     * 索引记录和基表记录在同一个Region中，但Region刚分裂完时可能还有没改成新前缀的索引记录，所以还要检查Region的范围
+     */
+    private boolean isInRegion(byte[] rowKey) {
+        if (Bytes.compareTo(rowKey, startRowKey) < 0)
+            return false;
+        if (regionEndKey.length > 0 && Bytes.compareTo(rowKey, regionEndKey) >= 0)
+            return false;
+        return stopRowKey == null || Bytes.compareTo(rowKey, stopRowKey) < 0;
+    }
+
+    private Get createGet(byte[] rowKey) {
+        Get get = new Get(rowKey);
+        if (columns != null) {
+            for (Column c : columns) {
+                if (c.isRowKeyColumn())
+                    continue;
+                else if (c.getColumnFamilyName() != null)
+                    get.addColumn(c.getColumnFamilyNameAsBytes(), c.getNameAsBytes());
+                else
+                    get.addColumn(defaultColumnFamilyName, c.getNameAsBytes());
+            }
+        }
+        //只读rowKey列时也不能读到索引列族
+        if (!get.hasFamilies())
+            for (byte[] family : table.getDataColumnFamilies())
+                get.addFamily(family);
+        return get;
+    }
+
+    /**
+     * 读取下一批索引记录对应的基表记录
+     *
+     * @return 索引记录已经读完时返回false
+     */
+    private boolean fetch() {
+        Result[] entries = scanner.next();
+        if (entries == null || entries.length == 0)
+            return false;
+        rows = New.arrayList(entries.length);
+        index = 0;
+        try {
+            for (Result e : entries) {
+                byte[] rowKey = e.getValue(HBaseSecondaryIndex.INDEX_FAMILY, HBaseSecondaryIndex.ROW_KEY);
+                if (rowKey == null || !isInRegion(rowKey))
+                    continue;
+                Result r = regionServer.get(regionName, createGet(rowKey));
+                if (r != null && !r.isEmpty())
+                    rows.add(HBaseTableCursor.toRow(table, regionName, r, columns, columnCount));
+            }
+        } catch (IOException e) {
+            scanner.close();
+            throw new RuntimeException(e);
+        }
+        return true;
+    }
+
+    @Override
+    public Row get() {
+        return rows != null && index < rows.size() ? rows.get(index) : null;
+    }
+
+    @Override
+    public SearchRow getSearchRow() {
+        return get();
+    }
+
+    @Override
+    public boolean next() {
+        index++;
+        while (rows == null || index >= rows.size()) {
+            if (!fetch())
+                return false;
+        }
+        return true;
+    }
+
+    @Override
+    public boolean previous() {
+        return false;
+    }
+}
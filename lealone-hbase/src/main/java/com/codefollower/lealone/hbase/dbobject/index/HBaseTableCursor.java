@@ -19,8 +19,8 @@
  */
 package com.codefollower.lealone.hbase.dbobject.index;
 
-import java.io.IOException;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 import org.apache.hadoop.hbase.HConstants;
@@ -28,6 +28,7 @@ import org.apache.hadoop.hbase.HRegionInfo;
 import org.apache.hadoop.hbase.client.Get;
 import org.apache.hadoop.hbase.client.Result;
 import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.filter.Filter;
 import org.apache.hadoop.hbase.util.Bytes;
 
 import com.codefollower.lealone.constant.SysProperties;
@@ -35,29 +36,35 @@ import com.codefollower.lealone.dbobject.index.Cursor;
 import com.codefollower.lealone.dbobject.table.Column;
 import com.codefollower.lealone.dbobject.table.TableFilter;
 import com.codefollower.lealone.hbase.command.HBasePrepared;
+import com.codefollower.lealone.hbase.command.dml.HBaseSelect;
 import com.codefollower.lealone.hbase.dbobject.table.HBaseTable;
 import com.codefollower.lealone.hbase.engine.HBaseSession;
+import com.codefollower.lealone.hbase.result.HBaseJoinTable;
+import com.codefollower.lealone.hbase.result.HBaseKeyLookup;
 import com.codefollower.lealone.hbase.result.HBaseRow;
 import com.codefollower.lealone.hbase.result.HBaseSubqueryResult;
 import com.codefollower.lealone.hbase.util.HBaseUtils;
 import com.codefollower.lealone.result.Row;
 import com.codefollower.lealone.result.SearchRow;
+import com.codefollower.lealone.util.New;
 import com.codefollower.lealone.value.Value;
-import com.codefollower.lealone.value.ValueString;
+import com.codefollower.lealone.value.ValueNull;
 
 public class HBaseTableCursor implements Cursor {
     private final HBaseSession session;
     private int fetchSize;
     private byte[] regionName = null;
 
-    private long scannerId;
+    private HBaseRegionScanner scanner;
     private Result[] result;
     private int index = -1;
     private List<Column> columns;
     private byte[] defaultColumnFamilyName;
     private int columnCount;
+    private final HBaseTable table;
     private String rowKeyName;
     private HBaseSubqueryResult subqueryResult;
+    private List<Row> joinRows;
     private boolean isGet = false;
 
     public HBaseTableCursor(TableFilter filter, SearchRow first, SearchRow last) {
@@ -73,8 +80,9 @@ public class HBaseTableCursor implements Cursor {
         if (fetchSize < 1 && !filter.getPrepared().isQuery())
             fetchSize = SysProperties.SERVER_RESULT_SET_FETCH_SIZE;
 
-        rowKeyName = ((HBaseTable) filter.getTable()).getRowKeyName();
-        columnCount = ((HBaseTable) filter.getTable()).getColumns().length;
+        table = (HBaseTable) filter.getTable();
+        rowKeyName = table.getRowKeyName();
+        columnCount = table.getColumns().length;
 
         if (filter.getSelect() != null)
             columns = filter.getSelect().getColumns(filter);
@@ -88,26 +96,52 @@ public class HBaseTableCursor implements Cursor {
         if (last != null)
             endValue = last.getRowKey();
 
-        if (startValue != null && endValue != null && startValue == endValue) {
+        boolean isTop = filter.getSelect() == null || filter.getSelect().getTopTableFilter() == filter;
+        //静态表按主键查找一条记录时也用Get，join的内表仍然只读一次
+        byte[] rowKey = null;
+        if (startValue != null && endValue != null && startValue == endValue)
+            rowKey = table.getRowKey(startValue);
+        else if (isTop)
+            rowKey = table.getRowKey(first, last);
+        if (rowKey != null) {
+            isGet = true;
+            //按rowKey join时，把外表当前这批记录的key收集起来批量查找
+            HBaseKeyLookup lookup = null;
+            if (!isTop && filter.getSelect() instanceof HBaseSelect)
+                lookup = ((HBaseSelect) filter.getSelect()).getKeyLookup(filter);
+            if (lookup != null) {
+                Row r = lookup.find(startValue);
+                joinRows = r == null ? Collections.<Row> emptyList() : Collections.singletonList(r);
+                return;
+            }
             try {
-                isGet = true;
-                Result r = session.getRegionServer().get(regionName, new Get(Bytes.toBytes(startValue.getString())));
+                Get get = new Get(rowKey);
+                for (byte[] family : table.getDataColumnFamilies())
+                    get.addFamily(family);
+                Result r = session.getRegionServer().get(regionName, get);
                 if (r != null && !r.isEmpty())
                     result = new Result[] { r };
             } catch (Exception e) {
                 throw new RuntimeException(e);
             }
-        } else if (filter.getSelect() != null && filter.getSelect().getTopTableFilter() != filter) {
-            subqueryResult = new HBaseSubqueryResult(filter);
+        } else if (!isTop) {
+            //join的内表只读一次，之后在内存中查找
+            HBaseJoinTable joinTable = null;
+            if (filter.getSelect() instanceof HBaseSelect)
+                joinTable = ((HBaseSelect) filter.getSelect()).getJoinTable(filter);
+            if (joinTable != null)
+                joinRows = joinTable.find();
+            else
+                subqueryResult = new HBaseSubqueryResult(filter);
         } else {
-            byte[] startKey = HConstants.EMPTY_BYTE_ARRAY;
-            byte[] endKey = HConstants.EMPTY_BYTE_ARRAY;
+            byte[] startKey = table.getStartRowKey(first);
+            byte[] endKey = table.getStopRowKey(last); //不包含
+            if (startKey == null)
+                startKey = HConstants.EMPTY_BYTE_ARRAY;
+            if (endKey == null)
+                endKey = HConstants.EMPTY_BYTE_ARRAY;
 
             Scan scan = new Scan();
-            if (startValue != null)
-                startKey = HBaseUtils.toBytes(startValue);
-            if (endValue != null)
-                endKey = HBaseUtils.toBytes(endValue);
 
             try {
                 HRegionInfo info = session.getRegionServer().getRegionInfo(regionName);
@@ -126,8 +160,8 @@ public class HBaseTableCursor implements Cursor {
                 throw new RuntimeException(e);
             }
 
+            defaultColumnFamilyName = Bytes.toBytes(((HBaseTable) filter.getTable()).getDefaultColumnFamilyName());
             if (columns != null) {
-                defaultColumnFamilyName = Bytes.toBytes(((HBaseTable) filter.getTable()).getDefaultColumnFamilyName());
                 for (Column c : columns) {
                     if (rowKeyName.equalsIgnoreCase(c.getName()))
                         continue;
@@ -137,16 +171,30 @@ public class HBaseTableCursor implements Cursor {
                         scan.addColumn(defaultColumnFamilyName, c.getNameAsBytes());
                 }
             }
+            //只读rowKey列时也不能读到二级索引的列族，否则索引记录会被当成基表记录
+            if (!scan.hasFamilies())
+                for (byte[] family : table.getDataColumnFamilies())
+                    scan.addFamily(family);
+            //在RegionServer端过滤掉不满足WHERE条件的记录
+            Filter scanFilter = HBaseFilterBuilder.createFilter(filter, defaultColumnFamilyName);
+            if (scanFilter != null)
+                scan.setFilter(scanFilter);
             try {
-                scannerId = session.getRegionServer().openScanner(regionName, scan);
+                long scannerId = session.getRegionServer().openScanner(regionName, scan);
+                scanner = new HBaseRegionScanner(session.getRegionServer(), scannerId, fetchSize);
             } catch (Exception e) {
                 throw new RuntimeException(e);
             }
+            session.addOpenScanner(scanner);
+            if (filter.getSelect() instanceof HBaseSelect)
+                ((HBaseSelect) filter.getSelect()).setTopCursor(this);
         }
     }
 
     @Override
     public Row get() {
+        if (joinRows != null)
+            return index < joinRows.size() ? joinRows.get(index) : null;
         if (subqueryResult != null) {
             Value[] data = new Value[columnCount];
             Value[] data2 = subqueryResult.currentRow();
@@ -160,25 +208,60 @@ public class HBaseTableCursor implements Cursor {
             }
             return new HBaseRow(regionName, rowKey, data, Row.MEMORY_CALCULATE);
         }
-        if (result != null && index < result.length) {
-            Result r = result[index];
+        if (result != null && index < result.length)
+            return toRow(table, regionName, result[index], columns, columnCount);
+        return null;
+    }
 
-            Value[] data = new Value[columnCount];
-            Value rowKey = ValueString.get(Bytes.toString(r.getRow()));
-            if (columns != null) {
-                int i = 0;
-                for (Column c : columns) {
-                    i = c.getColumnId();
-                    if (c.isRowKeyColumn())
-                        data[i] = rowKey;
-                    else
-                        data[i] = HBaseUtils.toValue( //
-                                r.getValue(c.getColumnFamilyNameAsBytes(), c.getNameAsBytes()), c.getType());
-                }
+    /**
+     * 把HBase的一条记录转换成Row
+     *
+     * @param table 记录所在的表
+     * @param regionName 记录所在的Region
+     * @param r HBase的记录
+     * @param columns 要转换的列，为null时只转换rowKey
+     * @param columnCount 表的列数
+     * @return Row
+     */
+    public static HBaseRow toRow(HBaseTable table, byte[] regionName, Result r, List<Column> columns, int columnCount) {
+        Value[] data = new Value[columnCount];
+        Value rowKey = table.getRowKeyValue(r.getRow());
+        if (columns != null) {
+            int i = 0;
+            for (Column c : columns) {
+                i = c.getColumnId();
+                if (c.isRowKeyColumn())
+                    data[i] = rowKey;
+                else
+                    data[i] = HBaseUtils.toValue( //
+                            r.getValue(c.getColumnFamilyNameAsBytes(), c.getNameAsBytes()), c.getType());
             }
-            return new HBaseRow(regionName, rowKey, data, Row.MEMORY_CALCULATE);
         }
-        return null;
+        return new HBaseRow(regionName, rowKey, data, Row.MEMORY_CALCULATE);
+    }
+
+    /**
+     * 从当前记录开始，取出当前这批记录中指定列的值
+     *
+     * @param c 列
+     * @param max 最多取多少个值
+     * @return 列的值，不包括NULL
+     */
+    public List<Value> getBatchValues(Column c, int max) {
+        List<Value> values = New.arrayList();
+        if (result == null)
+            return values;
+        for (int i = Math.max(index, 0); i < result.length && values.size() < max; i++) {
+            Value v;
+            if (c.isRowKeyColumn())
+                v = table.getRowKeyValue(result[i].getRow());
+            else
+                v = HBaseUtils.toValue(result[i].getValue(c.getColumnFamilyNameAsBytes(), c.getNameAsBytes()),
+                        c.getType());
+            if (v != ValueNull.INSTANCE)
+                values.add(v);
+        }
+        return values;
     }
 
     @Override
@@ -189,6 +272,8 @@ public class HBaseTableCursor implements Cursor {
     @Override
     public boolean next() {
         index++;
+        if (joinRows != null)
+            return index < joinRows.size();
         if (subqueryResult != null) {
             return subqueryResult.next();
         }
@@ -197,22 +282,10 @@ public class HBaseTableCursor implements Cursor {
         else if (isGet)
             return false;
 
-        try {
-            result = session.getRegionServer().next(scannerId, fetchSize);
-            index = 0;
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
-
-        if (result != null && result.length > 0)
-            return true;
-
-        try {
-            session.getRegionServer().close(scannerId);
-        } catch (IOException e) {
-            //ignore
-        }
-        return false;
+        //scanner在没有更多记录时会自己关闭
+        result = scanner.next();
+        index = 0;
+        return result != null && result.length > 0;
     }
 
     @Override
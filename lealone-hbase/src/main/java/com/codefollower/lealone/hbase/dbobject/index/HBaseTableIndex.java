@@ -21,6 +21,8 @@ package com.codefollower.lealone.hbase.dbobject.index;
 
 import java.io.IOException;
 
+import org.apache.hadoop.hbase.client.Delete;
+
 import com.codefollower.lealone.dbobject.index.BaseIndex;
 import com.codefollower.lealone.dbobject.index.Cursor;
 import com.codefollower.lealone.dbobject.index.IndexType;
@@ -28,9 +30,9 @@ import com.codefollower.lealone.dbobject.table.IndexColumn;
 import com.codefollower.lealone.dbobject.table.Table;
 import com.codefollower.lealone.dbobject.table.TableFilter;
 import com.codefollower.lealone.engine.Session;
+import com.codefollower.lealone.hbase.dbobject.table.HBaseTable;
 import com.codefollower.lealone.hbase.engine.HBaseSession;
 import com.codefollower.lealone.hbase.result.HBaseRow;
-import com.codefollower.lealone.hbase.util.HBaseUtils;
 import com.codefollower.lealone.message.DbException;
 import com.codefollower.lealone.result.Row;
 import com.codefollower.lealone.result.SearchRow;
@@ -54,8 +56,12 @@ public class HBaseTableIndex extends BaseIndex {
 
     @Override
     public void add(Session session, Row row) {
+        HBaseSession s = (HBaseSession) session;
+        HBaseRow r = (HBaseRow) row;
+        if (s.bufferPut(r.getRegionName(), r.getPut()))
+            return;
         try {
-            ((HBaseSession) session).getRegionServer().put(((HBaseRow) row).getRegionName(), ((HBaseRow) row).getPut());
+            s.getRegionServer().put(r.getRegionName(), r.getPut());
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
@@ -65,9 +71,17 @@ public class HBaseTableIndex extends BaseIndex {
     public void remove(Session session, Row row) {
         if (((HBaseRow) row).isForUpdate()) //Update这种类型的SQL不需要先删除再insert，只需直接insert即可
             return;
+        HBaseSession s = (HBaseSession) session;
+        byte[] regionName = ((HBaseRow) row).getRegionName();
+        HBaseTable t = (HBaseTable) table;
+        Delete delete = new Delete(t.getRowKey(row.getRowKey()));
+        //不指定列族时会删除所有列族，rowKey恰好相同的二级索引记录也会被删除
+        for (byte[] family : t.getDataColumnFamilies())
+            delete.deleteFamily(family);
+        if (s.bufferDelete(regionName, delete))
+            return;
         try {
-            ((HBaseSession) session).getRegionServer().delete(((HBaseRow) row).getRegionName(),
-                    new org.apache.hadoop.hbase.client.Delete(HBaseUtils.toBytes(row.getRowKey())));
+            s.getRegionServer().delete(regionName, delete);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
@@ -83,9 +97,13 @@ public class HBaseTableIndex extends BaseIndex {
         throw DbException.getUnsupportedException("find(Session, SearchRow, SearchRow)");
     }
 
+    /**
+     * 总是扫描整个Region(按rowKey查找时CommandProxy已经只选出相关的Region)，
+     * 有等值或范围条件的二级索引的代价会比它低
+     */
     @Override
     public double getCost(Session session, int[] masks) {
-        return 0;
+        return getCostRangeIndex(null, table.getRowCountApproximation());
     }
 
     @Override
@@ -19,13 +19,16 @@
  */
 package com.codefollower.lealone.hbase.dbobject.table;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Map;
 import java.util.Map.Entry;
 
 import org.apache.hadoop.hbase.HColumnDescriptor;
 import org.apache.hadoop.hbase.HTableDescriptor;
+import org.apache.hadoop.hbase.TableNotFoundException;
 import org.apache.hadoop.hbase.client.Put;
 import org.apache.hadoop.hbase.io.ImmutableBytesWritable;
 import org.apache.hadoop.hbase.master.HMaster;
@@ -43,21 +46,38 @@ import com.codefollower.lealone.dbobject.table.IndexColumn;
 import com.codefollower.lealone.dbobject.table.TableBase;
 import com.codefollower.lealone.engine.Session;
 import com.codefollower.lealone.hbase.command.ddl.Options;
+import com.codefollower.lealone.hbase.dbobject.index.HBaseIndexRegionObserver;
+import com.codefollower.lealone.hbase.dbobject.index.HBaseIndexSplitPolicy;
+import com.codefollower.lealone.hbase.dbobject.index.HBaseSecondaryIndex;
 import com.codefollower.lealone.hbase.dbobject.index.HBaseTableIndex;
 import com.codefollower.lealone.hbase.engine.HBaseDatabase;
 import com.codefollower.lealone.hbase.engine.HBaseSession;
 import com.codefollower.lealone.hbase.result.HBaseRow;
+import com.codefollower.lealone.hbase.util.HBaseKeyCodec;
 import com.codefollower.lealone.hbase.util.HBaseUtils;
+import com.codefollower.lealone.hbase.util.RegionLocationCache;
 import com.codefollower.lealone.message.DbException;
 import com.codefollower.lealone.result.Row;
 import com.codefollower.lealone.result.RowList;
+import com.codefollower.lealone.result.SearchRow;
 import com.codefollower.lealone.util.New;
 import com.codefollower.lealone.util.StatementBuilder;
 import com.codefollower.lealone.value.Value;
+import com.codefollower.lealone.value.ValueBytes;
+import com.codefollower.lealone.value.ValueNull;
+import com.codefollower.lealone.value.ValueString;
 
 public class HBaseTable extends TableBase {
     private static final String STATIC_TABLE_DEFAULT_COLUMN_FAMILY_NAME = "CF";
 
+    /**
+     * 静态表的rowKey格式版本，保存在HTableDescriptor中。
+     * 没有这个值的表是旧版本创建的，有主键时rowKey也是随机生成的，为了能找到已有的记录，仍按旧格式生成rowKey；
+     * 版本1开始主键列的值按HBaseKeyCodec编码成rowKey。
+     */
+    private static final String ROW_KEY_FORMAT = "LEALONE_ROW_KEY_FORMAT";
+    private static final int CURRENT_ROW_KEY_FORMAT = 1;
+
     private final boolean isStatic;
     private final ArrayList<Index> indexes = New.arrayList();
     private final Index scanIndex;
@@ -66,9 +86,13 @@ public class HBaseTable extends TableBase {
 
     private String rowKeyName;
     private Column rowKeyColumn;
+    private Column[] primaryKeyColumns; //只用于静态表，为null时rowKey是随机生成的
+    private final int rowKeyFormat;
     private Map<String, ArrayList<Column>> columnsMap;
 
     private boolean isColumnsModified;
+    private byte[][] dataColumnFamilies;
+    private boolean isRemoving;
 
     public HBaseTable(CreateTableData data) {
         super(data);
@@ -81,9 +105,15 @@ public class HBaseTable extends TableBase {
         }
         setColumns(cols);
 
-        HTableDescriptor htd = new HTableDescriptor(data.tableName);
-        htd.addFamily(new HColumnDescriptor(STATIC_TABLE_DEFAULT_COLUMN_FAMILY_NAME));
-        createIfNotExists(data.session, data.tableName, htd, null);
+        HTableDescriptor htd = getTableDescriptor(data.session, data.tableName);
+        if (htd == null) {
+            htd = new HTableDescriptor(data.tableName);
+            htd.addFamily(new HColumnDescriptor(STATIC_TABLE_DEFAULT_COLUMN_FAMILY_NAME));
+            htd.setValue(ROW_KEY_FORMAT, Integer.toString(CURRENT_ROW_KEY_FORMAT));
+            createIfNotExists(data.session, data.tableName, htd, null);
+        }
+        String format = htd.getValue(ROW_KEY_FORMAT);
+        rowKeyFormat = format == null ? 0 : Integer.parseInt(format);
 
         scanIndex = new HBaseTableIndex(this, data.id, IndexColumn.wrap(getColumns()), IndexType.createScan(false));
         indexes.add(scanIndex);
@@ -104,6 +134,7 @@ public class HBaseTable extends TableBase {
         scanIndex = new HBaseTableIndex(this, id, IndexColumn.wrap(getColumns()), IndexType.createScan(false));
         indexes.add(scanIndex);
         hTableDescriptor = htd;
+        rowKeyFormat = 0; //动态表的rowKey总是由用户指定
     }
 
     public boolean isStatic() {
@@ -133,30 +164,196 @@ public class HBaseTable extends TableBase {
             return hTableDescriptor.getValue(Options.ON_DEFAULT_COLUMN_FAMILY_NAME);
     }
 
+    /**
+     * 存放基表记录的列族，不包括二级索引的列族，扫描和Get没有指定列时只能读这些列族
+     */
+    public byte[][] getDataColumnFamilies() {
+        if (dataColumnFamilies == null) {
+            if (isStatic) {
+                dataColumnFamilies = new byte[][] { Bytes.toBytes(STATIC_TABLE_DEFAULT_COLUMN_FAMILY_NAME) };
+            } else {
+                HColumnDescriptor[] hcds = hTableDescriptor.getColumnFamilies();
+                byte[][] families = new byte[hcds.length][];
+                for (int i = 0; i < hcds.length; i++)
+                    families[i] = hcds[i].getName();
+                dataColumnFamilies = families;
+            }
+        }
+        return dataColumnFamilies;
+    }
+
+    /**
+     * 
+     * @return 正在删除这个表时返回true，此时二级索引不需要逐条删除索引记录
+     */
+    public boolean isRemoving() {
+        return isRemoving;
+    }
+
     public void setRowKeyName(String rowKeyName) {
         this.rowKeyName = rowKeyName;
     }
 
+    /**
+     * 静态表的主键列仍是普通的列，rowKey列总是_ROWKEY_，有主键时rowKey由主键列的值编码而成
+     */
     public String getRowKeyName() {
-        if (rowKeyName == null) {
-            if (isStatic) {
-                for (Index idx : getIndexes()) {
-                    if (idx.getIndexType().isPrimaryKey()) {
-                        if (idx.getIndexColumns().length == 1) {
-                            rowKeyColumn = idx.getIndexColumns()[0].column.getClone();
-                            rowKeyColumn.setTable(this, -2);
-                            rowKeyColumn.setRowKeyColumn(true);
-                            rowKeyName = rowKeyColumn.getName();
-                            break;
-                        }
-                    }
-                }
+        if (rowKeyName == null)
+            rowKeyName = Options.DEFAULT_ROW_KEY_NAME;
+        return rowKeyName;
+    }
+
+    /**
+     * rowKey是否由主键列的值按HBaseKeyCodec编码而成
+     */
+    public boolean isPrimaryKeyRowKey() {
+        return primaryKeyColumns != null;
+    }
+
+    public Column[] getPrimaryKeyColumns() {
+        return primaryKeyColumns;
+    }
+
+    /**
+     * 主键列的值编码成rowKey
+     *
+     * @param values 按主键列的顺序排列，已转换成列的类型
+     * @return the row key
+     */
+    public byte[] getRowKey(Value[] values) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (Value v : values)
+            HBaseKeyCodec.encode(out, v);
+        return out.toByteArray();
+    }
+
+    /**
+     * 把Row中的rowKey值(或查询条件中rowKey列的值)转成HBase的rowKey
+     *
+     * @param rowKey the row key value
+     * @return the row key
+     */
+    public byte[] getRowKey(Value rowKey) {
+        if (primaryKeyColumns != null)
+            return rowKey.getBytesNoCopy();
+        return HBaseUtils.toBytes(rowKey.getString());
+    }
+
+    /**
+     * HBase的rowKey转成Row中的rowKey值，由主键列编码而成的rowKey不一定是合法的UTF-8，所以用BYTES
+     *
+     * @param rowKey the row key
+     * @return the row key value
+     */
+    public Value getRowKeyValue(byte[] rowKey) {
+        if (primaryKeyColumns != null)
+            return ValueBytes.getNoCopy(rowKey);
+        return ValueString.get(HBaseUtils.toString(rowKey));
+    }
+
+    /**
+     * 查询条件能确定唯一一条记录时返回它的rowKey
+     *
+     * @param first the lower bounds of the query conditions
+     * @param last the upper bounds of the query conditions
+     * @return the row key, or null if the conditions are not a point lookup
+     */
+    public byte[] getRowKey(SearchRow first, SearchRow last) {
+        if (first == null || last == null)
+            return null;
+        Value start = first.getRowKey();
+        Value end = last.getRowKey();
+        if (start != null && end != null && (start == end || start.equals(end)) && start != ValueNull.INSTANCE)
+            return getRowKey(start);
+        if (primaryKeyColumns == null)
+            return null;
+        byte[] s = getPrimaryKeyBound(first, true);
+        if (s != null && Arrays.equals(s, getPrimaryKeyBound(last, true)))
+            return s;
+        return null;
+    }
+
+    /**
+     * 扫描的起始rowKey(包含)
+     *
+     * @param first the lower bounds of the query conditions
+     * @return the start row key, or null if there is no lower bound
+     */
+    public byte[] getStartRowKey(SearchRow first) {
+        if (first == null)
+            return null;
+        Value v = first.getRowKey();
+        if (v != null && v != ValueNull.INSTANCE)
+            return getRowKey(v);
+        if (primaryKeyColumns == null)
+            return null;
+        return getPrimaryKeyBound(first, false);
+    }
+
+    /**
+     * 扫描的结束rowKey(不包含)
+     *
+     * @param last the upper bounds of the query conditions
+     * @return the stop row key, or null if there is no upper bound
+     */
+    public byte[] getStopRowKey(SearchRow last) {
+        if (last == null)
+            return null;
+        Value v = last.getRowKey();
+        if (v != null && v != ValueNull.INSTANCE)
+            return getStopRowKey(getRowKey(v));
+        if (primaryKeyColumns == null)
+            return null;
+        byte[] end = getPrimaryKeyBound(last, false);
+        if (end == null)
+            return null;
+        //以end为前缀的rowKey都不超过上限
+        end = HBaseKeyCodec.nextPrefix(end);
+        return end.length == 0 ? null : end;
+    }
+
+    /**
+     * 比rowKey大的最小的key，用作只包含rowKey本身的扫描的stopRow
+     *
+     * @param rowKey the row key
+     * @return the stop row key
+     */
+    public static byte[] getStopRowKey(byte[] rowKey) {
+        return Bytes.add(rowKey, new byte[1]);
+    }
+
+    /**
+     * 把主键各列的下限(或上限)依次编码拼接起来，遇到第一个没有条件的列就停止。
+     * 因为编码后按字节比较就是先比较第一列再比较第二列，所以这样得到的前缀总是一个合法的下限(或上限)，
+     * 前面的列不需要是等值条件。
+     *
+     * @param row the lower or upper bounds of the query conditions
+     * @param all 是否要求所有主键列都有条件
+     * @return the prefix, or null if there is none
+     */
+    private byte[] getPrimaryKeyBound(SearchRow row, boolean all) {
+        if (row == null)
+            return null;
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (Column c : primaryKeyColumns) {
+            Value v = row.getValue(c.getColumnId());
+            if (v == null || v == ValueNull.INSTANCE)
+                break;
+            //条件中的值类型比列的类型高时(比如INT列与1.5比较)不能转换成列的类型，此时当成没有这个条件
+            if (Value.getHigherOrder(c.getType(), v.getType()) != c.getType())
+                break;
+            try {
+                v = v.convertTo(c.getType());
+            } catch (DbException e) {
+                break;
             }
-            if (rowKeyName == null)
-                rowKeyName = Options.DEFAULT_ROW_KEY_NAME;
+            HBaseKeyCodec.encode(out, v);
+            if (c == primaryKeyColumns[primaryKeyColumns.length - 1])
+                return out.toByteArray();
         }
-
-        return rowKeyName;
+        if (all || out.size() == 0)
+            return null;
+        return out.toByteArray();
     }
 
     @Override
@@ -185,12 +382,19 @@ public class HBaseTable extends TableBase {
                 }
                 column.setPrimaryKey(true);
             }
+            if (isStatic)
+                initPrimaryKeyColumns(cols);
         }
         boolean isSessionTemporary = isTemporary() && !isGlobalTemporary();
         if (!isSessionTemporary) {
             database.lockMeta(session);
         }
-        Index index = new HBaseTableIndex(this, indexId, indexName, cols, indexType);
+        Index index;
+        if (HBaseSecondaryIndex.isSupported(database, cols, indexType)) {
+            index = new HBaseSecondaryIndex(this, indexId, indexName, cols, indexType);
+        } else {
+            index = new HBaseTableIndex(this, indexId, indexName, cols, indexType);
+        }
 
         index.setTemporary(isTemporary());
         if (index.getCreateSQL() != null) {
@@ -203,45 +407,105 @@ public class HBaseTable extends TableBase {
         }
         setModified();
         indexes.add(index);
+        //只在Master上加索引列族，执行CREATE INDEX时补建已有记录的索引
+        if (index instanceof HBaseSecondaryIndex && ((HBaseSession) session).getMaster() != null
+                && !((HBaseDatabase) database).isFromZookeeper()) {
+            addIndexColumnFamily(session, tableName);
+            if (create)
+                ((HBaseSecondaryIndex) index).build((HBaseSession) session);
+        }
         return index;
     }
 
+    /**
+     * 所有主键列都能编码成保持顺序的key时，用主键列的值作为rowKey，这样按主键的等值和范围查询都只需访问部分Region
+     */
+    private void initPrimaryKeyColumns(IndexColumn[] cols) {
+        if (rowKeyFormat < 1)
+            return;
+        Column[] columns = new Column[cols.length];
+        for (int i = 0; i < cols.length; i++) {
+            if (!HBaseKeyCodec.isSupportedColumn(database, cols[i].column))
+                return;
+            columns[i] = cols[i].column;
+        }
+        primaryKeyColumns = columns;
+    }
+
     @Override
     public void addRow(Session session, Row row) {
-        for (int i = 0, size = indexes.size(); i < size; i++) {
-            Index index = indexes.get(i);
-            index.add(session, row);
+        addRow((HBaseSession) session, (HBaseRow) row, null);
+    }
+
+    /**
+     * 基表记录和它的二级索引记录在同一个Region中，放在同一批写操作中由HBaseSession原子地写入
+     *
+     * @param session the session
+     * @param row 新记录
+     * @param oldRow 更新前的记录，不是更新时为null
+     */
+    private void addRow(HBaseSession session, HBaseRow row, HBaseRow oldRow) {
+        boolean buffered = session.startWriteBuffer();
+        try {
+            for (int i = 0, size = indexes.size(); i < size; i++) {
+                Index index = indexes.get(i);
+                if (oldRow != null && index instanceof HBaseSecondaryIndex)
+                    ((HBaseSecondaryIndex) index).removeIfChanged(session, oldRow, row);
+                index.add(session, row);
+            }
+        } finally {
+            if (buffered)
+                session.flushWriteBuffer();
+            else
+                session.flushWriteBufferIfFull();
         }
     }
 
+    /**
+     * 更新时不需要先删除旧记录，所以不调用removeRow，每条记录的旧索引记录和新记录一起写入
+     */
     @Override
     public void updateRows(Prepared prepared, Session session, RowList rows) {
+        HBaseSession s = (HBaseSession) session;
         Column[] columns = getColumns();
         int columnCount = columns.length;
+        int rowScanCount = 0;
         Put put;
         Column c;
         for (rows.reset(); rows.hasNext();) {
+            if ((++rowScanCount & 127) == 0) {
+                prepared.checkCanceled();
+            }
             HBaseRow o = (HBaseRow) rows.next();
             HBaseRow n = (HBaseRow) rows.next();
 
             o.setForUpdate(true);
             n.setRegionName(o.getRegionName());
             n.setRowKey(o.getRowKey());
-            put = new Put(HBaseUtils.toBytes(n.getRowKey()));
+            put = new Put(getRowKey(n.getRowKey()));
             for (int i = 0; i < columnCount; i++) {
                 c = columns[i];
                 put.add(c.getColumnFamilyNameAsBytes(), c.getNameAsBytes(), HBaseUtils.toBytes(n.getValue(i)));
                 n.setPut(put);
             }
+            addRow(s, n, o);
         }
-        super.updateRows(prepared, session, rows);
     }
 
     @Override
     public void removeRow(Session session, Row row) {
-        for (int i = indexes.size() - 1; i >= 0; i--) {
-            Index index = indexes.get(i);
-            index.remove(session, row);
+        HBaseSession s = (HBaseSession) session;
+        boolean buffered = s.startWriteBuffer();
+        try {
+            for (int i = 0, size = indexes.size(); i < size; i++) {
+                Index index = indexes.get(i);
+                index.remove(session, row);
+            }
+        } finally {
+            if (buffered)
+                s.flushWriteBuffer();
+            else
+                s.flushWriteBufferIfFull();
         }
     }
 
@@ -422,6 +686,7 @@ public class HBaseTable extends TableBase {
 
     @Override
     public void removeChildrenAndResources(Session session) {
+        isRemoving = true;
         int size = indexes.size();
         int i = 1;
         while (size > 1 && i < size) {
@@ -442,7 +707,23 @@ public class HBaseTable extends TableBase {
         return tableName;
     }
 
-    private static void createIfNotExists(Session session, String tableName, HTableDescriptor htd, byte[][] splitKeys) {
+    /**
+     * 返回HBase中已有的表的HTableDescriptor，表不存在时返回null
+     */
+    private static HTableDescriptor getTableDescriptor(Session session, String tableName) {
+        try {
+            HMaster master = ((HBaseSession) session).getMaster();
+            if (master != null)
+                return master.getTableDescriptors().get(tableName);
+            return HBaseUtils.getHBaseAdmin().getTableDescriptor(Bytes.toBytes(tableName));
+        } catch (TableNotFoundException e) {
+            return null;
+        } catch (IOException e) {
+            throw DbException.convertIOException(e, "Failed to get the table descriptor of " + tableName);
+        }
+    }
+
+    public static void createIfNotExists(Session session, String tableName, HTableDescriptor htd, byte[][] splitKeys) {
         try {
             HMaster master = ((HBaseSession) session).getMaster();
             if (master != null && master.getTableDescriptors().get(tableName) == null) {
@@ -463,7 +744,7 @@ public class HBaseTable extends TableBase {
         }
     }
 
-    private static void dropIfExists(Session session, String tableName) {
+    public static void dropIfExists(Session session, String tableName) {
         try {
             HMaster master = ((HBaseSession) session).getMaster();
             if (master != null && master.getTableDescriptors().get(tableName) != null) {
@@ -480,6 +761,41 @@ public class HBaseTable extends TableBase {
         }
     }
 
+    /**
+     * 第一次在表上建二级索引时，给HBase表加上存放索引记录的列族，
+     * 同时加上分裂后调整索引记录的HBaseIndexRegionObserver和选择分裂点的HBaseIndexSplitPolicy。
+     * 修改HBase表要先disable，所以这时表会短暂不可用，已经加过时什么都不做
+     *
+     * @param session the session
+     * @param tableName the table name
+     */
+    public static void addIndexColumnFamily(Session session, String tableName) {
+        try {
+            HMaster master = ((HBaseSession) session).getMaster();
+            if (master == null)
+                return;
+            HTableDescriptor htd = master.getTableDescriptors().get(tableName);
+            if (htd == null || htd.hasFamily(HBaseSecondaryIndex.INDEX_FAMILY))
+                return;
+            htd = new HTableDescriptor(htd); //不修改Master缓存的HTableDescriptor
+            htd.addFamily(new HColumnDescriptor(HBaseSecondaryIndex.INDEX_FAMILY));
+            htd.addCoprocessor(HBaseIndexRegionObserver.class.getName());
+            htd.setValue(HTableDescriptor.SPLIT_POLICY, HBaseIndexSplitPolicy.class.getName());
+
+            byte[] name = Bytes.toBytes(tableName);
+            master.disableTable(name);
+            while (!ZKTableReadOnly.isDisabledTable(master.getZooKeeperWatcher(), tableName))
+                Thread.sleep(100);
+            master.modifyTable(name, htd);
+            master.enableTable(name);
+            while (!ZKTableReadOnly.isEnabledTable(master.getZooKeeperWatcher(), tableName))
+                Thread.sleep(100);
+            RegionLocationCache.invalidate(name);
+        } catch (Exception e) {
+            throw DbException.convert(e); //Failed to HMaster.modifyTable
+        }
+    }
+
     private static String toS(ImmutableBytesWritable v) {
         return Bytes.toString(v.get());
     }
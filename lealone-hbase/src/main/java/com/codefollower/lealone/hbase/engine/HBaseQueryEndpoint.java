@@ -0,0 +1,377 @@
+/*
+ * Copyright 2011 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.codefollower.lealone.hbase.engine;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.apache.hadoop.hbase.CoprocessorEnvironment;
+import org.apache.hadoop.hbase.HRegionInfo;
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.coprocessor.BaseEndpointCoprocessor;
+import org.apache.hadoop.hbase.coprocessor.RegionCoprocessorEnvironment;
+import org.apache.hadoop.hbase.regionserver.HRegion;
+import org.apache.hadoop.hbase.regionserver.HRegionServer;
+
+import com.codefollower.lealone.command.Command;
+import com.codefollower.lealone.constant.SysProperties;
+import com.codefollower.lealone.engine.ConnectionInfo;
+import com.codefollower.lealone.expression.ParameterInterface;
+import com.codefollower.lealone.hbase.command.HBasePrepared;
+import com.codefollower.lealone.jdbc.JdbcSQLException;
+import com.codefollower.lealone.message.DbException;
+import com.codefollower.lealone.message.TraceSystem;
+import com.codefollower.lealone.result.LocalResult;
+import com.codefollower.lealone.result.ResultInterface;
+import com.codefollower.lealone.store.Data;
+import com.codefollower.lealone.value.Value;
+import com.codefollower.lealone.value.ValueNull;
+import com.codefollower.lealone.value.ValueString;
+
+/**
+ * 在Region所在的RegionServer中直接执行查询，不经过Lealone的TCP Server。
+ *
+ * <ul>
+ * <li>在hbase-site.xml中配置hbase.coprocessor.region.classes = com.codefollower.lealone.hbase.engine.HBaseQueryEndpoint，
+ *     并且把lealone.coprocessor.query设为true</li>
+ * <li>按用户缓存空闲的Session，执行时借出，用完后归还，同一条SQL再次执行时直接使用Session中缓存的Command，不用重新解析。
+ *     与SessionRemotePool一样，空闲超过lealone.session.pool.idle.timeout毫秒的Session会被关闭，
+ *     每个用户最多保留lealone.session.pool.max.per.host个，Region关闭时(stop)关闭所有空闲的Session</li>
+ * <li>请求和结果都用Data编码，结果一次返回，所以只用于分组查询这类每个Region的结果都不大的查询</li>
+ * <li>请求中带有Region名，Region已经分裂或移走时抛出异常，与IN THE REGION的行为一样</li>
+ * <li>执行SQL出错时不抛出IOException，而是把SQLState、错误码和消息写在结果中，调用方再转换成DbException</li>
+ * </ul>
+ */
+public class HBaseQueryEndpoint extends BaseEndpointCoprocessor implements HBaseQueryProtocol {
+    private static final String USER_PASSWORD_HASH = "_userPasswordHash_";
+    private static final String FILE_PASSWORD_HASH = "_filePasswordHash_";
+
+    private static final int STATUS_OK = 1;
+    private static final int STATUS_ERROR = 0;
+
+    /**
+     * 按数据库和用户缓存的空闲Session，最近归还的放在最前面
+     */
+    private final HashMap<String, LinkedList<IdleSession>> idleSessions = new HashMap<String, LinkedList<IdleSession>>();
+    private boolean stopped;
+
+    private static class IdleSession {
+        final HBaseSession session;
+        final long lastUsed;
+
+        IdleSession(HBaseSession session) {
+            this.session = session;
+            this.lastUsed = System.currentTimeMillis();
+        }
+    }
+
+    @Override
+    public void stop(CoprocessorEnvironment env) {
+        synchronized (idleSessions) {
+            stopped = true;
+            for (LinkedList<IdleSession> list : idleSessions.values()) {
+                for (IdleSession s : list)
+                    close(s.session);
+            }
+            idleSessions.clear();
+        }
+        super.stop(env);
+    }
+
+    @Override
+    public byte[] executeQuery(byte[] request) throws IOException {
+        RegionCoprocessorEnvironment env = (RegionCoprocessorEnvironment) getEnvironment();
+        HRegion region = env.getRegion();
+        Data in = Data.create(null, request);
+        String regionName = in.readString();
+        if (!regionName.equals(region.getRegionNameAsString()))
+            throw new IOException("region " + regionName + " is not online, current region: "
+                    + region.getRegionNameAsString());
+        String dbName = in.readString();
+        Properties info = new Properties();
+        for (int i = 0, size = in.readVarInt(); i < size; i++)
+            info.setProperty(in.readString(), in.readString());
+        String sql = in.readString();
+        int paramCount = in.readVarInt();
+
+        String key = dbName + "/" + info.getProperty("user") + "/" + info.getProperty(USER_PASSWORD_HASH);
+        HBaseSession session = null;
+        try {
+            session = leaseSession(key, dbName, info, (HRegionServer) env.getRegionServerServices());
+            Command c = session.prepareLocal(sql);
+            try {
+                ((HBasePrepared) c.getPrepared()).setRegionName(regionName);
+                ArrayList<? extends ParameterInterface> params = c.getParameters();
+                for (int i = 0; i < paramCount; i++)
+                    params.get(i).setValue(in.readValue(), true);
+                ResultInterface result = c.executeQuery(0, false);
+                try {
+                    return writeResult(result);
+                } finally {
+                    result.close();
+                }
+            } finally {
+                c.close();
+            }
+        } catch (Throwable t) {
+            //客户端不一定能反序列化DbException，所以只传递SQLState、错误码和消息
+            return writeError(t);
+        } finally {
+            if (session != null)
+                releaseSession(key, session);
+        }
+    }
+
+    private HBaseSession leaseSession(String key, String dbName, Properties info, HRegionServer regionServer) {
+        synchronized (idleSessions) {
+            LinkedList<IdleSession> list = idleSessions.get(key);
+            if (list != null) {
+                evictIdle(list);
+                while (!list.isEmpty()) {
+                    HBaseSession session = list.removeFirst().session;
+                    if (!session.isClosed())
+                        return session;
+                }
+            }
+        }
+        return createSession(dbName, info, regionServer);
+    }
+
+    private void releaseSession(String key, HBaseSession session) {
+        if (session.isClosed())
+            return;
+        synchronized (idleSessions) {
+            if (!stopped) {
+                LinkedList<IdleSession> list = idleSessions.get(key);
+                if (list == null) {
+                    list = new LinkedList<IdleSession>();
+                    idleSessions.put(key, list);
+                }
+                evictIdle(list);
+                if (list.size() < SysProperties.SESSION_POOL_MAX_PER_HOST) {
+                    list.addFirst(new IdleSession(session));
+                    return;
+                }
+            }
+        }
+        close(session);
+    }
+
+    private static void evictIdle(LinkedList<IdleSession> list) {
+        long now = System.currentTimeMillis();
+        for (Iterator<IdleSession> it = list.descendingIterator(); it.hasNext();) {
+            IdleSession s = it.next();
+            if (now - s.lastUsed < SysProperties.SESSION_POOL_IDLE_TIMEOUT)
+                break;
+            it.remove();
+            close(s.session);
+        }
+    }
+
+    private static void close(HBaseSession session) {
+        try {
+            session.close();
+        } catch (Exception e) {
+            TraceSystem.traceThrowable(e);
+        }
+    }
+
+    /**
+     * 与HBaseTcpServerThread.createSession一样，用最初从Client端传递过来的配置参数创建Session
+     */
+    private static HBaseSession createSession(String dbName, Properties info, HRegionServer regionServer) {
+        Properties properties = new Properties();
+        for (Map.Entry<Object, Object> e : info.entrySet())
+            properties.put(e.getKey(), e.getValue());
+        String userName = (String) properties.remove("user");
+        properties.remove("password");
+        String userPasswordHash = (String) properties.remove(USER_PASSWORD_HASH);
+        String filePasswordHash = (String) properties.remove(FILE_PASSWORD_HASH);
+
+        ConnectionInfo ci = new ConnectionInfo(dbName);
+        ci.setUserName(userName);
+        if (userPasswordHash != null)
+            ci.setUserPasswordHash(userPasswordHash.getBytes());
+        if (filePasswordHash != null)
+            ci.setFilePasswordHash(filePasswordHash.getBytes());
+        ci.readProperties(properties);
+        ci.setProperty("SERVER_TYPE", "RS");
+
+        HBaseSession session = (HBaseSession) HBaseDatabaseEngine.getInstance().createSession(ci);
+        session.setRegionServer(regionServer);
+        session.setOriginalProperties(info);
+        //请求中的SQL是getPlanSQL(true)生成的
+        session.setAllowInternalAggregates(true);
+        return session;
+    }
+
+    /**
+     * 生成executeQuery的请求
+     *
+     * @param regionName 执行查询的Region
+     * @param session 原始Session，用它的数据库名和最初的配置参数在RegionServer上创建Session
+     * @param sql the sql
+     * @param params the parameters, may be null
+     * @return the request
+     */
+    public static byte[] createRequest(String regionName, HBaseSession session, String sql,
+            List<? extends ParameterInterface> params) {
+        Properties info = session.getOriginalProperties();
+        Data out = Data.create(null, 256);
+        writeString(out, regionName);
+        writeString(out, session.getDatabase().getName());
+        out.checkCapacity(5);
+        out.writeVarInt(info.size());
+        for (Map.Entry<Object, Object> e : info.entrySet()) {
+            writeString(out, (String) e.getKey());
+            writeString(out, (String) e.getValue());
+        }
+        writeString(out, sql);
+        int paramCount = params == null ? 0 : params.size();
+        out.checkCapacity(5);
+        out.writeVarInt(paramCount);
+        for (int i = 0; i < paramCount; i++)
+            writeValue(out, params.get(i).getParamValue());
+        return toBytes(out);
+    }
+
+    /**
+     * 得到Region上的HBaseQueryEndpoint的代理，只是创建一个动态代理，不会访问RegionServer
+     *
+     * @param htable Region所在的表，由调用方缓存和关闭
+     * @param hri the region
+     * @return the proxy
+     */
+    public static HBaseQueryProtocol getProxy(HTable htable, HRegionInfo hri) {
+        return htable.coprocessorProxy(HBaseQueryProtocol.class, hri.getStartKey());
+    }
+
+    /**
+     * 调用Region上的HBaseQueryEndpoint执行查询
+     *
+     * @param p getProxy返回的代理
+     * @param request createRequest生成的请求
+     * @return the result
+     * @throws DbException 如果执行SQL时出错，错误码与在本地执行时一样
+     */
+    public static ResultInterface executeQuery(HBaseQueryProtocol p, byte[] request) throws IOException {
+        return readResult(p.executeQuery(request));
+    }
+
+    private static byte[] writeError(Throwable t) {
+        SQLException e = DbException.convert(t).getSQLException();
+        StringWriter writer = new StringWriter();
+        e.printStackTrace(new PrintWriter(writer));
+        String message;
+        String sql;
+        if (e instanceof JdbcSQLException) {
+            JdbcSQLException j = (JdbcSQLException) e;
+            message = j.getOriginalMessage();
+            sql = j.getSQL();
+        } else {
+            message = e.getMessage();
+            sql = null;
+        }
+        Data out = Data.create(null, 1024);
+        out.checkCapacity(5);
+        out.writeVarInt(STATUS_ERROR);
+        writeNullableString(out, e.getSQLState());
+        writeNullableString(out, message);
+        writeNullableString(out, sql);
+        out.checkCapacity(5);
+        out.writeVarInt(e.getErrorCode());
+        writeNullableString(out, writer.toString());
+        return toBytes(out);
+    }
+
+    private static byte[] writeResult(ResultInterface result) {
+        int columnCount = result.getVisibleColumnCount();
+        Data out = Data.create(null, 1024);
+        out.checkCapacity(10);
+        out.writeVarInt(STATUS_OK);
+        out.writeVarInt(columnCount);
+        while (result.next()) {
+            Value[] row = result.currentRow();
+            out.checkCapacity(1);
+            out.writeByte((byte) 1);
+            for (int i = 0; i < columnCount; i++)
+                writeValue(out, row[i]);
+        }
+        out.checkCapacity(1);
+        out.writeByte((byte) 0);
+        return toBytes(out);
+    }
+
+    private static ResultInterface readResult(byte[] bytes) {
+        Data in = Data.create(null, bytes);
+        if (in.readVarInt() == STATUS_ERROR) {
+            String sqlState = readNullableString(in);
+            String message = readNullableString(in);
+            String sql = readNullableString(in);
+            int errorCode = in.readVarInt();
+            String trace = readNullableString(in);
+            throw DbException.convert(new JdbcSQLException(message, sql, sqlState, errorCode, null, trace));
+        }
+        int columnCount = in.readVarInt();
+        LocalResult result = new LocalResult(null, null, columnCount);
+        while (in.readByte() != 0) {
+            Value[] row = new Value[columnCount];
+            for (int i = 0; i < columnCount; i++)
+                row[i] = in.readValue();
+            result.addRow(row);
+        }
+        result.done();
+        return result;
+    }
+
+    private static void writeString(Data out, String s) {
+        out.checkCapacity(Data.getStringLen(s));
+        out.writeString(s);
+    }
+
+    private static void writeNullableString(Data out, String s) {
+        writeValue(out, s == null ? ValueNull.INSTANCE : ValueString.get(s));
+    }
+
+    private static String readNullableString(Data in) {
+        Value v = in.readValue();
+        return v == ValueNull.INSTANCE ? null : v.getString();
+    }
+
+    private static void writeValue(Data out, Value v) {
+        out.checkCapacity(out.getValueLen(v));
+        out.writeValue(v);
+    }
+
+    private static byte[] toBytes(Data out) {
+        byte[] bytes = new byte[out.length()];
+        System.arraycopy(out.getBytes(), 0, bytes, 0, bytes.length);
+        return bytes;
+    }
+}
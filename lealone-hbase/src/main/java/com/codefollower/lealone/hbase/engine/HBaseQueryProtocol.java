@@ -0,0 +1,38 @@
+/*
+ * Copyright 2011 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.codefollower.lealone.hbase.engine;
+
+import java.io.IOException;
+
+import org.apache.hadoop.hbase.ipc.CoprocessorProtocol;
+
+/**
+ * 在Region所在的RegionServer中直接执行查询的coprocessor接口，由HBaseQueryEndpoint实现
+ */
+public interface HBaseQueryProtocol extends CoprocessorProtocol {
+
+    /**
+     * 在当前Region中执行一条查询
+     *
+     * @param request HBaseQueryEndpoint.createRequest生成的请求
+     * @return 查询结果，用HBaseQueryEndpoint.readResult读取
+     */
+    byte[] executeQuery(byte[] request) throws IOException;
+}
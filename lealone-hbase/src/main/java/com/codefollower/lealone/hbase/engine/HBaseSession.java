@@ -19,13 +19,29 @@
  */
 package com.codefollower.lealone.hbase.engine;
 
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.TreeMap;
+import java.util.TreeSet;
 
+import org.apache.hadoop.hbase.NotServingRegionException;
+import org.apache.hadoop.hbase.client.Delete;
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.Mutation;
+import org.apache.hadoop.hbase.client.Put;
 import org.apache.hadoop.hbase.master.HMaster;
+import org.apache.hadoop.hbase.regionserver.HRegion;
 import org.apache.hadoop.hbase.regionserver.HRegionServer;
+import org.apache.hadoop.hbase.util.Bytes;
 
 import com.codefollower.lealone.command.Parser;
 import com.codefollower.lealone.command.dml.Query;
+import com.codefollower.lealone.constant.SysProperties;
 import com.codefollower.lealone.dbobject.Schema;
 import com.codefollower.lealone.dbobject.User;
 import com.codefollower.lealone.dbobject.table.Table;
@@ -40,6 +56,7 @@ import com.codefollower.lealone.omid.client.TransactionManager;
 import com.codefollower.lealone.omid.client.TransactionState;
 import com.codefollower.lealone.result.Row;
 import com.codefollower.lealone.result.SubqueryResult;
+import com.codefollower.lealone.util.New;
 
 public class HBaseSession extends Session {
 
@@ -61,6 +78,23 @@ public class HBaseSession extends Session {
     private TransactionManager tm;
     private TransactionState ts;
 
+    /**
+     * 当前语句按Region缓冲的Put和Delete，为null时表示不缓冲，每条记录直接写入Region
+     */
+    private TreeMap<byte[], List<Mutation>> writeBuffer;
+    private int bufferedMutations;
+
+    /**
+     * 只用来读的HTable(按rowKey批量查找内表、调用HBaseQueryEndpoint)，在Session关闭时关闭
+     */
+    private HashMap<String, HTable> lookupTables;
+
+    /**
+     * 正在执行的语句打开的扫描器，LIMIT提前结束或者出错时不会读到最后，
+     * 由HBaseSelect、HBaseUpdate和HBaseDelete在语句结束时关闭，嵌套执行的语句只关闭自己打开的那些
+     */
+    private final ArrayList<Closeable> openScanners = New.arrayList();
+
     public HBaseSession(Database database, User user, int id) {
         super(database, user, id);
     }
@@ -164,4 +198,172 @@ public class HBaseSession extends Session {
     public TransactionState getTransactionState() {
         return ts;
     }
+
+    /**
+     * 开始缓冲写操作，之后的bufferPut和bufferDelete只是把Put和Delete按Region收集起来，
+     * 写完一条记录后缓冲的写操作数达到lealone.write.buffer.size或者调用flushWriteBuffer时才写入Region
+     *
+     * @return 如果已经在缓冲则返回false，此时由最外层的调用者负责flushWriteBuffer
+     */
+    public boolean startWriteBuffer() {
+        if (writeBuffer != null)
+            return false;
+        writeBuffer = new TreeMap<byte[], List<Mutation>>(Bytes.BYTES_COMPARATOR);
+        bufferedMutations = 0;
+        return true;
+    }
+
+    /**
+     * 
+     * @return 不在缓冲时返回false，此时调用者要自己写入
+     */
+    public boolean bufferPut(byte[] regionName, Put put) {
+        return buffer(regionName, put);
+    }
+
+    /**
+     * 
+     * @return 不在缓冲时返回false，此时调用者要自己写入
+     */
+    public boolean bufferDelete(byte[] regionName, Delete delete) {
+        return buffer(regionName, delete);
+    }
+
+    private boolean buffer(byte[] regionName, Mutation m) {
+        if (writeBuffer == null)
+            return false;
+        List<Mutation> mutations = writeBuffer.get(regionName);
+        if (mutations == null) {
+            mutations = New.arrayList();
+            writeBuffer.put(regionName, mutations);
+        }
+        mutations.add(m);
+        bufferedMutations++;
+        return true;
+    }
+
+    /**
+     * 一条记录的所有写操作(包括它的二级索引记录)都缓冲之后才检查缓冲是否满了，
+     * 所以同一条记录的写操作总是在同一批中写入
+     */
+    public void flushWriteBufferIfFull() {
+        if (writeBuffer != null && bufferedMutations >= SysProperties.WRITE_BUFFER_SIZE)
+            flushMutations();
+    }
+
+    /**
+     * 写入缓冲的Put和Delete，然后停止缓冲
+     */
+    public void flushWriteBuffer() {
+        if (writeBuffer == null)
+            return;
+        try {
+            flushMutations();
+        } finally {
+            writeBuffer = null;
+        }
+    }
+
+    /**
+     * 
+     * @return 当前已打开的扫描器个数，语句结束时传给closeScanners
+     */
+    public synchronized int getOpenScannerCount() {
+        return openScanners.size();
+    }
+
+    public synchronized void addOpenScanner(Closeable scanner) {
+        openScanners.add(scanner);
+    }
+
+    /**
+     * 关闭从第from个开始打开的扫描器，已经关闭的扫描器再调用close也没关系
+     *
+     * @param from 语句开始时getOpenScannerCount的返回值
+     */
+    public synchronized void closeScanners(int from) {
+        for (int i = openScanners.size() - 1; i >= from; i--) {
+            try {
+                openScanners.remove(i).close();
+            } catch (Exception e) {
+                //ignore
+            }
+        }
+    }
+
+    /**
+     * 返回这个Session中按rowKey批量查找用的HTable，同一个表只创建一次
+     *
+     * @param tableName 表名
+     * @return the HTable
+     */
+    public HTable getLookupTable(String tableName) throws IOException {
+        if (lookupTables == null)
+            lookupTables = New.hashMap();
+        HTable t = lookupTables.get(tableName);
+        if (t == null) {
+            t = new HTable(HBaseUtils.getConfiguration(), tableName);
+            lookupTables.put(tableName, t);
+        }
+        return t;
+    }
+
+    @Override
+    public void close() {
+        try {
+            closeScanners(0);
+            super.close();
+        } finally {
+            if (lookupTables != null) {
+                for (HTable t : lookupTables.values()) {
+                    try {
+                        t.close();
+                    } catch (IOException e) {
+                        //ignore
+                    }
+                }
+                lookupTables = null;
+            }
+        }
+    }
+
+    private void flushMutations() {
+        TreeMap<byte[], List<Mutation>> buffer = writeBuffer;
+        writeBuffer = new TreeMap<byte[], List<Mutation>>(Bytes.BYTES_COMPARATOR);
+        bufferedMutations = 0;
+        try {
+            for (Map.Entry<byte[], List<Mutation>> e : buffer.entrySet())
+                flushMutations(e.getKey(), e.getValue());
+        } catch (IOException e) {
+            throw DbException.convert(e);
+        }
+    }
+
+    /**
+     * 同一个Region的写操作用HRegion.mutateRowsWithLocks一批原子地写入，
+     * 所以基表记录和它的二级索引记录要么都写入了，要么都没写入。
+     * 同一批的写操作使用相同的时间戳，同一条记录先删除后插入时，插入要放到下一批，否则会被删除覆盖
+     */
+    private void flushMutations(byte[] regionName, List<Mutation> mutations) throws IOException {
+        HRegion region = regionServer.getOnlineRegion(regionName);
+        if (region == null)
+            throw new NotServingRegionException(regionName);
+        List<Mutation> batch = New.arrayList(mutations.size());
+        TreeSet<byte[]> rows = new TreeSet<byte[]>(Bytes.BYTES_COMPARATOR); //按顺序加锁，避免死锁
+        TreeSet<byte[]> deletedRows = new TreeSet<byte[]>(Bytes.BYTES_COMPARATOR);
+        for (Mutation m : mutations) {
+            if (m instanceof Put && deletedRows.contains(m.getRow())) {
+                region.mutateRowsWithLocks(batch, rows);
+                batch = New.arrayList();
+                rows = new TreeSet<byte[]>(Bytes.BYTES_COMPARATOR);
+                deletedRows.clear();
+            }
+            batch.add(m);
+            rows.add(m.getRow());
+            if (m instanceof Delete)
+                deletedRows.add(m.getRow());
+        }
+        if (!batch.isEmpty())
+            region.mutateRowsWithLocks(batch, rows);
+    }
 }
@@ -0,0 +1,289 @@
+/*
+ * Copyright 2011 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.codefollower.lealone.hbase.engine;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Properties;
+import java.util.TreeMap;
+
+import com.codefollower.lealone.command.CommandInterface;
+import com.codefollower.lealone.constant.SysProperties;
+import com.codefollower.lealone.engine.ConnectionInfo;
+import com.codefollower.lealone.engine.SessionInterface;
+import com.codefollower.lealone.engine.SessionRemote;
+import com.codefollower.lealone.message.TraceSystem;
+import com.codefollower.lealone.result.ResultInterface;
+
+/**
+ * 按目标URL和用户(以及除密码外的其他连接参数)缓存已经通过认证的SessionRemote，
+ * 转发SQL到其他RegionServer或Master时从这里借出Session，用完后归还，避免每次都重新建立TCP连接和认证。
+ *
+ * <ul>
+ * <li>借出时从不等待，没有空闲的Session就新建一个</li>
+ * <li>每个目标最多保留lealone.session.pool.max.per.host个空闲的Session，多出来的在归还时直接关闭</li>
+ * <li>空闲超过lealone.session.pool.idle.timeout毫秒的Session会被关闭，
+ *     借出时会检查，另外还有一个后台线程每隔lealone.session.pool.idle.timeout毫秒检查一次，
+ *     这样不再被访问的目标上的空闲Session也会被关闭</li>
+ * <li>空闲超过lealone.session.pool.check.idle毫秒的Session在借出前先检查是否还可用</li>
+ * <li>归还时回滚未结束的事务并恢复自动提交，不能恢复的Session直接关闭</li>
+ * </ul>
+ */
+public class SessionRemotePool {
+    private static final HashMap<String, HostPool> pools = new HashMap<String, HostPool>();
+    private static final IdentityHashMap<SessionInterface, HostPool> leased = new IdentityHashMap<SessionInterface, HostPool>();
+    private static Thread evictor;
+
+    private SessionRemotePool() {
+        // utility class
+    }
+
+    public static SessionInterface getSessionInterface(Properties info, String url) throws Exception {
+        String key = getKey(info, url);
+        HostPool pool;
+        synchronized (pools) {
+            pool = pools.get(key);
+            if (pool == null) {
+                pool = new HostPool(info, url);
+                pools.put(key, pool);
+                if (evictor == null)
+                    startEvictor();
+            }
+        }
+        SessionInterface si = pool.lease();
+        synchronized (leased) {
+            leased.put(si, pool);
+        }
+        return si;
+    }
+
+    /**
+     * 归还Session，如果Session已关闭或者不是从池中借出的，那么直接关闭
+     *
+     * @param si 要归还的Session
+     */
+    public static void release(SessionInterface si) {
+        if (si == null)
+            return;
+        HostPool pool;
+        synchronized (leased) {
+            pool = leased.remove(si);
+        }
+        if (pool == null)
+            si.close();
+        else
+            pool.release(si);
+    }
+
+    /**
+     * 关闭所有空闲的Session
+     */
+    public static void clear() {
+        synchronized (pools) {
+            for (HostPool pool : pools.values())
+                pool.clear();
+        }
+    }
+
+    /**
+     * 关闭所有空闲超过idleTimeout毫秒的Session
+     *
+     * @param idleTimeout 毫秒数
+     */
+    public static void evictIdle(long idleTimeout) {
+        HostPool[] all;
+        synchronized (pools) {
+            all = pools.values().toArray(new HostPool[pools.size()]);
+        }
+        for (HostPool pool : all)
+            pool.evictIdle(idleTimeout);
+    }
+
+    private static void startEvictor() {
+        evictor = new Thread("SessionRemotePool Evictor") {
+            @Override
+            public void run() {
+                while (true) {
+                    try {
+                        Thread.sleep(SysProperties.SESSION_POOL_IDLE_TIMEOUT);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    evictIdle(SysProperties.SESSION_POOL_IDLE_TIMEOUT);
+                }
+            }
+        };
+        evictor.setDaemon(true);
+        evictor.start();
+    }
+
+    private static String getKey(Properties info, String url) {
+        //不同用户的Session不能混用。
+        //info来自已经在本机通过认证的Session，所以只按用户区分就够了，key中不含密码(及其hash)，
+        //但是HostPool要用info建立新的Session，所以HostPool中的info还是带有密码的hash
+        TreeMap<String, String> map = new TreeMap<String, String>();
+        for (String key : info.stringPropertyNames()) {
+            if (!isPassword(key))
+                map.put(key, info.getProperty(key));
+        }
+        return url + map.toString();
+    }
+
+    private static boolean isPassword(String key) {
+        return key.equalsIgnoreCase("password") || key.equalsIgnoreCase("_userPasswordHash_")
+                || key.equalsIgnoreCase("_filePasswordHash_");
+    }
+
+    private static SessionInterface connect(Properties info, String url) throws Exception {
+        Properties prop = new Properties();
+        for (String key : info.stringPropertyNames())
+            prop.setProperty(key, info.getProperty(key));
+        ConnectionInfo ci = new ConnectionInfo(url, prop);
+
+        return new SessionRemote(ci).connectEmbeddedOrServer(false);
+    }
+
+    private static boolean isValid(SessionInterface si) {
+        if (si.isClosed())
+            return false;
+        try {
+            CommandInterface c = si.prepareCommand("SELECT 1", 1);
+            try {
+                ResultInterface r = c.executeQuery(1, false);
+                r.close();
+            } finally {
+                c.close();
+            }
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    /**
+     * 恢复Session的初始状态，这样下一个借用者不会继承上一个借用者未结束的事务
+     */
+    private static boolean reset(SessionInterface si) {
+        if (si.isClosed())
+            return false;
+        if (si.getAutoCommit())
+            return true;
+        try {
+            CommandInterface c = si.prepareCommand("ROLLBACK", Integer.MAX_VALUE);
+            try {
+                c.executeUpdate();
+            } finally {
+                c.close();
+            }
+            si.setAutoCommit(true);
+            return true;
+        } catch (Exception e) {
+            TraceSystem.traceThrowable(e);
+            return false;
+        }
+    }
+
+    private static void close(SessionInterface si) {
+        try {
+            si.close();
+        } catch (Exception e) {
+            TraceSystem.traceThrowable(e);
+        }
+    }
+
+    private static class IdleSession {
+        final SessionInterface session;
+        final long lastUsed;
+
+        IdleSession(SessionInterface session) {
+            this.session = session;
+            this.lastUsed = System.currentTimeMillis();
+        }
+    }
+
+    private static class HostPool {
+        /**
+         * 建立新的Session时要重新认证，所以这里保留了密码的hash
+         */
+        private final Properties info;
+        private final String url;
+        private final LinkedList<IdleSession> idle = new LinkedList<IdleSession>();
+
+        HostPool(Properties info, String url) {
+            this.info = info;
+            this.url = url;
+        }
+
+        /**
+         * 借出一个Session，不会等待其他Session归还，
+         * 否则一个分发到很多Region的命令或者很多打开着的语句会因为等待自己占用的Session而卡住
+         */
+        SessionInterface lease() throws Exception {
+            while (true) {
+                IdleSession s;
+                synchronized (this) {
+                    evictIdle(SysProperties.SESSION_POOL_IDLE_TIMEOUT);
+                    if (idle.isEmpty())
+                        break;
+                    s = idle.removeFirst(); //后进先出，让不常用的Session尽快过期
+                }
+
+                if (System.currentTimeMillis() - s.lastUsed < SysProperties.SESSION_POOL_CHECK_IDLE || isValid(s.session))
+                    return s.session;
+
+                close(s.session);
+            }
+            return connect(info, url);
+        }
+
+        void release(SessionInterface si) {
+            if (!reset(si)) {
+                close(si);
+                return;
+            }
+            synchronized (this) {
+                if (idle.size() < SysProperties.SESSION_POOL_MAX_PER_HOST) {
+                    idle.addFirst(new IdleSession(si));
+                    return;
+                }
+            }
+            close(si);
+        }
+
+        synchronized void clear() {
+            for (IdleSession s : idle)
+                close(s.session);
+            idle.clear();
+        }
+
+        synchronized void evictIdle(long idleTimeout) {
+            long now = System.currentTimeMillis();
+            for (Iterator<IdleSession> it = idle.descendingIterator(); it.hasNext();) {
+                IdleSession s = it.next();
+                if (now - s.lastUsed < idleTimeout)
+                    break;
+                it.remove();
+                close(s.session);
+            }
+        }
+    }
+}
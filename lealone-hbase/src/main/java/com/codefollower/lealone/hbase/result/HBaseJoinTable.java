@@ -0,0 +1,327 @@
+/*
+ * Copyright 2011 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.codefollower.lealone.hbase.result;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+import com.codefollower.lealone.command.Command;
+import com.codefollower.lealone.command.Parser;
+import com.codefollower.lealone.command.dml.Select;
+import com.codefollower.lealone.constant.SysProperties;
+import com.codefollower.lealone.dbobject.table.Column;
+import com.codefollower.lealone.dbobject.table.TableFilter;
+import com.codefollower.lealone.expression.Comparison;
+import com.codefollower.lealone.expression.ConditionAndOr;
+import com.codefollower.lealone.expression.Expression;
+import com.codefollower.lealone.expression.ExpressionColumn;
+import com.codefollower.lealone.expression.ExpressionVisitor;
+import com.codefollower.lealone.expression.ParameterInterface;
+import com.codefollower.lealone.hbase.command.CommandProxy;
+import com.codefollower.lealone.hbase.dbobject.table.HBaseTable;
+import com.codefollower.lealone.hbase.engine.HBaseSession;
+import com.codefollower.lealone.message.DbException;
+import com.codefollower.lealone.result.ResultInterface;
+import com.codefollower.lealone.result.Row;
+import com.codefollower.lealone.util.New;
+import com.codefollower.lealone.util.StatementBuilder;
+import com.codefollower.lealone.value.CompareMode;
+import com.codefollower.lealone.value.DataType;
+import com.codefollower.lealone.value.Value;
+import com.codefollower.lealone.value.ValueArray;
+import com.codefollower.lealone.value.ValueDecimal;
+import com.codefollower.lealone.value.ValueDouble;
+import com.codefollower.lealone.value.ValueFloat;
+import com.codefollower.lealone.value.ValueNull;
+
+/**
+ * 作为join内表的HBase表。
+ *
+ * 原先内表每遇到一条外表记录就要执行一次分布式子查询，
+ * 这里改成在一次查询中只把内表(只涉及内表的条件先在RegionServer端过滤)读一次，
+ * 按等值连接条件(内表列 = 外表列或常量)建立哈希表，之后每条外表记录只需在内存中查找。
+ *
+ * 如果内表的记录数超过lealone.join.build.max.rows，就不建哈希表，还是按原来的方式每次执行子查询，
+ * 条件中没有参数时HBaseSelect会记住这个结果，之后执行同一条语句时不再读内表。
+ * 查找结果可能比实际满足条件的记录多，Select会再计算一次完整的条件。
+ */
+public class HBaseJoinTable {
+    private final TableFilter filter;
+    private final HBaseSession session;
+    private final HBaseTable table;
+
+    private final ArrayList<Column> keyColumns = New.arrayList();
+    private final ArrayList<Expression> keyExpressions = New.arrayList();
+    private final ArrayList<Expression> conditions = New.arrayList(); //只涉及内表的条件
+    private final ArrayList<Column> columns = New.arrayList();
+
+    private final ArrayList<Row> rows = New.arrayList();
+    private final HashMap<Value, ArrayList<Row>> hashTable = New.hashMap();
+
+    private boolean tooBig;
+    private boolean hasParameters;
+
+    private HBaseJoinTable(TableFilter filter) {
+        this.filter = filter;
+        this.session = (HBaseSession) filter.getSession();
+        this.table = (HBaseTable) filter.getTable();
+    }
+
+    /**
+     *
+     * @param filter join的内表
+     * @return 内表太大时isTooBig()返回true，此时不能用它来查找
+     */
+    public static HBaseJoinTable create(TableFilter filter) {
+        HBaseJoinTable t = new HBaseJoinTable(filter);
+        t.init();
+        t.tooBig = !t.build();
+        return t;
+    }
+
+    public boolean isTooBig() {
+        return tooBig;
+    }
+
+    /**
+     * 
+     * @return 读内表的条件中是否有参数，有参数时内表的大小可能随参数变化
+     */
+    public boolean hasParameters() {
+        return hasParameters;
+    }
+
+    private void init() {
+        Select select = filter.getSelect();
+        //外连接时WHERE条件要在补NULL之后才能计算，只能用ON条件
+        addConditions(filter.getJoinCondition());
+        if (!filter.isJoinOuter() && !filter.isJoinOuterIndirect()) {
+            addConditions(select.getCondition());
+            addConditions(filter.getFilterCondition());
+        }
+
+        HashSet<Column> set = new HashSet<Column>();
+        List<Column> list = select.getColumns(filter);
+        if (list != null) {
+            for (Column c : list) {
+                if (!c.isRowKeyColumn() && set.add(c))
+                    columns.add(c);
+            }
+        }
+    }
+
+    private void addConditions(Expression condition) {
+        if (condition == null)
+            return;
+        if (condition instanceof ConditionAndOr && ((ConditionAndOr) condition).getAndOrType() == ConditionAndOr.AND) {
+            addConditions(((ConditionAndOr) condition).getExpression(true));
+            addConditions(((ConditionAndOr) condition).getExpression(false));
+            return;
+        }
+        if (isInnerOnly(condition)) {
+            conditions.add(condition);
+            return;
+        }
+        if (!(condition instanceof Comparison) || ((Comparison) condition).getCompareType() != Comparison.EQUAL)
+            return;
+
+        Expression left = ((Comparison) condition).getExpression(true);
+        Expression right = ((Comparison) condition).getExpression(false);
+        if (isInnerColumn(left) && isOuterValue(right))
+            addKey(((ExpressionColumn) left).getColumn(), right);
+        else if (isInnerColumn(right) && isOuterValue(left))
+            addKey(((ExpressionColumn) right).getColumn(), left);
+    }
+
+    private void addKey(Column column, Expression e) {
+        //有collation时值相等不代表字符串相等
+        if (DataType.isStringType(column.getType())
+                && !session.getDatabase().getCompareMode().getName().equals(CompareMode.OFF))
+            return;
+        keyColumns.add(column);
+        keyExpressions.add(e);
+    }
+
+    private boolean isInnerOnly(Expression e) {
+        for (TableFilter f : filter.getSelect().getFilters()) {
+            if (f != filter && !e.isEverything(ExpressionVisitor.getNotFromResolverVisitor(f)))
+                return false;
+        }
+        return !e.isEverything(ExpressionVisitor.getNotFromResolverVisitor(filter));
+    }
+
+    private boolean isInnerColumn(Expression e) {
+        return e instanceof ExpressionColumn && ((ExpressionColumn) e).getTableFilter() == filter;
+    }
+
+    /**
+     * 在内表查找记录时，表达式的值必须已经确定: 要么是常量或参数，要么是排在内表之前的表的列
+     */
+    private boolean isOuterValue(Expression e) {
+        if (e.isEverything(ExpressionVisitor.INDEPENDENT_VISITOR))
+            return true;
+        if (!(e instanceof ExpressionColumn))
+            return false;
+        TableFilter outer = ((ExpressionColumn) e).getTableFilter();
+        for (TableFilter f = filter.getSelect().getTopTableFilter(); f != null && f != filter; f = f.getJoin()) {
+            if (f == outer)
+                return true;
+        }
+        return false;
+    }
+
+    private String getSQL() {
+        StatementBuilder buff = new StatementBuilder("SELECT ");
+        buff.append(Parser.quoteIdentifier(table.getRowKeyName()));
+        for (Column c : columns)
+            buff.append(", ").append(c.getSQL());
+        buff.append(" FROM ").append(table.getSQL()).append(' ').append(Parser.quoteIdentifier(filter.getTableAlias()));
+        if (!conditions.isEmpty()) {
+            buff.append(" WHERE ");
+            buff.resetCount();
+            for (Expression e : conditions) {
+                buff.appendExceptFirst(" AND ");
+                buff.append(e.getSQL(false));
+            }
+        }
+        return buff.toString();
+    }
+
+    private boolean build() {
+        String sql = getSQL();
+        Command c = session.prepareLocal(sql);
+        //条件中的参数还用原来的下标(?N)，所以可以直接按下标复制
+        ArrayList<? extends ParameterInterface> originalParams = filter.getSelect().getParameters();
+        ArrayList<? extends ParameterInterface> params = c.getParameters();
+        hasParameters = params != null && !params.isEmpty();
+        if (originalParams != null && params != null) {
+            for (int i = 0, size = Math.min(params.size(), originalParams.size()); i < size; i++)
+                params.get(i).setValue(originalParams.get(i).getParamValue(), true);
+        }
+
+        int maxRows = SysProperties.JOIN_BUILD_MAX_ROWS;
+        CommandProxy proxy = new CommandProxy(session, sql, c);
+        ResultInterface result = null;
+        try {
+            result = proxy.executeQuery(maxRows + 1, false);
+            int columnCount = table.getColumns().length;
+            int rowKeyColumnId = table.getRowKeyColumn().getColumnId(); //动态表的rowKey列是伪列，id是-2
+            while (result.next()) {
+                if (rows.size() >= maxRows)
+                    return false;
+                Value[] r = result.currentRow();
+                Value[] data = new Value[columnCount];
+                Value rowKey = r[0];
+                if (rowKeyColumnId >= 0)
+                    data[rowKeyColumnId] = rowKey;
+                for (int i = 0, size = columns.size(); i < size; i++)
+                    data[columns.get(i).getColumnId()] = r[i + 1];
+                add(new HBaseRow(rowKey, data, Row.MEMORY_CALCULATE));
+            }
+        } finally {
+            if (result != null)
+                result.close();
+            proxy.close();
+        }
+        return true;
+    }
+
+    private void add(Row row) {
+        rows.add(row);
+        if (keyColumns.isEmpty())
+            return;
+        Value key = getKey(row);
+        if (key == null) //NULL与任何值都不相等
+            return;
+        ArrayList<Row> list = hashTable.get(key);
+        if (list == null) {
+            list = New.arrayList(1);
+            hashTable.put(key, list);
+        }
+        list.add(row);
+    }
+
+    private Value getKey(Row row) {
+        int size = keyColumns.size();
+        Value[] values = new Value[size];
+        for (int i = 0; i < size; i++) {
+            Column c = keyColumns.get(i);
+            Value v = c.getColumnId() < 0 ? row.getRowKey() : row.getValue(c.getColumnId());
+            if (v == null || v == ValueNull.INSTANCE)
+                return null;
+            values[i] = normalize(v.convertTo(c.getType()));
+        }
+        return size == 1 ? values[0] : ValueArray.get(values);
+    }
+
+    /**
+     * 两边的值都已转换成内表列的类型，但是equals和hashCode与SQL的相等还有不一致的地方:
+     * DECIMAL的scale不同(1.0和1.00)时不相等，DOUBLE和REAL的-0.0与0.0的hashCode不同
+     */
+    private static Value normalize(Value v) {
+        switch (v.getType()) {
+        case Value.DECIMAL: {
+            BigDecimal d = v.getBigDecimal();
+            //Java 6的stripTrailingZeros不会去掉0.00的scale
+            return ValueDecimal.get(d.signum() == 0 ? BigDecimal.ZERO : d.stripTrailingZeros());
+        }
+        case Value.DOUBLE:
+            return v.getDouble() == 0.0 ? ValueDouble.get(0.0) : v;
+        case Value.FLOAT:
+            return v.getFloat() == 0.0F ? ValueFloat.get(0.0F) : v;
+        default:
+            return v;
+        }
+    }
+
+    /**
+     * 查找可能与外表当前记录匹配的内表记录
+     *
+     * @return 内表记录
+     */
+    public List<Row> find() {
+        if (keyColumns.isEmpty())
+            return rows;
+        int size = keyColumns.size();
+        Value[] values = new Value[size];
+        for (int i = 0; i < size; i++) {
+            Column c = keyColumns.get(i);
+            Value v = keyExpressions.get(i).getValue(session);
+            if (v == ValueNull.INSTANCE)
+                return Collections.emptyList();
+            //比如INT列与1.5比较时是按DECIMAL比较的，这时不能用哈希表
+            if (Value.getHigherOrder(c.getType(), v.getType()) != c.getType())
+                return rows;
+            try {
+                values[i] = normalize(v.convertTo(c.getType()));
+            } catch (DbException e) {
+                return rows;
+            }
+        }
+        List<Row> list = hashTable.get(size == 1 ? values[0] : ValueArray.get(values));
+        if (list == null)
+            return Collections.emptyList();
+        return list;
+    }
+}
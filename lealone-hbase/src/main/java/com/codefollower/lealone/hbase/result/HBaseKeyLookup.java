@@ -0,0 +1,157 @@
+/*
+ * Copyright 2011 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.codefollower.lealone.hbase.result;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import com.codefollower.lealone.constant.SysProperties;
+import com.codefollower.lealone.dbobject.index.IndexCondition;
+import com.codefollower.lealone.dbobject.table.Column;
+import com.codefollower.lealone.dbobject.table.TableFilter;
+import com.codefollower.lealone.expression.Comparison;
+import com.codefollower.lealone.expression.Expression;
+import com.codefollower.lealone.expression.ExpressionColumn;
+import com.codefollower.lealone.hbase.command.dml.HBaseSelect;
+import com.codefollower.lealone.hbase.dbobject.index.HBaseTableCursor;
+import com.codefollower.lealone.hbase.dbobject.table.HBaseTable;
+import com.codefollower.lealone.hbase.engine.HBaseSession;
+import com.codefollower.lealone.hbase.util.HBaseUtils;
+import com.codefollower.lealone.message.DbException;
+import com.codefollower.lealone.result.Row;
+import com.codefollower.lealone.util.New;
+import com.codefollower.lealone.value.Value;
+
+/**
+ * 形如a JOIN b ON b._rowkey_ = a.fk的join，内表b按rowKey批量查找。
+ *
+ * 原先外表的每条记录都要对内表执行一次Get，
+ * 这里遇到缓存中没有的key时，把外表当前这批记录(最多lealone.join.lookup.batch.size条)的key一起收集起来，
+ * 通过HTable.get(List)按RegionServer分组并行地批量查找，结果放在缓存中供后面的外表记录使用。
+ */
+public class HBaseKeyLookup {
+    private final HBaseSelect select;
+    private final Column outerColumn;
+    private final List<Column> columns;
+    private final int columnCount;
+    private final HBaseTable table;
+    private final HTable htable;
+
+    /**
+     * 最近一批查找的结果，值为null表示内表中没有这个key
+     */
+    private final HashMap<String, Row> cache = New.hashMap();
+
+    private HBaseKeyLookup(TableFilter filter, Column outerColumn) throws IOException {
+        this.select = (HBaseSelect) filter.getSelect();
+        this.outerColumn = outerColumn;
+        this.columns = select.getColumns(filter);
+        this.columnCount = filter.getTable().getColumns().length;
+        this.table = (HBaseTable) filter.getTable();
+        //HTable由Session缓存和关闭，不必每次查找都创建
+        this.htable = ((HBaseSession) filter.getSession()).getLookupTable(filter.getTable().getName());
+    }
+
+    /**
+     *
+     * @param filter join的内表
+     * @return 如果内表不是按rowKey等于外表(最外层的表)的某个列来join，返回null
+     */
+    public static HBaseKeyLookup create(TableFilter filter) {
+        if (!(filter.getTable() instanceof HBaseTable) || !(filter.getSelect() instanceof HBaseSelect))
+            return null;
+        //由主键编码而成的rowKey不能按字符串查找
+        if (((HBaseTable) filter.getTable()).isPrimaryKeyRowKey())
+            return null;
+        TableFilter top = filter.getSelect().getTopTableFilter();
+        for (IndexCondition c : filter.getIndexConditions()) {
+            if (c.getCompareType() != Comparison.EQUAL || !c.getColumn().isRowKeyColumn())
+                continue;
+            Expression e = c.getExpression();
+            if (e instanceof ExpressionColumn && ((ExpressionColumn) e).getTableFilter() == top) {
+                try {
+                    return new HBaseKeyLookup(filter, ((ExpressionColumn) e).getColumn());
+                } catch (IOException ex) {
+                    throw DbException.convert(ex);
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     *
+     * @param rowKey 内表的rowKey
+     * @return 内表中没有这个rowKey时返回null
+     */
+    public Row find(Value rowKey) {
+        String key = rowKey.getString();
+        if (!cache.containsKey(key))
+            load(key);
+        return cache.get(key);
+    }
+
+    private void load(String key) {
+        //上一批的key基本上不会再用到了
+        cache.clear();
+        ArrayList<String> keys = New.arrayList();
+        keys.add(key);
+        cache.put(key, null);
+        HBaseTableCursor outer = select.getTopCursor();
+        if (outer != null) {
+            for (Value v : outer.getBatchValues(outerColumn, SysProperties.JOIN_LOOKUP_BATCH_SIZE)) {
+                String k = v.getString();
+                if (!cache.containsKey(k)) {
+                    keys.add(k);
+                    cache.put(k, null);
+                }
+            }
+        }
+
+        ArrayList<Get> gets = New.arrayList(keys.size());
+        for (String k : keys) {
+            Get get = new Get(HBaseUtils.toBytes(k));
+            for (byte[] family : table.getDataColumnFamilies())
+                get.addFamily(family);
+            gets.add(get);
+        }
+        Result[] results;
+        try {
+            results = htable.get(gets);
+        } catch (IOException e) {
+            throw DbException.convert(e);
+        }
+        for (Result r : results) {
+            if (r != null && !r.isEmpty())
+                cache.put(Bytes.toString(r.getRow()), HBaseTableCursor.toRow(table, null, r, columns, columnCount));
+        }
+    }
+
+    public void close() {
+        cache.clear();
+    }
+}
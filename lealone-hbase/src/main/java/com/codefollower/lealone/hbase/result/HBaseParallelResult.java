@@ -0,0 +1,350 @@
+/*
+ * Copyright 2011 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.codefollower.lealone.hbase.result;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import com.codefollower.lealone.command.CommandInterface;
+import com.codefollower.lealone.constant.SysProperties;
+import com.codefollower.lealone.hbase.command.FanOutExecutor;
+import com.codefollower.lealone.result.DelegatedResult;
+import com.codefollower.lealone.result.ResultInterface;
+import com.codefollower.lealone.value.Value;
+
+/**
+ * 并行抓取多个Region的结果集，按记录到达的先后顺序返回，不保证记录之间的顺序。
+ *
+ * 同一时刻最多有parallelism个Region在抓取记录，每个Region有自己的有界缓冲队列，所以内存占用是有上限的。
+ * 队列满时抓取任务直接结束，不会在线程池中阻塞等待消费者，消费者取走一半记录后再重新提交，
+ * 所以没有被读取的结果集不会占住FanOutExecutor的线程。
+ */
+public class HBaseParallelResult extends DelegatedResult {
+    private final static int UNKNOW_ROW_COUNT = -1;
+    private final static Value[] END = new Value[0];
+
+    private final FanOutExecutor executor;
+    private final int sessionId;
+    private final List<CommandInterface> commands;
+    private final int maxRows;
+    private final int parallelism;
+    private final int bufferSize;
+
+    private final LinkedList<RegionFetcher> pending = new LinkedList<RegionFetcher>();
+    private final LinkedList<RegionFetcher> active = new LinkedList<RegionFetcher>();
+    private RegionFetcher[] fetchers;
+
+    /**
+     * 所有Region缓冲队列中还未被消费的元素个数(包括END标记)
+     */
+    private Semaphore available;
+
+    private Value[] currentRow;
+    private int rowId;
+    private boolean closed;
+
+    public HBaseParallelResult(FanOutExecutor executor, int sessionId, List<CommandInterface> commands, int maxRows,
+            int parallelism, int bufferSize) {
+        this.executor = executor;
+        this.sessionId = sessionId;
+        this.commands = commands;
+        this.maxRows = maxRows;
+        this.parallelism = parallelism < 1 ? 1 : parallelism;
+        this.bufferSize = bufferSize < 1 ? 1 : bufferSize;
+        start();
+    }
+
+    private void start() {
+        int size = commands.size();
+        available = new Semaphore(0);
+        fetchers = new RegionFetcher[size];
+        for (int i = 0; i < size; i++) {
+            fetchers[i] = new RegionFetcher(commands.get(i), available);
+            pending.add(fetchers[i]);
+        }
+        for (int i = 0; i < parallelism && !pending.isEmpty(); i++)
+            startNext();
+        currentRow = null;
+        rowId = -1;
+
+        //用第一个Region的结果集提供元数据(列名、类型等)
+        result = fetchers[0].awaitResult();
+    }
+
+    private void startNext() {
+        RegionFetcher f = pending.removeFirst();
+        active.add(f);
+        f.submit();
+    }
+
+    @Override
+    public boolean next() {
+        if (closed || (maxRows > 0 && rowId + 1 >= maxRows)) {
+            currentRow = null;
+            return false;
+        }
+        while (!active.isEmpty()) {
+            try {
+                available.acquire();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+
+            //轮询各个活跃的Region，避免某个快的Region总是排在前面
+            for (int i = 0, size = active.size(); i < size; i++) {
+                RegionFetcher f = active.removeFirst();
+                Value[] row = f.buffer.poll();
+                if (row == null) {
+                    active.addLast(f);
+                    continue;
+                }
+                if (row == END) {
+                    f.finish();
+                    if (!pending.isEmpty())
+                        startNext();
+                    break;
+                }
+                f.resumeIfDrained();
+                active.addLast(f);
+                currentRow = row;
+                rowId++;
+                return true;
+            }
+        }
+        currentRow = null;
+        return false;
+    }
+
+    @Override
+    public Value[] currentRow() {
+        return currentRow;
+    }
+
+    @Override
+    public int getRowId() {
+        return rowId;
+    }
+
+    @Override
+    public int getRowCount() {
+        return UNKNOW_ROW_COUNT;
+    }
+
+    /**
+     * 不缓存已经返回的记录，而是等正在运行的抓取任务结束后在各个Region上重新执行查询
+     */
+    @Override
+    public void reset() {
+        if (closed)
+            return;
+        stop(true);
+        start();
+    }
+
+    @Override
+    public boolean needToClose() {
+        return true;
+    }
+
+    @Override
+    public void close() {
+        if (closed)
+            return;
+        closed = true;
+        stop(false);
+    }
+
+    private void stop(boolean wait) {
+        pending.clear();
+        active.clear();
+        for (RegionFetcher f : fetchers)
+            f.cancel(wait);
+    }
+
+    /**
+     * 抓取一个Region的记录。
+     * 任务在缓冲队列满时结束(running为false)，由消费者在队列只剩一半时重新提交，
+     * 所有状态变化都在this上同步。
+     */
+    private class RegionFetcher implements Runnable {
+        private final CommandInterface command;
+        private final Semaphore available;
+        //多留一个位置给END，这样结束时不用等待消费者
+        private final BlockingQueue<Value[]> buffer = new ArrayBlockingQueue<Value[]>(bufferSize + 1);
+        private final CountDownLatch opened = new CountDownLatch(1);
+
+        private volatile ResultInterface regionResult;
+        private volatile Throwable error;
+        private volatile boolean canceled;
+        private boolean running;
+        private boolean done;
+        private boolean resultClosed;
+
+        RegionFetcher(CommandInterface command, Semaphore available) {
+            this.command = command;
+            this.available = available;
+        }
+
+        synchronized void submit() {
+            running = true;
+            Future<?> future = executor.submit(sessionId, this);
+            //线程池拒绝任务时run不会被调用，此时马上结束，否则消费者会一直等待
+            if (future.isDone()) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    error = e.getCause();
+                    finishRun(true);
+                } catch (InterruptedException e) {
+                    error = e;
+                    finishRun(true);
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            boolean end = false;
+            try {
+                if (canceled)
+                    return;
+                if (regionResult == null) {
+                    regionResult = command.executeQuery(maxRows, false);
+                    opened.countDown();
+                }
+                while (!canceled) {
+                    if (buffer.size() >= bufferSize) {
+                        synchronized (this) {
+                            //消费者在取走记录后才检查running，所以这里看到的队列已满时它一定会重新提交
+                            if (buffer.size() >= bufferSize && !canceled) {
+                                running = false;
+                                return;
+                            }
+                        }
+                        continue;
+                    }
+                    if (!regionResult.next()) {
+                        end = true;
+                        break;
+                    }
+                    buffer.add(regionResult.currentRow());
+                    available.release();
+                }
+            } catch (Throwable t) {
+                error = t;
+                end = true;
+            } finally {
+                if (end || canceled)
+                    finishRun(end);
+            }
+        }
+
+        private synchronized void finishRun(boolean end) {
+            opened.countDown();
+            if (end && !canceled) {
+                buffer.add(END);
+                available.release();
+            }
+            running = false;
+            done = true;
+            if (canceled)
+                closeResult();
+            notifyAll();
+        }
+
+        /**
+         * 消费者取走一条记录后调用，缓冲队列只剩一半时重新提交已经暂停的抓取任务
+         */
+        void resumeIfDrained() {
+            if (buffer.size() > bufferSize / 2)
+                return;
+            synchronized (this) {
+                if (!running && !done && !canceled)
+                    submit();
+            }
+        }
+
+        ResultInterface awaitResult() {
+            boolean opened;
+            try {
+                opened = this.opened.await(SysProperties.PARALLEL_QUERY_OPEN_TIMEOUT, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                close();
+                throw new RuntimeException(e);
+            }
+            if (!opened) {
+                close();
+                throw new RuntimeException("Timeout waiting for the region result after "
+                        + SysProperties.PARALLEL_QUERY_OPEN_TIMEOUT + " ms");
+            }
+            if (error != null) {
+                close();
+                throw new RuntimeException(error);
+            }
+            return regionResult;
+        }
+
+        void finish() {
+            if (error != null) {
+                close();
+                throw new RuntimeException(error);
+            }
+            //第一个Region的结果集还要用来提供元数据，等到整个结果集关闭时再关闭
+            if (this != fetchers[0])
+                closeResult();
+        }
+
+        /**
+         * 不中断正在读远程结果的线程(那样会破坏共用的Transfer)，只设置canceled标记，
+         * 正在运行的任务看到标记后自己关闭结果集
+         *
+         * @param wait 是否等待正在运行的任务结束
+         */
+        synchronized void cancel(boolean wait) {
+            canceled = true;
+            buffer.clear();
+            if (running) {
+                while (wait && running) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            } else {
+                closeResult();
+            }
+        }
+
+        synchronized void closeResult() {
+            if (regionResult != null && !resultClosed) {
+                resultClosed = true;
+                regionResult.close();
+            }
+        }
+    }
+}
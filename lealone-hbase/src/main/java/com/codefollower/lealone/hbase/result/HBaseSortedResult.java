@@ -0,0 +1,177 @@
+/*
+ * Copyright 2011 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.codefollower.lealone.hbase.result;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import com.codefollower.lealone.result.DelegatedResult;
+import com.codefollower.lealone.result.ResultInterface;
+import com.codefollower.lealone.result.SortOrder;
+import com.codefollower.lealone.value.Value;
+
+/**
+ * 对多个已排好序的Region结果集做k路归并。
+ *
+ * 每个Region已按ORDER BY排序并且最多只返回(limit + offset)条记录，
+ * 这里用一个小顶堆每次取出所有Region中最小的那条记录，得到limit条记录后立刻结束，
+ * 不需要把所有Region的记录都拉到本地再排序。
+ */
+public class HBaseSortedResult extends DelegatedResult {
+    private final static int UNKNOW_ROW_COUNT = -1;
+
+    private final List<ResultInterface> results;
+    private final PriorityQueue<RegionCursor> heap;
+    private final int visibleColumnCount;
+    private final int offset;
+    private final int limit;
+
+    private Value[] currentRow;
+    private int rowId = -1;
+
+    /**
+     *
+     * @param results 各个Region的结果集，每个结果集必须已按sort排好序
+     * @param sort 排序规则，索引对应结果集中的列
+     * @param offset 需要跳过的记录数
+     * @param limit 最多返回的记录数，小于0时表示没有限制
+     * @param visibleColumnCount 可见列的个数，Region返回的记录中可能还包含排序用的隐藏列
+     */
+    public HBaseSortedResult(List<ResultInterface> results, final SortOrder sort, int offset, int limit,
+            int visibleColumnCount) {
+        this.results = results;
+        this.result = results.get(0);
+        this.visibleColumnCount = visibleColumnCount;
+        this.offset = offset;
+        this.limit = limit;
+        this.heap = new PriorityQueue<RegionCursor>(results.size(), new Comparator<RegionCursor>() {
+            @Override
+            public int compare(RegionCursor a, RegionCursor b) {
+                int comp = sort.compare(a.row, b.row);
+                if (comp == 0) //排序字段相同时按Region的先后顺序，保证结果是确定的
+                    comp = a.index < b.index ? -1 : (a.index == b.index ? 0 : 1);
+                return comp;
+            }
+        });
+
+        start();
+    }
+
+    private void start() {
+        for (int i = 0, size = results.size(); i < size; i++) {
+            RegionCursor c = new RegionCursor(i, results.get(i));
+            if (c.next())
+                heap.add(c);
+        }
+
+        for (int i = 0; i < offset && nextRow() != null; i++) {
+            //跳过前offset条记录
+        }
+        currentRow = null;
+        rowId = -1;
+    }
+
+    private Value[] nextRow() {
+        RegionCursor c = heap.poll();
+        if (c == null)
+            return null;
+        Value[] row = c.row;
+        if (c.next())
+            heap.add(c);
+        return row;
+    }
+
+    @Override
+    public boolean next() {
+        if (limit >= 0 && rowId + 1 >= limit) {
+            currentRow = null;
+            return false;
+        }
+        currentRow = nextRow();
+        if (currentRow == null)
+            return false;
+        rowId++;
+        return true;
+    }
+
+    @Override
+    public Value[] currentRow() {
+        return currentRow;
+    }
+
+    @Override
+    public int getRowId() {
+        return rowId;
+    }
+
+    @Override
+    public int getRowCount() {
+        return UNKNOW_ROW_COUNT;
+    }
+
+    @Override
+    public int getVisibleColumnCount() {
+        return visibleColumnCount;
+    }
+
+    /**
+     * 重置各个Region的结果集，然后重新归并
+     */
+    @Override
+    public void reset() {
+        heap.clear();
+        for (ResultInterface r : results)
+            r.reset();
+        start();
+    }
+
+    @Override
+    public boolean needToClose() {
+        return true;
+    }
+
+    @Override
+    public void close() {
+        heap.clear();
+        for (ResultInterface r : results)
+            r.close();
+    }
+
+    private static class RegionCursor {
+        private final int index;
+        private final ResultInterface result;
+        private Value[] row;
+
+        RegionCursor(int index, ResultInterface result) {
+            this.index = index;
+            this.result = result;
+        }
+
+        boolean next() {
+            if (result.next()) {
+                row = result.currentRow();
+                return true;
+            }
+            row = null;
+            return false;
+        }
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright 2011 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.codefollower.lealone.hbase.util;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hbase.HColumnDescriptor;
+import org.apache.hadoop.hbase.HTableDescriptor;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.io.hfile.CacheConfig;
+import org.apache.hadoop.hbase.mapreduce.LoadIncrementalHFiles;
+import org.apache.hadoop.hbase.regionserver.StoreFile;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import com.codefollower.lealone.constant.SysProperties;
+import com.codefollower.lealone.util.New;
+
+/**
+ * 把一个HBase表的记录直接写成HFile，最后一次性交给RegionServer导入，不经过WAL和MemStore。
+ *
+ * <ul>
+ * <li>KeyValue先放在内存中，超过lealone.bulk.load.buffer.size时排序，按当前的Region边界切分，
+ *     每个Region的每个列族写一个HFile，所以记录可以按任意顺序加入，内存中只保留一批</li>
+ * <li>同一批中相同的cell只保留最后加入的那个，后面的批次使用更大的时间戳，所以后加入的记录总是覆盖前面的</li>
+ * <li>load时由LoadIncrementalHFiles把HFile移到各Region中，每个Region的导入是原子的，
+ *     如果期间Region分裂了，跨Region的HFile会被它重新切分</li>
+ * </ul>
+ */
+public class BulkLoadWriter {
+    private final Configuration conf;
+    private final String tableName;
+    private final HTable htable;
+    private final HTableDescriptor htd;
+    private final FileSystem fs;
+    private final Path dir;
+
+    private final ArrayList<KeyValue> buffer = New.arrayList();
+    private long bufferSize;
+    private long lastTimestamp;
+    private int fileCount;
+    private byte[][] startKeys;
+
+    public BulkLoadWriter(String tableName) throws IOException {
+        this.tableName = tableName;
+        conf = HBaseUtils.getConfiguration();
+        htable = new HTable(conf, tableName);
+        htd = htable.getTableDescriptor();
+        fs = FileSystem.get(conf);
+        Path root;
+        if (SysProperties.BULK_LOAD_DIR != null)
+            root = new Path(SysProperties.BULK_LOAD_DIR);
+        else
+            root = new Path(fs.getHomeDirectory(), "lealone-bulkload");
+        dir = new Path(root, tableName + "_" + UUID.randomUUID().toString());
+    }
+
+    public String getTableName() {
+        return tableName;
+    }
+
+    /**
+     * 二级索引记录的rowKey以基表记录所在Region的startKey开头，用开始导入时的Region划分，
+     * 导入之前Region分裂了也没关系，分裂时由HBaseIndexRegionObserver调整已有的索引记录，
+     * 但分裂后才导入的索引记录还是旧的前缀，查询时会被当成其他Region的索引记录跳过
+     *
+     * @param row the row key of the base table row
+     * @return the start key of the region that contains the row
+     */
+    public byte[] getRegionStartKey(byte[] row) throws IOException {
+        if (startKeys == null)
+            startKeys = htable.getStartKeys();
+        return startKeys[getRegion(startKeys, row)];
+    }
+
+    /**
+     * 加入一个cell，值为null的cell不写
+     *
+     * @param rowKey the row key
+     * @param family the column family
+     * @param qualifier the column name
+     * @param value the value
+     */
+    public void add(byte[] rowKey, byte[] family, byte[] qualifier, byte[] value) throws IOException {
+        if (value == null)
+            return;
+        //时间戳在flush时才确定
+        KeyValue kv = new KeyValue(rowKey, family, qualifier, 0, value);
+        buffer.add(kv);
+        bufferSize += kv.heapSize();
+        if (bufferSize >= SysProperties.BULK_LOAD_BUFFER_SIZE)
+            flush();
+    }
+
+    /**
+     * 把内存中的cell排序后按Region和列族写成HFile
+     */
+    public void flush() throws IOException {
+        if (buffer.isEmpty())
+            return;
+        //排序是稳定的，相同的cell保持加入的顺序
+        Collections.sort(buffer, KeyValue.COMPARATOR);
+
+        long timestamp = Math.max(System.currentTimeMillis(), lastTimestamp + 1);
+        lastTimestamp = timestamp;
+        byte[][] startKeys = htable.getStartKeys();
+        int region = -1;
+        byte[] regionEndKey = null;
+        Map<String, StoreFile.Writer> writers = new HashMap<String, StoreFile.Writer>();
+        try {
+            for (int i = 0, size = buffer.size(); i < size; i++) {
+                KeyValue kv = buffer.get(i);
+                if (i + 1 < size && KeyValue.COMPARATOR.compare(kv, buffer.get(i + 1)) == 0)
+                    continue; //后面还有相同的cell
+
+                byte[] row = kv.getRow();
+                if (region < 0 || regionEndKey != null && Bytes.compareTo(row, regionEndKey) >= 0) {
+                    //换到下一个Region时，前一个Region的HFile就写完了
+                    closeWriters(writers);
+                    region = getRegion(startKeys, row);
+                    regionEndKey = region + 1 < startKeys.length ? startKeys[region + 1] : null;
+                }
+
+                String family = Bytes.toString(kv.getFamily());
+                StoreFile.Writer w = writers.get(family);
+                if (w == null) {
+                    w = createWriter(kv.getFamily());
+                    writers.put(family, w);
+                }
+                w.append(new KeyValue(row, kv.getFamily(), kv.getQualifier(), timestamp, kv.getValue()));
+            }
+        } finally {
+            closeWriters(writers);
+            buffer.clear();
+            bufferSize = 0;
+        }
+    }
+
+    //startKeys是有序的，第一个Region的startKey是空数组
+    private static int getRegion(byte[][] startKeys, byte[] row) {
+        int low = 0, high = startKeys.length - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (Bytes.compareTo(startKeys[mid], row) <= 0)
+                low = mid;
+            else
+                high = mid - 1;
+        }
+        return low;
+    }
+
+    private StoreFile.Writer createWriter(byte[] family) throws IOException {
+        HColumnDescriptor hcd = htd.getFamily(family);
+        Path familyDir = new Path(dir, Bytes.toString(family));
+        return new StoreFile.WriterBuilder(conf, new CacheConfig(conf), fs, hcd.getBlocksize())
+                .withFilePath(new Path(familyDir, String.valueOf(fileCount++))) //
+                .withCompression(hcd.getCompression()) //
+                .withBloomType(hcd.getBloomFilterType()) //
+                .withComparator(KeyValue.COMPARATOR) //
+                .build();
+    }
+
+    private static void closeWriters(Map<String, StoreFile.Writer> writers) throws IOException {
+        for (StoreFile.Writer w : writers.values()) {
+            w.appendFileInfo(StoreFile.BULKLOAD_TIME_KEY, Bytes.toBytes(System.currentTimeMillis()));
+            w.appendFileInfo(StoreFile.MAJOR_COMPACTION_KEY, Bytes.toBytes(false));
+            w.appendTrackedTimestampsToMetadata();
+            w.close();
+        }
+        writers.clear();
+    }
+
+    /**
+     * 写完剩下的cell，把所有HFile导入到表中
+     */
+    public void load() throws IOException {
+        flush();
+        if (fileCount == 0)
+            return;
+        try {
+            new LoadIncrementalHFiles(conf).doBulkLoad(dir, htable);
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * 删除临时目录(导入成功后HFile已被移走)
+     */
+    public void close() {
+        buffer.clear();
+        try {
+            fs.delete(dir, true);
+        } catch (IOException e) {
+            //ignore
+        }
+        try {
+            htable.close();
+        } catch (IOException e) {
+            //ignore
+        }
+    }
+}
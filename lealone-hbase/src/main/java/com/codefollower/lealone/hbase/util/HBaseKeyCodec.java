@@ -0,0 +1,306 @@
+/*
+ * Copyright 2011 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.codefollower.lealone.hbase.util;
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.sql.Date;
+import java.sql.Time;
+import java.sql.Timestamp;
+
+import com.codefollower.lealone.dbobject.table.Column;
+import com.codefollower.lealone.engine.Database;
+import com.codefollower.lealone.message.DbException;
+import com.codefollower.lealone.value.CompareMode;
+import com.codefollower.lealone.value.DataType;
+import com.codefollower.lealone.value.Value;
+import com.codefollower.lealone.value.ValueBoolean;
+import com.codefollower.lealone.value.ValueByte;
+import com.codefollower.lealone.value.ValueDate;
+import com.codefollower.lealone.value.ValueDecimal;
+import com.codefollower.lealone.value.ValueDouble;
+import com.codefollower.lealone.value.ValueFloat;
+import com.codefollower.lealone.value.ValueInt;
+import com.codefollower.lealone.value.ValueLong;
+import com.codefollower.lealone.value.ValueNull;
+import com.codefollower.lealone.value.ValueShort;
+import com.codefollower.lealone.value.ValueString;
+import com.codefollower.lealone.value.ValueStringFixed;
+import com.codefollower.lealone.value.ValueTime;
+import com.codefollower.lealone.value.ValueTimestamp;
+
+/**
+ * 保持顺序的key编码，编码后的字节数组按无符号字节比较的顺序与值的顺序一致，
+ * 多个值的编码直接拼接起来也能按列的先后顺序比较，并且可以从前往后依次解码。
+ *
+ * <ul>
+ * <li>NULL编码成0x00，其他值先写一个0x01，所以NULL排在最前面</li>
+ * <li>整数(包括BOOLEAN、DATE、TIME)编码成8个字节，把符号位取反</li>
+ * <li>浮点数负数所有位取反，正数只把符号位取反</li>
+ * <li>TIMESTAMP是毫秒数加上4个字节的纳秒数</li>
+ * <li>DECIMAL先写一个字节表示负数、0或正数，然后是小数点的位置(4个字节)和去掉末尾0的各位数字，以0x00结尾，
+ *     负数的这些字节全部取反</li>
+ * <li>字符串是UTF-8编码，0x00换成0x00 0xFF，最后以0x00 0x01结尾，所以短的字符串排在以它为前缀的字符串前面</li>
+ * </ul>
+ */
+public class HBaseKeyCodec {
+    private static final int NULL = 0x00;
+    private static final int NOT_NULL = 0x01;
+
+    private static final int DECIMAL_NEGATIVE = 0x01;
+    private static final int DECIMAL_ZERO = 0x02;
+    private static final int DECIMAL_POSITIVE = 0x03;
+
+    private HBaseKeyCodec() {
+    }
+
+    /**
+     * 这个类型的值能否编码成保持顺序的key
+     *
+     * @param type the value type
+     * @return true if supported
+     */
+    public static boolean isSupportedType(int type) {
+        switch (type) {
+        case Value.BOOLEAN:
+        case Value.BYTE:
+        case Value.SHORT:
+        case Value.INT:
+        case Value.LONG:
+        case Value.DECIMAL:
+        case Value.DOUBLE:
+        case Value.FLOAT:
+        case Value.DATE:
+        case Value.TIME:
+        case Value.TIMESTAMP:
+        case Value.STRING:
+        case Value.STRING_FIXED:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * 这个列的值能否编码成保持顺序的key，有collation时字符串的顺序与字节的顺序不同
+     *
+     * @param database the database
+     * @param column the column
+     * @return true if supported
+     */
+    public static boolean isSupportedColumn(Database database, Column column) {
+        int type = column.getType();
+        if (!isSupportedType(type))
+            return false;
+        return !DataType.isStringType(type) || database.getCompareMode().getName().equals(CompareMode.OFF);
+    }
+
+    /**
+     * 把一个值的编码追加到out
+     *
+     * @param out the output
+     * @param v the value, must have a supported type or be NULL
+     */
+    public static void encode(ByteArrayOutputStream out, Value v) {
+        if (v == null || v == ValueNull.INSTANCE) {
+            out.write(NULL);
+            return;
+        }
+        out.write(NOT_NULL);
+        switch (v.getType()) {
+        case Value.BOOLEAN:
+            writeLong(out, v.getBoolean().booleanValue() ? 1 : 0);
+            break;
+        case Value.BYTE:
+        case Value.SHORT:
+        case Value.INT:
+        case Value.LONG:
+            writeLong(out, v.getLong());
+            break;
+        case Value.DECIMAL:
+            writeDecimal(out, v.getBigDecimal());
+            break;
+        case Value.DOUBLE:
+        case Value.FLOAT: {
+            long bits = Double.doubleToLongBits(v.getDouble());
+            //writeLong会再把符号位取反，所以这里负数只需把除符号位以外的位取反
+            writeLong(out, bits < 0 ? bits ^ Long.MAX_VALUE : bits);
+            break;
+        }
+        case Value.DATE:
+            writeLong(out, v.getDate().getTime());
+            break;
+        case Value.TIME:
+            writeLong(out, v.getTime().getTime());
+            break;
+        case Value.TIMESTAMP: {
+            Timestamp ts = v.getTimestamp();
+            writeLong(out, ts.getTime());
+            writeInt(out, ts.getNanos());
+            break;
+        }
+        case Value.STRING:
+        case Value.STRING_FIXED: {
+            byte[] bytes = HBaseUtils.toBytes(v.getString());
+            for (byte b : bytes) {
+                out.write(b);
+                if (b == 0)
+                    out.write(0xFF);
+            }
+            out.write(0x00);
+            out.write(0x01);
+            break;
+        }
+        default:
+            throw DbException.throwInternalError("type=" + v.getType());
+        }
+    }
+
+    private static void writeDecimal(ByteArrayOutputStream out, BigDecimal d) {
+        int signum = d.signum();
+        if (signum == 0) {
+            out.write(DECIMAL_ZERO);
+            return;
+        }
+        //1.0和1.00相等，所以要去掉末尾的0
+        BigDecimal abs = d.abs().stripTrailingZeros();
+        String digits = abs.unscaledValue().toString();
+        int flip = signum < 0 ? 0xFF : 0;
+        out.write(signum < 0 ? DECIMAL_NEGATIVE : DECIMAL_POSITIVE);
+        int exponent = (digits.length() - abs.scale()) ^ Integer.MIN_VALUE;
+        for (int shift = 24; shift >= 0; shift -= 8)
+            out.write((exponent >>> shift) ^ flip);
+        for (int i = 0, length = digits.length(); i < length; i++)
+            out.write(digits.charAt(i) ^ flip);
+        out.write(flip);
+    }
+
+    private static void writeLong(ByteArrayOutputStream out, long x) {
+        x ^= Long.MIN_VALUE;
+        for (int shift = 56; shift >= 0; shift -= 8)
+            out.write((int) (x >>> shift));
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int x) {
+        for (int shift = 24; shift >= 0; shift -= 8)
+            out.write(x >>> shift);
+    }
+
+    /**
+     * 从buff的当前位置解码一个值
+     *
+     * @param buff the buffer
+     * @param type the value type
+     * @return the value
+     */
+    public static Value decode(ByteBuffer buff, int type) {
+        if (buff.get() == NULL)
+            return ValueNull.INSTANCE;
+        switch (type) {
+        case Value.BOOLEAN:
+            return ValueBoolean.get(readLong(buff) != 0);
+        case Value.BYTE:
+            return ValueByte.get((byte) readLong(buff));
+        case Value.SHORT:
+            return ValueShort.get((short) readLong(buff));
+        case Value.INT:
+            return ValueInt.get((int) readLong(buff));
+        case Value.LONG:
+            return ValueLong.get(readLong(buff));
+        case Value.DECIMAL:
+            return ValueDecimal.get(readDecimal(buff));
+        case Value.DOUBLE:
+        case Value.FLOAT: {
+            long bits = readLong(buff);
+            double d = Double.longBitsToDouble(bits < 0 ? bits ^ Long.MAX_VALUE : bits);
+            return type == Value.DOUBLE ? ValueDouble.get(d) : ValueFloat.get((float) d);
+        }
+        case Value.DATE:
+            return ValueDate.get(new Date(readLong(buff)));
+        case Value.TIME:
+            return ValueTime.get(new Time(readLong(buff)));
+        case Value.TIMESTAMP: {
+            Timestamp ts = new Timestamp(readLong(buff));
+            ts.setNanos(buff.getInt());
+            return ValueTimestamp.get(ts);
+        }
+        case Value.STRING:
+        case Value.STRING_FIXED: {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            while (true) {
+                byte b = buff.get();
+                if (b == 0) {
+                    if (buff.get() == 0x01)
+                        break;
+                }
+                out.write(b);
+            }
+            String s = HBaseUtils.toString(out.toByteArray());
+            return type == Value.STRING ? ValueString.get(s) : ValueStringFixed.get(s);
+        }
+        default:
+            throw DbException.throwInternalError("type=" + type);
+        }
+    }
+
+    private static long readLong(ByteBuffer buff) {
+        return buff.getLong() ^ Long.MIN_VALUE;
+    }
+
+    private static BigDecimal readDecimal(ByteBuffer buff) {
+        int signum = buff.get();
+        if (signum == DECIMAL_ZERO)
+            return BigDecimal.ZERO;
+        int flip = signum == DECIMAL_NEGATIVE ? 0xFF : 0;
+        int exponent = 0;
+        for (int i = 0; i < 4; i++)
+            exponent = (exponent << 8) | ((buff.get() ^ flip) & 0xFF);
+        exponent ^= Integer.MIN_VALUE;
+        StringBuilder digits = new StringBuilder();
+        while (true) {
+            int c = (buff.get() ^ flip) & 0xFF;
+            if (c == 0)
+                break;
+            digits.append((char) c);
+        }
+        BigDecimal d = new BigDecimal(new BigInteger(digits.toString()), digits.length() - exponent);
+        return flip == 0 ? d : d.negate();
+    }
+
+    /**
+     * 得到比所有以prefix开头的key都大的最小key，用作扫描的stopRow
+     *
+     * @param prefix the prefix
+     * @return the next key, or an empty array if there is none (prefix is all 0xFF)
+     */
+    public static byte[] nextPrefix(byte[] prefix) {
+        for (int i = prefix.length - 1; i >= 0; i--) {
+            if (prefix[i] != (byte) 0xFF) {
+                byte[] next = new byte[i + 1];
+                System.arraycopy(prefix, 0, next, 0, i + 1);
+                next[i]++;
+                return next;
+            }
+        }
+        return new byte[0];
+    }
+}
@@ -53,6 +53,13 @@ public class HBaseRegionInfo {
         return regionLocation.getHostname();
     }
 
+    /**
+     * RegionServer在HBase中的地址，与ServerName.getHostAndPort()的格式相同
+     */
+    public String getHostnamePort() {
+        return regionLocation.getHostnamePort();
+    }
+
     public int getTcpPort() {
         return ZooKeeperAdmin.getTcpPort(regionLocation);
     }
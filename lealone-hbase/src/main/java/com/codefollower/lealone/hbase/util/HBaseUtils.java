@@ -231,6 +231,7 @@ public class HBaseUtils {
     }
 
     public static void reset() throws IOException {
+        RegionLocationCache.clear();
         if (hConnection != null) {
             hConnection.close();
             hConnection = null;
@@ -272,14 +273,35 @@ public class HBaseUtils {
     }
 
     public static HBaseRegionInfo getHBaseRegionInfo(byte[] tableName, byte[] rowKey) throws IOException {
+        return RegionLocationCache.getRegionInfo(tableName, rowKey);
+    }
+
+    /**
+     * 不经过RegionLocationCache，直接通过HConnection查找rowKey所在的Region
+     */
+    public static HBaseRegionInfo locateRegion(byte[] tableName, byte[] rowKey) throws IOException {
         HRegionLocation regionLocation = getConnection().locateRegion(tableName, rowKey);
         return new HBaseRegionInfo(regionLocation);
     }
 
+    /**
+     * 不使用HConnection缓存的Region位置，重新到.META.表中查找rowKey所在的Region
+     */
+    public static HBaseRegionInfo relocateRegion(byte[] tableName, byte[] rowKey) throws IOException {
+        HRegionLocation regionLocation = getConnection().relocateRegion(tableName, rowKey);
+        return new HBaseRegionInfo(regionLocation);
+    }
+
     //-----------------以下代码来自org.apache.hadoop.hbase.client.HTable---------------------------//
 
     public static List<byte[]> getStartKeysInRange(byte[] tableName, byte[] startKey, byte[] endKey) throws IOException {
-        Pair<byte[][], byte[][]> startEndKeys = getStartEndKeys(tableName);
+        return RegionLocationCache.getStartKeysInRange(tableName, startKey, endKey);
+    }
+
+    /**
+     * 与getStartKeysInRange(byte[], byte[], byte[])相同，只不过使用的是事先得到的Region起止key，不需要访问HBase
+     */
+    public static List<byte[]> getStartKeysInRange(Pair<byte[][], byte[][]> startEndKeys, byte[] startKey, byte[] endKey) {
         byte[][] startKeys = startEndKeys.getFirst();
         byte[][] endKeys = startEndKeys.getSecond();
 
@@ -297,7 +319,7 @@ public class HBaseUtils {
                     rangeKeys.add(startKey);
                 }
             } else if (Bytes.equals(endKey, HConstants.EMPTY_END_ROW) || //
-                    Bytes.compareTo(startKeys[i], endKey) <= 0) { //原先代码是<=，因为coprocessorExec的语义是要包含endKey的
+                    Bytes.compareTo(startKeys[i], endKey) < 0) { //原先代码是<=(coprocessorExec包含endKey)，这里endKey是不包含的stopRow
                 rangeKeys.add(startKeys[i]);
             } else {
                 break; // past stop
@@ -0,0 +1,210 @@
+/*
+ * Copyright 2011 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.codefollower.lealone.hbase.util;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.hadoop.hbase.HRegionInfo;
+import org.apache.hadoop.hbase.HRegionLocation;
+import org.apache.hadoop.hbase.NotServingRegionException;
+import org.apache.hadoop.hbase.ServerName;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.hbase.util.Pair;
+
+import com.codefollower.lealone.hbase.zookeeper.ZooKeeperAdmin;
+
+/**
+ * 缓存每张表的Region划分以及每个Region所在RegionServer的URL，
+ * 路由SQL时用二分查找确定rowKey落在哪个Region上，不需要再调用HConnection.locateRegion和访问ZooKeeper。
+ *
+ * <ul>
+ * <li>RegionServer下线或者TCP端口变化时由RegionServerTracker和TcpPortTracker调用invalidate</li>
+ * <li>执行SQL时遇到NotServingRegionException(Region已迁移或分裂)由调用者调用invalidate后重试</li>
+ * <li>还未分配RegionServer的Region也保留在Region划分中，落在这样的Region上的rowKey通过HConnection重新定位，
+ *     同时丢弃整张表的缓存</li>
+ * </ul>
+ */
+public class RegionLocationCache {
+    private static final ConcurrentHashMap<String, TableRegions> tables = new ConcurrentHashMap<String, TableRegions>();
+
+    private RegionLocationCache() {
+        // utility class
+    }
+
+    public static TableRegions getTableRegions(byte[] tableName) throws IOException {
+        String key = Bytes.toString(tableName);
+        TableRegions tr = tables.get(key);
+        if (tr == null) {
+            //并发加载时后放入的覆盖先放入的，两者的内容是一样的
+            tr = TableRegions.load(tableName);
+            tables.put(key, tr);
+        }
+        return tr;
+    }
+
+    public static HBaseRegionInfo getRegionInfo(byte[] tableName, byte[] rowKey) throws IOException {
+        return getTableRegions(tableName).getRegionInfo(rowKey);
+    }
+
+    public static List<byte[]> getStartKeysInRange(byte[] tableName, byte[] startKey, byte[] endKey) throws IOException {
+        return getTableRegions(tableName).getStartKeysInRange(startKey, endKey);
+    }
+
+    public static void invalidate(byte[] tableName) {
+        TableRegions tr = tables.remove(Bytes.toString(tableName));
+        if (tr != null)
+            tr.invalidated = true;
+    }
+
+    /**
+     * 丢弃一张表的缓存，但只在缓存的还是指定的TableRegions时才从缓存中删除，不会删掉别的线程刚加载的
+     */
+    static void invalidate(byte[] tableName, TableRegions tr) {
+        tables.remove(Bytes.toString(tableName), tr);
+        tr.invalidated = true;
+    }
+
+    /**
+     * 丢弃包含位于指定RegionServer上的Region的那些表
+     *
+     * @param hostAndPort RegionServer的ServerName.getHostAndPort()
+     */
+    public static void invalidateServer(String hostAndPort) {
+        for (Map.Entry<String, TableRegions> e : tables.entrySet()) {
+            if (e.getValue().contains(hostAndPort)) {
+                tables.remove(e.getKey());
+                e.getValue().invalidated = true;
+            }
+        }
+    }
+
+    public static void clear() {
+        for (TableRegions tr : tables.values())
+            tr.invalidated = true;
+        tables.clear();
+    }
+
+    /**
+     * 判断异常是否是因为Region已不在缓存中记录的RegionServer上，此时可以调用invalidate后重试。
+     * 远程执行时异常经过了序列化，只能从异常消息中判断。
+     */
+    public static boolean isRegionNotServing(Throwable t) {
+        String name = NotServingRegionException.class.getName();
+        for (; t != null; t = t.getCause()) {
+            if (t instanceof NotServingRegionException)
+                return true;
+            if (t.getMessage() != null && t.getMessage().contains(name))
+                return true;
+            if (t.getCause() == t)
+                break;
+        }
+        return false;
+    }
+
+    /**
+     * 某张表在某一时刻的Region划分，一旦创建就不再变化，Region有变动时整体丢弃重建
+     */
+    public static class TableRegions {
+        private final byte[] tableName;
+        private final Pair<byte[][], byte[][]> startEndKeys;
+        private final HBaseRegionInfo[] regions; //还未分配的Region为null
+        private volatile boolean invalidated;
+
+        static TableRegions load(byte[] tableName) throws IOException {
+            //确保RegionServer下线时能收到通知
+            ZooKeeperAdmin.getRegionServerTracker();
+            return new TableRegions(tableName, HBaseUtils.getRegionLocations(tableName));
+        }
+
+        /**
+         * 
+         * @param tableName 表名
+         * @param locations 所有Region以及它们所在的RegionServer，还未分配的Region对应null
+         */
+        public TableRegions(byte[] tableName, NavigableMap<HRegionInfo, ServerName> locations) {
+            int size = locations.size();
+            List<byte[]> startKeys = new ArrayList<byte[]>(size);
+            List<byte[]> endKeys = new ArrayList<byte[]>(size);
+            List<HBaseRegionInfo> regions = new ArrayList<HBaseRegionInfo>(size);
+            for (Map.Entry<HRegionInfo, ServerName> e : locations.entrySet()) {
+                HRegionInfo hri = e.getKey();
+                ServerName sn = e.getValue();
+                startKeys.add(hri.getStartKey());
+                endKeys.add(hri.getEndKey());
+                //不能跳过还未分配的Region，否则二分查找会把落在它上面的rowKey路由到前一个Region
+                if (sn == null)
+                    regions.add(null);
+                else
+                    regions.add(new HBaseRegionInfo(new HRegionLocation(hri, sn.getHostname(), sn.getPort())));
+            }
+
+            this.tableName = tableName;
+            this.startEndKeys = new Pair<byte[][], byte[][]>(startKeys.toArray(new byte[startKeys.size()][]),
+                    endKeys.toArray(new byte[endKeys.size()][]));
+            this.regions = regions.toArray(new HBaseRegionInfo[regions.size()]);
+        }
+
+        public byte[] getTableName() {
+            return tableName;
+        }
+
+        /**
+         * 是否已被丢弃，已被丢弃的TableRegions仍可使用，但是应该尽快通过getTableRegions重新获取
+         */
+        public boolean isInvalidated() {
+            return invalidated;
+        }
+
+        public Pair<byte[][], byte[][]> getStartEndKeys() {
+            return startEndKeys;
+        }
+
+        public HBaseRegionInfo getRegionInfo(byte[] rowKey) throws IOException {
+            int index = Arrays.binarySearch(startEndKeys.getFirst(), rowKey, Bytes.BYTES_COMPARATOR);
+            if (index < 0) //没找到时返回的是(-(插入点) - 1)，rowKey落在插入点前一个Region上
+                index = -(index + 1) - 1;
+            if (index < 0) //还没有Region信息(比如Region正在分配)，直接问HBase
+                return HBaseUtils.locateRegion(tableName, rowKey);
+            if (regions[index] == null) {
+                //缓存时Region还未分配(比如正在分裂或迁移)，丢弃整张表的缓存，这个rowKey重新定位
+                RegionLocationCache.invalidate(tableName, this);
+                return HBaseUtils.relocateRegion(tableName, rowKey);
+            }
+            return regions[index];
+        }
+
+        public List<byte[]> getStartKeysInRange(byte[] startKey, byte[] endKey) {
+            return HBaseUtils.getStartKeysInRange(startEndKeys, startKey, endKey);
+        }
+
+        boolean contains(String hostAndPort) {
+            for (HBaseRegionInfo hri : regions)
+                if (hri != null && hri.getHostnamePort().equals(hostAndPort))
+                    return true;
+            return false;
+        }
+    }
+}
@@ -32,6 +32,8 @@ import org.apache.hadoop.hbase.zookeeper.ZooKeeperListener;
 import org.apache.hadoop.hbase.zookeeper.ZooKeeperWatcher;
 import org.apache.zookeeper.KeeperException;
 
+import com.codefollower.lealone.hbase.util.RegionLocationCache;
+
 /**
  * 
  * 改编自{@link org.apache.hadoop.hbase.zookeeper.RegionServerTracker}
@@ -63,11 +65,16 @@ public class RegionServerTracker extends ZooKeeperListener {
 
     private void add(final List<String> servers) throws IOException {
         synchronized (this.regionServers) {
+            NavigableSet<ServerName> old = new TreeSet<ServerName>(this.regionServers);
             this.regionServers.clear();
             for (String n : servers) {
                 ServerName sn = ServerName.parseServerName(ZKUtil.getNodeName(n));
                 this.regionServers.add(sn);
+                old.remove(sn);
             }
+            //已下线的RegionServer上的Region会被重新分配，缓存的位置已无效
+            for (ServerName sn : old)
+                RegionLocationCache.invalidateServer(sn.getHostAndPort());
         }
     }
 
@@ -75,6 +82,7 @@ public class RegionServerTracker extends ZooKeeperListener {
         synchronized (this.regionServers) {
             this.regionServers.remove(sn);
         }
+        RegionLocationCache.invalidateServer(sn.getHostAndPort());
     }
 
     @Override
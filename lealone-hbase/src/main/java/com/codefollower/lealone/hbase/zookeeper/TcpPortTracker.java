@@ -21,6 +21,7 @@ package com.codefollower.lealone.hbase.zookeeper;
 
 import java.io.IOException;
 import java.util.List;
+import java.util.Map;
 
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -34,6 +35,8 @@ import org.apache.hadoop.hbase.zookeeper.ZooKeeperListener;
 import org.apache.hadoop.hbase.zookeeper.ZooKeeperWatcher;
 import org.apache.zookeeper.KeeperException;
 
+import com.codefollower.lealone.hbase.util.RegionLocationCache;
+
 public class TcpPortTracker extends ZooKeeperListener {
 
     /*
@@ -85,7 +88,14 @@ public class TcpPortTracker extends ZooKeeperListener {
             tcpPortMap.put(n.substring(0, pos), Integer.parseInt(n.substring(pos + 1)));
         }
 
+        ConcurrentHashMap<String, Integer> old = this.tcpPortMap;
         this.tcpPortMap = tcpPortMap;
+
+        //缓存的Region位置中包含了TCP端口，端口变化或者Server下线后要丢弃
+        for (Map.Entry<String, Integer> e : old.entrySet()) {
+            if (!e.getValue().equals(tcpPortMap.get(e.getKey())))
+                RegionLocationCache.invalidateServer(e.getKey());
+        }
     }
 
     @Override
@@ -93,7 +103,9 @@ public class TcpPortTracker extends ZooKeeperListener {
         if (path.startsWith(ZooKeeperAdmin.TCP_SERVER_NODE)) {
             String serverName = ZKUtil.getNodeName(path);
             serverName = serverName.substring(2);
-            tcpPortMap.remove(serverName.substring(0, serverName.lastIndexOf(Addressing.HOSTNAME_PORT_SEPARATOR)));
+            String hostAndPort = serverName.substring(0, serverName.lastIndexOf(Addressing.HOSTNAME_PORT_SEPARATOR));
+            tcpPortMap.remove(hostAndPort);
+            RegionLocationCache.invalidateServer(hostAndPort);
         }
     }
 
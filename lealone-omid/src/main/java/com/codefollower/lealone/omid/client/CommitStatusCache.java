@@ -0,0 +1,226 @@
+/**
+ * Copyright (c) 2011 Yahoo! Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+
+package com.codefollower.lealone.omid.client;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import com.codefollower.lealone.omid.tso.Committed;
+
+/**
+ * TSOClient本地的事务提交状态，由TSO推送的提交、中止、清除和largestDeletedTimestamp报告更新，
+ * validRead先在这里判断，判断不了时才去问TSO。
+ *
+ * 提交时间戳放在Committed中，largestDeletedTimestamp提高时按桶丢弃。
+ * 中止的事务要一直留到TSO发来清除报告，为了限制内存，用以long为key的开放寻址表保存，
+ * 满了以后丢弃开始时间戳较小的一半，并记下丢弃的最大开始时间戳(abortedWatermark)，
+ * 不大于它又不在表中的事务就不能断定没有中止，只能去问TSO。
+ */
+class CommitStatusCache {
+    static final int INVALID = 0;
+    static final int VALID = 1;
+    static final int UNKNOWN = 2;
+
+    private final int maxAborted;
+
+    private volatile Committed committed = new Committed();
+    private volatile long largestDeletedTimestamp;
+    private volatile long connectionTimestamp;
+    private volatile boolean hasConnectionTimestamp;
+
+    //以下字段由lock保护，0表示空位(时间戳都大于0)
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final long[] aborted;
+    private int abortedCount;
+    private long abortedWatermark;
+
+    CommitStatusCache(int maxAborted) {
+        this.maxAborted = Math.max(2, maxAborted);
+        //负载因子不超过0.5
+        int capacity = 16;
+        while (capacity < this.maxAborted * 2)
+            capacity <<= 1;
+        aborted = new long[capacity];
+    }
+
+    /**
+     * 不访问TSO，判断事务transaction写的数据对开始时间戳为startTimestamp的事务是否可见
+     *
+     * @return VALID、INVALID或UNKNOWN
+     */
+    int getStatus(long transaction, long startTimestamp) {
+        if (transaction == startTimestamp)
+            return VALID;
+        long watermark;
+        lock.readLock().lock();
+        try {
+            if (contains(transaction))
+                return INVALID;
+            watermark = abortedWatermark;
+        } finally {
+            lock.readLock().unlock();
+        }
+        long commitTimestamp = committed.getCommit(transaction);
+        if (commitTimestamp != -1)
+            return commitTimestamp <= startTimestamp ? VALID : INVALID;
+        //可能是被丢弃的中止事务
+        if (transaction <= watermark)
+            return UNKNOWN;
+        long largestDeletedTimestamp = this.largestDeletedTimestamp;
+        if (hasConnectionTimestamp && transaction > connectionTimestamp)
+            return transaction <= largestDeletedTimestamp ? VALID : INVALID;
+        if (transaction <= largestDeletedTimestamp)
+            return VALID;
+        return UNKNOWN;
+    }
+
+    void commit(long startTimestamp, long commitTimestamp) {
+        committed.commit(startTimestamp, commitTimestamp);
+    }
+
+    void abort(long startTimestamp) {
+        if (startTimestamp <= 0)
+            return;
+        lock.writeLock().lock();
+        try {
+            if (abortedCount >= maxAborted && !contains(startTimestamp))
+                evictOldest();
+            add(startTimestamp);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    void clean(long startTimestamp) {
+        lock.writeLock().lock();
+        try {
+            remove(startTimestamp);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    long getLargestDeletedTimestamp() {
+        return largestDeletedTimestamp;
+    }
+
+    void raiseLargestDeletedTimestamp(long largestDeletedTimestamp) {
+        this.largestDeletedTimestamp = largestDeletedTimestamp;
+        committed.raiseLargestDeletedTransaction(largestDeletedTimestamp);
+    }
+
+    /**
+     * 这个连接上收到的最小时间戳，比它大的事务的提交和中止报告都会推送过来
+     */
+    void setConnectionTimestamp(long timestamp) {
+        if (!hasConnectionTimestamp || timestamp < connectionTimestamp) {
+            connectionTimestamp = timestamp;
+            hasConnectionTimestamp = true;
+        }
+    }
+
+    /**
+     * 重新连接TSO时调用，之后TSO会重新推送中止的事务
+     */
+    void clear() {
+        lock.writeLock().lock();
+        try {
+            Arrays.fill(aborted, 0);
+            abortedCount = 0;
+            abortedWatermark = 0;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        committed = new Committed();
+        largestDeletedTimestamp = 0;
+        connectionTimestamp = 0;
+        hasConnectionTimestamp = false;
+    }
+
+    int getAbortedCount() {
+        lock.readLock().lock();
+        try {
+            return abortedCount;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private int slot(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & (aborted.length - 1);
+    }
+
+    private boolean contains(long key) {
+        int mask = aborted.length - 1;
+        for (int i = slot(key);; i = (i + 1) & mask) {
+            long k = aborted[i];
+            if (k == key)
+                return true;
+            if (k == 0)
+                return false;
+        }
+    }
+
+    private void add(long key) {
+        int mask = aborted.length - 1;
+        int i = slot(key);
+        while (aborted[i] != 0) {
+            if (aborted[i] == key)
+                return;
+            i = (i + 1) & mask;
+        }
+        aborted[i] = key;
+        abortedCount++;
+    }
+
+    private void remove(long key) {
+        int mask = aborted.length - 1;
+        int i = slot(key);
+        while (aborted[i] != key) {
+            if (aborted[i] == 0)
+                return;
+            i = (i + 1) & mask;
+        }
+        //把后面同一探测链上的key往前移，填补空位，这样查找时遇到0就可以停止
+        for (int j = (i + 1) & mask; aborted[j] != 0; j = (j + 1) & mask) {
+            int home = slot(aborted[j]);
+            if (((j - home) & mask) >= ((j - i) & mask)) {
+                aborted[i] = aborted[j];
+                i = j;
+            }
+        }
+        aborted[i] = 0;
+        abortedCount--;
+    }
+
+    private void evictOldest() {
+        long[] keys = new long[abortedCount];
+        int n = 0;
+        for (long k : aborted) {
+            if (k != 0)
+                keys[n++] = k;
+        }
+        Arrays.sort(keys);
+        int evicted = keys.length / 2;
+        abortedWatermark = Math.max(abortedWatermark, keys[evicted - 1]);
+        Arrays.fill(aborted, 0);
+        abortedCount = 0;
+        for (int i = evicted; i < keys.length; i++)
+            add(keys[i]);
+    }
+}
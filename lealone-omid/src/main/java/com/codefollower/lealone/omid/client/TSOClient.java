@@ -21,11 +21,9 @@ import java.net.InetSocketAddress;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Queue;
-import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.concurrent.ArrayBlockingQueue;
@@ -51,7 +49,6 @@ import org.jboss.netty.handler.execution.OrderedMemoryAwareThreadPoolExecutor;
 
 import com.codefollower.lealone.omid.replication.Zipper;
 import com.codefollower.lealone.omid.replication.ZipperState;
-import com.codefollower.lealone.omid.tso.Committed;
 import com.codefollower.lealone.omid.tso.RowKey;
 import com.codefollower.lealone.omid.tso.TSOMessage;
 import com.codefollower.lealone.omid.tso.messages.AbortRequest;
@@ -64,6 +61,8 @@ import com.codefollower.lealone.omid.tso.messages.CommitResponse;
 import com.codefollower.lealone.omid.tso.messages.CommittedTransactionReport;
 import com.codefollower.lealone.omid.tso.messages.FullAbortRequest;
 import com.codefollower.lealone.omid.tso.messages.LargestDeletedTimestampReport;
+import com.codefollower.lealone.omid.tso.messages.TimestampRangeRequest;
+import com.codefollower.lealone.omid.tso.messages.TimestampRangeResponse;
 import com.codefollower.lealone.omid.tso.messages.TimestampRequest;
 import com.codefollower.lealone.omid.tso.messages.TimestampResponse;
 import com.codefollower.lealone.omid.tso.serialization.TSODecoder;
@@ -79,14 +78,19 @@ public class TSOClient extends SimpleChannelHandler {
     };
 
     private Queue<CreateCallback> createCallbacks;
+
+    //已有时间戳请求在等待响应时，新的getNewTimestamp先放到waitingCreates，
+    //收到响应后再把这期间积累的合并成一个TimestampRangeRequest发出去，
+    //所以低负载时不会增加延迟，并发越高合并得越多。
+    //waitingCreates和timestampRequestPending都由createCallbacks同步
+    private final List<CreateCallback> waitingCreates = new ArrayList<CreateCallback>();
+    private boolean timestampRequestPending;
+    private int maxTimestampBatch;
     private Map<Long, CommitCallback> commitCallbacks;
-    private Map<Long, List<CommitQueryCallback>> isCommittedCallbacks;
+    //key是被查询的事务，同一个事务同时只发一个CommitQueryRequest，其他读者等同一个响应
+    private Map<Long, List<PendingCommitQuery>> isCommittedCallbacks;
 
-    private Committed committed = new Committed();
-    private Set<Long> aborted = Collections.synchronizedSet(new HashSet<Long>(1000));
-    private long largestDeletedTimestamp;
-    private long connectionTimestamp = 0;
-    private boolean hasConnectionTimestamp = false;
+    private final CommitStatusCache cache;
 
     private ChannelFactory factory;
     private ClientBootstrap bootstrap;
@@ -149,31 +153,82 @@ public class TSOClient extends SimpleChannelHandler {
         }
 
         public void execute(Channel channel) {
-            try {
-                synchronized (createCallbacks) {
-                    createCallbacks.add(cb);
-                }
-
-                TimestampRequest tr = new TimestampRequest();
-                ChannelFuture f = channel.write(tr);
-                f.addListener(new ChannelFutureListener() {
-                    public void operationComplete(ChannelFuture future) {
-                        if (!future.isSuccess()) {
-                            error(new IOException("Error writing to socket"));
-                        }
-                    }
-                });
-            } catch (Exception e) {
-                error(e);
+            synchronized (createCallbacks) {
+                waitingCreates.add(cb);
+                if (!timestampRequestPending)
+                    sendTimestampRequest(channel);
             }
         }
 
         public void error(Exception e) {
-            synchronized (createCallbacks) {
-                createCallbacks.remove();
+            cb.error(e);
+        }
+    }
+
+    /**
+     * 把waitingCreates中最多maxTimestampBatch个请求合并成一个发出去，
+     * 调用者必须持有createCallbacks的锁，这样发送的顺序与createCallbacks中的顺序一致。
+     */
+    private void sendTimestampRequest(Channel channel) {
+        int count = Math.min(waitingCreates.size(), maxTimestampBatch);
+        List<CreateCallback> head = waitingCreates.subList(0, count);
+        final List<CreateCallback> batch = new ArrayList<CreateCallback>(head);
+        head.clear();
+        createCallbacks.addAll(batch);
+        timestampRequestPending = true;
+
+        TSOMessage tr = count == 1 ? new TimestampRequest() : new TimestampRangeRequest(count);
+        ChannelFuture f = channel.write(tr);
+        f.addListener(new ChannelFutureListener() {
+            public void operationComplete(ChannelFuture future) {
+                if (!future.isSuccess()) {
+                    synchronized (createCallbacks) {
+                        createCallbacks.removeAll(batch);
+                        timestampRequestPending = false;
+                    }
+                    Exception e = new IOException("Error writing to socket");
+                    for (CreateCallback cb : batch) {
+                        cb.error(e);
+                    }
+                }
             }
+        });
+    }
 
-            cb.error(e);
+    /**
+     * 按请求的顺序把[first, first + count)分给等待中的CreateCallback，
+     * 然后发出这期间积累的请求。
+     */
+    private void timestampsReceived(Channel channel, long first, int count) {
+        cache.setConnectionTimestamp(first);
+        CreateCallback[] cbs = new CreateCallback[count];
+        int n = 0;
+        synchronized (createCallbacks) {
+            while (n < count) {
+                CreateCallback cb = createCallbacks.poll();
+                if (cb == null)
+                    break;
+                cbs[n++] = cb;
+            }
+            timestampRequestPending = false;
+            if (!waitingCreates.isEmpty())
+                sendTimestampRequest(channel);
+        }
+        if (n < count) {
+            LOG.error("Receiving " + count + " timestamps from " + first + ", but only " + n + " requested");
+        }
+        for (int i = 0; i < n; i++) {
+            cbs[i].complete(first + i);
+        }
+    }
+
+    private static class PendingCommitQuery {
+        final long startTimestamp;
+        final CommitQueryCallback cb;
+
+        PendingCommitQuery(long startTimestamp, CommitQueryCallback cb) {
+            this.startTimestamp = startTimestamp;
+            this.cb = cb;
         }
     }
 
@@ -189,35 +244,46 @@ public class TSOClient extends SimpleChannelHandler {
         }
 
         public void execute(Channel channel) {
-            try {
-                synchronized (isCommittedCallbacks) {
-                    List<CommitQueryCallback> callbacks = isCommittedCallbacks.get(startTimestamp);
-                    if (callbacks == null) {
-                        callbacks = new ArrayList<CommitQueryCallback>(1);
-                    }
-                    callbacks.add(cb);
-                    isCommittedCallbacks.put(startTimestamp, callbacks);
+            synchronized (isCommittedCallbacks) {
+                List<PendingCommitQuery> callbacks = isCommittedCallbacks.get(pendingWriteTimestamp);
+                if (callbacks != null) {
+                    //已经在问这个事务了，和它一起等响应
+                    callbacks.add(new PendingCommitQuery(startTimestamp, cb));
+                    return;
                 }
+                callbacks = new ArrayList<PendingCommitQuery>(1);
+                callbacks.add(new PendingCommitQuery(startTimestamp, cb));
+                isCommittedCallbacks.put(pendingWriteTimestamp, callbacks);
+            }
 
+            try {
                 CommitQueryRequest qr = new CommitQueryRequest(startTimestamp, pendingWriteTimestamp);
                 ChannelFuture f = channel.write(qr);
                 f.addListener(new ChannelFutureListener() {
                     public void operationComplete(ChannelFuture future) {
                         if (!future.isSuccess()) {
-                            error(new IOException("Error writing to socket"));
+                            queryFailed(new IOException("Error writing to socket"));
                         }
                     }
                 });
             } catch (Exception e) {
-                error(e);
+                queryFailed(e);
             }
         }
 
-        public void error(Exception e) {
+        private void queryFailed(Exception e) {
+            List<PendingCommitQuery> callbacks;
             synchronized (isCommittedCallbacks) {
-                isCommittedCallbacks.remove(startTimestamp);
+                callbacks = isCommittedCallbacks.remove(pendingWriteTimestamp);
             }
+            if (callbacks != null) {
+                for (PendingCommitQuery q : callbacks) {
+                    q.cb.error(e);
+                }
+            }
+        }
 
+        public void error(Exception e) {
             cb.error(e);
         }
     }
@@ -307,11 +373,11 @@ public class TSOClient extends SimpleChannelHandler {
 
     public TSOClient(Configuration conf) throws IOException {
         state = State.DISCONNECTED;
-        queuedOps = new ArrayBlockingQueue<Op>(200);
+        queuedOps = new ArrayBlockingQueue<Op>(conf.getInt("tso.max_queued_ops", 200));
         retryTimer = new Timer(true);
 
         commitCallbacks = Collections.synchronizedMap(new HashMap<Long, CommitCallback>());
-        isCommittedCallbacks = Collections.synchronizedMap(new HashMap<Long, List<CommitQueryCallback>>());
+        isCommittedCallbacks = Collections.synchronizedMap(new HashMap<Long, List<PendingCommitQuery>>());
         createCallbacks = new ConcurrentLinkedQueue<CreateCallback>();
         channel = null;
 
@@ -336,6 +402,9 @@ public class TSOClient extends SimpleChannelHandler {
         int port = conf.getInt("tso.port", 1234);
         maxRetries = conf.getInt("tso.max_retries", 100);
         retryDelayMs = conf.getInt("tso.retry_delay_ms", 1000);
+        //设为1时每个getNewTimestamp单独发一个TimestampRequest
+        maxTimestampBatch = Math.max(1, conf.getInt("tso.timestamp_batch_max", 1000));
+        cache = new CommitStatusCache(conf.getInt("tso.aborted_cache_size", 64 * 1024));
 
         if (host == null) {
             throw new IOException("tso.host missing from configuration");
@@ -435,11 +504,7 @@ public class TSOClient extends SimpleChannelHandler {
     }
 
     private void clearState() {
-        committed = new Committed();
-        aborted.clear();
-        largestDeletedTimestamp = 0;
-        connectionTimestamp = 0;
-        hasConnectionTimestamp = false;
+        cache.clear();
     }
 
     @Override
@@ -449,18 +514,25 @@ public class TSOClient extends SimpleChannelHandler {
                 LOG.debug("Channel disconnected");
             channel = null;
             state = State.DISCONNECTED;
-            for (CreateCallback cb : createCallbacks) {
-                cb.error(new IOException("Channel Disconnected"));
+            synchronized (createCallbacks) {
+                for (CreateCallback cb : createCallbacks) {
+                    cb.error(new IOException("Channel Disconnected"));
+                }
+                for (CreateCallback cb : waitingCreates) {
+                    cb.error(new IOException("Channel Disconnected"));
+                }
+                createCallbacks.clear();
+                waitingCreates.clear();
+                timestampRequestPending = false;
             }
             for (CommitCallback cb : commitCallbacks.values()) {
                 cb.error(new IOException("Channel Disconnected"));
             }
-            for (List<CommitQueryCallback> lcqb : isCommittedCallbacks.values()) {
-                for (CommitQueryCallback cqb : lcqb) {
-                    cqb.error(new IOException("Channel Disconnected"));
+            for (List<PendingCommitQuery> lcqb : isCommittedCallbacks.values()) {
+                for (PendingCommitQuery cqb : lcqb) {
+                    cqb.cb.error(new IOException("Channel Disconnected"));
                 }
             }
-            createCallbacks.clear();
             commitCallbacks.clear();
             isCommittedCallbacks.clear();
             connectIfNeeded();
@@ -468,17 +540,9 @@ public class TSOClient extends SimpleChannelHandler {
     }
 
     public boolean validRead(long transaction, long startTimestamp) throws IOException {
-        if (transaction == startTimestamp)
-            return true;
-        if (aborted.contains(transaction))
-            return false;
-        long commitTimestamp = committed.getCommit(transaction);
-        if (commitTimestamp != -1)
-            return commitTimestamp <= startTimestamp;
-        if (hasConnectionTimestamp && transaction > connectionTimestamp)
-            return transaction <= largestDeletedTimestamp;
-        if (transaction <= largestDeletedTimestamp)
-            return true;
+        int status = cache.getStatus(transaction, startTimestamp);
+        if (status != CommitStatusCache.UNKNOWN)
+            return status == CommitStatusCache.VALID;
         askedTSO++;
         SyncCommitQueryCallback cb = new SyncCommitQueryCallback();
         isCommitted(startTimestamp, transaction, cb);
@@ -490,6 +554,44 @@ public class TSOClient extends SimpleChannelHandler {
         return cb.isCommitted();
     }
 
+    /**
+     * 批量版本的validRead，本地判断不了的事务同时发给TSO，再一起等响应，
+     * 所以最多只等一次往返。
+     *
+     * @param transactions 要判断的事务，可以有重复
+     * @param startTimestamp 读者的开始时间戳
+     * @return 与transactions一一对应
+     */
+    public boolean[] validRead(long[] transactions, long startTimestamp) throws IOException {
+        boolean[] valid = new boolean[transactions.length];
+        SyncCommitQueryCallback[] cbs = null;
+        for (int i = 0; i < transactions.length; i++) {
+            int status = cache.getStatus(transactions[i], startTimestamp);
+            if (status != CommitStatusCache.UNKNOWN) {
+                valid[i] = status == CommitStatusCache.VALID;
+                continue;
+            }
+            if (cbs == null)
+                cbs = new SyncCommitQueryCallback[transactions.length];
+            askedTSO++;
+            cbs[i] = new SyncCommitQueryCallback();
+            isCommitted(startTimestamp, transactions[i], cbs[i]);
+        }
+        if (cbs != null) {
+            try {
+                for (int i = 0; i < cbs.length; i++) {
+                    if (cbs[i] != null) {
+                        cbs[i].await();
+                        valid[i] = cbs[i].isCommitted();
+                    }
+                }
+            } catch (InterruptedException e) {
+                throw new IOException("Commit query didn't complete", e);
+            }
+        }
+        return valid;
+    }
+
     /**
      * When a message is received, handle it based on its type
      */
@@ -511,48 +613,44 @@ public class TSOClient extends SimpleChannelHandler {
             }
             cb.complete(r.committed ? Result.OK : Result.ABORTED, r.commitTimestamp);
         } else if (msg instanceof TimestampResponse) {
-            CreateCallback cb = createCallbacks.poll();
-            long timestamp = ((TimestampResponse) msg).timestamp;
-            if (!hasConnectionTimestamp || timestamp < connectionTimestamp) {
-                hasConnectionTimestamp = true;
-                connectionTimestamp = timestamp;
-            }
-            if (cb == null) {
-                LOG.error("Receiving a timestamp response, but none requested: " + timestamp);
-                return;
-            }
-            cb.complete(timestamp);
+            timestampsReceived(e.getChannel(), ((TimestampResponse) msg).timestamp, 1);
+        } else if (msg instanceof TimestampRangeResponse) {
+            TimestampRangeResponse r = (TimestampRangeResponse) msg;
+            timestampsReceived(e.getChannel(), r.first, r.count);
         } else if (msg instanceof CommitQueryResponse) {
             CommitQueryResponse r = (CommitQueryResponse) msg;
+            long largestDeletedTimestamp = cache.getLargestDeletedTimestamp();
+            //TSO中既没有提交时间戳也不是中止的，在largestDeletedTimestamp之下就是早已提交的事务
+            boolean committed = r.committed || r.retry && r.queryTimestamp <= largestDeletedTimestamp;
             if (r.commitTimestamp != 0) {
-                committed.commit(r.queryTimestamp, r.commitTimestamp);
-            } else if (r.committed) {
-                committed.commit(r.queryTimestamp, largestDeletedTimestamp);
+                cache.commit(r.queryTimestamp, r.commitTimestamp);
+            } else if (committed) {
+                cache.commit(r.queryTimestamp, largestDeletedTimestamp);
             }
-            List<CommitQueryCallback> cbs = null;
+            List<PendingCommitQuery> cbs = null;
             synchronized (isCommittedCallbacks) {
-                cbs = isCommittedCallbacks.remove(r.startTimestamp);
+                cbs = isCommittedCallbacks.remove(r.queryTimestamp);
             }
             if (cbs == null) {
                 LOG.error("Received a commit query response for a nonexisting request");
                 return;
             }
-            for (CommitQueryCallback cb : cbs) {
-                cb.complete(r.committed);
+            for (PendingCommitQuery q : cbs) {
+                //r.committed是对发请求的那个读者的结果，其他读者要用自己的开始时间戳判断
+                q.cb.complete(r.commitTimestamp != 0 ? r.commitTimestamp < q.startTimestamp : committed);
             }
         } else if (msg instanceof CommittedTransactionReport) {
             CommittedTransactionReport ctr = (CommittedTransactionReport) msg;
-            committed.commit(ctr.startTimestamp, ctr.commitTimestamp);
+            cache.commit(ctr.startTimestamp, ctr.commitTimestamp);
         } else if (msg instanceof CleanedTransactionReport) {
             CleanedTransactionReport r = (CleanedTransactionReport) msg;
-            aborted.remove(r.startTimestamp);
+            cache.clean(r.startTimestamp);
         } else if (msg instanceof AbortedTransactionReport) {
             AbortedTransactionReport r = (AbortedTransactionReport) msg;
-            aborted.add(r.startTimestamp);
+            cache.abort(r.startTimestamp);
         } else if (msg instanceof LargestDeletedTimestampReport) {
             LargestDeletedTimestampReport r = (LargestDeletedTimestampReport) msg;
-            largestDeletedTimestamp = r.largestDeletedTimestamp;
-            committed.raiseLargestDeletedTransaction(r.largestDeletedTimestamp);
+            cache.raiseLargestDeletedTimestamp(r.largestDeletedTimestamp);
         } else if (msg instanceof ZipperState) {
             // ignore
         } else {
@@ -609,7 +707,12 @@ public class TSOClient extends SimpleChannelHandler {
             for (CreateCallback cb : createCallbacks) {
                 cb.error(e);
             }
+            for (CreateCallback cb : waitingCreates) {
+                cb.error(e);
+            }
             createCallbacks.clear();
+            waitingCreates.clear();
+            timestampRequestPending = false;
         }
 
         synchronized (commitCallbacks) {
@@ -620,9 +723,9 @@ public class TSOClient extends SimpleChannelHandler {
         }
 
         synchronized (isCommittedCallbacks) {
-            for (List<CommitQueryCallback> cbs : isCommittedCallbacks.values()) {
-                for (CommitQueryCallback cb : cbs) {
-                    cb.error(e);
+            for (List<PendingCommitQuery> cbs : isCommittedCallbacks.values()) {
+                for (PendingCommitQuery q : cbs) {
+                    q.cb.error(e);
                 }
             }
             isCommittedCallbacks.clear();
@@ -18,6 +18,7 @@ package com.codefollower.lealone.omid.client;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
@@ -204,6 +205,9 @@ public class TransactionalTable extends HTable {
         final int requestVersions = localVersions * 2 + CACHE_VERSIONS_OVERHEAD;
 
         long startTimestamp = transactionState.getStartTimestamp();
+        //先一次判断所有版本，本地判断不了的一起问TSO，不用每个cell等一次往返
+        long[] timestamps = getDistinctTimestamps(kvs);
+        boolean[] validReads = transactionState.tsoclient.validRead(timestamps, startTimestamp);
         // Filtered kvs
         List<KeyValue> filtered = new ArrayList<KeyValue>();
         // Map from column to older uncommitted timestamp
@@ -235,7 +239,7 @@ public class TransactionalTable extends HTable {
                 continue;
             }
             versionsProcessed++;
-            if (transactionState.tsoclient.validRead(kv.getTimestamp(), startTimestamp)) {
+            if (validReads[Arrays.binarySearch(timestamps, kv.getTimestamp())]) {
                 // Valid read, add it to result unless it's a delete
                 if (kv.getValueLength() > 0) {
                     filtered.add(kv);
@@ -261,6 +265,20 @@ public class TransactionalTable extends HTable {
         return filtered;
     }
 
+    private static long[] getDistinctTimestamps(List<KeyValue> kvs) {
+        long[] timestamps = new long[kvs.size()];
+        for (int i = 0; i < timestamps.length; i++) {
+            timestamps[i] = kvs.get(i).getTimestamp();
+        }
+        Arrays.sort(timestamps);
+        int n = 0;
+        for (int i = 0; i < timestamps.length; i++) {
+            if (n == 0 || timestamps[i] != timestamps[n - 1])
+                timestamps[n++] = timestamps[i];
+        }
+        return Arrays.copyOf(timestamps, n);
+    }
+
     private class ClientScanner extends org.apache.hadoop.hbase.client.ClientScanner {
         private final TransactionState state;
         private final int maxVersions;
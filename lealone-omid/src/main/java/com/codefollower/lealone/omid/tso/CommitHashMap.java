@@ -16,37 +16,61 @@
 
 package com.codefollower.lealone.omid.tso;
 
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.Collections;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.jboss.netty.util.internal.ConcurrentHashMap;
 
+import com.codefollower.lealone.omid.tso.persistence.LoggerProtocol;
+
 /**
  * A hash map that uses byte[] for the key rather than longs.
- * 
- * Change it to lazyly clean the old entries, i.e., upon a hit This would reduce
- * the mem access benefiting from cache locality
- * 
+ *
+ * 纯Java实现，语义与原来的JNI版本相同，不需要再加载tso-commithashmap本地库:
+ *
+ * <ul>
+ * <li>行表: 记录每一行(rowId + tableId)最近的提交时间戳，开放定址、线性探测，
+ *     每个槽位的字段放在几个基本类型数组中，key的字节放在一个共享的byte[]中，没有per-entry对象</li>
+ * <li>每次put分配一个递增的order，order落后最新的order超过threshold的槽位就是旧的，
+ *     put时可以直接复用，被覆盖的提交时间戳会提高largestDeletedTimestamp</li>
+ * <li>旧槽位只会被覆盖不会被清空，所以探测链不会断；get最多探测maxProbe个槽位，
+ *     maxProbe是put时出现过的最大探测距离</li>
+ * <li>行表按rowKey的hash分成多个分段，每个分段是一个独立的表，有自己的锁，
+ *     旧槽位也是在分段内判断的；TSOHandler按分段加锁做冲突检测，不同分段的事务可以并发检测</li>
+ * <li>提交表: startTimestamp到commitTimestamp的映射，按startTimestamp取模直接定位，
+ *     被覆盖的提交时间戳同样会提高largestDeletedTimestamp，由调用者在sharedState的锁中访问</li>
+ * </ul>
+ *
  * @author maysam
  */
 
 class CommitHashMap {
+    /**
+     * 行表槽位的最大使用率，loadFactor比它大时把行表加大，保证总有旧槽位或空槽位可以用
+     */
+    private static final float MAX_TABLE_LOAD = 0.75f;
 
-    native void init(int initialCapacity, int maxCommits, float loadFactor);
-
-    native static long gettotalput();
-
-    native static long gettotalget();
+    /**
+     * 每个分段至少有这么多槽位，否则分段太小，旧记录被覆盖得太快
+     */
+    private static final int MIN_SEGMENT_CAPACITY = 1024;
 
-    native static long gettotalwalkforput();
+    /**
+     * 分段数最多64个，这样一个事务涉及的分段可以用一个long表示
+     */
+    static final int MAX_STRIPES = 64;
 
-    native static long gettotalwalkforget();
+    private final Segment[] segments;
+    private final int stripeShift;
 
-    // Load the library
-    static {
-        System.loadLibrary("tso-commithashmap");
-    }
+    //提交表
+    private final int maxCommits;
+    private final long[] startTimestamps;
+    private final long[] commitTimestamps;
 
     /**
      * Constructs a new, empty hashtable with a default capacity and load factor,
@@ -59,7 +83,7 @@ class CommitHashMap {
     /**
      * Constructs a new, empty hashtable with the specified initial capacity and
      * default load factor, which is <code>0.75</code>.
-     * 
+     *
      * @param initialCapacity
      *           the initial capacity of the hashtable.
      * @throws IllegalArgumentException
@@ -72,7 +96,7 @@ class CommitHashMap {
     /**
      * Constructs a new, empty hashtable with the specified initial capacity and
      * the specified load factor.
-     * 
+     *
      * @param initialCapacity
      *           the initial capacity of the hashtable.
      * @param loadFactor
@@ -82,6 +106,20 @@ class CommitHashMap {
      *            factor is nonpositive.
      */
     public CommitHashMap(int initialCapacity, float loadFactor) {
+        this(initialCapacity, loadFactor, 1);
+    }
+
+    /**
+     * 行表按rowKey的hash分成stripes个分段，每个分段有自己的锁，
+     * 分段数会减小到2的幂，并且每个分段至少有MIN_SEGMENT_CAPACITY个槽位。
+     *
+     * @param initialCapacity
+     *           the initial capacity of the hashtable.
+     * @param loadFactor
+     *           the load factor of the hashtable.
+     * @param stripes 分段数
+     */
+    public CommitHashMap(int initialCapacity, float loadFactor, int stripes) {
         if (initialCapacity < 0) {
             throw new IllegalArgumentException("Illegal Capacity: " + initialCapacity);
         }
@@ -92,10 +130,56 @@ class CommitHashMap {
             initialCapacity = 1;
         }
 
-        //assuming the worst case that each transaction modifies a value, 
+        stripes = Math.min(stripes, Math.min(MAX_STRIPES, initialCapacity / MIN_SEGMENT_CAPACITY));
+        stripes = stripes <= 1 ? 1 : Integer.highestOneBit(stripes);
+        stripeShift = 32 - Integer.numberOfTrailingZeros(stripes);
+        segments = new Segment[stripes];
+        for (int i = 0; i < stripes; i++)
+            segments[i] = new Segment(initialCapacity / stripes, loadFactor);
+
+        //assuming the worst case that each transaction modifies a value,
         //this is the right size because it is proportional to the hashmap size
-        int txnCommitArraySize = (int) (initialCapacity * loadFactor);
-        this.init(initialCapacity, txnCommitArraySize, loadFactor);
+        maxCommits = Math.max(1, (int) (initialCapacity * loadFactor));
+        startTimestamps = new long[maxCommits];
+        commitTimestamps = new long[maxCommits];
+    }
+
+    int getStripeCount() {
+        return segments.length;
+    }
+
+    /**
+     * 分段号取hash乘以黄金分割常数后的高位，与分段内用低位取模定位槽位的方式无关
+     */
+    int getStripe(int hash) {
+        if (segments.length == 1)
+            return 0;
+        return (hash * 0x9E3779B9) >>> stripeShift;
+    }
+
+    /**
+     * 返回这些行所在的分段，第i位是1表示涉及第i个分段
+     */
+    long getStripes(RowKey[] rows) {
+        long stripes = 0;
+        for (RowKey r : rows)
+            stripes |= 1L << getStripe(r.hashCode());
+        return stripes;
+    }
+
+    /**
+     * 按分段号从小到大加锁，所以不会死锁
+     */
+    void lockStripes(long stripes) {
+        for (int i = 0; i < segments.length; i++)
+            if ((stripes & (1L << i)) != 0)
+                segments[i].lock();
+    }
+
+    void unlockStripes(long stripes) {
+        for (int i = segments.length - 1; i >= 0; i--)
+            if ((stripes & (1L << i)) != 0)
+                segments[i].unlock();
     }
 
     /**
@@ -104,45 +188,252 @@ class CommitHashMap {
      * the one with the largest key, because (i) put always put the recent ones
      * ahead, (ii) a new put on the same key has always larger value (because
      * value is commit timestamp and the map is atmoic)
-     * 
-     * @param key
-     *           a key in the hashtable.
+     *
+     * 调用者要持有这一行所在分段的锁
+     *
+     * @param rowId the row id
+     * @param tableId the table id
+     * @param hash the hash code of the row key
      * @return the value to which the key is mapped in this hashtable;
-     *         <code>null</code> if the key is not mapped to any value in this
+     *         <code>0</code> if the key is not mapped to any value in this
      *         hashtable.
-     * @see #put(int, Object)
      */
-    native long get(byte[] rowId, byte[] tableId, int hash);
+    long get(byte[] rowId, byte[] tableId, int hash) {
+        return segments[getStripe(hash)].get(rowId, tableId, hash);
+    }
 
     /**
-     * Maps the specified <code>key</code> to the specified <code>value</code> in
-     * this hashtable. The key cannot be <code>null</code>.
-     * 
-     * The value can be retrieved by calling the <code>get</code> method with a
-     * key that is equal to the original key.
-     * 
+     * Maps the specified key to the specified <code>value</code> in this hashtable.
+     *
      * It guarantees that if multiple entries with the same keys exist then the
      * first one is the most fresh one, i.e., with the largest value
-     * 
-     * @param key
-     *           the hashtable key.
-     * @param value
-     *           the value.
-     * @throws NullPointerException
-     *            if the key is <code>null</code>. return true if the vlaue is
-     *            replaced
+     *
+     * 调用者要持有这一行所在分段的锁
+     *
+     * @param rowId the row id
+     * @param tableId the table id
+     * @param value the commit timestamp
+     * @param hash the hash code of the row key
+     * @param largestDeletedTimestamp the current largest deleted timestamp
+     * @return the new largest deleted timestamp, larger than the given one if an old entry is replaced
      */
-    native long put(byte[] rowId, byte[] tableId, long value, int hash, long largestDeletedTimestamp);
+    long put(byte[] rowId, byte[] tableId, long value, int hash, long largestDeletedTimestamp) {
+        return segments[getStripe(hash)].put(rowId, tableId, value, hash, largestDeletedTimestamp);
+    }
 
     /**
-     * Returns the commit timestamp 
+     * Returns the commit timestamp
      *
      * @param   startTimestamp   the transaction start timestamp
      * @return  commit timestamp if such mapping exist, 0 otherwise
      */
-    native long getCommittedTimestamp(long startTimestamp);
+    long getCommittedTimestamp(long startTimestamp) {
+        int key = (int) (startTimestamp % maxCommits);
+        if (startTimestamps[key] == startTimestamp)
+            return commitTimestamps[key];
+        return 0; //which means that there is not such entry in the array, either deleted or never entered
+    }
+
+    long setCommitted(long startTimestamp, long commitTimestamp, long largestDeletedTimestamp) {
+        int key = (int) (startTimestamp % maxCommits);
+        if (startTimestamps[key] != startTimestamp && commitTimestamps[key] > largestDeletedTimestamp)
+            largestDeletedTimestamp = commitTimestamps[key];
+        startTimestamps[key] = startTimestamp;
+        commitTimestamps[key] = commitTimestamp;
+        return largestDeletedTimestamp;
+    }
+
+    /**
+     * 把提交时间戳大于largestDeletedTimestamp的提交按LoggerProtocol.COMMIT记录写出，用于检查点，
+     * 小于等于它的提交恢复后由largestDeletedTimestamp和halfAborted判断。
+     */
+    void writeCommitted(DataOutputStream out, long largestDeletedTimestamp) throws IOException {
+        for (int i = 0; i < maxCommits; i++) {
+            if (commitTimestamps[i] > largestDeletedTimestamp) {
+                out.writeByte(LoggerProtocol.COMMIT);
+                out.writeLong(startTimestamps[i]);
+                out.writeLong(commitTimestamps[i]);
+            }
+        }
+    }
+
+    long getTotalPut() {
+        long total = 0;
+        for (Segment s : segments)
+            total += s.totalPut;
+        return total;
+    }
+
+    long getTotalGet() {
+        long total = 0;
+        for (Segment s : segments)
+            total += s.totalGet;
+        return total;
+    }
+
+    long getTotalWalkForPut() {
+        long total = 0;
+        for (Segment s : segments)
+            total += s.totalWalkForPut;
+        return total;
+    }
+
+    long getTotalWalkForGet() {
+        long total = 0;
+        for (Segment s : segments)
+            total += s.totalWalkForGet;
+        return total;
+    }
+
+    /**
+     * 行表的一个分段，旧记录的判断也是在分段内进行的
+     */
+    @SuppressWarnings("serial")
+    private static class Segment extends ReentrantLock {
+        private final int tableLength;
+        private final int threshold;
+
+        //orders[i] == 0表示空槽位
+        private final long[] orders;
+        private final long[] values;
+        private final int[] hashes;
+        private final int[] keyOffsets;
+        private final int[] keyCapacities;
+        private final int[] rowIdLengths;
+        private final int[] tableIdLengths;
+
+        //所有key的字节，rowId在前tableId在后，被复用的槽位放不下新key时在末尾重新分配
+        private byte[] keys;
+        private int keysUsed;
+        private int keysGarbage;
+
+        private long largestOrder = 1;
+        private int maxProbe;
+
+        //统计平均的内存访问次数
+        private long totalPut;
+        private long totalGet;
+        private long totalWalkForPut;
+        private long totalWalkForGet;
+
+        Segment(int capacity, float loadFactor) {
+            //不旧的槽位最多有threshold + 1个
+            threshold = Math.max(1, (int) (capacity * loadFactor));
+            tableLength = Math.max(capacity, (int) (threshold / MAX_TABLE_LOAD) + 2);
+            orders = new long[tableLength];
+            values = new long[tableLength];
+            hashes = new int[tableLength];
+            keyOffsets = new int[tableLength];
+            keyCapacities = new int[tableLength];
+            rowIdLengths = new int[tableLength];
+            tableIdLengths = new int[tableLength];
+            keys = new byte[tableLength * 16];
+        }
+
+        private int indexFor(int hash) {
+            return (hash & 0x7FFFFFFF) % tableLength;
+        }
 
-    native long setCommitted(long startTimestamp, long commitTimestamp, long largestDeletedTimestamp);
+        private boolean keyEquals(int index, byte[] rowId, byte[] tableId, int hash) {
+            if (hashes[index] != hash || rowIdLengths[index] != rowId.length || tableIdLengths[index] != tableId.length)
+                return false;
+            int offset = keyOffsets[index];
+            for (int i = 0; i < rowId.length; i++)
+                if (keys[offset++] != rowId[i])
+                    return false;
+            for (int i = 0; i < tableId.length; i++)
+                if (keys[offset++] != tableId[i])
+                    return false;
+            return true;
+        }
+
+        long get(byte[] rowId, byte[] tableId, int hash) {
+            totalGet++;
+            int index = indexFor(hash);
+            for (int probe = 0; probe <= maxProbe; probe++) {
+                totalWalkForGet++;
+                if (orders[index] == 0) //empty
+                    break;
+                if (keyEquals(index, rowId, tableId, hash))
+                    return values[index];
+                if (++index == tableLength)
+                    index = 0;
+            }
+            return 0;
+        }
+
+        long put(byte[] rowId, byte[] tableId, long value, int hash, long largestDeletedTimestamp) {
+            totalPut++;
+            int index = indexFor(hash);
+            for (int probe = 0; probe < tableLength; probe++) {
+                totalWalkForPut++;
+                long order = orders[index];
+                if (order != 0 && keyEquals(index, rowId, tableId, hash)) {
+                    values[index] = value;
+                    orders[index] = ++largestOrder;
+                    return largestDeletedTimestamp;
+                }
+                //空槽位或者旧槽位
+                if (order == 0 || largestOrder - order > threshold) {
+                    if (values[index] > largestDeletedTimestamp)
+                        largestDeletedTimestamp = values[index];
+                    setKey(index, rowId, tableId);
+                    hashes[index] = hash;
+                    values[index] = value;
+                    orders[index] = ++largestOrder;
+                    if (probe > maxProbe)
+                        maxProbe = probe;
+                    return largestDeletedTimestamp;
+                }
+                if (++index == tableLength)
+                    index = 0;
+            }
+            //不旧的槽位最多有threshold + 1个，而tableLength至少是threshold + 2
+            throw new IllegalStateException("no free entry");
+        }
+
+        private void setKey(int index, byte[] rowId, byte[] tableId) {
+            int length = rowId.length + tableId.length;
+            if (keyCapacities[index] < length) {
+                if (keysUsed + length > keys.length)
+                    compactKeys(length);
+                keysGarbage += keyCapacities[index];
+                keyOffsets[index] = keysUsed;
+                keyCapacities[index] = length;
+                keysUsed += length;
+            }
+            int offset = keyOffsets[index];
+            System.arraycopy(rowId, 0, keys, offset, rowId.length);
+            System.arraycopy(tableId, 0, keys, offset + rowId.length, tableId.length);
+            rowIdLengths[index] = rowId.length;
+            tableIdLengths[index] = tableId.length;
+        }
+
+        /**
+         * 丢掉被废弃的key空间，不够时再加大
+         */
+        private void compactKeys(int needed) {
+            int live = keysUsed - keysGarbage;
+            int newLength = keys.length;
+            while (live + needed > newLength / 2)
+                newLength *= 2;
+            byte[] newKeys = new byte[newLength];
+            int used = 0;
+            for (int i = 0; i < tableLength; i++) {
+                int capacity = keyCapacities[i];
+                if (capacity == 0)
+                    continue;
+                int length = rowIdLengths[i] + tableIdLengths[i];
+                System.arraycopy(keys, keyOffsets[i], newKeys, used, length);
+                keyOffsets[i] = used;
+                keyCapacities[i] = length;
+                used += length;
+            }
+            keys = newKeys;
+            keysUsed = used;
+            keysGarbage = 0;
+        }
+    }
 
     // set of half aborted transactions
     // TODO: set the initial capacity in a smarter way
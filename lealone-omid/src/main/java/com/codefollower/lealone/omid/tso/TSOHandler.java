@@ -52,6 +52,8 @@ import com.codefollower.lealone.omid.tso.messages.CommitQueryResponse;
 import com.codefollower.lealone.omid.tso.messages.CommitRequest;
 import com.codefollower.lealone.omid.tso.messages.CommitResponse;
 import com.codefollower.lealone.omid.tso.messages.FullAbortRequest;
+import com.codefollower.lealone.omid.tso.messages.TimestampRangeRequest;
+import com.codefollower.lealone.omid.tso.messages.TimestampRangeResponse;
 import com.codefollower.lealone.omid.tso.messages.TimestampRequest;
 import com.codefollower.lealone.omid.tso.messages.TimestampResponse;
 import com.codefollower.lealone.omid.tso.persistence.LoggerException;
@@ -128,6 +130,26 @@ public class TSOHandler extends SimpleChannelHandler {
         }
     };
 
+    /**
+     * 一批WAL写完后发送这一批的响应
+     */
+    private final AddRecordCallback batchCallback = new AddRecordCallback() {
+        @Override
+        public void addRecordComplete(int rc, Object ctx) {
+            if (rc != Code.OK) {
+                LOG.warn("Write failed: " + LoggerException.getMessage(rc));
+            } else {
+                synchronized (callbackLock) {
+                    @SuppressWarnings("unchecked")
+                    ArrayList<ChannelAndMessage> theBatch = (ArrayList<ChannelAndMessage>) ctx;
+                    for (ChannelAndMessage cam : theBatch) {
+                        Channels.write(cam.ctx, Channels.succeededFuture(cam.ctx.getChannel()), cam.msg);
+                    }
+                }
+            }
+        }
+    };
+
     private final Runnable createAbortedSnaphostTask = new Runnable() {
         @Override
         public void run() {
@@ -181,6 +203,34 @@ public class TSOHandler extends SimpleChannelHandler {
         sharedState.addRecord(baos.toByteArray(), noCallback, null);
     }
 
+    /**
+     * 写一个检查点，里面是恢复所需的全部状态，本地WAL写完它之后就可以删除之前的日志段了。
+     * 调用者要持有sharedState的锁，这样检查点之后加入的记录都是在它之后发生的。
+     * 还在sharedState.baos中的记录已经反映在检查点中了，它们会写在检查点后面，恢复时重做一次不影响结果。
+     */
+    private void createCheckpoint() {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream toWAL = new DataOutputStream(baos);
+
+        try {
+            toWAL.writeByte(LoggerProtocol.CHECKPOINT);
+            toWAL.writeByte(LoggerProtocol.TIMESTAMP_ORACLE);
+            toWAL.writeLong(timestampOracle.getMaxTimestamp());
+            toWAL.writeByte(LoggerProtocol.LARGEST_DELETED_TIMESTAMP);
+            toWAL.writeLong(sharedState.largestDeletedTimestamp);
+            sharedState.hashmap.writeCommitted(toWAL, sharedState.largestDeletedTimestamp);
+            for (AbortedTransaction aborted : sharedState.hashmap.halfAborted) {
+                toWAL.writeByte(LoggerProtocol.ABORT);
+                toWAL.writeLong(aborted.getStartTimestamp());
+            }
+        } catch (IOException e) {
+            // can't happen
+            throw new RuntimeException(e);
+        }
+
+        sharedState.addRecord(baos.toByteArray(), noCallback, null);
+    }
+
     public void start() {
         scheduleFlushThread();
     }
@@ -198,22 +248,7 @@ public class TSOHandler extends SimpleChannelHandler {
             if (LOG.isTraceEnabled()) {
                 LOG.trace("Adding record, size: " + sharedState.baos.size());
             }
-            sharedState.addRecord(sharedState.baos.toByteArray(), new AddRecordCallback() {
-                @Override
-                public void addRecordComplete(int rc, Object ctx) {
-                    if (rc != Code.OK) {
-                        LOG.warn("Write failed: " + LoggerException.getMessage(rc));
-                    } else {
-                        synchronized (callbackLock) {
-                            @SuppressWarnings("unchecked")
-                            ArrayList<ChannelAndMessage> theBatch = (ArrayList<ChannelAndMessage>) ctx;
-                            for (ChannelAndMessage cam : theBatch) {
-                                Channels.write(cam.ctx, Channels.succeededFuture(cam.ctx.getChannel()), cam.msg);
-                            }
-                        }
-                    }
-                }
-            }, sharedState.nextBatch);
+            sharedState.addRecord(sharedState.baos.toByteArray(), batchCallback, sharedState.nextBatch);
             sharedState.nextBatch = new ArrayList<ChannelAndMessage>(sharedState.nextBatch.size() + 5);
             sharedState.baos.reset();
             if (flushFuture.cancel(false)) {
@@ -238,6 +273,11 @@ public class TSOHandler extends SimpleChannelHandler {
                     }
                 }
             }
+            if (sharedState.isCheckpointNeeded()) {
+                synchronized (sharedState) {
+                    createCheckpoint();
+                }
+            }
             scheduleFlushThread();
         }
     }
@@ -274,7 +314,9 @@ public class TSOHandler extends SimpleChannelHandler {
     public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) {
         Object msg = e.getMessage();
         if (msg instanceof TimestampRequest) {
-            handle((TimestampRequest) msg, ctx);
+            handleTimestampRequest(1, ctx);
+        } else if (msg instanceof TimestampRangeRequest) {
+            handleTimestampRequest(((TimestampRangeRequest) msg).count, ctx);
         } else if (msg instanceof CommitRequest) {
             handle((CommitRequest) msg, ctx);
         } else if (msg instanceof FullAbortRequest) {
@@ -287,13 +329,20 @@ public class TSOHandler extends SimpleChannelHandler {
     }
 
     /**
-     * Handle the TimestampRequest message
+     * Handle the TimestampRequest and TimestampRangeRequest message
+     *
+     * 一个范围内的时间戳是同时分配的，返回响应前已把小于它们的提交都发给了客户端，
+     * 所以与逐个请求得到的时间戳效果一样。
      */
-    private void handle(TimestampRequest msg, ChannelHandlerContext ctx) {
+    private void handleTimestampRequest(int count, ChannelHandlerContext ctx) {
+        if (count < 1) {
+            LOG.error("invalid timestamp count: " + count);
+            return;
+        }
         long timestamp;
         synchronized (sharedState) {
             try {
-                timestamp = timestampOracle.next(sharedState.toWAL);
+                timestamp = timestampOracle.next(sharedState.toWAL, count);
             } catch (IOException e) {
                 LOG.error("failed to return the next timestamp", e);
                 return;
@@ -331,7 +380,10 @@ public class TSOHandler extends SimpleChannelHandler {
             cb = buffer.flush(future);
         }
         Channels.write(ctx, future, cb);
-        Channels.write(channel, new TimestampResponse(timestamp));
+        if (count == 1)
+            Channels.write(channel, new TimestampResponse(timestamp));
+        else
+            Channels.write(channel, new TimestampRangeResponse(timestamp, count));
     }
 
     private void handle(AbortRequest msg, ChannelHandlerContext ctx) {
@@ -372,25 +424,37 @@ public class TSOHandler extends SimpleChannelHandler {
 
     /**
      * Handle the CommitRequest message
+     * 
+     * 提交分成几个阶段，只有分配时间戳和写WAL需要sharedState的锁:
+     * <ol>
+     * <li>按事务涉及的行所在的分段加锁，检测写写冲突，不同分段的事务可以并发检测</li>
+     * <li>在sharedState的锁中分配提交时间戳、写WAL、发布提交结果，
+     *     这样任何更大的开始时间戳返回给客户端之前，这个提交结果已经在sharedMessageBuffer中了</li>
+     * <li>仍然持有分段锁，把提交时间戳写入行表，再回到sharedState的锁中处理被覆盖的旧记录，
+     *     然后把响应放入下一批，等这一批WAL写完(group commit)后再发送</li>
+     * </ol>
+     * 同一行的事务总是落在同一个分段，所以冲突检测和写入行表对它们来说仍然是串行的。
      */
     private void handle(CommitRequest msg, ChannelHandlerContext ctx) {
         CommitResponse reply = new CommitResponse(msg.startTimestamp);
-        ByteArrayOutputStream baos = sharedState.baos;
-        DataOutputStream toWAL = sharedState.toWAL;
-        synchronized (sharedState) {
+        CommitHashMap hashmap = sharedState.hashmap;
+        long stripes = hashmap.getStripes(msg.rows);
+        hashmap.lockStripes(stripes);
+        try {
             //0. check if it should abort
+            long largestDeletedTimestamp = sharedState.largestDeletedTimestamp;
             if (msg.startTimestamp < timestampOracle.first()) {
                 reply.committed = false;
                 LOG.warn("Aborting transaction after restarting TSO");
-            } else if (msg.startTimestamp < sharedState.largestDeletedTimestamp) {
+            } else if (msg.startTimestamp < largestDeletedTimestamp) {
                 // Too old
                 reply.committed = false;//set as abort
-                LOG.warn("Too old starttimestamp: ST " + msg.startTimestamp + " MAX " + sharedState.largestDeletedTimestamp);
+                LOG.warn("Too old starttimestamp: ST " + msg.startTimestamp + " MAX " + largestDeletedTimestamp);
             } else {
                 //1. check the write-write conflicts
                 for (RowKey r : msg.rows) {
                     long value;
-                    value = sharedState.hashmap.get(r.getRow(), r.getTable(), r.hashCode());
+                    value = hashmap.get(r.getRow(), r.getTable(), r.hashCode());
                     if (value != 0 && value > msg.startTimestamp) {
                         reply.committed = false;//set as abort
                         break;
@@ -404,107 +468,136 @@ public class TSOHandler extends SimpleChannelHandler {
                 }
             }
 
-            if (reply.committed) {
-                //2. commit
+            TSOHandler.transferredBytes.incrementAndGet();
+
+            if (!reply.committed) { //add it to the aborted list
+                abortCommit(reply, ctx);
+                return;
+            }
+
+            //2. commit
+            long commitTimestamp;
+            boolean raised;
+            synchronized (sharedState) {
+                //只持有分段锁时，其他分段的提交可能已经提高了largestDeletedTimestamp，
+                //并在第3阶段把这个事务当作慢事务半中止了，此时不能再提交
+                if (msg.startTimestamp < sharedState.largestDeletedTimestamp || hashmap.isHalfAborted(msg.startTimestamp)) {
+                    LOG.warn("Aborting transaction " + msg.startTimestamp + ", largest deleted timestamp raised to "
+                            + sharedState.largestDeletedTimestamp + " during conflict detection");
+                    reply.committed = false;
+                    abortCommit(reply, ctx);
+                    return;
+                }
+                DataOutputStream toWAL = sharedState.toWAL;
                 try {
-                    long commitTimestamp = timestampOracle.next(toWAL);
+                    commitTimestamp = timestampOracle.next(toWAL);
                     sharedState.uncommited.commit(commitTimestamp);
                     sharedState.uncommited.commit(msg.startTimestamp);
                     reply.commitTimestamp = commitTimestamp;
-                    if (msg.rows.length > 0) {
-                        if (LOG.isTraceEnabled()) {
-                            LOG.trace("Adding commit to WAL");
-                        }
-                        toWAL.writeByte(LoggerProtocol.COMMIT);
-                        toWAL.writeLong(msg.startTimestamp);
-                        toWAL.writeLong(commitTimestamp);
-
-                        long oldLargestDeletedTimestamp = sharedState.largestDeletedTimestamp;
-
-                        for (RowKey r : msg.rows) {
-                            sharedState.largestDeletedTimestamp = sharedState.hashmap.put(r.getRow(), r.getTable(),
-                                    commitTimestamp, r.hashCode(), oldLargestDeletedTimestamp);
-                        }
-
-                        sharedState.processCommit(msg.startTimestamp, commitTimestamp);
-                        if (sharedState.largestDeletedTimestamp > oldLargestDeletedTimestamp) {
-                            toWAL.writeByte(LoggerProtocol.LARGEST_DELETED_TIMESTAMP);
-                            toWAL.writeLong(sharedState.largestDeletedTimestamp);
-                            Set<Long> toAbort = sharedState.uncommited
-                                    .raiseLargestDeletedTransaction(sharedState.largestDeletedTimestamp);
-                            if (LOG.isWarnEnabled() && !toAbort.isEmpty()) {
-                                LOG.warn("Slow transactions after raising max: " + toAbort.size());
-                            }
-                            synchronized (sharedMsgBufLock) {
-                                for (Long id : toAbort) {
-                                    sharedState.hashmap.setHalfAborted(id);
-                                    queueHalfAbort(id);
-                                }
-                                queueLargestIncrease(sharedState.largestDeletedTimestamp);
-                            }
-                        }
-                        if (sharedState.largestDeletedTimestamp > sharedState.previousLargestDeletedTimestamp
-                                + TSOState.MAX_ITEMS) {
-                            // schedule snapshot
-                            executor.submit(createAbortedSnaphostTask);
-                            sharedState.previousLargestDeletedTimestamp = sharedState.largestDeletedTimestamp;
-                        }
-                        synchronized (sharedMsgBufLock) {
-                            queueCommit(msg.startTimestamp, commitTimestamp);
-                        }
+                    if (msg.rows.length == 0) {
+                        queueResponse(ctx, reply);
+                        return;
                     }
-                } catch (IOException e) {
-                    LOG.error("failed to handle CommitRequest", e);
-                }
-            } else { //add it to the aborted list
-                abortCount++;
-                try {
-                    toWAL.writeByte(LoggerProtocol.ABORT);
+                    if (LOG.isTraceEnabled()) {
+                        LOG.trace("Adding commit to WAL");
+                    }
+                    toWAL.writeByte(LoggerProtocol.COMMIT);
                     toWAL.writeLong(msg.startTimestamp);
+                    toWAL.writeLong(commitTimestamp);
                 } catch (IOException e) {
-                    LOG.error("failed to handle abort wal", e);
+                    LOG.error("failed to handle CommitRequest", e);
+                    queueResponse(ctx, reply);
+                    return;
                 }
-                sharedState.processAbort(msg.startTimestamp);
 
+                largestDeletedTimestamp = sharedState.largestDeletedTimestamp;
+                sharedState.processCommit(msg.startTimestamp, commitTimestamp);
+                raised = sharedState.largestDeletedTimestamp > largestDeletedTimestamp;
                 synchronized (sharedMsgBufLock) {
-                    queueHalfAbort(msg.startTimestamp);
+                    queueCommit(msg.startTimestamp, commitTimestamp);
                 }
             }
 
-            TSOHandler.transferredBytes.incrementAndGet();
-
-            ChannelAndMessage cam = new ChannelAndMessage(ctx, reply);
+            //3. 分段锁还没有释放，其他事务检测这些行时一定能看到新的提交时间戳
+            long newLargestDeletedTimestamp = largestDeletedTimestamp;
+            for (RowKey r : msg.rows) {
+                newLargestDeletedTimestamp = Math.max(newLargestDeletedTimestamp,
+                        hashmap.put(r.getRow(), r.getTable(), commitTimestamp, r.hashCode(), largestDeletedTimestamp));
+            }
 
-            sharedState.nextBatch.add(cam);
-            if (sharedState.baos.size() >= batchSize) {
-                if (LOG.isTraceEnabled()) {
-                    LOG.trace("Going to add record of size " + sharedState.baos.size());
+            synchronized (sharedState) {
+                if (newLargestDeletedTimestamp > sharedState.largestDeletedTimestamp) {
+                    sharedState.largestDeletedTimestamp = newLargestDeletedTimestamp;
+                    raised = true;
                 }
-                //sharedState.lh.asyncAddEntry(baos.toByteArray(), this, sharedState.nextBatch);
-                sharedState.addRecord(baos.toByteArray(), new AddRecordCallback() {
-                    @Override
-                    public void addRecordComplete(int rc, Object ctx) {
-                        if (rc != Code.OK) {
-                            LOG.warn("Write failed: " + LoggerException.getMessage(rc));
-
-                        } else {
-                            synchronized (callbackLock) {
-                                @SuppressWarnings("unchecked")
-                                ArrayList<ChannelAndMessage> theBatch = (ArrayList<ChannelAndMessage>) ctx;
-                                for (ChannelAndMessage cam : theBatch) {
-                                    Channels.write(cam.ctx, Channels.succeededFuture(cam.ctx.getChannel()), cam.msg);
-                                }
-                            }
-
+                if (raised) {
+                    try {
+                        sharedState.toWAL.writeByte(LoggerProtocol.LARGEST_DELETED_TIMESTAMP);
+                        sharedState.toWAL.writeLong(sharedState.largestDeletedTimestamp);
+                    } catch (IOException e) {
+                        LOG.error("failed to handle CommitRequest", e);
+                    }
+                    Set<Long> toAbort = sharedState.uncommited
+                            .raiseLargestDeletedTransaction(sharedState.largestDeletedTimestamp);
+                    if (LOG.isWarnEnabled() && !toAbort.isEmpty()) {
+                        LOG.warn("Slow transactions after raising max: " + toAbort.size());
+                    }
+                    synchronized (sharedMsgBufLock) {
+                        for (Long id : toAbort) {
+                            hashmap.setHalfAborted(id);
+                            queueHalfAbort(id);
                         }
+                        queueLargestIncrease(sharedState.largestDeletedTimestamp);
                     }
-                }, sharedState.nextBatch);
-                sharedState.nextBatch = new ArrayList<ChannelAndMessage>(sharedState.nextBatch.size() + 5);
-                sharedState.baos.reset();
+                }
+                if (sharedState.largestDeletedTimestamp > sharedState.previousLargestDeletedTimestamp
+                        + TSOState.MAX_ITEMS) {
+                    // schedule snapshot
+                    executor.submit(createAbortedSnaphostTask);
+                    sharedState.previousLargestDeletedTimestamp = sharedState.largestDeletedTimestamp;
+                }
+                queueResponse(ctx, reply);
+            }
+        } finally {
+            hashmap.unlockStripes(stripes);
+        }
+    }
+
+    /**
+     * 把事务记为半中止，写WAL并通知客户端，然后放入中止的响应
+     */
+    private void abortCommit(CommitResponse reply, ChannelHandlerContext ctx) {
+        synchronized (sharedState) {
+            abortCount++;
+            try {
+                sharedState.toWAL.writeByte(LoggerProtocol.ABORT);
+                sharedState.toWAL.writeLong(reply.startTimestamp);
+            } catch (IOException e) {
+                LOG.error("failed to handle abort wal", e);
             }
+            sharedState.processAbort(reply.startTimestamp);
 
+            synchronized (sharedMsgBufLock) {
+                queueHalfAbort(reply.startTimestamp);
+            }
+            queueResponse(ctx, reply);
         }
+    }
 
+    /**
+     * 把响应放入下一批，这一批的WAL写完后才发送，WAL积累到batchSize时马上写，
+     * 否则由FlushThread定时写。调用者要持有sharedState的锁。
+     */
+    private void queueResponse(ChannelHandlerContext ctx, TSOMessage reply) {
+        sharedState.nextBatch.add(new ChannelAndMessage(ctx, reply));
+        if (sharedState.baos.size() >= batchSize) {
+            if (LOG.isTraceEnabled()) {
+                LOG.trace("Going to add record of size " + sharedState.baos.size());
+            }
+            sharedState.addRecord(sharedState.baos.toByteArray(), batchCallback, sharedState.nextBatch);
+            sharedState.nextBatch = new ArrayList<ChannelAndMessage>(sharedState.nextBatch.size() + 5);
+            sharedState.baos.reset();
+        }
     }
 
     /**
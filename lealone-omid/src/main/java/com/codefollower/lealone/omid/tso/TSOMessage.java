@@ -53,6 +53,8 @@ public interface TSOMessage {
     final public byte AbortedTransactionReportByte = (byte) 0xcb;
     final public byte AbortRequest = (byte) 0xcc;
     final public byte ZipperState = (byte) 0xcd;
+    final public byte TimestampRangeRequest = (byte) 0xce;
+    final public byte TimestampRangeResponse = (byte) 0xcf;
 
     /*
      * Deserialize function
@@ -39,6 +39,7 @@ import org.jboss.netty.handler.execution.OrderedMemoryAwareThreadPoolExecutor;
 import org.jboss.netty.util.ObjectSizeEstimator;
 
 import com.codefollower.lealone.omid.tso.persistence.BookKeeperStateBuilder;
+import com.codefollower.lealone.omid.tso.persistence.FileStateBuilder;
 import com.codefollower.lealone.omid.tso.persistence.LoggerProtocol;
 import com.codefollower.lealone.omid.tso.persistence.LoggerAsyncCallback.AddRecordCallback;
 
@@ -77,8 +78,8 @@ public class TSOServer implements Runnable {
         // Create the global ChannelGroup
         ChannelGroup channelGroup = new DefaultChannelGroup(TSOServer.class.getName());
         // threads max
-        // int maxThreads = Runtime.getRuntime().availableProcessors() *2 + 1;
-        int maxThreads = 5;
+        // 冲突检测按分段加锁，不同分段的提交可以并发，所以线程数随CPU数增加
+        int maxThreads = Runtime.getRuntime().availableProcessors() * 2 + 1;
         // Memory limitation: 1MB by channel, 1GB global, 100 ms of timeout
         ThreadPoolExecutor pipelineExecutor = new OrderedMemoryAwareThreadPoolExecutor(maxThreads, 1048576, 1073741824, 100,
                 TimeUnit.MILLISECONDS, new ObjectSizeEstimator() {
@@ -88,7 +89,10 @@ public class TSOServer implements Runnable {
                     }
                 }, Executors.defaultThreadFactory());
 
-        state = BookKeeperStateBuilder.getState(config);
+        if (config.getWalDir() != null)
+            state = FileStateBuilder.getState(config);
+        else
+            state = BookKeeperStateBuilder.getState(config);
         if (state == null) {
             LOG.error("Couldn't build state");
             return;
@@ -103,6 +107,7 @@ public class TSOServer implements Runnable {
         LOG.info("PARAM MAX_ITEMS: " + TSOState.MAX_ITEMS);
         LOG.info("PARAM BATCH_SIZE: " + config.getBatchSize());
         LOG.info("PARAM LOAD_FACTOR: " + TSOState.LOAD_FACTOR);
+        LOG.info("PARAM COMMIT_STRIPES: " + state.hashmap.getStripeCount());
         LOG.info("PARAM MAX_THREADS: " + maxThreads);
 
         final TSOHandler handler = new TSOHandler(channelGroup, state, config.getBatchSize());
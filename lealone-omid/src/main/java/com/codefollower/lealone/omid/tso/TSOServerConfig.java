@@ -56,6 +56,9 @@ public class TSOServerConfig {
     @Parameter(names = "-quorum", description = "WAL quorum size")
     private int quorum;
 
+    @Parameter(names = "-walDir", description = "Local directory of the WAL, used instead of BookKeeper when set")
+    private String walDir;
+
     private TSOServerConfig() {
         this.port = Integer.parseInt(System.getProperty("PORT", "1234"));
         this.batch = Integer.parseInt(System.getProperty("BATCH", "0"));
@@ -63,6 +66,7 @@ public class TSOServerConfig {
         this.zkServers = System.getProperty("ZKSERVERS");
         this.ensemble = Integer.parseInt(System.getProperty("ENSEMBLE", "3"));
         this.quorum = Integer.parseInt(System.getProperty("QUORUM", "2"));
+        this.walDir = System.getProperty("WALDIR");
     }
 
     public int getPort() {
@@ -88,4 +92,8 @@ public class TSOServerConfig {
     public int getQuorumSize() {
         return quorum;
     }
+
+    public String getWalDir() {
+        return walDir;
+    }
 }
@@ -43,6 +43,7 @@ public class TSOState {
     public static final int MAX_ITEMS = getMaxItems();
     public static final int MAX_COMMITS = getMaxCommits();
     public static final int FLUSH_TIMEOUT = getFlushTimeout();
+    public static final int COMMIT_STRIPES = getCommitStripes();
 
     //正常情况下，下面三个参数都不设置，所以System.getProperty返回null，
     //虽然能够捕获到异常，但是可以避免的，只要调用System.getProperty时设置默认值即可。
@@ -73,6 +74,17 @@ public class TSOState {
         }
     }
 
+    //行表的分段数，默认是CPU数的4倍，CommitHashMap会按MAX_ITEMS再减小
+    private static int getCommitStripes() {
+        int def = Runtime.getRuntime().availableProcessors() * 4;
+        try {
+            return Integer.valueOf(System.getProperty("omid.commitStripes", String.valueOf(def)));
+        } catch (Exception e) {
+            // ignore, use default
+            return def;
+        }
+    }
+
     /**
      * Object that implements the logic to log records
      * for recoverability
@@ -86,8 +98,10 @@ public class TSOState {
 
     /**
      * Largest Deleted Timestamp
+     * 
+     * 只在sharedState的锁中修改，冲突检测时在分段锁中读
      */
-    public long largestDeletedTimestamp = 0;
+    public volatile long largestDeletedTimestamp = 0;
     public long previousLargestDeletedTimestamp = 0;
 
     public final SharedMessageBuffer sharedMessageBuffer = new SharedMessageBuffer();
@@ -96,7 +110,7 @@ public class TSOState {
      * The hash map to to keep track of recently committed rows
      * each bucket is about 20 byte, so the initial capacity is 20MB
      */
-    public final CommitHashMap hashmap = new CommitHashMap(MAX_ITEMS, LOAD_FACTOR);
+    public final CommitHashMap hashmap = new CommitHashMap(MAX_ITEMS, LOAD_FACTOR, COMMIT_STRIPES);
 
     public Uncommited uncommited;
 
@@ -183,6 +197,13 @@ public class TSOState {
         }
     }
 
+    /**
+     * 日志需要检查点时返回true，没有日志时总是返回false
+     */
+    public boolean isCheckpointNeeded() {
+        return logger != null && logger.isCheckpointNeeded();
+    }
+
     /**
      * Closes this state object.
      */
@@ -70,9 +70,21 @@ public class TimestampOracle {
      * return the next timestamp
      */
     public long next(DataOutputStream toWal) throws IOException {
-        last++;
-        if (last == maxTimestamp) {
-            maxTimestamp += TIMESTAMP_BATCH;
+        return next(toWal, 1);
+    }
+
+    /**
+     * Must be called holding an exclusive lock
+     * 
+     * 一次分配count个连续的时间戳，返回其中的第一个，
+     * 最后一个是first + count - 1，跨过maxTimestamp时只记一次日志。
+     */
+    public long next(DataOutputStream toWal, int count) throws IOException {
+        long first = last + 1;
+        last += count;
+        if (last >= maxTimestamp) {
+            while (last >= maxTimestamp)
+                maxTimestamp += TIMESTAMP_BATCH;
             toWal.writeByte(LoggerProtocol.TIMESTAMP_ORACLE);
             toWal.writeLong(maxTimestamp);
             if (LOG.isTraceEnabled()) {
@@ -80,10 +92,17 @@ public class TimestampOracle {
             }
         }
         if (LOG.isTraceEnabled()) {
-            LOG.trace("Next timestamp: " + last);
+            LOG.trace("Next timestamp: " + first + (count > 1 ? " - " + last : ""));
         }
 
-        return last;
+        return first;
+    }
+
+    /**
+     * 已经写到WAL中的最大时间戳，发出去的时间戳都小于它
+     */
+    public long getMaxTimestamp() {
+        return maxTimestamp;
     }
 
     public long get() {
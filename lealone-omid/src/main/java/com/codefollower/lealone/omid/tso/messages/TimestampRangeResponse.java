@@ -0,0 +1,57 @@
+/**
+ * Copyright (c) 2011 Yahoo! Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+
+package com.codefollower.lealone.omid.tso.messages;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+
+import com.codefollower.lealone.omid.tso.TSOMessage;
+
+/**
+ * TimestampRangeRequest的响应，时间戳是[first, first + count)
+ */
+public class TimestampRangeResponse implements TSOMessage {
+    public long first;
+    public int count;
+
+    public TimestampRangeResponse() {
+    }
+
+    public TimestampRangeResponse(long first, int count) {
+        this.first = first;
+        this.count = count;
+    }
+
+    @Override
+    public void readObject(ChannelBuffer aInputStream) {
+        first = aInputStream.readLong();
+        count = aInputStream.readInt();
+    }
+
+    @Override
+    public void writeObject(DataOutputStream aOutputStream) throws IOException {
+        aOutputStream.writeLong(first);
+        aOutputStream.writeInt(count);
+    }
+
+    @Override
+    public String toString() {
+        return "TimestampRangeResponse[" + first + "," + count + "]";
+    }
+}
@@ -195,6 +195,14 @@ class BookKeeperStateLogger implements StateLogger {
         }
     }
 
+    /**
+     * 每次启动都创建新的ledger，不需要检查点
+     */
+    @Override
+    public boolean isCheckpointNeeded() {
+        return false;
+    }
+
     /**
      * Shuts down this logger.
      * 
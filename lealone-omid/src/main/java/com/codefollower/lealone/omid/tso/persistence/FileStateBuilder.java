@@ -0,0 +1,160 @@
+/**
+ * Copyright (c) 2011 Yahoo! Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+
+package com.codefollower.lealone.omid.tso.persistence;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.LinkedList;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.codefollower.lealone.omid.tso.TSOServerConfig;
+import com.codefollower.lealone.omid.tso.TSOState;
+import com.codefollower.lealone.omid.tso.TimestampOracle;
+import com.codefollower.lealone.omid.tso.persistence.LoggerAsyncCallback.LoggerInitCallback;
+import com.codefollower.lealone.omid.tso.persistence.LoggerException.Code;
+
+/**
+ * 从本地WAL目录恢复TSO的状态，和FileStateLogger一起使用。
+ *
+ * 从最后一个以检查点开头的段开始(没有检查点时从第一个段开始)，按顺序把记录交给LoggerProtocol重做。
+ * 记录中的操作重做多次结果不变，所以检查点后面出现已经包含在检查点中的记录也没关系。
+ * 最后一个段末尾没写完整的记录在恢复后截掉，因为之后的记录会写在新段中，
+ * 而新段的第一个记录不一定是检查点，下次恢复时还要读这个段。
+ */
+public class FileStateBuilder implements StateBuilder {
+    private static final Log LOG = LogFactory.getLog(FileStateBuilder.class);
+
+    public static final int SEGMENT_SIZE = getSegmentSize();
+
+    private static int getSegmentSize() {
+        try {
+            return Integer.valueOf(System.getProperty("omid.walSegmentSize", String.valueOf(64 * 1024 * 1024)));
+        } catch (Exception e) {
+            // ignore, use default
+            return 64 * 1024 * 1024;
+        }
+    }
+
+    public static TSOState getState(TSOServerConfig config) {
+        TSOState returnValue;
+        if (!config.isRecoveryEnabled()) {
+            LOG.warn("Logger is disabled");
+            returnValue = new TSOState(new TimestampOracle());
+            returnValue.initialize();
+        } else {
+            FileStateBuilder builder = new FileStateBuilder(new File(config.getWalDir()), SEGMENT_SIZE);
+
+            try {
+                returnValue = builder.buildState();
+                LOG.info("State built");
+            } catch (Throwable e) {
+                LOG.error("Error while building the state.", e);
+                returnValue = null;
+            } finally {
+                builder.shutdown();
+            }
+        }
+        return returnValue;
+    }
+
+    private final File dir;
+    private final int segmentSize;
+
+    private FileStateLogger logger;
+    private boolean built;
+
+    FileStateBuilder(File dir, int segmentSize) {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+    }
+
+    @Override
+    public TSOState buildState() throws LoggerException {
+        final int[] rc = new int[1];
+        logger = new FileStateLogger(dir, segmentSize);
+        logger.initialize(new LoggerInitCallback() {
+            public void loggerInitComplete(int code, StateLogger sl, Object ctx) {
+                rc[0] = code;
+            }
+        }, null);
+        if (rc[0] != Code.OK) {
+            LOG.error("Error when initializing logger: " + LoggerException.getMessage(rc[0]));
+            logger = null;
+            throw LoggerException.create(rc[0]);
+        }
+
+        LoggerProtocol lp = new LoggerProtocol(new TimestampOracle());
+        try {
+            recover(lp);
+        } catch (IOException e) {
+            LOG.error("Error while reading WAL in " + dir, e);
+            throw LoggerException.create(Code.FILEOPFAILED);
+        }
+
+        TSOState state = lp.getState();
+        state.setLogger(logger);
+        built = true;
+        return state;
+    }
+
+    private void recover(LoggerProtocol lp) throws IOException, LoggerException {
+        long[] ids = FileStateLogger.listSegments(dir);
+        LinkedList<FileStateLogger.SegmentReader> segments = new LinkedList<FileStateLogger.SegmentReader>();
+        for (int i = ids.length - 1; i >= 0; i--) {
+            FileStateLogger.SegmentReader segment = new FileStateLogger.SegmentReader(FileStateLogger.getSegmentFile(dir,
+                    ids[i]));
+            segments.addFirst(segment);
+            if (segment.startsWithCheckpoint())
+                break;
+        }
+
+        int records = 0;
+        FileStateLogger.SegmentReader torn = null;
+        for (FileStateLogger.SegmentReader segment : segments) {
+            //只有写在最后的记录可能没写完整
+            if (torn != null && !segment.records.isEmpty()) {
+                LOG.error("WAL is corrupted, found records after a broken one");
+                throw LoggerException.create(Code.FILEOPFAILED);
+            }
+            for (ByteBuffer record : segment.records) {
+                lp.execute(record);
+                records++;
+            }
+            if (segment.torn)
+                torn = segment;
+        }
+        if (torn != null) {
+            LOG.warn("Truncated the incomplete record at the end of " + torn.file);
+            FileStateLogger.truncateSegment(torn.file, torn.end);
+        }
+        LOG.info("Recovered from " + records + " records in " + segments.size() + " segments");
+    }
+
+    /**
+     * 状态没有建立起来时关闭日志
+     */
+    @Override
+    public void shutdown() {
+        if (!built && logger != null) {
+            logger.shutdown();
+            logger = null;
+        }
+    }
+}
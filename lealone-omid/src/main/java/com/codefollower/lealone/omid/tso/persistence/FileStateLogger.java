@@ -0,0 +1,457 @@
+/**
+ * Copyright (c) 2011 Yahoo! Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+
+package com.codefollower.lealone.omid.tso.persistence;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.codefollower.lealone.omid.tso.persistence.LoggerAsyncCallback.AddRecordCallback;
+import com.codefollower.lealone.omid.tso.persistence.LoggerAsyncCallback.LoggerInitCallback;
+import com.codefollower.lealone.omid.tso.persistence.LoggerException.Code;
+
+/**
+ * 本地磁盘上的分段WAL，不需要BookKeeper和ZooKeeper，用于单机部署和测试。
+ *
+ * 每个记录的格式是: [int 长度][int CRC32][内容]，长度为0表示这个段后面没有记录了。
+ * 段文件先以临时文件名创建并用0填满，落盘后再改名，之后写记录不会再改变文件大小，所以只需要force(false)。
+ *
+ * addRecord只是把记录放入队列，由写线程把这期间积累的记录一起写入，
+ * 每一批只调用一次FileChannel.force(组提交)，然后按加入的顺序回调。
+ *
+ * 以LoggerProtocol.CHECKPOINT开头的记录总是写在一个新段的开头，它包含了恢复所需的全部状态，
+ * 写完后就删除之前的段。当前段写满切换到新段时，通过isCheckpointNeeded请求TSOHandler写检查点。
+ *
+ * Java 6没有办法对目录做fsync，新段的目录项是否落盘只能依赖文件系统:
+ * 新段的创建和改名总是在删除旧段之前，带日志的文件系统(ext4、xfs等)按顺序提交元数据操作，
+ * 所以不会出现旧段已经删除而新段的目录项还没有落盘的情况。
+ */
+class FileStateLogger implements StateLogger {
+    private static final Log LOG = LogFactory.getLog(FileStateLogger.class);
+
+    static final int HEADER_SIZE = 8;
+    private static final String SEGMENT_PREFIX = "wal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final String LOCK_FILE = "LOCK";
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    private final File dir;
+    private final int segmentSize;
+
+    private RandomAccessFile lockFile;
+    private FileLock lock;
+
+    //下面这些只由写线程访问
+    private long segmentId;
+    private FileChannel channel;
+    private long position;
+    private long capacity;
+    private ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final CRC32 crc = new CRC32();
+
+    private final Object queueLock = new Object();
+    private ArrayList<PendingRecord> queue = new ArrayList<PendingRecord>();
+    private Thread writer;
+
+    /**
+     * Flag to determine whether this logger is operating or not.
+     */
+    private volatile boolean enabled = false;
+    private volatile boolean failed = false;
+    private volatile boolean checkpointNeeded = false;
+
+    private static class PendingRecord {
+        final byte[] record;
+        final AddRecordCallback cb;
+        final Object ctx;
+
+        PendingRecord(byte[] record, AddRecordCallback cb, Object ctx) {
+            this.record = record;
+            this.cb = cb;
+            this.ctx = ctx;
+        }
+
+        boolean isCheckpoint() {
+            return record.length > 0 && record[0] == LoggerProtocol.CHECKPOINT;
+        }
+    }
+
+    FileStateLogger(File dir, int segmentSize) {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+    }
+
+    static File getSegmentFile(File dir, long id) {
+        return new File(dir, SEGMENT_PREFIX + id + SEGMENT_SUFFIX);
+    }
+
+    /**
+     * 返回目录中所有段的编号，从小到大排列
+     */
+    static long[] listSegments(File dir) {
+        String[] names = dir.list();
+        if (names == null)
+            return new long[0];
+        long[] ids = new long[names.length];
+        int count = 0;
+        for (String name : names) {
+            if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+                try {
+                    ids[count] = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+                    count++;
+                } catch (NumberFormatException e) {
+                    // ignore, not a segment
+                }
+            }
+        }
+        ids = Arrays.copyOf(ids, count);
+        Arrays.sort(ids);
+        return ids;
+    }
+
+    /**
+     * 读出一个段中所有完整的记录，遇到长度为0、长度越界或者CRC不对时结束。
+     */
+    static class SegmentReader {
+        final File file;
+        final List<ByteBuffer> records = new ArrayList<ByteBuffer>();
+        /**
+         * 最后一个记录没有写完整(长度越界或者CRC不对)，只可能出现在最后一个段中
+         */
+        boolean torn;
+        /**
+         * 完整的记录之后的位置，torn为true时这里开始是没写完整的记录
+         */
+        int end;
+
+        SegmentReader(File file) throws IOException {
+            this.file = file;
+            byte[] data;
+            RandomAccessFile in = new RandomAccessFile(file, "r");
+            try {
+                data = new byte[(int) in.length()];
+                in.readFully(data);
+            } finally {
+                in.close();
+            }
+
+            ByteBuffer bb = ByteBuffer.wrap(data);
+            CRC32 crc = new CRC32();
+            while (bb.remaining() >= HEADER_SIZE) {
+                end = bb.position();
+                int length = bb.getInt();
+                int checksum = bb.getInt();
+                if (length == 0)
+                    return;
+                if (length < 0 || length > bb.remaining()) {
+                    torn = true;
+                    return;
+                }
+                crc.reset();
+                crc.update(data, bb.position(), length);
+                if ((int) crc.getValue() != checksum) {
+                    torn = true;
+                    return;
+                }
+                records.add(ByteBuffer.wrap(data, bb.position(), length));
+                bb.position(bb.position() + length);
+            }
+            end = bb.position();
+        }
+
+        boolean startsWithCheckpoint() {
+            if (records.isEmpty())
+                return false;
+            ByteBuffer first = records.get(0);
+            return first.hasRemaining() && first.get(first.position()) == LoggerProtocol.CHECKPOINT;
+        }
+    }
+
+    /**
+     * 在没写完整的记录处写一个长度为0的记录头，以后读这个段时就在这里结束。
+     * 否则新段中写了记录之后再崩溃，恢复时会在这个段后面看到记录，当成WAL已损坏
+     *
+     * @param file 段文件
+     * @param end 没写完整的记录的开始位置
+     */
+    static void truncateSegment(File file, long end) throws IOException {
+        RandomAccessFile out = new RandomAccessFile(file, "rw");
+        try {
+            FileChannel c = out.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            while (header.hasRemaining())
+                c.write(header, end + header.position());
+            c.force(false);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * 锁住WAL目录，然后在已有的段后面创建一个新段，之前的段在写完第一个检查点后删除。
+     */
+    @Override
+    public void initialize(LoggerInitCallback cb, Object ctx) throws LoggerException {
+        try {
+            if (!dir.exists() && !dir.mkdirs())
+                throw new IOException("Failed to create WAL directory " + dir);
+            lockFile = new RandomAccessFile(new File(dir, LOCK_FILE), "rw");
+            try {
+                lock = lockFile.getChannel().tryLock();
+            } catch (OverlappingFileLockException e) {
+                //同一个JVM中已经锁住了
+                lock = null;
+            }
+            if (lock == null) {
+                LOG.error("WAL directory is locked by another TSO: " + dir);
+                lockFile.close();
+                cb.loggerInitComplete(Code.INITLOCKFAILED, this, ctx);
+                return;
+            }
+
+            //上次创建段时崩溃留下的临时文件
+            String[] names = dir.list();
+            if (names != null) {
+                for (String name : names) {
+                    if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(TEMP_SUFFIX) && !new File(dir, name).delete())
+                        LOG.warn("Failed to delete temporary WAL segment " + new File(dir, name));
+                }
+            }
+
+            long[] ids = listSegments(dir);
+            segmentId = ids.length == 0 ? 0 : ids[ids.length - 1];
+            nextSegment(segmentSize);
+        } catch (IOException e) {
+            LOG.error("Failed to initialize WAL in " + dir, e);
+            shutdown();
+            cb.loggerInitComplete(Code.FILEOPFAILED, this, ctx);
+            return;
+        }
+
+        enabled = true;
+        checkpointNeeded = true;
+        writer = new Thread(new Writer(), "WAL Writer");
+        writer.setDaemon(true);
+        writer.start();
+        cb.loggerInitComplete(Code.OK, this, ctx);
+    }
+
+    @Override
+    public void addRecord(byte[] record, AddRecordCallback cb, Object ctx) {
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Adding record.");
+        }
+
+        PendingRecord r = new PendingRecord(record, cb, ctx);
+        int rc;
+        synchronized (queueLock) {
+            if (enabled && !failed) {
+                if (r.isCheckpoint())
+                    checkpointNeeded = false;
+                queue.add(r);
+                queueLock.notify();
+                return;
+            }
+            rc = enabled ? Code.ADDFAILED : Code.LOGGERDISABLED;
+        }
+        cb.addRecordComplete(rc, ctx);
+    }
+
+    @Override
+    public boolean isCheckpointNeeded() {
+        return checkpointNeeded;
+    }
+
+    /**
+     * 写完队列中已有的记录后再关闭
+     */
+    @Override
+    public void shutdown() {
+        synchronized (queueLock) {
+            enabled = false;
+            queueLock.notify();
+        }
+        try {
+            if (writer != null)
+                writer.join();
+        } catch (InterruptedException e) {
+            LOG.warn("Interrupted while closing logger.", e);
+        }
+        try {
+            if (channel != null)
+                channel.close();
+            if (lock != null)
+                lock.release();
+            if (lockFile != null)
+                lockFile.close();
+        } catch (IOException e) {
+            LOG.warn("Exception while closing WAL.", e);
+        }
+    }
+
+    private class Writer implements Runnable {
+        @Override
+        public void run() {
+            ArrayList<PendingRecord> batch = new ArrayList<PendingRecord>();
+            while (true) {
+                synchronized (queueLock) {
+                    while (queue.isEmpty() && enabled) {
+                        try {
+                            queueLock.wait();
+                        } catch (InterruptedException e) {
+                            // ignore, check again
+                        }
+                    }
+                    if (queue.isEmpty())
+                        return;
+                    ArrayList<PendingRecord> tmp = queue;
+                    queue = batch;
+                    batch = tmp;
+                }
+
+                int rc = Code.OK;
+                if (failed) {
+                    rc = Code.ADDFAILED;
+                } else {
+                    try {
+                        write(batch);
+                    } catch (IOException e) {
+                        //不知道写到哪里了，后面的记录也不能再写
+                        LOG.error("Failed to write WAL, logger disabled.", e);
+                        failed = true;
+                        rc = Code.ADDFAILED;
+                    }
+                }
+                for (PendingRecord r : batch) {
+                    r.cb.addRecordComplete(rc, r.ctx);
+                }
+                batch.clear();
+            }
+        }
+    }
+
+    private void write(List<PendingRecord> batch) throws IOException {
+        long checkpointSegment = -1;
+        for (PendingRecord r : batch) {
+            int size = HEADER_SIZE + r.record.length;
+            if (r.isCheckpoint()) {
+                if (position > 0) {
+                    flushBuffer();
+                    channel.force(false);
+                    nextSegment(size);
+                }
+                checkpointSegment = segmentId;
+            } else if (position + size > capacity) {
+                flushBuffer();
+                channel.force(false);
+                nextSegment(size);
+                checkpointNeeded = true;
+            }
+            append(r.record);
+        }
+        flushBuffer();
+        channel.force(false);
+
+        //检查点已经落盘，它所在的段在nextSegment中已经改名到位，之前的段不再需要了
+        if (checkpointSegment >= 0) {
+            for (long id : listSegments(dir)) {
+                if (id < checkpointSegment && !getSegmentFile(dir, id).delete())
+                    LOG.warn("Failed to delete WAL segment " + getSegmentFile(dir, id));
+            }
+        }
+    }
+
+    private void append(byte[] record) throws IOException {
+        int size = HEADER_SIZE + record.length;
+        if (buffer.remaining() < size) {
+            flushBuffer();
+            if (buffer.capacity() < size)
+                buffer = ByteBuffer.allocateDirect(size);
+        }
+        crc.reset();
+        crc.update(record, 0, record.length);
+        buffer.putInt(record.length);
+        buffer.putInt((int) crc.getValue());
+        buffer.put(record);
+        position += size;
+    }
+
+    private void flushBuffer() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * 关闭当前段，创建下一个段，大小至少是minSize。
+     *
+     * 先在临时文件中写满0(只设置文件大小会得到稀疏文件，之后写记录时文件系统还要分配空间和改元数据)，
+     * force(true)后再改名为段文件，然后重新打开并force(true)一次，之后每批只要force(false)。
+     * 恢复时不会看到只创建了一半的段。
+     */
+    private void nextSegment(int minSize) throws IOException {
+        if (channel != null)
+            channel.close();
+        channel = null;
+        segmentId++;
+        capacity = Math.max(segmentSize, minSize);
+        File file = getSegmentFile(dir, segmentId);
+        File temp = new File(dir, file.getName() + TEMP_SUFFIX);
+
+        FileChannel c = new RandomAccessFile(temp, "rw").getChannel();
+        try {
+            ByteBuffer zeros = ByteBuffer.allocateDirect((int) Math.min(capacity, BUFFER_SIZE));
+            long pos = 0;
+            while (pos < capacity) {
+                zeros.clear();
+                if (capacity - pos < zeros.capacity())
+                    zeros.limit((int) (capacity - pos));
+                while (zeros.hasRemaining())
+                    pos += c.write(zeros, pos);
+            }
+            c.force(true);
+        } finally {
+            c.close();
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Failed to rename " + temp + " to " + file);
+        }
+
+        channel = new RandomAccessFile(file, "rw").getChannel();
+        channel.force(true);
+        channel.position(0);
+        position = 0;
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Created WAL segment " + file + ", size: " + capacity);
+        }
+    }
+}
@@ -32,6 +32,7 @@ public abstract class LoggerException extends Exception {
         int BKOPFAILED = -3;
         int ZKOPFAILED = -4;
         int LOGGERDISABLED = -5;
+        int FILEOPFAILED = -6;
 
         int ILLEGALOP = -101;
     }
@@ -53,6 +54,8 @@ public abstract class LoggerException extends Exception {
             return new ZKOpFailedException();
         case Code.LOGGERDISABLED:
             return new LoggerDisabledException();
+        case Code.FILEOPFAILED:
+            return new FileOpFailedException();
         default:
             return new IllegalOpException();
         }
@@ -81,6 +84,8 @@ public abstract class LoggerException extends Exception {
             return "ZooKeeper operation failed";
         case Code.LOGGERDISABLED:
             return "Logger disabled";
+        case Code.FILEOPFAILED:
+            return "Local WAL file operation failed";
         default:
             return "Invalid operation";
         }
@@ -116,6 +121,12 @@ public abstract class LoggerException extends Exception {
         }
     }
 
+    public static class FileOpFailedException extends LoggerException {
+        public FileOpFailedException() {
+            super(Code.FILEOPFAILED);
+        }
+    }
+
     public static class IllegalOpException extends LoggerException {
         public IllegalOpException() {
             super(Code.ILLEGALOP);
@@ -37,6 +37,8 @@ public class LoggerProtocol extends TSOState {
     public final static byte FULL_ABORT = (byte) -5;
     public final static byte LOG_START = (byte) -6;
     public final static byte SNAPSHOT = (byte) -7;
+    //检查点记录的第一个字节，后面是恢复所需的全部状态，见TSOHandler.createCheckpoint
+    public final static byte CHECKPOINT = (byte) -8;
 
     /**
      * Logger protocol constructor. Currently it only constructs the
@@ -101,6 +103,8 @@ public class LoggerProtocol extends TSOState {
             case LOG_START:
                 consumed = true;
                 break;
+            case CHECKPOINT:
+                break;
             case SNAPSHOT:
                 int snapshot = (int) bb.getLong();
                 if (snapshot > this.snapshot) {
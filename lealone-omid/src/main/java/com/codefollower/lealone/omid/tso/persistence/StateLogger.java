@@ -39,6 +39,12 @@ public interface StateLogger {
      */
     void addRecord(byte[] record, AddRecordCallback cb, Object ctx);
 
+    /**
+     * 返回true时TSOHandler会写一个以LoggerProtocol.CHECKPOINT开头的记录，
+     * 这个记录之前的日志都可以删除。
+     */
+    boolean isCheckpointNeeded();
+
     /**
      * Shut down logger.
      */
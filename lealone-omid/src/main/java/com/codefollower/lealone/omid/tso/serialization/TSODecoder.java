@@ -34,6 +34,8 @@ import com.codefollower.lealone.omid.tso.messages.CommitResponse;
 import com.codefollower.lealone.omid.tso.messages.CommittedTransactionReport;
 import com.codefollower.lealone.omid.tso.messages.FullAbortRequest;
 import com.codefollower.lealone.omid.tso.messages.LargestDeletedTimestampReport;
+import com.codefollower.lealone.omid.tso.messages.TimestampRangeRequest;
+import com.codefollower.lealone.omid.tso.messages.TimestampRangeResponse;
 import com.codefollower.lealone.omid.tso.messages.TimestampRequest;
 import com.codefollower.lealone.omid.tso.messages.TimestampResponse;
 
@@ -75,6 +77,12 @@ public class TSODecoder extends FrameDecoder {
             case TSOMessage.TimestampResponse:
                 msg = new TimestampResponse();
                 break;
+            case TSOMessage.TimestampRangeRequest:
+                msg = new TimestampRangeRequest();
+                break;
+            case TSOMessage.TimestampRangeResponse:
+                msg = new TimestampRangeResponse();
+                break;
             case TSOMessage.CommitRequest:
                 msg = new CommitRequest();
                 break;
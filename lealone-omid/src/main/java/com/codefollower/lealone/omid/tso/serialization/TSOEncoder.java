@@ -37,6 +37,8 @@ import com.codefollower.lealone.omid.tso.messages.CommitResponse;
 import com.codefollower.lealone.omid.tso.messages.CommittedTransactionReport;
 import com.codefollower.lealone.omid.tso.messages.FullAbortRequest;
 import com.codefollower.lealone.omid.tso.messages.LargestDeletedTimestampReport;
+import com.codefollower.lealone.omid.tso.messages.TimestampRangeRequest;
+import com.codefollower.lealone.omid.tso.messages.TimestampRangeResponse;
 import com.codefollower.lealone.omid.tso.messages.TimestampRequest;
 import com.codefollower.lealone.omid.tso.messages.TimestampResponse;
 
@@ -54,6 +56,10 @@ public class TSOEncoder extends OneToOneEncoder {
             objWrapper.writeByte(TSOMessage.TimestampRequest);
         } else if (msg instanceof TimestampResponse) {
             objWrapper.writeByte(TSOMessage.TimestampResponse);
+        } else if (msg instanceof TimestampRangeRequest) {
+            objWrapper.writeByte(TSOMessage.TimestampRangeRequest);
+        } else if (msg instanceof TimestampRangeResponse) {
+            objWrapper.writeByte(TSOMessage.TimestampRangeResponse);
         } else if (msg instanceof CommitRequest) {
             objWrapper.writeByte(TSOMessage.CommitRequest);
         } else if (msg instanceof CommitResponse) {
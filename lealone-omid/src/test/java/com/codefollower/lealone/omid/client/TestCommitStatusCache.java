@@ -0,0 +1,72 @@
+/**
+ * Copyright (c) 2011 Yahoo! Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+
+package com.codefollower.lealone.omid.client;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import org.junit.Test;
+
+public class TestCommitStatusCache {
+
+    @Test
+    public void testStatus() {
+        CommitStatusCache cache = new CommitStatusCache(100);
+        cache.setConnectionTimestamp(100);
+        cache.raiseLargestDeletedTimestamp(50);
+        cache.commit(110, 120);
+        cache.abort(130);
+
+        assertThat(cache.getStatus(140, 140), is(CommitStatusCache.VALID));
+        assertThat(cache.getStatus(110, 125), is(CommitStatusCache.VALID));
+        assertThat(cache.getStatus(110, 115), is(CommitStatusCache.INVALID));
+        assertThat(cache.getStatus(130, 140), is(CommitStatusCache.INVALID));
+        //连接之后的事务没有提交报告就是没提交
+        assertThat(cache.getStatus(135, 140), is(CommitStatusCache.INVALID));
+        assertThat(cache.getStatus(40, 140), is(CommitStatusCache.VALID));
+        //连接之前的事务只能问TSO
+        assertThat(cache.getStatus(60, 140), is(CommitStatusCache.UNKNOWN));
+
+        cache.clean(130);
+        assertThat(cache.getAbortedCount(), is(0));
+        cache.clear();
+        assertThat(cache.getStatus(110, 125), is(CommitStatusCache.UNKNOWN));
+    }
+
+    @Test
+    public void testAbortedEviction() {
+        CommitStatusCache cache = new CommitStatusCache(100);
+        cache.setConnectionTimestamp(1);
+        cache.raiseLargestDeletedTimestamp(1000);
+        for (int i = 1; i <= 100; i++)
+            cache.abort(i * 3);
+        for (int i = 1; i <= 100; i += 2)
+            cache.clean(i * 3);
+        for (int i = 2; i <= 100; i += 2)
+            assertThat(cache.getStatus(i * 3, 2000), is(CommitStatusCache.INVALID));
+        assertThat(cache.getAbortedCount(), is(50));
+
+        for (int i = 101; i <= 151; i++)
+            cache.abort(i * 3);
+        //满了以后丢弃较旧的一半
+        assertThat(cache.getAbortedCount(), is(51));
+        assertThat(cache.getStatus(6, 2000), is(CommitStatusCache.UNKNOWN));
+        assertThat(cache.getStatus(151 * 3, 2000), is(CommitStatusCache.INVALID));
+        //比丢弃的都新的，仍然可以按largestDeletedTimestamp判断
+        assertThat(cache.getStatus(151 * 3 + 1, 2000), is(CommitStatusCache.VALID));
+    }
+}
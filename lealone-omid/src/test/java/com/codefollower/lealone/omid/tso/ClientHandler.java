@@ -43,6 +43,7 @@ import com.codefollower.lealone.omid.client.SyncCommitQueryCallback;
 import com.codefollower.lealone.omid.client.SyncCreateCallback;
 import com.codefollower.lealone.omid.client.TSOClient;
 import com.codefollower.lealone.omid.tso.messages.CommitResponse;
+import com.codefollower.lealone.omid.tso.messages.TimestampRangeResponse;
 import com.codefollower.lealone.omid.tso.messages.TimestampResponse;
 
 /**
@@ -196,6 +197,10 @@ public class ClientHandler extends TSOClient {
             handle((CommitResponse) msg);
         } else if (msg instanceof TimestampResponse) {
             handle((TimestampResponse) msg);
+        } else if (msg instanceof TimestampRangeResponse) {
+            TimestampRangeResponse r = (TimestampRangeResponse) msg;
+            for (int i = 0; i < r.count; i++)
+                sendCommitRequest(r.first + i);
         }
     }
 
@@ -0,0 +1,107 @@
+/**
+ * Copyright (c) 2011 Yahoo! Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+
+package com.codefollower.lealone.omid.tso;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * CommitHashMap的put/get/setCommitted吞吐量。
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class CommitHashMapBenchmark {
+    private static final int KEY_COUNT = 1 << 20;
+    private static final int KEY_MASK = KEY_COUNT - 1;
+
+    @Param({ "100000", "1000000" })
+    public int capacity;
+
+    private CommitHashMap map;
+    private byte[][] rowIds;
+    private byte[] tableId;
+    private int[] hashes;
+
+    private int next;
+    private long timestamp;
+    private long largestDeletedTimestamp;
+
+    @Setup
+    public void setup() {
+        map = new CommitHashMap(capacity, TSOState.LOAD_FACTOR);
+
+        Random random = new Random(0);
+        tableId = "BENCHMARK_TABLE".getBytes();
+        rowIds = new byte[KEY_COUNT][];
+        hashes = new int[KEY_COUNT];
+        for (int i = 0; i < KEY_COUNT; i++) {
+            byte[] rowId = new byte[8 + random.nextInt(17)];
+            random.nextBytes(rowId);
+            rowIds[i] = rowId;
+            hashes[i] = new RowKey(rowId, tableId).hashCode();
+        }
+
+        //先放满，get和覆盖旧槽位的put才有意义
+        for (int i = 0; i < capacity; i++)
+            put();
+    }
+
+    @Benchmark
+    public long put() {
+        int i = next++ & KEY_MASK;
+        largestDeletedTimestamp = map.put(rowIds[i], tableId, ++timestamp, hashes[i], largestDeletedTimestamp);
+        return largestDeletedTimestamp;
+    }
+
+    @Benchmark
+    public long get() {
+        //跳着取key，有的是最近put的，有的已经被覆盖或者从来没有put过
+        int i = (next += 7) & KEY_MASK;
+        return map.get(rowIds[i], tableId, hashes[i]);
+    }
+
+    @Benchmark
+    public long setCommitted() {
+        long start = ++timestamp;
+        largestDeletedTimestamp = map.setCommitted(start, ++timestamp, largestDeletedTimestamp);
+        return map.getCommittedTimestamp(start);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = new OptionsBuilder().include(CommitHashMapBenchmark.class.getSimpleName()).build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,153 @@
+/**
+ * Copyright (c) 2011 Yahoo! Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+
+package com.codefollower.lealone.omid.tso;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class TestCommitHashMap {
+    private static byte[] table = "t".getBytes();
+
+    private static byte[] row(int i) {
+        return ("row" + i).getBytes();
+    }
+
+    private static int hash(byte[] row) {
+        return new RowKey(row, table).hashCode();
+    }
+
+    @Test
+    public void testPutAndGet() {
+        CommitHashMap map = new CommitHashMap(100, 0.5f);
+        for (int i = 0; i < 40; i++) {
+            byte[] r = row(i);
+            assertThat(map.put(r, table, 1000 + i, hash(r), 0), is(0L));
+        }
+        for (int i = 0; i < 40; i++) {
+            byte[] r = row(i);
+            assertThat(map.get(r, table, hash(r)), is(1000L + i));
+        }
+        byte[] r = row(1000);
+        assertThat(map.get(r, table, hash(r)), is(0L));
+        //同一个rowId，不同的表
+        assertThat(map.get(row(1), "t2".getBytes(), hash(row(1))), is(0L));
+
+        //覆盖同一行不会提高largestDeletedTimestamp
+        r = row(5);
+        assertThat(map.put(r, table, 2000, hash(r), 0), is(0L));
+        assertThat(map.get(r, table, hash(r)), is(2000L));
+    }
+
+    @Test
+    public void testEviction() {
+        CommitHashMap map = new CommitHashMap(100, 0.5f);
+        long largestDeletedTimestamp = 0;
+        int count = 10000;
+        for (int i = 0; i < count; i++) {
+            byte[] r = row(i);
+            largestDeletedTimestamp = map.put(r, table, i + 1, hash(r), largestDeletedTimestamp);
+        }
+        //只有最近的threshold(50)个一定还在，其他的要么还在，要么已经算进largestDeletedTimestamp了
+        assertTrue(largestDeletedTimestamp > 0 && largestDeletedTimestamp < count);
+        for (int i = 0; i < count; i++) {
+            byte[] r = row(i);
+            long value = map.get(r, table, hash(r));
+            if (i >= count - 50)
+                assertThat(value, is(i + 1L));
+            else
+                assertTrue(value == i + 1 || value == 0 && largestDeletedTimestamp >= i + 1);
+        }
+    }
+
+    @Test
+    public void testKeyCompaction() {
+        CommitHashMap map = new CommitHashMap(10, 0.5f);
+        long largestDeletedTimestamp = 0;
+        for (int i = 0; i < 1000; i++) {
+            //key越来越长，复用的槽位放不下，需要重新分配key空间
+            byte[] r = new byte[1 + i % 120];
+            r[0] = (byte) i;
+            largestDeletedTimestamp = map.put(r, table, i + 1, hash(r), largestDeletedTimestamp);
+            assertThat(map.get(r, table, hash(r)), is(i + 1L));
+        }
+    }
+
+    @Test
+    public void testLongKey() {
+        CommitHashMap map = new CommitHashMap(10, 0.5f);
+        //长度超过Short.MAX_VALUE的key
+        byte[] r1 = new byte[40000];
+        byte[] r2 = new byte[40000];
+        r2[39999] = 1;
+        byte[] longTable = new byte[33000];
+        map.put(r1, longTable, 10, new RowKey(r1, longTable).hashCode(), 0);
+        map.put(r2, table, 20, hash(r2), 0);
+        assertThat(map.get(r1, longTable, new RowKey(r1, longTable).hashCode()), is(10L));
+        assertThat(map.get(r2, table, hash(r2)), is(20L));
+        assertThat(map.get(r1, table, hash(r1)), is(0L));
+
+        //重新分配key空间时按实际长度复制
+        for (int i = 0; i < 100; i++) {
+            byte[] r = row(i);
+            map.put(r, table, 100 + i, hash(r), 0);
+        }
+        byte[] r = row(99);
+        assertThat(map.get(r, table, hash(r)), is(199L));
+    }
+
+    @Test
+    public void testStripes() {
+        //太小时只有一个分段
+        assertThat(new CommitHashMap(100, 0.5f, 16).getStripeCount(), is(1));
+        CommitHashMap map = new CommitHashMap(64 * 1024, 0.5f, 12);
+        assertThat(map.getStripeCount(), is(8));
+
+        RowKey[] rows = new RowKey[1000];
+        long stripes = 0;
+        for (int i = 0; i < rows.length; i++) {
+            rows[i] = new RowKey(row(i), table);
+            stripes |= 1L << map.getStripe(rows[i].hashCode());
+        }
+        assertThat(map.getStripes(rows), is(stripes));
+        assertThat(stripes, is(0xFFL)); //所有分段都用到了
+
+        map.lockStripes(stripes);
+        try {
+            for (int i = 0; i < rows.length; i++)
+                assertThat(map.put(row(i), table, i + 1, rows[i].hashCode(), 0), is(0L));
+            for (int i = 0; i < rows.length; i++)
+                assertThat(map.get(row(i), table, rows[i].hashCode()), is(i + 1L));
+        } finally {
+            map.unlockStripes(stripes);
+        }
+    }
+
+    @Test
+    public void testCommitted() {
+        CommitHashMap map = new CommitHashMap(100, 0.5f);
+        assertThat(map.setCommitted(10, 11, 0), is(0L));
+        assertThat(map.getCommittedTimestamp(10), is(11L));
+        assertThat(map.getCommittedTimestamp(60), is(0L));
+        //与10落在同一个位置，覆盖后10的提交时间戳算进largestDeletedTimestamp
+        assertThat(map.setCommitted(60, 61, 0), is(11L));
+        assertThat(map.getCommittedTimestamp(10), is(0L));
+        assertThat(map.getCommittedTimestamp(60), is(61L));
+    }
+}
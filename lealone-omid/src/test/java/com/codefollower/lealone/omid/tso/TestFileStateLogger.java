@@ -0,0 +1,199 @@
+/**
+ * Copyright (c) 2011 Yahoo! Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+
+package com.codefollower.lealone.omid.tso;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.codefollower.lealone.omid.tso.persistence.FileStateBuilder;
+import com.codefollower.lealone.omid.tso.persistence.LoggerAsyncCallback.AddRecordCallback;
+import com.codefollower.lealone.omid.tso.persistence.LoggerException.Code;
+import com.codefollower.lealone.omid.tso.persistence.LoggerProtocol;
+
+public class TestFileStateLogger {
+    private File dir;
+    private TSOServerConfig config;
+
+    @Before
+    public void setup() throws IOException {
+        dir = File.createTempFile("omid-wal", "");
+        dir.delete();
+        config = TSOServerConfig.parseConfig(new String[] { "-port", "1234", "-ha", "-walDir", dir.getPath() });
+    }
+
+    @After
+    public void teardown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files)
+                f.delete();
+        }
+        dir.delete();
+    }
+
+    private static void addRecord(TSOState state, byte[] record) throws InterruptedException {
+        final int[] rc = new int[1];
+        final CountDownLatch latch = new CountDownLatch(1);
+        state.addRecord(record, new AddRecordCallback() {
+            @Override
+            public void addRecordComplete(int code, Object ctx) {
+                rc[0] = code;
+                latch.countDown();
+            }
+        }, null);
+        latch.await();
+        assertThat(rc[0], is(Code.OK));
+    }
+
+    private int countSegments() {
+        int count = 0;
+        for (String name : dir.list())
+            if (name.endsWith(".log"))
+                count++;
+        return count;
+    }
+
+    @Test
+    public void testRecovery() throws Exception {
+        TSOState state = FileStateBuilder.getState(config);
+        assertNotNull(state);
+        //目录被锁住了，不能同时有两个TSO
+        assertNull(FileStateBuilder.getState(config));
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(baos);
+        out.writeByte(LoggerProtocol.TIMESTAMP_ORACLE);
+        out.writeLong(1000);
+        out.writeByte(LoggerProtocol.COMMIT);
+        out.writeLong(1001);
+        out.writeLong(1002);
+        addRecord(state, baos.toByteArray());
+
+        baos.reset();
+        out.writeByte(LoggerProtocol.ABORT);
+        out.writeLong(1003);
+        out.writeByte(LoggerProtocol.LARGEST_DELETED_TIMESTAMP);
+        out.writeLong(500);
+        addRecord(state, baos.toByteArray());
+        state.stop();
+
+        state = FileStateBuilder.getState(config);
+        assertNotNull(state);
+        assertThat(state.largestDeletedTimestamp, is(500L));
+        assertThat(state.hashmap.getCommittedTimestamp(1001), is(1002L));
+        assertTrue(state.hashmap.isHalfAborted(1003));
+        assertTrue(state.getTimestampOracle().first() > 1000);
+        state.stop();
+    }
+
+    @Test
+    public void testCheckpoint() throws Exception {
+        TSOState state = FileStateBuilder.getState(config);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(baos);
+        out.writeByte(LoggerProtocol.COMMIT);
+        out.writeLong(10);
+        out.writeLong(11);
+        addRecord(state, baos.toByteArray());
+        state.stop();
+
+        state = FileStateBuilder.getState(config);
+        assertThat(countSegments(), is(2));
+        assertTrue(state.isCheckpointNeeded());
+
+        //检查点落盘后删除之前的段
+        baos.reset();
+        out.writeByte(LoggerProtocol.CHECKPOINT);
+        out.writeByte(LoggerProtocol.LARGEST_DELETED_TIMESTAMP);
+        out.writeLong(5);
+        state.hashmap.writeCommitted(out, 5);
+        addRecord(state, baos.toByteArray());
+        assertFalse(state.isCheckpointNeeded());
+        assertThat(countSegments(), is(1));
+
+        baos.reset();
+        out.writeByte(LoggerProtocol.COMMIT);
+        out.writeLong(20);
+        out.writeLong(21);
+        addRecord(state, baos.toByteArray());
+        state.stop();
+
+        state = FileStateBuilder.getState(config);
+        assertThat(state.largestDeletedTimestamp, is(5L));
+        assertThat(state.hashmap.getCommittedTimestamp(10), is(11L));
+        assertThat(state.hashmap.getCommittedTimestamp(20), is(21L));
+        state.stop();
+    }
+
+    @Test
+    public void testTornTail() throws Exception {
+        TSOState state = FileStateBuilder.getState(config);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(baos);
+        out.writeByte(LoggerProtocol.COMMIT);
+        out.writeLong(10);
+        out.writeLong(11);
+        byte[] record = baos.toByteArray();
+        addRecord(state, record);
+        state.stop();
+
+        //崩溃时最后一个记录只写了一部分
+        assertThat(countSegments(), is(1));
+        RandomAccessFile f = new RandomAccessFile(new File(dir, "wal-1.log"), "rw");
+        try {
+            f.seek(8 + record.length);
+            f.writeInt(record.length);
+            f.writeInt(12345);
+            f.write(record, 0, 5);
+        } finally {
+            f.close();
+        }
+
+        //重启后还没写检查点就在新段中写了记录，然后再次崩溃
+        state = FileStateBuilder.getState(config);
+        assertNotNull(state);
+        assertThat(state.hashmap.getCommittedTimestamp(10), is(11L));
+        assertTrue(state.isCheckpointNeeded());
+        baos.reset();
+        out.writeByte(LoggerProtocol.COMMIT);
+        out.writeLong(20);
+        out.writeLong(21);
+        addRecord(state, baos.toByteArray());
+        state.stop();
+
+        state = FileStateBuilder.getState(config);
+        assertNotNull(state);
+        assertThat(state.hashmap.getCommittedTimestamp(10), is(11L));
+        assertThat(state.hashmap.getCommittedTimestamp(20), is(21L));
+        state.stop();
+    }
+}
@@ -16,10 +16,13 @@
 
 package com.codefollower.lealone.omid.tso;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 import org.junit.Test;
 
+import com.codefollower.lealone.omid.client.SyncCreateCallback;
+import com.codefollower.lealone.omid.tso.messages.TimestampRangeResponse;
 import com.codefollower.lealone.omid.tso.messages.TimestampRequest;
 import com.codefollower.lealone.omid.tso.messages.TimestampResponse;
 
@@ -36,4 +39,37 @@ public class TestTimestamps extends TSOTestBase {
         assertTrue(tr2.timestamp > tr1.timestamp);
     }
 
+    @Test
+    public void testGetTimestampRange() throws Exception {
+        clientHandler.sendMessage(new TimestampRequest());
+        clientHandler.receiveBootstrap();
+        TimestampResponse tr1 = clientHandler.receiveMessage(TimestampResponse.class);
+
+        //第一个请求还没收到响应时，后面的请求会合并成TimestampRangeRequest，
+        //不管怎么合并，每个请求都按顺序拿到连续的时间戳
+        SyncCreateCallback[] cbs = new SyncCreateCallback[10];
+        for (int i = 0; i < cbs.length; i++) {
+            cbs[i] = new SyncCreateCallback();
+            clientHandler.getNewTimestamp(cbs[i]);
+        }
+        for (int i = 0; i < cbs.length; i++) {
+            cbs[i].await();
+            assertEquals(tr1.timestamp + i + 1, cbs[i].getStartTimestamp());
+        }
+
+        int received = 0;
+        while (received < cbs.length) {
+            Object msg = clientHandler.receiveMessage();
+            if (msg instanceof TimestampRangeResponse) {
+                TimestampRangeResponse r = (TimestampRangeResponse) msg;
+                assertEquals(tr1.timestamp + received + 1, r.first);
+                received += r.count;
+            } else {
+                assertEquals(tr1.timestamp + received + 1, ((TimestampResponse) msg).timestamp);
+                received++;
+            }
+        }
+        assertEquals(cbs.length, received);
+    }
+
 }
\ No newline at end of file
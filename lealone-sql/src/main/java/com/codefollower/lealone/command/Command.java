@@ -19,6 +19,7 @@ import com.codefollower.lealone.message.DbException;
 import com.codefollower.lealone.message.Trace;
 import com.codefollower.lealone.result.ResultInterface;
 import com.codefollower.lealone.util.MathUtils;
+import com.codefollower.lealone.value.Value;
 
 /**
  * Represents a SQL statement. This object is only used on the server side.
@@ -274,6 +275,16 @@ public abstract class Command implements CommandInterface {
         }
     }
 
+    /**
+     * Execute the update command once for each parameter set.
+     *
+     * @param batchParameters the parameter values of each execution
+     * @param updateCounts receives the update count of each execution
+     */
+    public void executeBatchUpdate(ArrayList<Value[]> batchParameters, int[] updateCounts) {
+        BatchUpdates.execute(this, batchParameters, updateCounts);
+    }
+
     private long filterConcurrentUpdate(DbException e, long start) {
         if (e.getErrorCode() != ErrorCode.CONCURRENT_UPDATE_1) {
             throw e;
@@ -186,11 +186,16 @@ public class Parser {
     private boolean recompileAlways;
     private ArrayList<Parameter> indexedParameterList;
     private final boolean identifiersToUpper;
+    /**
+     * 发给各Region的SQL中会出现只在内部使用的聚合函数
+     */
+    protected boolean allowInternalAggregates;
 
     public Parser(Session session) {
         database = session.getDatabase();
         this.identifiersToUpper = database.getSettings().databaseToUpper;
         this.session = session;
+        this.allowInternalAggregates = session.getAllowInternalAggregates();
     }
 
     /**
@@ -792,7 +797,7 @@ public class Parser {
         return columns.toArray(new String[columns.size()]);
     }
 
-    private Column[] parseColumnList(Table table) {
+    protected Column[] parseColumnList(Table table) {
         ArrayList<Column> columns = New.arrayList();
         HashSet<Column> set = New.hashSet();
         if (!readIf(")")) {
@@ -1524,7 +1529,7 @@ public class Parser {
         return command;
     }
 
-    private Query parseSelect() {
+    protected Query parseSelect() {
         int paramIndex = parameters.size();
         Query command = parseSelectUnion();
         ArrayList<Parameter> params = New.arrayList();
@@ -2101,6 +2106,15 @@ public class Parser {
                 agg.setSeparator(readExpression());
             }
             r = agg;
+        } else if (aggregateType == Aggregate.APPROX_COUNT_DISTINCT) {
+            //本身就是求不同值的个数，DISTINCT可有可无
+            readIf("DISTINCT");
+            r = new Aggregate(aggregateType, readExpression(), currentSelect, false);
+        } else if (aggregateType == Aggregate.APPROX_PERCENTILE) {
+            Aggregate agg = new Aggregate(aggregateType, readExpression(), currentSelect, false);
+            read(",");
+            agg.setPercentile(readExpression());
+            r = agg;
         } else {
             boolean distinct = readIf("DISTINCT");
             r = new Aggregate(aggregateType, readExpression(), currentSelect, distinct);
@@ -2168,7 +2182,10 @@ public class Parser {
             // if not yet converted to uppercase, do it now
             name = StringUtils.toUpperEnglish(name);
         }
-        return Aggregate.getAggregateType(name);
+        int type = Aggregate.getAggregateType(name);
+        if (type >= 0 && !allowInternalAggregates && Aggregate.isInternalAggregateType(type))
+            return -1;
+        return type;
     }
 
     private Expression readFunction(Schema schema, String name) {
@@ -4793,7 +4810,7 @@ public class Parser {
         return command;
     }
 
-    private Table readTableOrView() {
+    protected Table readTableOrView() {
         return readTableOrView(readIdentifierWithSchema(null));
     }
 
@@ -103,6 +103,9 @@ public class Analyze extends DefineCommand {
             int selectivity = result.currentRow()[j].getInt();
             columns[j].setSelectivity(selectivity);
         }
+        // the statistics changed: plans and caches based on the old
+        // statistics must be rebuilt
+        table.setModified();
         if (manual) {
             db.update(session, table);
         } else {
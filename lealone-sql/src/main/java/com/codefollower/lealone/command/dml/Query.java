@@ -485,6 +485,14 @@ public abstract class Query extends Prepared {
         this.limitExpr = limit;
     }
 
+    public Expression getOffset() {
+        return offsetExpr;
+    }
+
+    public Expression getLimit() {
+        return limitExpr;
+    }
+
     /**
      * Add a parameter to the parameter list.
      *
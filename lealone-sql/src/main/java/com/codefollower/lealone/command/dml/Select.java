@@ -27,6 +27,7 @@ import com.codefollower.lealone.dbobject.table.Table;
 import com.codefollower.lealone.dbobject.table.TableFilter;
 import com.codefollower.lealone.engine.Database;
 import com.codefollower.lealone.engine.Session;
+import com.codefollower.lealone.expression.Aggregate;
 import com.codefollower.lealone.expression.Calculator;
 import com.codefollower.lealone.expression.Comparison;
 import com.codefollower.lealone.expression.ConditionAndOr;
@@ -89,10 +90,18 @@ public class Select extends Query {
 
     private Map<String, ArrayList<Column>> columnsMap = New.hashMap();
 
+    public Expression getCondition() {
+        return condition;
+    }
+
     public boolean isGroupQuery() {
         return isGroupQuery;
     }
 
+    public SortOrder getSortOrder() {
+        return sort;
+    }
+
     public boolean isNotAggregate() {
         return isGroupQuery && groupByExpression != null && groupByExpression.length > 0;
     }
@@ -134,6 +143,10 @@ public class Select extends Query {
         }
     }
 
+    public ArrayList<TableFilter> getFilters() {
+        return filters;
+    }
+
     @Override
     public ArrayList<TableFilter> getTopFilters() {
         return topFilters;
@@ -331,7 +344,7 @@ public class Select extends Query {
 
     public ResultInterface calculate(ResultInterface result, Select select) {
         int columnCount = expressions.size();
-        if (select.expressions.size() == columnCount)
+        if (select.expressions.size() == columnCount && !hasApproximateAggregate())
             return result;
         LocalResult lr = new LocalResult(session, expressionArray, columnCount);
 
@@ -355,6 +368,19 @@ public class Select extends Query {
         return lr;
     }
 
+    /**
+     * 有APPROX_COUNT_DISTINCT这类聚合函数时，合并后的结果还是中间结果，需要再算出最终结果
+     */
+    private boolean hasApproximateAggregate() {
+        for (Expression e : expressions) {
+            e = e.getNonAliasExpression();
+            if (e instanceof Aggregate && ((Aggregate) e).isApproximate()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     public ResultInterface queryGroupMerge() {
         //columnCount = visibleColumnCount;
         int columnCount = expressions.size();
@@ -432,6 +458,127 @@ public class Select extends Query {
         return result;
     }
 
+    /**
+     * 各列在Region返回的部分聚合结果中的起始位置。
+     * 部分聚合结果仍然是Region按getPlanSQL(true)查询返回的普通记录，不是专门的二进制格式，
+     * DISTINCT聚合也不会换成HyperLogLog这样的近似结果，仍然走queryGroupMerge。
+     *
+     * @return 有不能直接合并部分聚合结果的列时返回null，此时只能用queryGroupMerge和calculate
+     */
+    public int[] getPartialOffsets() {
+        if (distinct || having != null || havingIndex >= 0) {
+            return null;
+        }
+        int columnCount = expressions.size();
+        int[] offsets = new int[columnCount];
+        int offset = 0;
+        for (int i = 0; i < columnCount; i++) {
+            offsets[i] = offset;
+            if (groupByExpression != null && groupByExpression[i]) {
+                offset++;
+                continue;
+            }
+            Expression expr = expressions.get(i).getNonAliasExpression();
+            if (!(expr instanceof Aggregate)) {
+                return null;
+            }
+            int count = ((Aggregate) expr).getPartialColumnCount();
+            if (count < 0) {
+                return null;
+            }
+            offset += count;
+        }
+        return offsets;
+    }
+
+    /**
+     * 一次哈希合并各Region返回的部分聚合结果，直接得到最终结果，
+     * 不需要再把getPlanSQL(true)重新解析成新的Select。
+     *
+     * @param partialResult 各Region返回的结果，列的排列方式同getPlanSQL(true)
+     * @param offsets getPartialOffsets()的返回值
+     * @param maxRows the maximum number of rows to return
+     * @return 最终结果
+     */
+    public ResultInterface mergePartial(ResultInterface partialResult, int[] offsets, int maxRows) {
+        int columnCount = expressions.size();
+        ValueHashMap<HashMap<Expression, Object>> groups = ValueHashMap.newInstance();
+        ValueArray defaultGroup = ValueArray.get(new Value[0]);
+        while (partialResult.next()) {
+            Value[] partialRow = partialResult.currentRow();
+            Value key;
+            if (groupIndex == null) {
+                key = defaultGroup;
+            } else {
+                Value[] keyValues = new Value[groupIndex.length];
+                for (int i = 0; i < groupIndex.length; i++) {
+                    keyValues[i] = partialRow[offsets[groupIndex[i]]];
+                }
+                key = ValueArray.get(keyValues);
+            }
+            HashMap<Expression, Object> values = groups.get(key);
+            if (values == null) {
+                values = new HashMap<Expression, Object>();
+                groups.put(key, values);
+            }
+            currentGroup = values;
+            currentGroupRowId++;
+            for (int i = 0; i < columnCount; i++) {
+                if (groupByExpression == null || !groupByExpression[i]) {
+                    Aggregate a = (Aggregate) expressions.get(i).getNonAliasExpression();
+                    a.mergePartial(session, partialRow, offsets[i]);
+                }
+            }
+        }
+        if (groupIndex == null && groups.size() == 0) {
+            groups.put(defaultGroup, new HashMap<Expression, Object>());
+        }
+
+        LocalResult result = new LocalResult(session, expressionArray, visibleColumnCount);
+        if (sort != null) {
+            result.setSortOrder(sort);
+        }
+        for (Value v : groups.keys()) {
+            ValueArray key = (ValueArray) v;
+            currentGroup = groups.get(key);
+            Value[] keyValues = key.getList();
+            Value[] row = new Value[columnCount];
+            for (int j = 0; groupIndex != null && j < groupIndex.length; j++) {
+                row[groupIndex[j]] = keyValues[j];
+            }
+            for (int j = 0; j < columnCount; j++) {
+                if (groupByExpression != null && groupByExpression[j]) {
+                    continue;
+                }
+                Aggregate a = (Aggregate) expressions.get(j).getNonAliasExpression();
+                row[j] = a.getPartialMergedValue(session);
+            }
+            result.addRow(row);
+        }
+        currentGroup = null;
+        if (offsetExpr != null) {
+            Value v = offsetExpr.getValue(session);
+            if (v != ValueNull.INSTANCE) {
+                result.setOffset(v.getInt());
+            }
+        }
+        int limitRows = maxRows == 0 ? -1 : maxRows;
+        if (limitExpr != null) {
+            Value v = limitExpr.getValue(session);
+            int l = v == ValueNull.INSTANCE ? -1 : v.getInt();
+            if (limitRows < 0) {
+                limitRows = l;
+            } else if (l >= 0) {
+                limitRows = Math.min(l, limitRows);
+            }
+        }
+        if (limitRows >= 0) {
+            result.setLimit(limitRows);
+        }
+        result.done();
+        return result;
+    }
+
     private void queryGroup(int columnCount, LocalResult result) {
         ValueHashMap<HashMap<Expression, Object>> groups = ValueHashMap.newInstance();
         int rowNumber = 0;
@@ -1199,7 +1346,13 @@ public class Select extends Query {
                 buff.append(StringUtils.unEnclose(o.getSQL()));
             }
         }
-        if (limitExpr != null) {
+        //各Region只返回部分聚合结果时，由合并结果集的一方在得到最终结果后再处理LIMIT和OFFSET
+        boolean limitOnMerge = isDistributed && isGroupQuery && getPartialOffsets() != null;
+        if (limitExpr != null && isDistributed && !isGroupQuery && offsetExpr != null) {
+            //分布式环境下每个Region都要返回前(limit + offset)条记录，由合并结果集的一方跳过offset条记录
+            buff.append("\nLIMIT ((").append(StringUtils.unEnclose(limitExpr.getSQL(isDistributed)));
+            buff.append(") + (").append(StringUtils.unEnclose(offsetExpr.getSQL(isDistributed))).append("))");
+        } else if (limitExpr != null && !limitOnMerge) {
             buff.append("\nLIMIT ").append(StringUtils.unEnclose(limitExpr.getSQL(isDistributed)));
             if (offsetExpr != null) {
                 buff.append(" OFFSET ").append(StringUtils.unEnclose(offsetExpr.getSQL(isDistributed)));
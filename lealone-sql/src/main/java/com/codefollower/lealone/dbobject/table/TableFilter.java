@@ -472,6 +472,10 @@ public class TableFilter implements ColumnResolver {
         return table.getName();
     }
 
+    public ArrayList<IndexCondition> getIndexConditions() {
+        return indexConditions;
+    }
+
     /**
      * Add an index condition.
      *
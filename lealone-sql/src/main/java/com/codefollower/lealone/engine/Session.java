@@ -87,6 +87,7 @@ public class Session extends SessionWithState {
     private long lastThrottle;
     private Command currentCommand;
     private boolean allowLiterals;
+    private boolean allowInternalAggregates;
     private String currentSchemaName;
     private String[] schemaSearchPath;
     private Trace trace;
@@ -935,6 +936,17 @@ public class Session extends SessionWithState {
         this.allowLiterals = b;
     }
 
+    /**
+     * 是否可以解析APPROX_COUNT_DISTINCT_SKETCH这类只在分布式查询内部使用的聚合函数
+     */
+    public boolean getAllowInternalAggregates() {
+        return allowInternalAggregates;
+    }
+
+    public void setAllowInternalAggregates(boolean b) {
+        this.allowInternalAggregates = b;
+    }
+
     public void setCurrentSchema(Schema schema) {
         modificationId++;
         this.currentSchemaName = schema.getName();
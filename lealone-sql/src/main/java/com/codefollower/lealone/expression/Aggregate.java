@@ -117,6 +117,26 @@ public class Aggregate extends Expression {
      */
     static final int HISTOGRAM = 14;
 
+    /**
+     * The aggregate type for APPROX_COUNT_DISTINCT(expression).
+     */
+    public static final int APPROX_COUNT_DISTINCT = 15;
+
+    /**
+     * The aggregate type for APPROX_PERCENTILE(expression, fraction).
+     */
+    public static final int APPROX_PERCENTILE = 16;
+
+    /**
+     * 分布式查询时各Region计算APPROX_COUNT_DISTINCT用的中间结果，是串行化后的HyperLogLog
+     */
+    static final int APPROX_COUNT_DISTINCT_SKETCH = 17;
+
+    /**
+     * 分布式查询时各Region计算APPROX_PERCENTILE用的中间结果，是串行化后的QuantileSketch
+     */
+    static final int APPROX_PERCENTILE_SKETCH = 18;
+
     private static final HashMap<String, Integer> AGGREGATES = New.hashMap();
 
     private final int type;
@@ -125,6 +145,8 @@ public class Aggregate extends Expression {
 
     private Expression on;
     private Expression separator;
+    private Expression percentile;
+    private double fraction;
     private ArrayList<SelectOrderBy> orderList;
     private SortOrder sort;
     private int dataType, scale;
@@ -171,6 +193,10 @@ public class Aggregate extends Expression {
         addAggregate("EVERY", BOOL_AND);
         addAggregate("SELECTIVITY", SELECTIVITY);
         addAggregate("HISTOGRAM", HISTOGRAM);
+        addAggregate("APPROX_COUNT_DISTINCT", APPROX_COUNT_DISTINCT);
+        addAggregate("APPROX_PERCENTILE", APPROX_PERCENTILE);
+        addAggregate("APPROX_COUNT_DISTINCT_SKETCH", APPROX_COUNT_DISTINCT_SKETCH);
+        addAggregate("APPROX_PERCENTILE_SKETCH", APPROX_PERCENTILE_SKETCH);
     }
 
     private static void addAggregate(String name, int type) {
@@ -189,6 +215,16 @@ public class Aggregate extends Expression {
         return type == null ? -1 : type.intValue();
     }
 
+    /**
+     * 只在发给各Region的SQL中使用的聚合函数，用户的SQL中不能直接使用
+     *
+     * @param type the aggregate type
+     * @return true if this is APPROX_COUNT_DISTINCT_SKETCH or APPROX_PERCENTILE_SKETCH
+     */
+    public static boolean isInternalAggregateType(int type) {
+        return type == APPROX_COUNT_DISTINCT_SKETCH || type == APPROX_PERCENTILE_SKETCH;
+    }
+
     /**
      * Set the order for GROUP_CONCAT.
      *
@@ -207,6 +243,24 @@ public class Aggregate extends Expression {
         this.separator = separator;
     }
 
+    /**
+     * Set the fraction for APPROX_PERCENTILE.
+     *
+     * @param percentile the fraction expression, must be a constant between 0 and 1
+     */
+    public void setPercentile(Expression percentile) {
+        this.percentile = percentile;
+    }
+
+    /**
+     * 是否是用概率算法估算的聚合函数，分布式查询时各Region返回的是串行化后的中间结果
+     *
+     * @return true if this is APPROX_COUNT_DISTINCT or APPROX_PERCENTILE
+     */
+    public boolean isApproximate() {
+        return type == APPROX_COUNT_DISTINCT || type == APPROX_PERCENTILE;
+    }
+
     private SortOrder initOrder(Session session) {
         int size = orderList.size();
         int[] index = new int[size];
@@ -240,7 +294,7 @@ public class Aggregate extends Expression {
 
         AggregateData data = (AggregateData) group.get(this);
         if (data == null) {
-            data = new AggregateData(type, dataType);
+            data = new AggregateData(type, dataType, fraction);
             group.put(this, data);
         }
         Value v = on == null ? null : on.getValue(session);
@@ -278,7 +332,7 @@ public class Aggregate extends Expression {
 
         AggregateData data = (AggregateData) group.get(this);
         if (data == null) {
-            data = new AggregateData(type, dataType);
+            data = new AggregateData(type, dataType, fraction);
             group.put(this, data);
         }
         if (type == GROUP_CONCAT) {
@@ -299,6 +353,75 @@ public class Aggregate extends Expression {
         data.merge(session.getDatabase(), distinct, v);
     }
 
+    /**
+     * 分布式查询时每个Region返回的部分聚合结果在一行中占几列，与getSQL(true)对应
+     *
+     * @return 部分聚合结果不能直接合并出最终结果时返回-1，比如DISTINCT、GROUP_CONCAT
+     */
+    public int getPartialColumnCount() {
+        switch (type) {
+        case COUNT_ALL:
+        case MIN:
+        case MAX:
+        case BOOL_AND:
+        case BOOL_OR:
+            return 1;
+        case APPROX_COUNT_DISTINCT:
+        case APPROX_PERCENTILE:
+            return 1;
+        case COUNT:
+        case SUM:
+            return distinct ? -1 : 1;
+        case AVG:
+            return distinct ? -1 : 2;
+        case STDDEV_POP:
+        case STDDEV_SAMP:
+        case VAR_POP:
+        case VAR_SAMP:
+            return distinct ? -1 : 3;
+        default:
+            return -1;
+        }
+    }
+
+    /**
+     * 把一个Region返回的部分聚合结果合并到当前分组中
+     *
+     * @param session the session
+     * @param row Region返回的一行记录
+     * @param offset 部分聚合结果在row中的起始位置
+     */
+    public void mergePartial(Session session, Value[] row, int offset) {
+        HashMap<Expression, Object> group = select.getCurrentGroup();
+        int groupRowId = select.getCurrentGroupRowId();
+        if (lastGroupRowId == groupRowId) {
+            // already visited
+            return;
+        }
+        lastGroupRowId = groupRowId;
+
+        AggregateData data = (AggregateData) group.get(this);
+        if (data == null) {
+            data = new AggregateData(type, dataType, fraction);
+            group.put(this, data);
+        }
+        data.mergePartial(session.getDatabase(), row, offset);
+    }
+
+    /**
+     * 由合并后的部分聚合结果算出当前分组的最终结果
+     *
+     * @param session the session
+     * @return the value
+     */
+    public Value getPartialMergedValue(Session session) {
+        AggregateData data = (AggregateData) select.getCurrentGroup().get(this);
+        if (data == null) {
+            data = new AggregateData(type, dataType, fraction);
+        }
+        return data.getPartialMergedValue();
+    }
+
     public Value getValue(Session session) {
         if (select.isQuickAggregateQuery()) {
             switch (type) {
@@ -333,7 +456,7 @@ public class Aggregate extends Expression {
         }
         AggregateData data = (AggregateData) group.get(this);
         if (data == null) {
-            data = new AggregateData(type, dataType);
+            data = new AggregateData(type, dataType, fraction);
         }
         Value v = data.getValue(session.getDatabase(), distinct);
         if (type == GROUP_CONCAT) {
@@ -407,7 +530,7 @@ public class Aggregate extends Expression {
         }
         AggregateData data = (AggregateData) group.get(this);
         if (data == null) {
-            data = new AggregateData(type, dataType);
+            data = new AggregateData(type, dataType, fraction);
         }
         Value v = data.getMergedValue(session.getDatabase(), distinct);
         if (type == GROUP_CONCAT) {
@@ -505,9 +628,19 @@ public class Aggregate extends Expression {
             calculator.addIndex(3);
             break;
         }
+        case Aggregate.APPROX_COUNT_DISTINCT:
+        case Aggregate.APPROX_PERCENTILE: {
+            AggregateData data = new AggregateData(type, dataType, fraction);
+            data.mergeSketch(calculator.getValue(calculator.getIndex()));
+            calculator.addResultValue(data.getPartialMergedValue());
+            calculator.addIndex();
+            break;
+        }
         case Aggregate.HISTOGRAM:
         case Aggregate.SELECTIVITY:
         case Aggregate.GROUP_CONCAT:
+        case Aggregate.APPROX_COUNT_DISTINCT_SKETCH:
+        case Aggregate.APPROX_PERCENTILE_SKETCH:
             break;
         default:
             DbException.throwInternalError("type=" + type);
@@ -530,6 +663,9 @@ public class Aggregate extends Expression {
         if (separator != null) {
             separator.mapColumns(resolver, level);
         }
+        if (percentile != null) {
+            percentile.mapColumns(resolver, level);
+        }
     }
 
     public Expression optimize(Session session) {
@@ -549,6 +685,17 @@ public class Aggregate extends Expression {
         if (separator != null) {
             separator = separator.optimize(session);
         }
+        if (percentile != null) {
+            percentile = percentile.optimize(session);
+            //各Region只返回中间结果，由合并结果集的一方按fraction计算最终结果，所以fraction必须是常量
+            if (!percentile.isConstant()) {
+                throw DbException.getInvalidValueException("APPROX_PERCENTILE", percentile.getSQL());
+            }
+            fraction = percentile.getValue(session).getDouble();
+            if (fraction < 0 || fraction > 1) {
+                throw DbException.getInvalidValueException("APPROX_PERCENTILE", fraction);
+            }
+        }
         switch (type) {
         case GROUP_CONCAT:
             dataType = Value.STRING;
@@ -607,6 +754,27 @@ public class Aggregate extends Expression {
             displaySize = ValueBoolean.DISPLAY_SIZE;
             scale = 0;
             break;
+        case APPROX_COUNT_DISTINCT:
+            dataType = Value.LONG;
+            scale = 0;
+            precision = ValueLong.PRECISION;
+            displaySize = ValueLong.DISPLAY_SIZE;
+            break;
+        case APPROX_PERCENTILE:
+            if (!DataType.supportsAdd(dataType)) {
+                throw DbException.get(ErrorCode.SUM_OR_AVG_ON_WRONG_DATATYPE_1, getSQL());
+            }
+            dataType = Value.DOUBLE;
+            precision = ValueDouble.PRECISION;
+            displaySize = ValueDouble.DISPLAY_SIZE;
+            scale = 0;
+            break;
+        case APPROX_COUNT_DISTINCT_SKETCH:
+        case APPROX_PERCENTILE_SKETCH:
+            dataType = Value.BYTES;
+            scale = 0;
+            precision = displaySize = Integer.MAX_VALUE;
+            break;
         default:
             DbException.throwInternalError("type=" + type);
         }
@@ -625,6 +793,9 @@ public class Aggregate extends Expression {
         if (separator != null) {
             separator.setEvaluatable(tableFilter, b);
         }
+        if (percentile != null) {
+            percentile.setEvaluatable(tableFilter, b);
+        }
     }
 
     public int getScale() {
@@ -722,6 +893,19 @@ public class Aggregate extends Expression {
         case BOOL_OR:
             text = "BOOL_OR";
             break;
+        case APPROX_COUNT_DISTINCT:
+            text = isDistributed ? "APPROX_COUNT_DISTINCT_SKETCH" : "APPROX_COUNT_DISTINCT";
+            break;
+        case APPROX_PERCENTILE:
+            if (isDistributed)
+                return "APPROX_PERCENTILE_SKETCH(" + on.getSQL(isDistributed) + ")";
+            return "APPROX_PERCENTILE(" + on.getSQL(isDistributed) + ", " + percentile.getSQL(isDistributed) + ")";
+        case APPROX_COUNT_DISTINCT_SKETCH:
+            text = "APPROX_COUNT_DISTINCT_SKETCH";
+            break;
+        case APPROX_PERCENTILE_SKETCH:
+            text = "APPROX_PERCENTILE_SKETCH";
+            break;
         default:
             throw DbException.throwInternalError("type=" + type);
         }
@@ -731,10 +915,16 @@ public class Aggregate extends Expression {
         return text + StringUtils.enclose(on.getSQL(isDistributed));
     }
     
+    /**
+     * 能用Select.mergePartial合并时每个Region返回(count, mean, 总体方差)，由AggregateData.mergeVariance合并，
+     * 否则返回(count, sum, sum of squares)，由HBaseMergedResult逐列相加后在calculate中算出结果
+     */
     private String getSQL_STDDEV_VAR() {
         String onSQL = on.getSQL(true);
         if (distinct) {
             return "COUNT(DISTINCT " + onSQL + "), SUM(DISTINCT " + onSQL + "), SUM(DISTINCT " + onSQL + " * " + onSQL + ")";
+        } else if (select.getPartialOffsets() != null) {
+            return "COUNT(" + onSQL + "), AVG(CAST(" + onSQL + " AS DOUBLE)), VAR_POP(" + onSQL + ")";
         } else {
             return "COUNT(" + onSQL + "), SUM(" + onSQL + "), SUM(" + onSQL + " * " + onSQL + ")";
         }
@@ -778,6 +968,9 @@ public class Aggregate extends Expression {
         if (separator != null && !separator.isEverything(visitor)) {
             return false;
         }
+        if (percentile != null && !percentile.isEverything(visitor)) {
+            return false;
+        }
         if (orderList != null) {
             for (int i = 0, size = orderList.size(); i < size; i++) {
                 SelectOrderBy o = orderList.get(i);
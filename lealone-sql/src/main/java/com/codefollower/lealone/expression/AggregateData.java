@@ -13,14 +13,17 @@ import java.util.Comparator;
 import com.codefollower.lealone.constant.Constants;
 import com.codefollower.lealone.engine.Database;
 import com.codefollower.lealone.message.DbException;
+import com.codefollower.lealone.util.HyperLogLog;
 import com.codefollower.lealone.util.IntIntHashMap;
 import com.codefollower.lealone.util.New;
+import com.codefollower.lealone.util.QuantileSketch;
 import com.codefollower.lealone.util.ValueHashMap;
 import com.codefollower.lealone.value.CompareMode;
 import com.codefollower.lealone.value.DataType;
 import com.codefollower.lealone.value.Value;
 import com.codefollower.lealone.value.ValueArray;
 import com.codefollower.lealone.value.ValueBoolean;
+import com.codefollower.lealone.value.ValueBytes;
 import com.codefollower.lealone.value.ValueDouble;
 import com.codefollower.lealone.value.ValueInt;
 import com.codefollower.lealone.value.ValueLong;
@@ -32,16 +35,24 @@ import com.codefollower.lealone.value.ValueNull;
 class AggregateData {
     private final int aggregateType;
     private final int dataType;
+    private final double fraction; //APPROX_PERCENTILE的参数
     private long count;
     private IntIntHashMap distinctHashes;
     private ValueHashMap<AggregateData> distinctValues;
     private Value value;
     private double m2, mean;
+    private HyperLogLog hll;
+    private QuantileSketch quantiles;
     private ArrayList<Value> list;
 
     AggregateData(int aggregateType, int dataType) {
+        this(aggregateType, dataType, 0);
+    }
+
+    AggregateData(int aggregateType, int dataType, double fraction) {
         this.aggregateType = aggregateType;
         this.dataType = dataType;
+        this.fraction = fraction;
     }
 
     /**
@@ -167,6 +178,20 @@ class AggregateData {
                 value = ValueBoolean.get(value.getBoolean().booleanValue() || v.getBoolean().booleanValue());
             }
             break;
+        case Aggregate.APPROX_COUNT_DISTINCT:
+        case Aggregate.APPROX_COUNT_DISTINCT_SKETCH:
+            if (hll == null) {
+                hll = new HyperLogLog();
+            }
+            hll.add(v);
+            break;
+        case Aggregate.APPROX_PERCENTILE:
+        case Aggregate.APPROX_PERCENTILE_SKETCH:
+            if (quantiles == null) {
+                quantiles = new QuantileSketch();
+            }
+            quantiles.add(v.getDouble());
+            break;
         default:
             DbException.throwInternalError("type=" + aggregateType);
         }
@@ -270,11 +295,75 @@ class AggregateData {
                 value = ValueBoolean.get(value.getBoolean().booleanValue() || v.getBoolean().booleanValue());
             }
             break;
+        case Aggregate.APPROX_COUNT_DISTINCT_SKETCH:
+        case Aggregate.APPROX_PERCENTILE_SKETCH:
+            mergeSketch(v);
+            break;
+        case Aggregate.APPROX_COUNT_DISTINCT:
+        case Aggregate.APPROX_PERCENTILE:
+            if (value == null) {
+                value = v;
+            } else {
+                //这2种聚合函数merge的次数不会超过1，见Aggregate.calculate
+                DbException.throwInternalError("type=" + aggregateType);
+            }
+            break;
+        default:
+            DbException.throwInternalError("type=" + aggregateType);
+        }
+    }
+
+    /**
+     * 合并一个串行化后的HyperLogLog或QuantileSketch
+     *
+     * @param v the serialized sketch, or NULL
+     */
+    void mergeSketch(Value v) {
+        if (v == ValueNull.INSTANCE) {
+            return;
+        }
+        byte[] bytes = v.getBytesNoCopy();
+        switch (aggregateType) {
+        case Aggregate.APPROX_COUNT_DISTINCT:
+        case Aggregate.APPROX_COUNT_DISTINCT_SKETCH: {
+            HyperLogLog h = HyperLogLog.fromBytes(bytes);
+            if (hll == null) {
+                hll = h;
+            } else {
+                hll.merge(h);
+            }
+            break;
+        }
+        case Aggregate.APPROX_PERCENTILE:
+        case Aggregate.APPROX_PERCENTILE_SKETCH: {
+            QuantileSketch q = QuantileSketch.fromBytes(bytes);
+            if (quantiles == null) {
+                quantiles = q;
+            } else {
+                quantiles.merge(q);
+            }
+            break;
+        }
         default:
             DbException.throwInternalError("type=" + aggregateType);
         }
     }
 
+    private Value getSketchValue() {
+        switch (aggregateType) {
+        case Aggregate.APPROX_COUNT_DISTINCT:
+            return ValueLong.get(hll == null ? 0 : hll.estimate());
+        case Aggregate.APPROX_PERCENTILE:
+            return quantiles == null ? null : ValueDouble.get(quantiles.getQuantile(fraction));
+        case Aggregate.APPROX_COUNT_DISTINCT_SKETCH:
+            return hll == null ? null : ValueBytes.getNoCopy(hll.toBytes());
+        case Aggregate.APPROX_PERCENTILE_SKETCH:
+            return quantiles == null ? null : ValueBytes.getNoCopy(quantiles.toBytes());
+        default:
+            throw DbException.throwInternalError("type=" + aggregateType);
+        }
+    }
+
     ArrayList<Value> getList() {
         return list;
     }
@@ -352,6 +441,12 @@ class AggregateData {
             v = ValueDouble.get(m2 / (count - 1));
             break;
         }
+        case Aggregate.APPROX_COUNT_DISTINCT:
+        case Aggregate.APPROX_PERCENTILE:
+        case Aggregate.APPROX_COUNT_DISTINCT_SKETCH:
+        case Aggregate.APPROX_PERCENTILE_SKETCH:
+            v = getSketchValue();
+            break;
         case Aggregate.HISTOGRAM:
             ValueArray[] values = new ValueArray[distinctValues.size()];
             int i = 0;
@@ -409,6 +504,14 @@ class AggregateData {
             break;
         case Aggregate.GROUP_CONCAT:
             return null;
+        case Aggregate.APPROX_COUNT_DISTINCT:
+        case Aggregate.APPROX_PERCENTILE:
+            v = value;
+            break;
+        case Aggregate.APPROX_COUNT_DISTINCT_SKETCH:
+        case Aggregate.APPROX_PERCENTILE_SKETCH:
+            v = getSketchValue();
+            break;
 
         case Aggregate.HISTOGRAM:
             ValueArray[] values = new ValueArray[distinctValues.size()];
@@ -434,6 +537,140 @@ class AggregateData {
         return v == null ? ValueNull.INSTANCE : v.convertTo(dataType);
     }
 
+    /**
+     * 合并一个Region返回的部分聚合结果，各列的含义见Aggregate.getSQL(true)
+     *
+     * @param database the database
+     * @param row Region返回的一行记录
+     * @param offset 部分聚合结果在row中的起始位置
+     */
+    void mergePartial(Database database, Value[] row, int offset) {
+        Value v = row[offset];
+        switch (aggregateType) {
+        case Aggregate.COUNT:
+        case Aggregate.COUNT_ALL:
+            if (v != ValueNull.INSTANCE) {
+                count += v.getLong();
+            }
+            return;
+        case Aggregate.STDDEV_POP:
+        case Aggregate.STDDEV_SAMP:
+        case Aggregate.VAR_POP:
+        case Aggregate.VAR_SAMP:
+            mergeVariance(row, offset);
+            return;
+        case Aggregate.AVG:
+            //第一列是count
+            if (v != ValueNull.INSTANCE) {
+                count += v.getLong();
+            }
+            v = row[offset + 1];
+            break;
+        default:
+            break;
+        }
+        if (v == ValueNull.INSTANCE) {
+            return;
+        }
+        switch (aggregateType) {
+        case Aggregate.SUM:
+            if (value == null) {
+                value = v.convertTo(dataType);
+            } else {
+                v = v.convertTo(value.getType());
+                value = value.add(v);
+            }
+            break;
+        case Aggregate.AVG:
+            if (value == null) {
+                value = v.convertTo(DataType.getAddProofType(dataType));
+            } else {
+                v = v.convertTo(value.getType());
+                value = value.add(v);
+            }
+            break;
+        case Aggregate.MIN:
+        case Aggregate.MAX:
+        case Aggregate.BOOL_AND:
+        case Aggregate.BOOL_OR:
+            //这几种聚合函数的count没有用到
+            add(database, false, v);
+            break;
+        case Aggregate.APPROX_COUNT_DISTINCT:
+        case Aggregate.APPROX_PERCENTILE:
+            mergeSketch(v);
+            break;
+        default:
+            DbException.throwInternalError("type=" + aggregateType);
+        }
+    }
+
+    /**
+     * Region返回的是(count, mean, 总体方差)，用Chan等人的公式合并到本组的count、mean和m2中，
+     * 不用sum of squares，避免方差远小于均值的平方时相减丢失精度。
+     * 见: http://en.wikipedia.org/wiki/Algorithms_for_calculating_variance#Parallel_algorithm
+     */
+    private void mergeVariance(Value[] row, int offset) {
+        Value n = row[offset];
+        if (n == ValueNull.INSTANCE || n.getLong() < 1) {
+            return;
+        }
+        long countB = n.getLong();
+        double meanB = row[offset + 1].getDouble();
+        double m2B = row[offset + 2].getDouble() * countB;
+        if (count == 0) {
+            count = countB;
+            mean = meanB;
+            m2 = m2B;
+            return;
+        }
+        long countA = count;
+        count += countB;
+        double delta = meanB - mean;
+        mean += delta * countB / count;
+        m2 += m2B + delta * delta * ((double) countA * countB / count);
+    }
+
+    /**
+     * 由合并后的部分聚合结果得到最终结果
+     *
+     * @return the value
+     */
+    Value getPartialMergedValue() {
+        Value v = null;
+        switch (aggregateType) {
+        case Aggregate.COUNT:
+        case Aggregate.COUNT_ALL:
+            v = ValueLong.get(count);
+            break;
+        case Aggregate.SUM:
+        case Aggregate.MIN:
+        case Aggregate.MAX:
+        case Aggregate.BOOL_OR:
+        case Aggregate.BOOL_AND:
+            v = value;
+            break;
+        case Aggregate.AVG:
+            if (value != null) {
+                v = divide(value, count);
+            }
+            break;
+        case Aggregate.STDDEV_POP:
+        case Aggregate.STDDEV_SAMP:
+        case Aggregate.VAR_POP:
+        case Aggregate.VAR_SAMP:
+            //count、mean和m2与逐条add时的含义相同
+            return getValue(null, false);
+        case Aggregate.APPROX_COUNT_DISTINCT:
+        case Aggregate.APPROX_PERCENTILE:
+            v = getSketchValue();
+            break;
+        default:
+            DbException.throwInternalError("type=" + aggregateType);
+        }
+        return v == null ? ValueNull.INSTANCE : v.convertTo(dataType);
+    }
+
     private static Value divide(Value a, long by) {
         if (by == 0) {
             return ValueNull.INSTANCE;
@@ -405,6 +405,51 @@ public class CompareLike extends Condition {
                 && (escape == null || escape.isEverything(visitor));
     }
 
+    /**
+     * Get the expression before LIKE.
+     *
+     * @return the left expression
+     */
+    public Expression getLeft() {
+        return left;
+    }
+
+    /**
+     * Get the constant prefix of the pattern, for example 'Hello' for
+     * LIKE 'Hello%'. Only patterns that can be evaluated before the rows are
+     * read and that are compared case sensitively without a collation have a
+     * prefix.
+     *
+     * @param session the session
+     * @return the prefix, or null if there is none
+     */
+    public String getPrefix(Session session) {
+        if (regexp || ignoreCase || !compareMode.getName().equals(CompareMode.OFF)) {
+            return null;
+        }
+        if (!right.isEverything(ExpressionVisitor.INDEPENDENT_VISITOR)) {
+            return null;
+        }
+        if (escape != null && !escape.isEverything(ExpressionVisitor.INDEPENDENT_VISITOR)) {
+            return null;
+        }
+        Value r = right.getValue(session);
+        Value e = escape == null ? null : escape.getValue(session);
+        if (r == ValueNull.INSTANCE || e == ValueNull.INSTANCE) {
+            return null;
+        }
+        initPattern(r.getString(), getEscapeChar(e));
+        if (invalidPattern) {
+            return null;
+        }
+        int maxMatch = 0;
+        StringBuilder buff = new StringBuilder();
+        while (maxMatch < patternLength && patternTypes[maxMatch] == MATCH) {
+            buff.append(patternChars[maxMatch++]);
+        }
+        return maxMatch == 0 ? null : buff.toString();
+    }
+
     public int getCost() {
         return left.getCost() + right.getCost() + 3;
     }
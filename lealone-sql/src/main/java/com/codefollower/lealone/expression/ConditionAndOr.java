@@ -248,6 +248,15 @@ public class ConditionAndOr extends Condition {
         return left.isEverything(visitor) && right.isEverything(visitor);
     }
 
+    /**
+     * Get the type of this condition.
+     *
+     * @return AND or OR
+     */
+    public int getAndOrType() {
+        return andOrType;
+    }
+
     public int getCost() {
         return left.getCost() + right.getCost();
     }
@@ -175,6 +175,24 @@ public class ConditionIn extends Condition {
         return true;
     }
 
+    /**
+     * Get the expression before IN.
+     *
+     * @return the left expression
+     */
+    public Expression getLeft() {
+        return left;
+    }
+
+    /**
+     * Get the value list.
+     *
+     * @return the expressions in the list
+     */
+    public ArrayList<Expression> getValueList() {
+        return valueList;
+    }
+
     public int getCost() {
         int cost = left.getCost();
         for (Expression e : valueList) {
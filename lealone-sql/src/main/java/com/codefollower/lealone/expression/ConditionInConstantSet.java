@@ -128,6 +128,24 @@ public class ConditionInConstantSet extends Condition {
         }
     }
 
+    /**
+     * Get the expression before IN.
+     *
+     * @return the left expression
+     */
+    public Expression getLeft() {
+        return left;
+    }
+
+    /**
+     * Get the value list.
+     *
+     * @return the expressions in the list
+     */
+    public ArrayList<Expression> getValueList() {
+        return valueList;
+    }
+
     public int getCost() {
         int cost = left.getCost();
         return cost;
@@ -32,6 +32,7 @@ import com.codefollower.lealone.result.ResultColumn;
 import com.codefollower.lealone.result.ResultInterface;
 import com.codefollower.lealone.store.LobStorage;
 import com.codefollower.lealone.util.IOUtils;
+import com.codefollower.lealone.util.New;
 import com.codefollower.lealone.util.SmallLRUCache;
 import com.codefollower.lealone.util.SmallMap;
 import com.codefollower.lealone.util.StringUtils;
@@ -83,11 +84,13 @@ public class TcpServerThread implements Runnable {
                 int minClientVersion = transfer.readInt();
                 if (minClientVersion < Constants.TCP_PROTOCOL_VERSION_6) {
                     throw DbException.get(ErrorCode.DRIVER_VERSION_ERROR_2, "" + clientVersion, "" + Constants.TCP_PROTOCOL_VERSION_6);
-                } else if (minClientVersion > Constants.TCP_PROTOCOL_VERSION_12) {
-                    throw DbException.get(ErrorCode.DRIVER_VERSION_ERROR_2, "" + clientVersion, "" + Constants.TCP_PROTOCOL_VERSION_12);
+                } else if (minClientVersion > Constants.TCP_PROTOCOL_VERSION_13) {
+                    throw DbException.get(ErrorCode.DRIVER_VERSION_ERROR_2, "" + clientVersion, "" + Constants.TCP_PROTOCOL_VERSION_13);
                 }
                 int maxClientVersion = transfer.readInt();
-                if (maxClientVersion >= Constants.TCP_PROTOCOL_VERSION_12) {
+                if (maxClientVersion >= Constants.TCP_PROTOCOL_VERSION_13) {
+                    clientVersion = Constants.TCP_PROTOCOL_VERSION_13;
+                } else if (maxClientVersion >= Constants.TCP_PROTOCOL_VERSION_12) {
                     clientVersion = Constants.TCP_PROTOCOL_VERSION_12;
                 } else {
                     clientVersion = minClientVersion;
@@ -220,21 +223,9 @@ public class TcpServerThread implements Runnable {
     private void sendError(Throwable t) {
         try {
             SQLException e = DbException.convert(t).getSQLException();
-            StringWriter writer = new StringWriter();
-            e.printStackTrace(new PrintWriter(writer));
-            String trace = writer.toString();
-            String message;
-            String sql;
-            if (e instanceof JdbcSQLException) {
-                JdbcSQLException j = (JdbcSQLException) e;
-                message = j.getOriginalMessage();
-                sql = j.getSQL();
-            } else {
-                message = e.getMessage();
-                sql = null;
-            }
-            transfer.writeInt(SessionRemote.STATUS_ERROR).writeString(e.getSQLState()).writeString(message)
-                    .writeString(sql).writeInt(e.getErrorCode()).writeString(trace).flush();
+            transfer.writeInt(SessionRemote.STATUS_ERROR);
+            writeSQLException(e);
+            transfer.flush();
         } catch (Exception e2) {
             if (!transfer.isClosed()) {
                 server.traceError(e2);
@@ -244,6 +235,24 @@ public class TcpServerThread implements Runnable {
         }
     }
 
+    private void writeSQLException(SQLException e) throws IOException {
+        StringWriter writer = new StringWriter();
+        e.printStackTrace(new PrintWriter(writer));
+        String trace = writer.toString();
+        String message;
+        String sql;
+        if (e instanceof JdbcSQLException) {
+            JdbcSQLException j = (JdbcSQLException) e;
+            message = j.getOriginalMessage();
+            sql = j.getSQL();
+        } else {
+            message = e.getMessage();
+            sql = null;
+        }
+        transfer.writeString(e.getSQLState()).writeString(message).writeString(sql).writeInt(e.getErrorCode())
+                .writeString(trace);
+    }
+
     private void setParameters(Command command) throws IOException {
         int len = transfer.readInt();
         ArrayList<? extends ParameterInterface> params = command.getParameters();
@@ -357,6 +366,53 @@ public class TcpServerThread implements Runnable {
             transfer.flush();
             break;
         }
+        case SessionRemote.COMMAND_EXECUTE_BATCH_UPDATE: {
+            int id = transfer.readInt();
+            Command command = (Command) cache.getObject(id, false);
+            int size = transfer.readInt();
+            ArrayList<Value[]> batchParameters = New.arrayList(size);
+            for (int i = 0; i < size; i++) {
+                int len = transfer.readInt();
+                Value[] set = new Value[len];
+                for (int j = 0; j < len; j++) {
+                    set[j] = transfer.readValue();
+                }
+                batchParameters.add(set);
+            }
+            int old = session.getModificationId();
+            int[] updateCounts = new int[size];
+            SQLException error = null;
+            synchronized (session) {
+                try {
+                    command.executeBatchUpdate(batchParameters, updateCounts);
+                } catch (Throwable t) {
+                    //部分参数执行失败时也要把每一个的更新记录数返回给客户端
+                    error = DbException.convert(t).getSQLException();
+                }
+            }
+            int status;
+            if (session.isClosed()) {
+                status = SessionRemote.STATUS_CLOSED;
+            } else {
+                status = getState(old);
+            }
+            transfer.writeInt(status);
+            for (int i = 0; i < size; i++) {
+                transfer.writeInt(updateCounts[i]);
+            }
+            //每个失败的参数都有一个异常，用getNextException串在一起
+            int errorCount = 0;
+            for (SQLException e = error; e != null; e = e.getNextException()) {
+                errorCount++;
+            }
+            transfer.writeInt(errorCount);
+            for (SQLException e = error; e != null; e = e.getNextException()) {
+                writeSQLException(e);
+            }
+            transfer.writeBoolean(session.getAutoCommit());
+            transfer.flush();
+            break;
+        }
         case SessionRemote.COMMAND_CLOSE: {
             int id = transfer.readInt();
             Command command = (Command) cache.getObject(id, true);
@@ -0,0 +1,267 @@
+/*
+ * Copyright 2011 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.codefollower.lealone.util;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+
+import com.codefollower.lealone.message.DbException;
+import com.codefollower.lealone.value.Value;
+
+/**
+ * 用HyperLogLog算法估算不同值的个数，APPROX_COUNT_DISTINCT用它来代替DISTINCT时保存所有不同值的哈希表。
+ *
+ * <ul>
+ * <li>共2^14个寄存器，标准误差约0.8%，不管有多少个值，内存都不超过16K字节</li>
+ * <li>不同的哈希值不多时只保存哈希值(稀疏模式)，结果是精确的，超过SPARSE_MAX_SIZE个才分配寄存器</li>
+ * <li>可以串行化成字节数组，分布式查询时由各Region分别计算，再在合并结果集的一方合并</li>
+ * </ul>
+ */
+public class HyperLogLog {
+    private static final int P = 14;
+    private static final int M = 1 << P;
+    private static final double ALPHA = 0.7213 / (1 + 1.079 / M);
+
+    private static final int SPARSE_MAX_SIZE = 1024;
+    private static final byte SPARSE = 0;
+    private static final byte DENSE = 1;
+
+    private byte[] registers;
+
+    //开放地址的哈希集合，0表示空位，值为0的哈希值换成1
+    private long[] hashes = new long[16];
+    private int size;
+
+    /**
+     * Add a value.
+     *
+     * @param v the value, must not be NULL
+     */
+    public void add(Value v) {
+        addHash(hash(v));
+    }
+
+    private void addHash(long hash) {
+        if (registers != null) {
+            updateRegister(hash);
+            return;
+        }
+        if (hash == 0) {
+            hash = 1;
+        }
+        int mask = hashes.length - 1;
+        int i = (int) (hash ^ (hash >>> 32)) & mask;
+        while (hashes[i] != 0) {
+            if (hashes[i] == hash) {
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+        hashes[i] = hash;
+        size++;
+        if (size > SPARSE_MAX_SIZE) {
+            toDense();
+        } else if (size * 2 > hashes.length) {
+            long[] old = hashes;
+            hashes = new long[old.length * 2];
+            size = 0;
+            for (long h : old) {
+                if (h != 0) {
+                    addHash(h);
+                }
+            }
+        }
+    }
+
+    private void updateRegister(long hash) {
+        int index = (int) (hash >>> (64 - P));
+        //低(64 - P)位中第一个1的位置，最后补一个1，避免全是0
+        long w = (hash << P) | (1L << (P - 1));
+        byte rho = (byte) (Long.numberOfLeadingZeros(w) + 1);
+        if (rho > registers[index]) {
+            registers[index] = rho;
+        }
+    }
+
+    private void toDense() {
+        registers = new byte[M];
+        for (long h : hashes) {
+            if (h != 0) {
+                updateRegister(h);
+            }
+        }
+        hashes = null;
+        size = 0;
+    }
+
+    /**
+     * Merge another sketch into this one.
+     *
+     * @param other the other sketch
+     */
+    public void merge(HyperLogLog other) {
+        if (other.registers != null) {
+            if (registers == null) {
+                toDense();
+            }
+            for (int i = 0; i < M; i++) {
+                if (other.registers[i] > registers[i]) {
+                    registers[i] = other.registers[i];
+                }
+            }
+        } else {
+            for (long h : other.hashes) {
+                if (h != 0) {
+                    addHash(h);
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the estimated number of distinct values.
+     *
+     * @return the estimated count
+     */
+    public long estimate() {
+        if (registers == null) {
+            return size;
+        }
+        double sum = 0;
+        int zeros = 0;
+        for (byte r : registers) {
+            sum += 1.0 / (1L << r);
+            if (r == 0) {
+                zeros++;
+            }
+        }
+        double e = ALPHA * M * M / sum;
+        //估算值较小时用线性计数修正，哈希值是64位的，不需要对很大的估算值做修正
+        if (e <= 2.5 * M && zeros > 0) {
+            e = M * Math.log((double) M / zeros);
+        }
+        return Math.round(e);
+    }
+
+    /**
+     * Serialize this sketch.
+     *
+     * @return the bytes
+     */
+    public byte[] toBytes() {
+        if (registers != null) {
+            byte[] bytes = new byte[1 + M];
+            bytes[0] = DENSE;
+            System.arraycopy(registers, 0, bytes, 1, M);
+            return bytes;
+        }
+        ByteBuffer buff = ByteBuffer.allocate(1 + 4 + 8 * size);
+        buff.put(SPARSE);
+        buff.putInt(size);
+        for (long h : hashes) {
+            if (h != 0) {
+                buff.putLong(h);
+            }
+        }
+        return buff.array();
+    }
+
+    /**
+     * Read a sketch that was serialized with toBytes.
+     *
+     * @param bytes the bytes
+     * @return the sketch
+     */
+    public static HyperLogLog fromBytes(byte[] bytes) {
+        HyperLogLog hll = new HyperLogLog();
+        ByteBuffer buff = ByteBuffer.wrap(bytes);
+        byte format = buff.get();
+        if (format == DENSE) {
+            hll.registers = new byte[M];
+            buff.get(hll.registers);
+            hll.hashes = null;
+        } else if (format == SPARSE) {
+            for (int i = 0, size = buff.getInt(); i < size; i++) {
+                hll.addHash(buff.getLong());
+            }
+        } else {
+            throw DbException.throwInternalError("format=" + format);
+        }
+        return hll;
+    }
+
+    /**
+     * 计算值的64位哈希值，同一列的值类型相同，所以只需要保证同一类型的值相等时哈希值也相等
+     *
+     * @param v the value
+     * @return the hash value
+     */
+    private static long hash(Value v) {
+        long h;
+        switch (v.getType()) {
+        case Value.BOOLEAN:
+        case Value.BYTE:
+        case Value.SHORT:
+        case Value.INT:
+        case Value.LONG:
+            h = v.getLong();
+            break;
+        case Value.DOUBLE:
+        case Value.FLOAT:
+            h = Double.doubleToLongBits(v.getDouble());
+            break;
+        case Value.DECIMAL: {
+            //1.0和1.00相等，但getString()不同，所以按去掉末尾0后的unscaledValue和scale计算
+            //(Java 6中0.00.stripTrailingZeros()还是0.00，要单独处理)
+            BigDecimal d = v.getBigDecimal();
+            d = d.signum() == 0 ? BigDecimal.ZERO : d.stripTrailingZeros();
+            BigInteger unscaled = d.unscaledValue();
+            if (unscaled.bitLength() < 64) {
+                h = unscaled.longValue();
+            } else {
+                h = 0xcbf29ce484222325L;
+                for (byte b : unscaled.toByteArray()) {
+                    h ^= b & 0xff;
+                    h *= 0x100000001b3L;
+                }
+            }
+            h = h * 31 + d.scale();
+            break;
+        }
+        default: {
+            //FNV-1a
+            String s = v.getString();
+            h = 0xcbf29ce484222325L;
+            for (int i = 0, len = s.length(); i < len; i++) {
+                h ^= s.charAt(i);
+                h *= 0x100000001b3L;
+            }
+        }
+        }
+        //MurmurHash3的fmix64，让每一位都充分混合
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,249 @@
+/*
+ * Copyright 2011 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.codefollower.lealone.util;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * 用KLL算法估算分位数，APPROX_PERCENTILE用它来代替保存所有的值。
+ *
+ * <ul>
+ * <li>第h层的每个值代表2^h个原始值，某一层满了就排序后隔一个取一个放到上一层</li>
+ * <li>最高层最多保存K个值，越往下容量按2/3递减，总共只保存大约3K个值(不到5K字节)，rank的误差一般在2%以内</li>
+ * <li>值不超过K个时结果是精确的</li>
+ * <li>可以串行化成字节数组，分布式查询时由各Region分别计算，再在合并结果集的一方合并</li>
+ * </ul>
+ */
+public class QuantileSketch {
+    private static final int K = 200;
+    private static final int MIN_CAPACITY = 8;
+
+    private final ArrayList<double[]> levels = New.arrayList();
+    private int[] sizes = new int[4];
+    private long count;
+
+    //压缩时交替地保留奇数位和偶数位上的值，使误差不偏向一边
+    private boolean oddOffset;
+
+    public QuantileSketch() {
+        addLevel();
+    }
+
+    private void addLevel() {
+        if (levels.size() == sizes.length) {
+            sizes = Arrays.copyOf(sizes, sizes.length * 2);
+        }
+        levels.add(new double[MIN_CAPACITY]);
+    }
+
+    private int getCapacity(int level) {
+        int depth = levels.size() - 1 - level;
+        return Math.max(MIN_CAPACITY, (int) Math.ceil(K * Math.pow(2.0 / 3.0, depth)));
+    }
+
+    /**
+     * Add a value.
+     *
+     * @param x the value
+     */
+    public void add(double x) {
+        count++;
+        append(0, x);
+        if (sizes[0] >= getCapacity(0)) {
+            compress();
+        }
+    }
+
+    private void append(int level, double x) {
+        double[] items = levels.get(level);
+        int size = sizes[level];
+        if (size == items.length) {
+            items = Arrays.copyOf(items, size * 2);
+            levels.set(level, items);
+        }
+        items[size] = x;
+        sizes[level] = size + 1;
+    }
+
+    /**
+     * 从下往上找到第一个满了的层，压缩到上一层，直到每一层都没有满
+     */
+    private void compress() {
+        for (int level = 0; level < levels.size(); level++) {
+            int size = sizes[level];
+            if (size < getCapacity(level)) {
+                continue;
+            }
+            if (level + 1 == levels.size()) {
+                addLevel();
+            }
+            double[] items = levels.get(level);
+            Arrays.sort(items, 0, size);
+            //个数是奇数时留下最后一个
+            int pairs = size / 2;
+            int offset = oddOffset ? 1 : 0;
+            oddOffset = !oddOffset;
+            for (int i = 0; i < pairs; i++) {
+                append(level + 1, items[i * 2 + offset]);
+            }
+            if (size % 2 == 1) {
+                items[0] = items[size - 1];
+                sizes[level] = 1;
+            } else {
+                sizes[level] = 0;
+            }
+        }
+    }
+
+    /**
+     * Merge another sketch into this one.
+     *
+     * @param other the other sketch
+     */
+    public void merge(QuantileSketch other) {
+        while (levels.size() < other.levels.size()) {
+            addLevel();
+        }
+        for (int level = 0; level < other.levels.size(); level++) {
+            double[] items = other.levels.get(level);
+            for (int i = 0, size = other.sizes[level]; i < size; i++) {
+                append(level, items[i]);
+            }
+        }
+        count += other.count;
+        compress();
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Get the estimated value at the given rank.
+     *
+     * @param fraction the rank, between 0 and 1
+     * @return the value, or NaN if there are no values
+     */
+    public double getQuantile(double fraction) {
+        int total = 0;
+        for (int level = 0; level < levels.size(); level++) {
+            total += sizes[level];
+        }
+        if (total == 0) {
+            return Double.NaN;
+        }
+        double[] values = new double[total];
+        long[] weights = new long[total];
+        int n = 0;
+        for (int level = 0; level < levels.size(); level++) {
+            double[] items = levels.get(level);
+            for (int i = 0, size = sizes[level]; i < size; i++) {
+                values[n] = items[i];
+                weights[n] = 1L << level;
+                n++;
+            }
+        }
+        sortByValue(values, weights);
+
+        long weight = 0;
+        for (int i = 0; i < total; i++) {
+            weight += weights[i];
+        }
+        double rank = fraction * weight;
+        long sum = 0;
+        for (int i = 0; i < total; i++) {
+            sum += weights[i];
+            if (sum >= rank) {
+                return values[i];
+            }
+        }
+        return values[total - 1];
+    }
+
+    private static void sortByValue(double[] values, long[] weights) {
+        Integer[] index = new Integer[values.length];
+        for (int i = 0; i < index.length; i++) {
+            index[i] = i;
+        }
+        final double[] v = values;
+        Arrays.sort(index, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return Double.compare(v[a], v[b]);
+            }
+        });
+        double[] sortedValues = new double[values.length];
+        long[] sortedWeights = new long[values.length];
+        for (int i = 0; i < index.length; i++) {
+            sortedValues[i] = values[index[i]];
+            sortedWeights[i] = weights[index[i]];
+        }
+        System.arraycopy(sortedValues, 0, values, 0, values.length);
+        System.arraycopy(sortedWeights, 0, weights, 0, weights.length);
+    }
+
+    /**
+     * Serialize this sketch.
+     *
+     * @return the bytes
+     */
+    public byte[] toBytes() {
+        int len = 8 + 4;
+        for (int level = 0; level < levels.size(); level++) {
+            len += 4 + 8 * sizes[level];
+        }
+        ByteBuffer buff = ByteBuffer.allocate(len);
+        buff.putLong(count);
+        buff.putInt(levels.size());
+        for (int level = 0; level < levels.size(); level++) {
+            double[] items = levels.get(level);
+            int size = sizes[level];
+            buff.putInt(size);
+            for (int i = 0; i < size; i++) {
+                buff.putDouble(items[i]);
+            }
+        }
+        return buff.array();
+    }
+
+    /**
+     * Read a sketch that was serialized with toBytes.
+     *
+     * @param bytes the bytes
+     * @return the sketch
+     */
+    public static QuantileSketch fromBytes(byte[] bytes) {
+        QuantileSketch sketch = new QuantileSketch();
+        ByteBuffer buff = ByteBuffer.wrap(bytes);
+        sketch.count = buff.getLong();
+        int levelCount = buff.getInt();
+        for (int level = 0; level < levelCount; level++) {
+            if (level >= sketch.levels.size()) {
+                sketch.addLevel();
+            }
+            for (int i = 0, size = buff.getInt(); i < size; i++) {
+                sketch.append(level, buff.getDouble());
+            }
+        }
+        return sketch;
+    }
+}
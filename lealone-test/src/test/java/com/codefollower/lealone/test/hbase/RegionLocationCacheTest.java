@@ -0,0 +1,70 @@
+/*
+ * Copyright 2011 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.codefollower.lealone.test.hbase;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.TreeMap;
+
+import org.apache.hadoop.hbase.HRegionInfo;
+import org.apache.hadoop.hbase.ServerName;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.Test;
+
+import com.codefollower.lealone.hbase.util.HBaseRegionInfo;
+import com.codefollower.lealone.hbase.util.RegionLocationCache.TableRegions;
+
+public class RegionLocationCacheTest {
+    private static final byte[] TABLE_NAME = Bytes.toBytes("RegionLocationCacheTest");
+
+    private static void addRegion(TreeMap<HRegionInfo, ServerName> locations, String startKey, String endKey,
+            ServerName sn) {
+        locations.put(new HRegionInfo(TABLE_NAME, Bytes.toBytes(startKey), Bytes.toBytes(endKey)), sn);
+    }
+
+    @Test
+    public void routeAcrossUnassignedRegion() throws Exception {
+        TreeMap<HRegionInfo, ServerName> locations = new TreeMap<HRegionInfo, ServerName>();
+        addRegion(locations, "", "25", new ServerName("host1", 60020, 1));
+        addRegion(locations, "25", "50", null); //还未分配
+        addRegion(locations, "50", "", new ServerName("host2", 60020, 1));
+        TableRegions tr = new TableRegions(TABLE_NAME, locations);
+
+        //未分配的Region也要保留，否则"30"会被路由到第一个Region
+        assertEquals(3, tr.getStartEndKeys().getFirst().length);
+        assertEquals("host1:60020", tr.getRegionInfo(Bytes.toBytes("10")).getHostnamePort());
+        assertEquals("host1:60020", tr.getRegionInfo(Bytes.toBytes("24")).getHostnamePort());
+        assertEquals("host2:60020", tr.getRegionInfo(Bytes.toBytes("50")).getHostnamePort());
+        assertEquals("host2:60020", tr.getRegionInfo(Bytes.toBytes("99")).getHostnamePort());
+        assertFalse(tr.isInvalidated());
+
+        //落在未分配Region上的rowKey通过HConnection重新定位，这个表在HBase中不存在，所以定位失败
+        try {
+            HBaseRegionInfo hri = tr.getRegionInfo(Bytes.toBytes("30"));
+            assertFalse("host1:60020".equals(hri.getHostnamePort()));
+        } catch (IOException e) {
+            //ignore
+        }
+        assertTrue(tr.isInvalidated());
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2011 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.codefollower.lealone.test.hbase;
+
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNotSame;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.assertTrue;
+
+import java.util.Properties;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.codefollower.lealone.engine.SessionInterface;
+import com.codefollower.lealone.hbase.engine.SessionRemotePool;
+import com.codefollower.lealone.test.jdbc.TestBase;
+
+public class SessionRemotePoolTest extends TestBase {
+    private Properties info;
+
+    @Before
+    public void setUp() {
+        info = new Properties();
+        info.setProperty("user", "sa");
+        info.setProperty("password", "");
+        SessionRemotePool.clear();
+    }
+
+    @After
+    public void tearDown() {
+        SessionRemotePool.clear();
+    }
+
+    private SessionInterface lease() throws Exception {
+        return SessionRemotePool.getSessionInterface(info, getURL());
+    }
+
+    @Test
+    public void leaseAndRelease() throws Exception {
+        //借出时从不等待，没有空闲的就新建一个
+        SessionInterface s1 = lease();
+        SessionInterface s2 = lease();
+        assertNotSame(s1, s2);
+        assertFalse(s1.isClosed());
+        assertFalse(s2.isClosed());
+
+        //后进先出
+        SessionRemotePool.release(s1);
+        SessionRemotePool.release(s2);
+        assertSame(s2, lease());
+        assertSame(s1, lease());
+        SessionRemotePool.release(s1);
+        SessionRemotePool.release(s2);
+
+        //已关闭的Session归还后不会再借出
+        SessionInterface s3 = lease();
+        s3.close();
+        SessionRemotePool.release(s3);
+        SessionInterface s4 = lease();
+        assertNotSame(s3, s4);
+        assertFalse(s4.isClosed());
+        SessionRemotePool.release(s4);
+    }
+
+    @Test
+    public void reset() throws Exception {
+        SessionInterface s = lease();
+        s.setAutoCommit(false);
+        SessionRemotePool.release(s);
+
+        //归还时回滚未结束的事务并恢复自动提交
+        assertSame(s, lease());
+        assertTrue(s.getAutoCommit());
+        SessionRemotePool.release(s);
+    }
+
+    @Test
+    public void evictIdle() throws Exception {
+        SessionInterface s = lease();
+        SessionRemotePool.release(s);
+
+        //刚归还的Session还没有过期
+        SessionRemotePool.evictIdle(60000);
+        assertFalse(s.isClosed());
+
+        Thread.sleep(10);
+        SessionRemotePool.evictIdle(5);
+        assertTrue(s.isClosed());
+        SessionInterface s2 = lease();
+        assertNotSame(s, s2);
+        SessionRemotePool.release(s2);
+    }
+}
@@ -60,6 +60,7 @@ public class CreateSequenceTest extends TestBase {
         init();
         testInsert();
         testSelect();
+        testLease();
     }
 
     void init() throws Exception {
@@ -90,4 +91,14 @@ public class CreateSequenceTest extends TestBase {
         sql = "SELECT _ROWKEY_, f1 FROM CreateSequenceTest";
         printResultSet();
     }
+
+    void testLease() throws Exception {
+        //记录分布在4个Region中，各RegionServer向Master租用的值不能重复
+        for (int i = 0; i < 200; i++)
+            stmt.executeUpdate("INSERT INTO CreateSequenceTest(_ROWKEY_, f1) VALUES('" + (i % 100) + "-" + i
+                    + "', myseq3.NEXTVAL)");
+
+        sql = "SELECT count(DISTINCT f1) FROM CreateSequenceTest WHERE _ROWKEY_ LIKE '%-%'";
+        assertEquals(200, getIntValue(1, true));
+    }
 }
@@ -19,8 +19,18 @@
  */
 package com.codefollower.lealone.test.jdbc.dml;
 
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.fail;
+
+import java.sql.BatchUpdateException;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+
 import org.junit.Test;
 
+import com.codefollower.lealone.constant.ErrorCode;
 import com.codefollower.lealone.test.jdbc.TestBase;
 
 public class InsertTest extends TestBase {
@@ -29,6 +39,9 @@ public class InsertTest extends TestBase {
         createTableIfNotExists("InsertTest");
         testInsert();
         testSelect();
+        testMultiRowInsert();
+        testBatchInsert();
+        testBatchErrors();
     }
 
     void testInsert() throws Exception {
@@ -49,6 +62,72 @@ public class InsertTest extends TestBase {
         stmt.executeUpdate("INSERT INTO InsertTest(_rowkey_, f1, cf1.f2, cf2.f3) VALUES('77', 'a1', 'b', 12)");
     }
 
+    void testMultiRowInsert() throws Exception {
+        //记录落在不同的Region上
+        int count = stmt.executeUpdate("INSERT INTO InsertTest(_rowkey_, f1, cf1.f2, cf2.f3) VALUES" //
+                + "('04', 'a3', 'b', 1), ('28', 'a3', 'b', 2), ('53', 'a3', 'b', 3), ('78', 'a3', 'b', 4)");
+        assertEquals(4, count);
+
+        sql = "select count(*) from InsertTest where f1 = 'a3'";
+        assertEquals(4, getIntValue(1, true));
+        sql = "select f3 from InsertTest where _rowkey_ = '53'";
+        assertEquals(3, getIntValue(1, true));
+    }
+
+    void testBatchInsert() throws Exception {
+        PreparedStatement ps = conn.prepareStatement("INSERT INTO InsertTest(_rowkey_, f1, cf1.f2, cf2.f3) VALUES(?, 'a4', 'b', ?)");
+        String[] rowKeys = { "05", "29", "54", "79", "06", "30" };
+        for (int i = 0; i < rowKeys.length; i++) {
+            ps.setString(1, rowKeys[i]);
+            ps.setInt(2, i);
+            ps.addBatch();
+        }
+        int[] counts = ps.executeBatch();
+        ps.close();
+        assertEquals(rowKeys.length, counts.length);
+        for (int c : counts)
+            assertEquals(1, c);
+
+        sql = "select count(*) from InsertTest where f1 = 'a4'";
+        assertEquals(rowKeys.length, getIntValue(1, true));
+        sql = "select f3 from InsertTest where _rowkey_ = '79'";
+        assertEquals(3, getIntValue(1, true));
+    }
+
+    void testBatchErrors() throws Exception {
+        PreparedStatement ps = conn.prepareStatement("INSERT INTO InsertTest(_rowkey_, f1, cf1.f2, cf2.f3) VALUES(?, 'a5', 'b', 10 / ?)");
+        //出错的两条记录在同一个Region上
+        String[] rowKeys = { "07", "08", "31", "09", "55" };
+        String[] divisors = { "1", "0", "1", "x", "1" };
+        for (int i = 0; i < rowKeys.length; i++) {
+            ps.setString(1, rowKeys[i]);
+            ps.setString(2, divisors[i]);
+            ps.addBatch();
+        }
+        try {
+            ps.executeBatch();
+            fail("not throw BatchUpdateException");
+        } catch (BatchUpdateException e) {
+            int[] counts = e.getUpdateCounts();
+            assertEquals(1, counts[0]);
+            assertEquals(Statement.EXECUTE_FAILED, counts[1]);
+            assertEquals(1, counts[2]);
+            assertEquals(Statement.EXECUTE_FAILED, counts[3]);
+            assertEquals(1, counts[4]);
+
+            //最后一个出错的在最前面，之前的通过getNextException依次排在后面
+            SQLException next = e.getNextException();
+            assertEquals(ErrorCode.DATA_CONVERSION_ERROR_1, next.getErrorCode());
+            next = next.getNextException();
+            assertEquals(ErrorCode.DIVISION_BY_ZERO_1, next.getErrorCode());
+            assertNull(next.getNextException());
+        }
+        ps.close();
+
+        sql = "select count(*) from InsertTest where f1 = 'a5'";
+        assertEquals(3, getIntValue(1, true));
+    }
+
     void testSelect() throws Exception {
         sql = "select _rowkey_, f1, f2, cf2.f3 from InsertTest";
         printResultSet();
@@ -74,17 +74,72 @@ public class SelectTest extends TestBase {
 
         sql = "SELECT count(*) FROM SelectTest WHERE _rowkey_ = '75' AND f1 = 'a2'";
         assertEquals(0, getIntValue(1, true));
+
+        //下推到RegionServer的过滤条件
+        sql = "SELECT count(*) FROM SelectTest WHERE f1 IN('a2', 'a3')";
+        assertEquals(5, getIntValue(1, true));
+
+        sql = "SELECT count(*) FROM SelectTest WHERE f1 LIKE 'a2%'";
+        assertEquals(5, getIntValue(1, true));
+
+        sql = "SELECT count(*) FROM SelectTest WHERE f1 > 'a1'";
+        assertEquals(5, getIntValue(1, true));
+
+        sql = "SELECT count(*) FROM SelectTest WHERE f1 = 'a1' OR f1 = 'a2'";
+        assertEquals(12, getIntValue(1, true));
+
+        sql = "SELECT count(*) FROM SelectTest WHERE cf2.f3 = 61";
+        assertEquals(4, getIntValue(1, true));
+
+        sql = "SELECT count(*) FROM SelectTest WHERE cf2.f3 > 50 AND f1 = 'a1'";
+        assertEquals(3, getIntValue(1, true));
+
+        sql = "SELECT count(*) FROM SelectTest WHERE f1 IS NULL";
+        assertEquals(0, getIntValue(1, true));
     }
 
     private void orderBy() throws Exception {
         sql = "FROM SelectTest SELECT f1, f2, cf2.f3 ORDER BY f1 desc";
         printResultSet();
+
+        //跨多个Region的ORDER BY ... LIMIT，每个Region只返回前几条，再由k路归并得到最终结果
+        sql = "SELECT _rowkey_, cf2.f3 FROM SelectTest ORDER BY cf2.f3 DESC, _rowkey_ LIMIT 3";
+        assertEquals("02", getStringValue(1));
+        assertEquals("03", next() ? getStringValue(1) : null);
+        assertEquals("26", next() ? getStringValue(1) : null);
+        assertEquals(false, next());
+        closeResultSet();
+
+        sql = "SELECT _rowkey_ FROM SelectTest ORDER BY cf2.f3, _rowkey_ LIMIT 2 OFFSET 1";
+        assertEquals("51", getStringValue(1));
+        assertEquals("52", next() ? getStringValue(1) : null);
+        assertEquals(false, next());
+        closeResultSet();
+
+        //排序字段不在select列表中
+        sql = "SELECT f1 FROM SelectTest ORDER BY cf2.f3 DESC, _rowkey_ DESC LIMIT 1";
+        assertEquals("a2", getStringValue(1, true));
     }
 
     private void groupBy() throws Exception {
         sql = "SELECT f1, count(f1) FROM SelectTest GROUP BY f1";
         sql = "SELECT f1, count(f1) FROM SelectTest GROUP BY f1 HAVING f1 >= 'a1'";
         printResultSet();
+
+        //各Region返回部分聚合结果，合并后再排序和LIMIT
+        sql = "SELECT f1, count(*), sum(cf2.f3) FROM SelectTest GROUP BY f1 ORDER BY f1";
+        assertEquals("a1", getStringValue(1));
+        assertEquals(7, getIntValue(2));
+        assertEquals(221, getIntValue(3));
+        assertEquals(true, next());
+        assertEquals("a2", getStringValue(1));
+        assertEquals(5, getIntValue(2));
+        assertEquals(197, getIntValue(3));
+        assertEquals(false, next());
+        closeResultSet();
+
+        sql = "SELECT f1, avg(cf2.f3) FROM SelectTest GROUP BY f1 ORDER BY count(*) LIMIT 1";
+        assertEquals("a2", getStringValue(1, true));
     }
 
     void testAggregate() throws Exception {
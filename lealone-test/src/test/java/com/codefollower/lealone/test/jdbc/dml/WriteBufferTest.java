@@ -0,0 +1,86 @@
+/*
+ * Copyright 2011 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.codefollower.lealone.test.jdbc.dml;
+
+import static junit.framework.Assert.assertEquals;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.Statement;
+
+import org.junit.Test;
+
+import com.codefollower.lealone.test.jdbc.TestBase;
+
+/**
+ * INSERT、UPDATE、DELETE的Put和Delete先按Region缓冲，语句结束时再写入，
+ * 同一个事务中后面的语句要能读到前面语句写的数据，回滚后这些数据都不可见
+ */
+public class WriteBufferTest extends TestBase {
+    @Test
+    public void run() throws Exception {
+        stmt.executeUpdate("DROP TABLE IF EXISTS WriteBufferTest");
+        createTable("WriteBufferTest", "25", "50", "75");
+        stmt.executeUpdate("INSERT INTO WriteBufferTest(_rowkey_, f1, cf2.f3) VALUES('01', 'a', 1)");
+
+        Connection c = DriverManager.getConnection(getURL(), "sa", "");
+        Statement s = c.createStatement();
+        c.setAutoCommit(false);
+
+        //记录落在不同的Region上
+        s.executeUpdate("INSERT INTO WriteBufferTest(_rowkey_, f1, cf2.f3) VALUES" //
+                + "('10', 'b', 10), ('30', 'b', 30), ('60', 'b', 60), ('80', 'b', 80)");
+        assertEquals(5, getInt(s, "SELECT count(*) FROM WriteBufferTest"));
+        assertEquals(4, getInt(s, "SELECT count(*) FROM WriteBufferTest WHERE f1 = 'b'"));
+
+        s.executeUpdate("UPDATE WriteBufferTest SET cf2.f3 = cf2.f3 + 1 WHERE f1 = 'b'");
+        assertEquals(61, getInt(s, "SELECT cf2.f3 FROM WriteBufferTest WHERE _rowkey_ = '60'"));
+        assertEquals(10 + 30 + 60 + 80 + 4, getInt(s, "SELECT sum(cf2.f3) FROM WriteBufferTest WHERE f1 = 'b'"));
+
+        s.executeUpdate("DELETE FROM WriteBufferTest WHERE _rowkey_ = '30' OR _rowkey_ = '01'");
+        assertEquals(3, getInt(s, "SELECT count(*) FROM WriteBufferTest"));
+
+        //其他事务看不到未提交的数据
+        assertEquals(1, getInt(stmt, "SELECT count(*) FROM WriteBufferTest"));
+
+        c.rollback();
+        assertEquals(1, getInt(s, "SELECT count(*) FROM WriteBufferTest"));
+        assertEquals(1, getInt(s, "SELECT cf2.f3 FROM WriteBufferTest WHERE _rowkey_ = '01'"));
+        assertEquals(1, getInt(stmt, "SELECT count(*) FROM WriteBufferTest"));
+
+        //提交后其他事务也能看到
+        s.executeUpdate("INSERT INTO WriteBufferTest(_rowkey_, f1, cf2.f3) VALUES('20', 'c', 20), ('70', 'c', 70)");
+        assertEquals(3, getInt(s, "SELECT count(*) FROM WriteBufferTest"));
+        c.commit();
+        assertEquals(3, getInt(stmt, "SELECT count(*) FROM WriteBufferTest"));
+
+        s.close();
+        c.close();
+    }
+
+    private static int getInt(Statement s, String sql) throws Exception {
+        ResultSet rs = s.executeQuery(sql);
+        rs.next();
+        int v = rs.getInt(1);
+        rs.close();
+        return v;
+    }
+}
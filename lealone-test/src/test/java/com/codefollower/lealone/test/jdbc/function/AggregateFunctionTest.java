@@ -20,6 +20,11 @@
 package com.codefollower.lealone.test.jdbc.function;
 
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+import java.sql.SQLException;
+
 import org.junit.Test;
 
 import com.codefollower.lealone.test.jdbc.TestBase;
@@ -31,6 +36,8 @@ public class AggregateFunctionTest extends TestBase {
         init();
         testAggregateFunctions();
         testAggregateFunctionsWithGroupBy();
+        testApproximateAggregateFunctions();
+        testApproximateAggregateFunctionsWithManyValues();
     }
 
     void init() throws Exception {
@@ -119,6 +126,72 @@ public class AggregateFunctionTest extends TestBase {
         assertValues();
     }
 
+    void testApproximateAggregateFunctions() throws Exception {
+        //值不多时HyperLogLog和QuantileSketch的结果都是精确的，
+        //多分区时各分区返回串行化后的中间结果，合并后再计算
+        String select = "SELECT approx_count_distinct(cf2.f3), approx_percentile(cf2.f3, 0.5) FROM AggregateFunctionTest";
+
+        sql = select + " WHERE _rowkey_ >= '01' AND _rowkey_ < '25'";
+        assertEquals(6, getIntValue(1));
+        assertEquals(5.0, getDoubleValue(2, true), 0.0);
+
+        sql = select + " WHERE _rowkey_ >= '25'";
+        assertEquals(6, getIntValue(1));
+        assertEquals(5.0, getDoubleValue(2, true), 0.0);
+
+        sql = select;
+        assertEquals(6, getIntValue(1));
+        assertEquals(5.0, getDoubleValue(2, true), 0.0);
+
+        sql = "SELECT f1, approx_count_distinct(cf2.f3) FROM AggregateFunctionTest GROUP BY f1 ORDER BY f1";
+        assertEquals("a1", getStringValue(1));
+        assertEquals(3, getIntValue(2));
+        assertEquals(true, next());
+        assertEquals("a2", getStringValue(1));
+        assertEquals(3, getIntValue(2));
+        closeResultSet();
+
+        //APPROX_COUNT_DISTINCT_SKETCH只在发给各Region的SQL中使用
+        try {
+            stmt.executeQuery("SELECT approx_count_distinct_sketch(cf2.f3) FROM AggregateFunctionTest");
+            fail();
+        } catch (SQLException e) {
+            //ok
+        }
+    }
+
+    void testApproximateAggregateFunctionsWithManyValues() throws Exception {
+        //每个分区的不同值都超过了1024个，HyperLogLog要用寄存器估算，
+        //每个分区的值也超过了QuantileSketch的容量，会走压缩的路径
+        createTable("AggregateFunctionTest2", "25", "50", "75");
+        int n = 8000;
+        for (int i = 1; i <= n; i++) {
+            //rowKey的前两位是i % 100，这样4个分区的值差不多一样多
+            String rowKey = (i % 100 < 10 ? "0" : "") + (i % 100) + "_" + i;
+            stmt.addBatch("INSERT INTO AggregateFunctionTest2(_rowkey_, cf2.f3) VALUES('" + rowKey + "', " + i + ")");
+            if (i % 500 == 0)
+                stmt.executeBatch();
+        }
+
+        //HyperLogLog的标准误差约0.8%，QuantileSketch的rank误差一般在2%以内，这里都放宽到5%
+        sql = "SELECT approx_count_distinct(cf2.f3), approx_percentile(cf2.f3, 0.5), "
+                + "approx_percentile(cf2.f3, 0.9) FROM AggregateFunctionTest2";
+        int distinct = getIntValue(1);
+        double median = getDoubleValue(2);
+        double p90 = getDoubleValue(3, true);
+        assertTrue("distinct=" + distinct, Math.abs(distinct - n) <= n * 0.05);
+        assertTrue("median=" + median, Math.abs(median - n * 0.5) <= n * 0.05);
+        assertTrue("p90=" + p90, Math.abs(p90 - n * 0.9) <= n * 0.05);
+
+        //单个分区
+        sql = "SELECT approx_count_distinct(cf2.f3), approx_percentile(cf2.f3, 0.5) "
+                + "FROM AggregateFunctionTest2 WHERE _rowkey_ < '25'";
+        distinct = getIntValue(1);
+        median = getDoubleValue(2, true);
+        assertTrue("distinct=" + distinct, Math.abs(distinct - n / 4) <= n / 4 * 0.05);
+        assertTrue("median=" + median, Math.abs(median - n * 0.5) <= n * 0.05);
+    }
+
     void getValues1() throws Exception {
         count1 = getIntValue(1);
         max1 = getIntValue(2);
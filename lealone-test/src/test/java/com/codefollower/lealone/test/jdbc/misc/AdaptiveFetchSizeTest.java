@@ -0,0 +1,140 @@
+/*
+ * Copyright 2011 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.codefollower.lealone.test.jdbc.misc;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+import java.sql.ResultSet;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import com.codefollower.lealone.result.AdaptiveFetchSize;
+import com.codefollower.lealone.test.jdbc.TestBase;
+
+/**
+ * 远程结果集和Region扫描器按记录宽度和读取时间调整每批的记录数
+ */
+public class AdaptiveFetchSizeTest extends TestBase {
+    private static final int NARROW_ROWS = 2000;
+    private static final int WIDE_ROWS = 40;
+    private static final int WIDE_LENGTH = 20000;
+
+    @Test
+    public void adapt() {
+        //窄记录：每次最多翻倍，不超过maxRows
+        AdaptiveFetchSize a = new AdaptiveFetchSize(100, 10000, 1024 * 1024, 200);
+        assertEquals(200, a.update(100, 100 * 20, 10));
+        assertEquals(400, a.update(200, 200 * 20, 10));
+        for (int i = 0; i < 20; i++)
+            a.update(a.getFetchSize(), a.getFetchSize() * 20L, 10);
+        assertEquals(10000, a.getFetchSize());
+
+        //宽记录：一批的字节数不超过targetBytes
+        a = new AdaptiveFetchSize(100, 10000, 1024 * 1024, 200);
+        for (int i = 0; i < 10; i++)
+            a.update(a.getFetchSize(), a.getFetchSize() * 100 * 1024L, 10);
+        assertEquals(10, a.getFetchSize());
+
+        //读一批太慢时按比例减小
+        a = new AdaptiveFetchSize(100, 10000, 1024 * 1024, 200);
+        assertEquals(50, a.update(100, 100 * 20, 400));
+        //不知道时间时只看宽度
+        assertEquals(100, a.update(50, 50 * 20, -1));
+
+        //没有记录时不变，最少1条
+        assertEquals(100, a.update(0, 0, 1000));
+        assertEquals(1, a.update(1, 10 * 1024 * 1024, 10));
+        assertEquals(1, new AdaptiveFetchSize(0).getFetchSize());
+    }
+
+    @Test
+    public void run() throws Exception {
+        stmt.executeUpdate("DROP TABLE IF EXISTS AdaptiveFetchSizeTest");
+        createTable("AdaptiveFetchSizeTest", "25", "50", "75");
+        StringBuilder buff = new StringBuilder();
+        for (int i = 0; i < NARROW_ROWS; i++) {
+            if (buff.length() > 0)
+                buff.append(", ");
+            buff.append("('n").append(rowKey(i)).append("', 'a', ").append(i).append(")");
+            if (i % 100 == 99) {
+                stmt.executeUpdate("INSERT INTO AdaptiveFetchSizeTest(_rowkey_, f1, cf2.f3) VALUES" + buff);
+                buff.setLength(0);
+            }
+        }
+        char[] wide = new char[WIDE_LENGTH];
+        Arrays.fill(wide, 'w');
+        for (int i = 0; i < WIDE_ROWS; i++)
+            stmt.executeUpdate("INSERT INTO AdaptiveFetchSizeTest(_rowkey_, f1, cf2.f3) VALUES('w" + rowKey(i) + "', '"
+                    + new String(wide) + "', " + i + ")");
+
+        //大结果集：批大小逐步加大，记录不能少也不能重复
+        ResultSet rs = stmt.executeQuery("SELECT _rowkey_, cf2.f3 FROM AdaptiveFetchSizeTest WHERE _rowkey_ < 'o' "
+                + "ORDER BY _rowkey_");
+        int count = 0;
+        while (rs.next()) {
+            assertEquals("n" + rowKey(count), rs.getString(1));
+            assertEquals(count, rs.getInt(2));
+            count++;
+        }
+        rs.close();
+        assertEquals(NARROW_ROWS, count);
+
+        //宽记录：批大小按宽度减小
+        rs = stmt.executeQuery("SELECT _rowkey_, f1 FROM AdaptiveFetchSizeTest WHERE _rowkey_ >= 'w' ORDER BY _rowkey_");
+        count = 0;
+        while (rs.next()) {
+            assertEquals("w" + rowKey(count), rs.getString(1));
+            assertEquals(WIDE_LENGTH, rs.getString(2).length());
+            count++;
+        }
+        rs.close();
+        assertEquals(WIDE_ROWS, count);
+
+        //小结果集
+        rs = stmt.executeQuery("SELECT _rowkey_ FROM AdaptiveFetchSizeTest ORDER BY _rowkey_ LIMIT 5");
+        count = 0;
+        while (rs.next())
+            assertEquals("n" + rowKey(count++), rs.getString(1));
+        rs.close();
+        assertEquals(5, count);
+        sql = "SELECT count(*) FROM AdaptiveFetchSizeTest";
+        assertEquals(NARROW_ROWS + WIDE_ROWS, getIntValue(1, true));
+
+        //显式指定的fetchSize不再调整
+        stmt.setFetchSize(7);
+        rs = stmt.executeQuery("SELECT _rowkey_ FROM AdaptiveFetchSizeTest WHERE _rowkey_ < 'o'");
+        assertEquals(7, rs.getFetchSize());
+        count = 0;
+        while (rs.next())
+            count++;
+        assertEquals(7, rs.getFetchSize());
+        rs.close();
+        assertEquals(NARROW_ROWS, count);
+        stmt.setFetchSize(0);
+    }
+
+    private static String rowKey(int i) {
+        //补齐成4位，这样字符串的顺序与数字的顺序一样
+        String s = Integer.toString(i);
+        return "0000".substring(s.length()) + s;
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2011 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.codefollower.lealone.test.jdbc.misc;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.fail;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.sql.SQLException;
+
+import org.junit.Test;
+
+import com.codefollower.lealone.constant.ErrorCode;
+import com.codefollower.lealone.test.jdbc.TestBase;
+
+public class BulkLoadTest extends TestBase {
+    @Test
+    public void run() throws Exception {
+        stmt.executeUpdate("DROP TABLE IF EXISTS BulkLoadTest");
+        createTableSQL("CREATE TABLE IF NOT EXISTS BulkLoadTest (f1 int primary key, f2 long, f3 varchar)");
+        stmt.executeUpdate("CREATE INDEX IF NOT EXISTS BulkLoadTest_f2 ON BulkLoadTest(f2)");
+
+        File file = File.createTempFile("BulkLoadTest", ".csv");
+        file.deleteOnExit();
+        FileWriter writer = new FileWriter(file);
+        writer.write("F1,F2,F3\n");
+        //记录不需要按rowKey排序，重复的主键以最后一条为准
+        for (int i = 100; i > 0; i--)
+            writer.write(i + "," + (i * 10) + ",v" + i + "\n");
+        writer.write("1,-10,last\n");
+        writer.close();
+
+        sql = "LOAD DATA INFILE '" + file.getAbsolutePath().replace('\\', '/') + "' INTO TABLE BulkLoadTest";
+        assertEquals(101, stmt.executeUpdate(sql));
+
+        sql = "SELECT count(*) FROM BulkLoadTest";
+        assertEquals(100, getIntValue(1, true));
+        sql = "SELECT f3 FROM BulkLoadTest WHERE f1 = 1";
+        assertEquals("last", getStringValue(1, true));
+        //二级索引也要同时导入
+        sql = "SELECT count(*) FROM BulkLoadTest WHERE f2 >= 500";
+        assertEquals(51, getIntValue(1, true));
+
+        stmt.executeUpdate("DROP TABLE IF EXISTS BulkLoadTest2");
+        createTableSQL("CREATE TABLE IF NOT EXISTS BulkLoadTest2 (f1 int primary key, f3 varchar)");
+        sql = "LOAD DATA INTO TABLE BulkLoadTest2(f1, f3) SELECT f1, f3 FROM BulkLoadTest WHERE f1 <= 50";
+        assertEquals(50, stmt.executeUpdate(sql));
+        sql = "SELECT count(*) FROM BulkLoadTest2 WHERE f1 > 40";
+        assertEquals(10, getIntValue(1, true));
+
+        testNullRowKey();
+    }
+
+    void testNullRowKey() throws Exception {
+        stmt.executeUpdate("DROP TABLE IF EXISTS BulkLoadTest3");
+        createTableSQL("CREATE TABLE IF NOT EXISTS BulkLoadTest3 (f1 int, f3 varchar)");
+
+        File file = File.createTempFile("BulkLoadTest3", ".csv");
+        file.deleteOnExit();
+        FileWriter writer = new FileWriter(file);
+        writer.write("_ROWKEY_,F1,F3\n");
+        writer.write("r1,1,a\n");
+        writer.write(",2,b\n"); //没有rowKey
+        writer.close();
+
+        //与INSERT一样报告NOT NULL约束错误，而不是RuntimeException
+        sql = "LOAD DATA INFILE '" + file.getAbsolutePath().replace('\\', '/') + "' INTO TABLE BulkLoadTest3(_rowkey_, f1, f3)";
+        try {
+            stmt.executeUpdate(sql);
+            fail("not throw SQLException");
+        } catch (SQLException e) {
+            assertEquals(ErrorCode.NULL_NOT_ALLOWED, e.getErrorCode());
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2011 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.codefollower.lealone.test.jdbc.misc;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.fail;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import org.junit.Test;
+
+import com.codefollower.lealone.constant.ErrorCode;
+import com.codefollower.lealone.test.jdbc.TestBase;
+
+/**
+ * 同一条SQL多次执行时重用缓存的CommandProxy和它的路由信息，
+ * 连接关闭后，新连接上的同一条SQL仍然能正确执行(借用的是之前归还的远程Session)
+ */
+public class CommandProxyCacheTest extends TestBase {
+    private static final String QUERY = "SELECT cf2.f3 FROM CommandProxyCacheTest WHERE _rowkey_ = ?";
+
+    @Test
+    public void run() throws Exception {
+        stmt.executeUpdate("DROP TABLE IF EXISTS CommandProxyCacheTest");
+        createTable("CommandProxyCacheTest", "25", "50", "75");
+        for (int i = 10; i < 90; i += 5)
+            stmt.executeUpdate("INSERT INTO CommandProxyCacheTest(_rowkey_, f1, cf2.f3) VALUES('" + i + "', 'a', " + i
+                    + ")");
+
+        Connection c1 = DriverManager.getConnection(getURL(), "sa", "");
+        PreparedStatement ps = c1.prepareStatement(QUERY);
+        //每次的rowKey落在不同的Region上
+        for (int j = 0; j < 3; j++)
+            for (int i = 10; i < 90; i += 5)
+                assertEquals(i, getF3(ps, i));
+        Statement s1 = c1.createStatement();
+        for (int j = 0; j < 3; j++)
+            assertEquals(4, count(s1, "SELECT count(*) FROM CommandProxyCacheTest WHERE _rowkey_ >= '70'"));
+        c1.close();
+
+        //关闭连接后不能再用
+        try {
+            getF3(ps, 10);
+            fail("not throw SQLException");
+        } catch (SQLException e) {
+            assertEquals(ErrorCode.OBJECT_CLOSED, e.getErrorCode());
+        }
+
+        Connection c2 = DriverManager.getConnection(getURL(), "sa", "");
+        ps = c2.prepareStatement(QUERY);
+        for (int j = 0; j < 3; j++)
+            for (int i = 85; i >= 10; i -= 5)
+                assertEquals(i, getF3(ps, i));
+        Statement s2 = c2.createStatement();
+        assertEquals(4, count(s2, "SELECT count(*) FROM CommandProxyCacheTest WHERE _rowkey_ >= '70'"));
+
+        //数据变了之后重用的命令读到的是新数据
+        s2.executeUpdate("UPDATE CommandProxyCacheTest SET cf2.f3 = 1000 WHERE _rowkey_ = '55'");
+        assertEquals(1000, getF3(ps, 55));
+        c2.close();
+    }
+
+    private static int getF3(PreparedStatement ps, int rowKey) throws Exception {
+        ps.setString(1, Integer.toString(rowKey));
+        ResultSet rs = ps.executeQuery();
+        rs.next();
+        int f3 = rs.getInt(1);
+        rs.close();
+        return f3;
+    }
+
+    private static int count(Statement s, String sql) throws Exception {
+        ResultSet rs = s.executeQuery(sql);
+        rs.next();
+        int count = rs.getInt(1);
+        rs.close();
+        return count;
+    }
+}
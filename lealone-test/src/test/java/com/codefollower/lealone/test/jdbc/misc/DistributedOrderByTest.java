@@ -0,0 +1,110 @@
+/*
+ * Copyright 2011 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.codefollower.lealone.test.jdbc.misc;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.codefollower.lealone.test.jdbc.TestBase;
+
+/**
+ * 跨多个Region的SELECT：带ORDER BY时对各Region排好序的结果做k路归并，不带ORDER BY时并行抓取各Region的记录
+ */
+public class DistributedOrderByTest extends TestBase {
+    @Test
+    public void run() throws Exception {
+        stmt.executeUpdate("DROP TABLE IF EXISTS DistributedOrderByTest");
+        createTable("DistributedOrderByTest", "25", "50", "75");
+        //f3按i % 4分成4段，排序后相邻的记录来自不同的Region
+        List<Integer> values = new ArrayList<Integer>();
+        for (int i = 10; i < 90; i++) {
+            int f3 = (i % 4) * 100 + i;
+            values.add(f3);
+            stmt.executeUpdate("INSERT INTO DistributedOrderByTest(_rowkey_, f1, cf2.f3) VALUES('" + i + "', 'a" + (i % 2)
+                    + "', " + f3 + ")");
+        }
+        Collections.sort(values);
+
+        //归并后的顺序要与全局排序一致
+        checkOrder("SELECT cf2.f3 FROM DistributedOrderByTest ORDER BY cf2.f3", values);
+        checkOrder("SELECT cf2.f3 FROM DistributedOrderByTest ORDER BY cf2.f3 LIMIT 10 OFFSET 5", values.subList(5, 15));
+
+        List<Integer> desc = new ArrayList<Integer>(values);
+        Collections.reverse(desc);
+        checkOrder("SELECT cf2.f3 FROM DistributedOrderByTest ORDER BY cf2.f3 DESC LIMIT 20", desc.subList(0, 20));
+        //offset超过了某些Region的记录数
+        checkOrder("SELECT cf2.f3 FROM DistributedOrderByTest ORDER BY cf2.f3 DESC LIMIT 100 OFFSET 70",
+                desc.subList(70, 80));
+
+        //多个排序字段
+        sql = "SELECT f1, _rowkey_ FROM DistributedOrderByTest ORDER BY f1, _rowkey_ DESC";
+        rs = stmt.executeQuery(sql);
+        String lastF1 = null;
+        String lastRowKey = null;
+        int count = 0;
+        while (rs.next()) {
+            String f1 = rs.getString(1);
+            String rowKey = rs.getString(2);
+            if (lastF1 != null) {
+                assertTrue(lastF1.compareTo(f1) <= 0);
+                if (lastF1.equals(f1))
+                    assertTrue(lastRowKey.compareTo(rowKey) > 0);
+            }
+            lastF1 = f1;
+            lastRowKey = rowKey;
+            count++;
+        }
+        closeResultSet();
+        assertEquals(80, count);
+
+        //不带ORDER BY时记录的顺序不确定，但每条记录只出现一次
+        sql = "SELECT _rowkey_ FROM DistributedOrderByTest";
+        rs = stmt.executeQuery(sql);
+        HashSet<String> rowKeys = new HashSet<String>();
+        while (rs.next())
+            assertTrue(rowKeys.add(rs.getString(1)));
+        closeResultSet();
+        assertEquals(80, rowKeys.size());
+
+        sql = "SELECT _rowkey_ FROM DistributedOrderByTest LIMIT 7";
+        rs = stmt.executeQuery(sql);
+        count = 0;
+        while (rs.next())
+            count++;
+        closeResultSet();
+        assertEquals(7, count);
+    }
+
+    private void checkOrder(String sql, List<Integer> expected) throws Exception {
+        rs = stmt.executeQuery(sql);
+        List<Integer> actual = new ArrayList<Integer>();
+        while (rs.next())
+            actual.add(rs.getInt(1));
+        closeResultSet();
+        assertEquals(expected, actual);
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2011 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.codefollower.lealone.test.jdbc.misc;
+
+import static junit.framework.Assert.assertEquals;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+import com.codefollower.lealone.test.jdbc.TestBase;
+
+/**
+ * 跨多个Region的查询由FanOutExecutor并发执行，再合并各Region的结果
+ */
+public class FanOutExecutorTest extends TestBase {
+    private static final int ROWS = 80; //rowKey从10到89，分布在4个Region上
+
+    @Test
+    public void run() throws Exception {
+        stmt.executeUpdate("DROP TABLE IF EXISTS FanOutExecutorTest");
+        createTable("FanOutExecutorTest", "25", "50", "75");
+        for (int i = 10; i < 10 + ROWS; i++)
+            stmt.executeUpdate("INSERT INTO FanOutExecutorTest(_rowkey_, f1, cf2.f3) VALUES('" + i + "', 'a" + (i % 2)
+                    + "', " + i + ")");
+
+        checkMergedResults(stmt);
+
+        //多个连接同时执行跨Region的查询，共用同一个FanOutExecutor
+        int threads = 8;
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Void>> futures = new ArrayList<Future<Void>>();
+            for (int i = 0; i < threads; i++) {
+                futures.add(pool.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        Connection c = DriverManager.getConnection(getURL(), "sa", "");
+                        try {
+                            Statement s = c.createStatement();
+                            for (int j = 0; j < 5; j++)
+                                checkMergedResults(s);
+                            s.close();
+                        } finally {
+                            c.close();
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> f : futures)
+                f.get();
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static void checkMergedResults(Statement s) throws Exception {
+        ResultSet rs = s.executeQuery("SELECT count(*), sum(cf2.f3), min(cf2.f3), max(cf2.f3) FROM FanOutExecutorTest");
+        rs.next();
+        assertEquals(ROWS, rs.getInt(1));
+        assertEquals((10 + 89) * ROWS / 2, rs.getInt(2));
+        assertEquals(10, rs.getInt(3));
+        assertEquals(89, rs.getInt(4));
+        rs.close();
+
+        rs = s.executeQuery("SELECT f1, count(*) FROM FanOutExecutorTest GROUP BY f1 ORDER BY f1");
+        rs.next();
+        assertEquals("a0", rs.getString(1));
+        assertEquals(ROWS / 2, rs.getInt(2));
+        rs.next();
+        assertEquals("a1", rs.getString(1));
+        assertEquals(ROWS / 2, rs.getInt(2));
+        rs.close();
+
+        //每个Region的记录都要读到，合并后的顺序是对的
+        rs = s.executeQuery("SELECT _rowkey_ FROM FanOutExecutorTest ORDER BY _rowkey_");
+        int expected = 10;
+        while (rs.next())
+            assertEquals(Integer.toString(expected++), rs.getString(1));
+        assertEquals(10 + ROWS, expected);
+        rs.close();
+    }
+}
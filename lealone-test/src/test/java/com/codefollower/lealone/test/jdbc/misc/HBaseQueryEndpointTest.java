@@ -0,0 +1,104 @@
+/*
+ * Copyright 2011 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.codefollower.lealone.test.jdbc.misc;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.fail;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.codefollower.lealone.constant.ErrorCode;
+import com.codefollower.lealone.test.jdbc.TestBase;
+
+/**
+ * 分组查询在RegionServer中通过HBaseQueryEndpoint执行，结果要与经过TCP Server执行的一样。
+ *
+ * 需要在hbase-site.xml中配置HBaseQueryEndpoint，并且RegionServer启动时把lealone.coprocessor.query设为true
+ * (HRegionServerStarter和AnotherHRegionServerStarter已经设置了)。
+ * 带HAVING的分组查询不能直接合并各Region的部分聚合结果，不会调用HBaseQueryEndpoint，
+ * 所以同一条SELECT加上一个总是成立的HAVING就是经过TCP Server执行的版本。
+ */
+public class HBaseQueryEndpointTest extends TestBase {
+    private static final String TCP_PATH = " HAVING count(*) > 0";
+
+    @Test
+    public void run() throws Exception {
+        stmt.executeUpdate("DROP TABLE IF EXISTS HBaseQueryEndpointTest");
+        createTable("HBaseQueryEndpointTest", "25", "50", "75");
+        for (int i = 10; i < 90; i++)
+            stmt.executeUpdate("INSERT INTO HBaseQueryEndpointTest(_rowkey_, f1, cf2.f3) VALUES('" + i + "', 'a" + (i % 3)
+                    + "', " + i + ")");
+
+        compare("SELECT count(*), sum(cf2.f3), min(cf2.f3), max(cf2.f3) FROM HBaseQueryEndpointTest");
+        compare("SELECT f1, count(*), sum(cf2.f3) FROM HBaseQueryEndpointTest GROUP BY f1");
+        compare("SELECT f1, count(*), max(cf2.f3) FROM HBaseQueryEndpointTest WHERE _rowkey_ >= '30' GROUP BY f1");
+
+        sql = "SELECT count(*), sum(cf2.f3) FROM HBaseQueryEndpointTest";
+        assertEquals(80, getIntValue(1));
+        assertEquals((10 + 89) * 80 / 2, getIntValue(2, true));
+
+        //Region中执行出错时，错误码要原样返回给客户端
+        String error = "SELECT sum(cf2.f3 / (cf2.f3 - cf2.f3)) FROM HBaseQueryEndpointTest";
+        assertEquals(ErrorCode.DIVISION_BY_ZERO_1, getErrorCode(error));
+        assertEquals(ErrorCode.DIVISION_BY_ZERO_1, getErrorCode(error + TCP_PATH));
+    }
+
+    private void compare(String sql) throws Exception {
+        List<String> expected = query(sql + TCP_PATH);
+        assertFalse(expected.isEmpty());
+        assertEquals(expected, query(sql));
+    }
+
+    private static List<String> query(String sql) throws Exception {
+        List<String> rows = new ArrayList<String>();
+        ResultSet rs = stmt.executeQuery(sql);
+        int columnCount = rs.getMetaData().getColumnCount();
+        while (rs.next()) {
+            StringBuilder buff = new StringBuilder();
+            for (int i = 1; i <= columnCount; i++) {
+                if (i > 1)
+                    buff.append(", ");
+                buff.append(rs.getString(i));
+            }
+            rows.add(buff.toString());
+        }
+        rs.close();
+        //各Region的结果合并后分组的顺序不确定
+        Collections.sort(rows);
+        return rows;
+    }
+
+    private static int getErrorCode(String sql) throws Exception {
+        try {
+            stmt.executeQuery(sql).close();
+            fail("not throw SQLException");
+        } catch (SQLException e) {
+            return e.getErrorCode();
+        }
+        return 0;
+    }
+}
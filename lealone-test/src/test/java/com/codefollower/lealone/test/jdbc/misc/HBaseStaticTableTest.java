@@ -19,6 +19,7 @@
  */
 package com.codefollower.lealone.test.jdbc.misc;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 import java.sql.SQLException;
@@ -60,4 +61,51 @@ public class HBaseStaticTableTest extends TestBase {
         printResultSet();
     }
 
+    @Test
+    public void primaryKeyRowKey() throws Exception {
+        //rowKey由主键列的值编码而成，负数要排在正数前面
+        String tableName = "HBaseStaticTableTestIntKey";
+        stmt.executeUpdate("DROP TABLE IF EXISTS " + tableName);
+        createTableSQL("CREATE TABLE IF NOT EXISTS " + tableName + " (f1 int primary key, f2 long)");
+        for (int i = -5; i <= 5; i++)
+            stmt.executeUpdate("INSERT INTO " + tableName + "(f1, f2) VALUES(" + i + ", " + i * 10 + ")");
+
+        sql = "SELECT f2 FROM " + tableName + " WHERE f1 = -3";
+        assertEquals(-30, getIntValue(1, true));
+        sql = "SELECT count(*) FROM " + tableName + " WHERE f1 >= -2 AND f1 <= 2";
+        assertEquals(5, getIntValue(1, true));
+        sql = "SELECT count(*) FROM " + tableName + " WHERE f1 < 0";
+        assertEquals(5, getIntValue(1, true));
+
+        stmt.executeUpdate("UPDATE " + tableName + " SET f2 = 100 WHERE f1 = -1");
+        sql = "SELECT f2 FROM " + tableName + " WHERE f1 = -1";
+        assertEquals(100, getIntValue(1, true));
+        stmt.executeUpdate("DELETE FROM " + tableName + " WHERE f1 > 3");
+        sql = "SELECT count(*) FROM " + tableName;
+        assertEquals(9, getIntValue(1, true));
+
+        //多列主键，按前几列的条件只扫描一部分rowKey
+        tableName = "HBaseStaticTableTestCompositeKey";
+        stmt.executeUpdate("DROP TABLE IF EXISTS " + tableName);
+        createTableSQL("CREATE TABLE IF NOT EXISTS " + tableName
+                + " (f1 varchar not null, f2 int not null, f3 long, primary key(f1, f2))");
+        stmt.executeUpdate("INSERT INTO " + tableName + "(f1, f2, f3) VALUES('a', -1, 1)");
+        stmt.executeUpdate("INSERT INTO " + tableName + "(f1, f2, f3) VALUES('a', 2, 2)");
+        stmt.executeUpdate("INSERT INTO " + tableName + "(f1, f2, f3) VALUES('ab', 1, 3)");
+        stmt.executeUpdate("INSERT INTO " + tableName + "(f1, f2, f3) VALUES('b', 1, 4)");
+
+        sql = "SELECT f3 FROM " + tableName + " WHERE f1 = 'a' AND f2 = 2";
+        assertEquals(2, getIntValue(1, true));
+        sql = "SELECT count(*) FROM " + tableName + " WHERE f1 = 'a'";
+        assertEquals(2, getIntValue(1, true));
+        sql = "SELECT count(*) FROM " + tableName + " WHERE f1 = 'a' AND f2 < 2";
+        assertEquals(1, getIntValue(1, true));
+        sql = "SELECT count(*) FROM " + tableName + " WHERE f1 >= 'a' AND f1 <= 'ab'";
+        assertEquals(3, getIntValue(1, true));
+
+        //主键相同时覆盖原来的记录
+        stmt.executeUpdate("INSERT INTO " + tableName + "(f1, f2, f3) VALUES('b', 1, 5)");
+        sql = "SELECT f3 FROM " + tableName + " WHERE f1 = 'b' AND f2 = 1";
+        assertEquals(5, getIntValue(1, true));
+    }
 }
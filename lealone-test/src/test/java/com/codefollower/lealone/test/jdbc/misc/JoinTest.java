@@ -19,6 +19,8 @@
  */
 package com.codefollower.lealone.test.jdbc.misc;
 
+import static junit.framework.Assert.assertEquals;
+
 import org.junit.Test;
 
 import com.codefollower.lealone.test.jdbc.TestBase;
@@ -107,5 +109,15 @@ public class JoinTest extends TestBase {
         //sql = "SELECT rownum, * FROM JoinTest1";
         printResultSet();
 
+        //内表只读一次，按t4.id建哈希表
+        sql = "SELECT count(*) FROM JoinTest1 t1 JOIN JoinTest4 t4 ON t1.id = t4.id";
+        assertEquals(4, getIntValue(1, true));
+
+        sql = "SELECT count(*) FROM JoinTest1 t1 LEFT OUTER JOIN JoinTest4 t4 ON t1.id = t4.id";
+        assertEquals(5, getIntValue(1, true));
+
+        //按rowKey join，内表批量查找
+        sql = "SELECT count(*) FROM JoinTest1 t1 JOIN JoinTest3 t3 ON t3._rowkey_ = t1._rowkey_";
+        assertEquals(2, getIntValue(1, true));
     }
 }
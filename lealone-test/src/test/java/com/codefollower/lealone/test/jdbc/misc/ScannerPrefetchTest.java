@@ -0,0 +1,113 @@
+/*
+ * Copyright 2011 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.codefollower.lealone.test.jdbc.misc;
+
+import static junit.framework.Assert.assertEquals;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+import com.codefollower.lealone.test.jdbc.TestBase;
+
+/**
+ * 扫描器在后台线程中预读下一批记录，同时扫描的扫描器多于lealone.scanner.prefetch.threads(默认16)时，
+ * 预读被拒绝，改为需要时再读，读到的记录不能少也不能重复
+ */
+public class ScannerPrefetchTest extends TestBase {
+    private static final int ROWS = 400; //rowKey从100到499
+
+    @Test
+    public void run() throws Exception {
+        stmt.executeUpdate("DROP TABLE IF EXISTS ScannerPrefetchTest");
+        createTable("ScannerPrefetchTest", "200", "300", "400");
+        StringBuilder buff = new StringBuilder();
+        for (int i = 100; i < 100 + ROWS; i++) {
+            if (buff.length() > 0)
+                buff.append(", ");
+            buff.append("('").append(i).append("', 'a', ").append(i).append(")");
+            if (i % 50 == 49) {
+                stmt.executeUpdate("INSERT INTO ScannerPrefetchTest(_rowkey_, f1, cf2.f3) VALUES" + buff);
+                buff.setLength(0);
+            }
+        }
+
+        scan(stmt);
+
+        int threads = 32;
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Void>> futures = new ArrayList<Future<Void>>();
+            for (int i = 0; i < threads; i++) {
+                futures.add(pool.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        Connection c = DriverManager.getConnection(getURL(), "sa", "");
+                        try {
+                            Statement s = c.createStatement();
+                            for (int j = 0; j < 3; j++)
+                                scan(s);
+                            s.close();
+                        } finally {
+                            c.close();
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> f : futures)
+                f.get();
+        } finally {
+            pool.shutdown();
+        }
+
+        //没有读到最后的扫描器在语句结束时关闭，之后的查询不受影响
+        for (int i = 0; i < 20; i++) {
+            ResultSet rs = stmt.executeQuery("SELECT _rowkey_ FROM ScannerPrefetchTest ORDER BY _rowkey_ LIMIT 3");
+            rs.next();
+            assertEquals("100", rs.getString(1));
+            rs.close();
+        }
+        scan(stmt);
+    }
+
+    private static void scan(Statement s) throws Exception {
+        //每批只取几条记录，这样每个扫描器都要预读很多次
+        s.setFetchSize(5);
+        ResultSet rs = s.executeQuery("SELECT _rowkey_, cf2.f3 FROM ScannerPrefetchTest ORDER BY _rowkey_");
+        int expected = 100;
+        while (rs.next()) {
+            assertEquals(Integer.toString(expected), rs.getString(1));
+            assertEquals(expected, rs.getInt(2));
+            expected++;
+        }
+        rs.close();
+        assertEquals(100 + ROWS, expected);
+    }
+}
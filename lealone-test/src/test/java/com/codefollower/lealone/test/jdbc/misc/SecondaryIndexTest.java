@@ -0,0 +1,80 @@
+/*
+ * Copyright 2011 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.codefollower.lealone.test.jdbc.misc;
+
+import static junit.framework.Assert.assertEquals;
+
+import org.junit.Test;
+
+import com.codefollower.lealone.test.jdbc.TestBase;
+
+public class SecondaryIndexTest extends TestBase {
+    @Test
+    public void run() throws Exception {
+        stmt.executeUpdate("DROP TABLE IF EXISTS SecondaryIndexTest");
+        createTableSQL("CREATE TABLE IF NOT EXISTS SecondaryIndexTest (f1 int primary key, f2 long, f3 varchar)");
+
+        stmt.executeUpdate("INSERT INTO SecondaryIndexTest(f1, f2, f3) VALUES(1, -20, 'a')");
+        stmt.executeUpdate("INSERT INTO SecondaryIndexTest(f1, f2, f3) VALUES(2, -10, 'ab')");
+
+        //建索引前已有的记录也要能通过索引找到
+        stmt.executeUpdate("CREATE INDEX IF NOT EXISTS SecondaryIndexTest_f2 ON SecondaryIndexTest(f2)");
+        stmt.executeUpdate("CREATE INDEX IF NOT EXISTS SecondaryIndexTest_f3 ON SecondaryIndexTest(f3)");
+
+        stmt.executeUpdate("INSERT INTO SecondaryIndexTest(f1, f2, f3) VALUES(3, 0, 'b')");
+        stmt.executeUpdate("INSERT INTO SecondaryIndexTest(f1, f2, f3) VALUES(4, 10, 'ab')");
+        stmt.executeUpdate("INSERT INTO SecondaryIndexTest(f1, f2, f3) VALUES(5, 20, null)");
+
+        //索引记录和基表记录在同一个HBase表中，扫描基表时不能读到索引记录
+        sql = "SELECT count(*) FROM SecondaryIndexTest";
+        assertEquals(5, getIntValue(1, true));
+
+        sql = "SELECT count(*) FROM SecondaryIndexTest WHERE f2 = -10";
+        assertEquals(1, getIntValue(1, true));
+        sql = "SELECT count(*) FROM SecondaryIndexTest WHERE f2 >= -10 AND f2 < 20";
+        assertEquals(3, getIntValue(1, true));
+        sql = "SELECT count(*) FROM SecondaryIndexTest WHERE f2 < 0";
+        assertEquals(2, getIntValue(1, true));
+        sql = "SELECT count(*) FROM SecondaryIndexTest WHERE f3 = 'ab'";
+        assertEquals(2, getIntValue(1, true));
+        sql = "SELECT count(*) FROM SecondaryIndexTest WHERE f3 > 'a' AND f3 <= 'b'";
+        assertEquals(3, getIntValue(1, true));
+
+        //索引列的值变了，旧的索引记录要删除
+        stmt.executeUpdate("UPDATE SecondaryIndexTest SET f2 = 30 WHERE f2 = -10");
+        sql = "SELECT count(*) FROM SecondaryIndexTest WHERE f2 = -10";
+        assertEquals(0, getIntValue(1, true));
+        sql = "SELECT f1 FROM SecondaryIndexTest WHERE f2 = 30";
+        assertEquals(2, getIntValue(1, true));
+
+        stmt.executeUpdate("DELETE FROM SecondaryIndexTest WHERE f3 = 'ab'");
+        sql = "SELECT count(*) FROM SecondaryIndexTest WHERE f2 > 0";
+        assertEquals(1, getIntValue(1, true));
+
+        stmt.executeUpdate("DROP INDEX IF EXISTS SecondaryIndexTest_f3");
+        sql = "SELECT count(*) FROM SecondaryIndexTest WHERE f3 = 'b'";
+        assertEquals(1, getIntValue(1, true));
+        //另一个索引的索引记录不受影响
+        sql = "SELECT count(*) FROM SecondaryIndexTest WHERE f2 >= 0";
+        assertEquals(2, getIntValue(1, true));
+        sql = "SELECT count(*) FROM SecondaryIndexTest";
+        assertEquals(3, getIntValue(1, true));
+    }
+}
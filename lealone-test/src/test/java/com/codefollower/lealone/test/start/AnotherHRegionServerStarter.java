@@ -33,6 +33,7 @@ public class AnotherHRegionServerStarter {
     public static void main(String[] args) throws Exception {
         if (args.length == 0)
             args = new String[] { "start" };
+        System.setProperty("lealone.coprocessor.query", "true");
 
         Configuration conf = HBaseConfiguration.create();
         @SuppressWarnings("unchecked")
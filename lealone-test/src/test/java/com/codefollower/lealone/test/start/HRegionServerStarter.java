@@ -24,6 +24,8 @@ import org.apache.hadoop.hbase.regionserver.HRegionServer;
 public class HRegionServerStarter {
 
     public static void main(String[] args) throws Exception {
+        //分组查询通过hbase-site.xml中配置的HBaseQueryEndpoint执行，见HBaseQueryEndpointTest
+        System.setProperty("lealone.coprocessor.query", "true");
         HRegionServer.main(new String[] { "start" });
     }
 